@@ -0,0 +1,66 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.bench;
+
+import java.io.File;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.redhat.ceylon.cmr.api.ArtifactResult;
+import com.redhat.ceylon.compiler.java.test.CompilerTests;
+import com.redhat.ceylon.compiler.loader.impl.reflect.CachedTOCJars;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+
+/**
+ * Indexing of the language module car and reading of class files out of it,
+ * which is how the reflection model loader gets at class files.
+ */
+@State(Scope.Benchmark)
+public class CachedTOCJarsBenchmark {
+
+    @Param({"ceylon/language/String.class", "ceylon/language/Iterable.class", "ceylon/language/missing.class"})
+    public String path;
+
+    private ArtifactResult languageModuleCar;
+    private CachedTOCJars jars;
+
+    @Setup
+    public void setup() {
+        languageModuleCar = CompilerTests.makeArtifactResult(new File(CompilerTests.LANGUAGE_MODULE_CAR));
+        jars = addJar();
+    }
+
+    @Benchmark
+    public CachedTOCJars addJar() {
+        CachedTOCJars jars = new CachedTOCJars();
+        Module module = new Module();
+        jars.addJar(languageModuleCar, module);
+        return jars;
+    }
+
+    @Benchmark
+    public byte[] getContents() {
+        return jars.getContents(path);
+    }
+}
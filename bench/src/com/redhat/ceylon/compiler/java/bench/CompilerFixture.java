@@ -0,0 +1,130 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.redhat.ceylon.compiler.java.codegen.CeylonCompilationUnit;
+import com.redhat.ceylon.compiler.java.loader.CeylonModelLoader;
+import com.redhat.ceylon.compiler.java.test.CompilerTests;
+import com.redhat.ceylon.compiler.java.tools.CeyloncFileManager;
+import com.redhat.ceylon.compiler.java.tools.CeyloncTaskImpl;
+import com.redhat.ceylon.compiler.java.tools.CeyloncTool;
+import com.redhat.ceylon.compiler.java.tools.LanguageCompiler;
+import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
+import com.redhat.ceylon.compiler.typechecker.context.PhasedUnit;
+import com.redhat.ceylon.compiler.typechecker.model.Declaration;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.tools.javac.util.Context;
+
+/**
+ * Compiles units of the <code>test/src</code> corpus and keeps the compiler
+ * context around, so that benchmarks can run parts of the compiler on a
+ * fully set up model loader and on type checked trees.
+ * <p>
+ * Benchmarks must be run from the root of the compiler project, after
+ * <code>ant test.classes</code>, like the tests.
+ */
+public class CompilerFixture {
+
+    /** The sources of the corpus, like for the tests */
+    public static final String SOURCE_PATH = "test/src";
+    /** A few small units which use a bit of everything */
+    public static final String[] TWO_CLASSES = {
+        "com/redhat/ceylon/compiler/java/test/misc/twoclasses/One.ceylon",
+        "com/redhat/ceylon/compiler/java/test/misc/twoclasses/Two.ceylon",
+        "com/redhat/ceylon/compiler/java/test/misc/twoclasses/main.ceylon",
+    };
+
+    public final Context context;
+    public final List<CeylonCompilationUnit> trees;
+
+    private CompilerFixture(Context context, List<CeylonCompilationUnit> trees) {
+        this.context = context;
+        this.trees = trees;
+    }
+
+    /**
+     * Compiles the given units, given relative to {@link #SOURCE_PATH}, and
+     * fails if they do not compile.
+     */
+    public static CompilerFixture compile(String... units) {
+        List<File> files = new ArrayList<File>(units.length);
+        for (String unit : units) {
+            files.add(new File(SOURCE_PATH, unit));
+        }
+        CeyloncTool compiler = new CeyloncTool();
+        CeyloncFileManager fileManager = (CeyloncFileManager) compiler.getStandardFileManager(null, null, null);
+        List<String> options = Arrays.asList(
+                "-src", SOURCE_PATH,
+                "-out", "build/bench-cars",
+                "-cacherep", "build/bench-cache",
+                "-cp", CompilerTests.getClassPathAsPath(),
+                "-suppress-warnings", "compilerAnnotation");
+        CeyloncTaskImpl task = compiler.getTask(null, fileManager, null, options, null,
+                fileManager.getJavaFileObjectsFromFiles(files));
+        // the Ceylon trees are only handed to javac, so we grab them on the way
+        final List<CeylonCompilationUnit> trees = new ArrayList<CeylonCompilationUnit>();
+        task.setTaskListener(new TaskListener() {
+            @Override
+            public void started(TaskEvent e) {
+            }
+
+            @Override
+            public void finished(TaskEvent e) {
+                if (e.getKind() == TaskEvent.Kind.PARSE
+                        && e.getCompilationUnit() instanceof CeylonCompilationUnit
+                        && !trees.contains(e.getCompilationUnit()))
+                    trees.add((CeylonCompilationUnit) e.getCompilationUnit());
+            }
+        });
+        if (!task.call())
+            throw new IllegalStateException("Failed to compile " + Arrays.toString(units));
+        return new CompilerFixture(task.getContext(), trees);
+    }
+
+    public AbstractModelLoader getModelLoader() {
+        return CeylonModelLoader.instance(context);
+    }
+
+    public Module getLanguageModule() {
+        return LanguageCompiler.getCeylonContextInstance(context).getModules().getLanguageModule();
+    }
+
+    public List<PhasedUnit> getPhasedUnits() {
+        return LanguageCompiler.getPhasedUnitsInstance(context).getPhasedUnits();
+    }
+
+    /**
+     * The declarations of the compiled units, including the members.
+     */
+    public List<Declaration> getDeclarations() {
+        List<Declaration> declarations = new ArrayList<Declaration>();
+        for (PhasedUnit phasedUnit : getPhasedUnits()) {
+            declarations.addAll(phasedUnit.getUnit().getDeclarations());
+        }
+        return declarations;
+    }
+}
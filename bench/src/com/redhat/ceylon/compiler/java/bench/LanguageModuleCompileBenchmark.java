@@ -0,0 +1,164 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.redhat.ceylon.common.FileUtil;
+import com.redhat.ceylon.compiler.java.test.CompilerTests;
+import com.redhat.ceylon.compiler.java.tools.CeyloncFileManager;
+import com.redhat.ceylon.compiler.java.tools.CeyloncTaskImpl;
+import com.redhat.ceylon.compiler.java.tools.CeyloncTool;
+
+/**
+ * A full compilation of the language module, which is where the model loader lookups add
+ * up. Its allocation shows how much they cost: run it with
+ * <code>ant bench -Dbench.args="LanguageModuleCompileBenchmark -prof gc"</code> before and
+ * after a change and compare <code>gc.alloc.rate.norm</code>. The cost of a single lookup
+ * is measured by {@link ModelLoaderBenchmark}.
+ * <p>
+ * It needs the sources of the language module, which are looked for in
+ * <code>../ceylon.language</code> unless given with <code>-p languageDir=...</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class LanguageModuleCompileBenchmark {
+
+    private static final String OUT = "build/bench-classes-runtime";
+
+    // the declarations which are implemented in Java
+    private static final List<String> NATIVE = Arrays.asList(
+            "Boolean", "Integer", "Float", "Character", "String", "Byte",
+            "Array", "Tuple", "Exception", "AssertionError", "Callable",
+            "flatten", "className", "identityHash", "integerRangeByIterable",
+            "language", "metamodel", "modules", "operatingSystem",
+            "printStackTrace", "process", "runtime", "system",
+            "StringBuilder", "Throwable",
+            "infinity", "arrayOfSize", "unflatten",
+            "serialization", "deserialization");
+
+    @Param({"../ceylon.language"})
+    public String languageDir;
+
+    private List<File> sourceFiles;
+    private String sourcePath;
+
+    @Setup
+    public void setup() {
+        File ceylonSourceDir = new File(languageDir, "src");
+        File javaSourceDir = new File(languageDir, "runtime");
+        if (!ceylonSourceDir.isDirectory() || !javaSourceDir.isDirectory())
+            throw new IllegalStateException("Missing the sources of the language module in " + languageDir);
+        sourcePath = ceylonSourceDir.getPath() + File.pathSeparator + javaSourceDir.getPath();
+        sourceFiles = new ArrayList<File>();
+        for (String pkg : new String[]{"ceylon/language", "ceylon/language/meta",
+                "ceylon/language/impl", "ceylon/language/meta/declaration",
+                "ceylon/language/meta/model", "ceylon/language/serialization"}) {
+            File[] files = new File(ceylonSourceDir, pkg).listFiles();
+            if (files == null)
+                continue;
+            File javaPkgDir = new File(javaSourceDir, pkg);
+            for (File file : files) {
+                String name = file.getName();
+                if (!file.isFile() || !name.endsWith(".ceylon"))
+                    continue;
+                String baseName = name.substring(0, name.length() - 7);
+                if (NATIVE.contains(baseName)
+                        || (baseName.equals("annotations") && pkg.equals("ceylon/language/meta")))
+                    addJavaSourceFile(baseName, javaPkgDir, false);
+                else
+                    sourceFiles.add(file);
+            }
+        }
+        for (String extra : new String[]{"true", "false"})
+            addJavaSourceFile(extra, new File(javaSourceDir, "ceylon/language"), true);
+        for (String extra : new String[]{"annotations", "modules", "type", "typeLiteral"})
+            addJavaSourceFile(extra, new File(javaSourceDir, "ceylon/language/meta"), true);
+        for (String pkg : new String[]{"com/redhat/ceylon/compiler/java",
+                "com/redhat/ceylon/compiler/java/language",
+                "com/redhat/ceylon/compiler/java/metadata",
+                "com/redhat/ceylon/compiler/java/runtime/ide",
+                "com/redhat/ceylon/compiler/java/runtime/metamodel",
+                "com/redhat/ceylon/compiler/java/runtime/model",
+                "com/redhat/ceylon/compiler/java/runtime/serialization"}) {
+            File[] files = new File(javaSourceDir, pkg).listFiles();
+            if (files == null)
+                continue;
+            for (File file : files) {
+                if (file.isFile() && file.getName().endsWith(".java"))
+                    sourceFiles.add(file);
+            }
+        }
+    }
+
+    private void addJavaSourceFile(String baseName, File javaPkgDir, boolean required) {
+        // toplevel functions and values are in a class with a trailing underscore
+        boolean lower = Character.isLowerCase(baseName.charAt(0));
+        File file = new File(javaPkgDir, baseName + (lower ? "_.java" : ".java"));
+        if (file.exists())
+            sourceFiles.add(file);
+        else if (required)
+            throw new IllegalStateException("Required file not found: " + file);
+        File impl = new File(javaPkgDir, baseName + "$impl.java");
+        if (!lower && impl.exists())
+            sourceFiles.add(impl);
+    }
+
+    @Setup(Level.Iteration)
+    public void clean() {
+        // every iteration compiles from scratch
+        FileUtil.delete(new File(OUT));
+    }
+
+    @Benchmark
+    public void compileLanguageModule() {
+        CeyloncTool compiler = new CeyloncTool();
+        CeyloncFileManager fileManager = (CeyloncFileManager) compiler.getStandardFileManager(null, null, null);
+        CeyloncTaskImpl task = (CeyloncTaskImpl) compiler.getTask(null, fileManager, null,
+                Arrays.asList("-sourcepath", sourcePath,
+                              "-d", OUT, "-Xbootstrapceylon",
+                              "-cp", CompilerTests.getClassPathAsPathExcludingLanguageModule(),
+                              "-suppress-warnings", "ceylonNamespace"),
+                null, fileManager.getJavaFileObjectsFromFiles(sourceFiles));
+        if (!task.call())
+            throw new IllegalStateException("Failed to compile the language module");
+    }
+}
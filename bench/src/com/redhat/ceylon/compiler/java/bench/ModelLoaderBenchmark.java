@@ -0,0 +1,89 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.bench;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
+import com.redhat.ceylon.compiler.loader.ModelLoader.DeclarationType;
+import com.redhat.ceylon.compiler.loader.ModuleNameMap;
+import com.redhat.ceylon.compiler.loader.mirror.ClassMirror;
+import com.redhat.ceylon.compiler.typechecker.model.Declaration;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+
+/**
+ * Lookups of already loaded language module declarations, which is what the
+ * type checker and the code generator keep doing.
+ * <p>
+ * The cache benchmarks compare the two ways the model loader caches were keyed:
+ * run them with <code>-prof gc</code> to see what a hit allocates with keys made by
+ * {@link AbstractModelLoader#getCacheKeyByModule(Module, String)}, as before, and
+ * with a {@link ModuleNameMap}, as now.
+ */
+@State(Scope.Benchmark)
+public class ModelLoaderBenchmark {
+
+    @Param({"ceylon.language.String", "ceylon.language.Iterable", "ceylon.language.Integer"})
+    public String name;
+
+    private AbstractModelLoader modelLoader;
+    private Module languageModule;
+    private ConcurrentMap<String, Declaration> declarationsByKey;
+    private ModuleNameMap<Declaration> declarationsByModuleAndName;
+
+    @Setup
+    public void setup() {
+        CompilerFixture fixture = CompilerFixture.compile(CompilerFixture.TWO_CLASSES);
+        modelLoader = fixture.getModelLoader();
+        languageModule = fixture.getLanguageModule();
+        Declaration declaration = convertToDeclaration();
+        declarationsByKey = new ConcurrentHashMap<String, Declaration>();
+        declarationsByKey.put(AbstractModelLoader.getCacheKeyByModule(languageModule, name), declaration);
+        declarationsByModuleAndName = new ModuleNameMap<Declaration>();
+        declarationsByModuleAndName.put(languageModule, name, declaration);
+    }
+
+    @Benchmark
+    public ClassMirror lookupClassMirror() {
+        return modelLoader.lookupClassMirror(languageModule, name);
+    }
+
+    @Benchmark
+    public Declaration convertToDeclaration() {
+        return modelLoader.convertToDeclaration(languageModule, name, DeclarationType.TYPE);
+    }
+
+    @Benchmark
+    public Declaration cacheHitByConcatenatedKey() {
+        return declarationsByKey.get(AbstractModelLoader.getCacheKeyByModule(languageModule, name));
+    }
+
+    @Benchmark
+    public Declaration cacheHitByModuleAndName() {
+        return declarationsByModuleAndName.get(languageModule, name);
+    }
+}
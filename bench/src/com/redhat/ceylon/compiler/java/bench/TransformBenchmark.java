@@ -0,0 +1,55 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.redhat.ceylon.compiler.java.codegen.CeylonCompilationUnit;
+import com.redhat.ceylon.compiler.java.codegen.CeylonTransformer;
+
+/**
+ * Transformation of type checked Ceylon trees into javac trees, which goes
+ * through the class, expression and statement transformers.
+ */
+@State(Scope.Benchmark)
+public class TransformBenchmark {
+
+    private CompilerFixture fixture;
+    private CeylonTransformer gen;
+
+    @Setup
+    public void setup() {
+        fixture = CompilerFixture.compile(CompilerFixture.TWO_CLASSES);
+        gen = CeylonTransformer.getInstance(fixture.context);
+    }
+
+    @Benchmark
+    public void transform(Blackhole blackhole) {
+        for (CeylonCompilationUnit tree : fixture.trees) {
+            gen.setMap(tree.lineMap);
+            gen.setFileObject(tree.getSourceFile());
+            blackhole.consume(gen.transformAfterTypeChecking(tree.ceylonTree));
+        }
+    }
+}
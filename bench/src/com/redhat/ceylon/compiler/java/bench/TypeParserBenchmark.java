@@ -0,0 +1,67 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.redhat.ceylon.compiler.loader.TypeParser;
+import com.redhat.ceylon.compiler.typechecker.context.PhasedUnit;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+import com.redhat.ceylon.compiler.typechecker.model.ProducedType;
+import com.redhat.ceylon.compiler.typechecker.model.Unit;
+
+/**
+ * Decoding of the type strings found in the annotations of compiled Ceylon
+ * classes, which the model loader does for every member it completes.
+ */
+@State(Scope.Benchmark)
+public class TypeParserBenchmark {
+
+    @Param({
+        "ceylon.language::String",
+        "ceylon.language::Iterable<ceylon.language::String,ceylon.language::Null>",
+        "ceylon.language::Integer|ceylon.language::Float|ceylon.language::Null",
+    })
+    public String type;
+
+    private TypeParser typeParser;
+    private com.redhat.ceylon.compiler.typechecker.model.Scope scope;
+    private Module module;
+    private Unit unit;
+
+    @Setup
+    public void setup() {
+        CompilerFixture fixture = CompilerFixture.compile(CompilerFixture.TWO_CLASSES);
+        PhasedUnit phasedUnit = fixture.getPhasedUnits().get(0);
+        typeParser = new TypeParser(fixture.getModelLoader());
+        scope = phasedUnit.getPackage();
+        module = phasedUnit.getPackage().getModule();
+        unit = phasedUnit.getUnit();
+    }
+
+    @Benchmark
+    public ProducedType decodeType() {
+        return typeParser.decodeType(type, scope, module, unit);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.codegen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.redhat.ceylon.compiler.java.bench.CompilerFixture;
+import com.redhat.ceylon.compiler.typechecker.model.Declaration;
+import com.redhat.ceylon.compiler.typechecker.model.TypeDeclaration;
+import com.redhat.ceylon.compiler.typechecker.model.TypedDeclaration;
+
+/**
+ * Name mangling of the declarations of a few units, which the code generator
+ * does over and over for every reference. Lives in the code generator package
+ * because most of {@link Naming} is package private.
+ */
+@State(Scope.Benchmark)
+public class NamingBenchmark {
+
+    private Naming naming;
+    private List<TypeDeclaration> typeDeclarations = new ArrayList<TypeDeclaration>();
+    private List<TypedDeclaration> typedDeclarations = new ArrayList<TypedDeclaration>();
+
+    @Setup
+    public void setup() {
+        CompilerFixture fixture = CompilerFixture.compile(CompilerFixture.TWO_CLASSES);
+        naming = Naming.instance(fixture.context);
+        for (Declaration declaration : fixture.getDeclarations()) {
+            if (declaration instanceof TypeDeclaration)
+                typeDeclarations.add((TypeDeclaration) declaration);
+            else if (declaration instanceof TypedDeclaration)
+                typedDeclarations.add((TypedDeclaration) declaration);
+        }
+    }
+
+    @Benchmark
+    public void makeTypeDeclarationName(Blackhole blackhole) {
+        for (TypeDeclaration declaration : typeDeclarations) {
+            blackhole.consume(naming.makeTypeDeclarationName(declaration));
+        }
+    }
+
+    @Benchmark
+    public void getName(Blackhole blackhole) {
+        for (TypedDeclaration declaration : typedDeclarations) {
+            blackhole.consume(naming.getName(declaration, Naming.NA_MEMBER));
+        }
+    }
+
+    @Benchmark
+    public void selector(Blackhole blackhole) {
+        for (TypedDeclaration declaration : typedDeclarations) {
+            blackhole.consume(Naming.selector(declaration, 0));
+        }
+    }
+
+    @Benchmark
+    public void getGetterName(Blackhole blackhole) {
+        for (TypedDeclaration declaration : typedDeclarations) {
+            blackhole.consume(Naming.getGetterName(declaration));
+        }
+    }
+}
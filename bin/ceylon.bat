@@ -31,7 +31,31 @@ set "JAVA_OPTS=%PREPEND_JAVA_OPTS% %JAVA_OPTS%"
 
 set "LIB=%CEYLON_HOME%\lib"
 
+rem Use the class data sharing archive made by "ceylon --generate-cds" for this JVM if there is one.
+rem Its name has the version of the JVM it was made for, which we read from the release file of the JDK.
+set "CDS_OPTS="
+set "CDS_ARCHIVE="
+set "CDS_COUNT=0"
+set "CDS_VM_VERSION="
+if exist "%JAVA_HOME%\release" (
+    for /f "usebackq tokens=1,* delims==" %%a in ("%JAVA_HOME%\release") do (
+        if "%%a" == "JAVA_RUNTIME_VERSION" set "CDS_VM_VERSION=%%~b"
+    )
+)
+if "%CDS_VM_VERSION%" == "" goto nocds
+set "CDS_VM_VERSION=%CDS_VM_VERSION:+=_%"
+for %%f in ("%LIB%\ceylon-bootstrap-%CDS_VM_VERSION%-*.jsa") do (
+    set /a CDS_COUNT+=1
+    set "CDS_ARCHIVE=%%~ff"
+)
+rem with one for each system repository we can't tell which
+if not "%CDS_COUNT%" == "1" goto nocds
+rem the JVM logs why it can't use an archive to stdout, where it would mix with our output
+set CDS_OPTS="-XX:SharedArchiveFile=%CDS_ARCHIVE%" -Xlog:disable -Xlog:all=warning:stderr
+:nocds
+
 "%JAVA%" ^
+    %CDS_OPTS% ^
     %JAVA_OPTS% ^
     -jar "%LIB%\ceylon-bootstrap.jar" ^
     %*
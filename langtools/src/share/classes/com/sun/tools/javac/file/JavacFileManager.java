@@ -603,6 +603,17 @@ public class JavacFileManager extends BaseFileManager implements StandardJavaFil
         }
     }
 
+    // Ceylon: close the given archive, which was rewritten, so that we open it again
+    public void closeArchive(File file) {
+        Archive archive = archives.remove(file);
+        if (archive != null) {
+            try {
+                archive.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
     private String defaultEncodingName;
     private String getDefaultEncodingName() {
         if (defaultEncodingName == null) {
@@ -867,8 +867,11 @@ public class JavaCompiler implements ClassReader.SourceCompleter {
                 break;
 
             case BY_TODO:
-                while (!todo.isEmpty())
-                    generate(desugar(flow(attribute(todo.remove()))));
+                while (!todo.isEmpty()) {
+                    Env<AttrContext> env = todo.remove();
+                    generate(desugar(flow(attribute(env))));
+                    generated(env);
+                }
                 break;
 
             default:
@@ -1276,6 +1279,22 @@ public class JavaCompiler implements ClassReader.SourceCompleter {
     HashMap<Env<AttrContext>, Queue<Pair<Env<AttrContext>, JCClassDecl>>> desugaredEnvs =
             new HashMap<Env<AttrContext>, Queue<Pair<Env<AttrContext>, JCClassDecl>>>();
 
+    /**
+     * Ceylon: called by the {@code BY_TODO} compile policy once the given
+     * entry of the todo list went through every phase, so that subclasses
+     * can release what they no longer need.
+     */
+    protected void generated(Env<AttrContext> env) {
+    }
+
+    /**
+     * Ceylon: forgets the desugared trees kept for the given env, which must
+     * not be desugared again.
+     */
+    protected void releaseDesugaredEnv(Env<AttrContext> env) {
+        desugaredEnvs.remove(env);
+    }
+
     /**
      * Prepare attributed parse trees, in conjunction with their attribution contexts,
      * for source or code generation. If the file was not listed on the command line,
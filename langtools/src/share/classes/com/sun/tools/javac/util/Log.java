@@ -221,6 +221,14 @@ public class Log extends AbstractLog {
      */
     private Set<Pair<JavaFileObject, Integer>> recorded = new HashSet<Pair<JavaFileObject,Integer>>();
 
+    // Ceylon: forget the diagnostics of the last compilation when we reuse the context
+    public void reset(){
+        nerrors = 0;
+        nwarnings = 0;
+        recorded.clear();
+        sourceMap.clear();
+    }
+
     public boolean hasDiagnosticListener() {
         return diagListener != null;
     }
@@ -28,6 +28,7 @@ import java.util.Set;
 import com.redhat.ceylon.cmr.api.ArtifactResult;
 import com.redhat.ceylon.compiler.loader.LoaderJULLogger;
 import com.redhat.ceylon.compiler.loader.impl.reflect.ReflectionModelLoader;
+import com.redhat.ceylon.compiler.loader.impl.reflect.bytecode.ClassFileLoader;
 import com.redhat.ceylon.compiler.loader.mirror.ClassMirror;
 import com.redhat.ceylon.compiler.loader.model.LazyModule;
 import com.redhat.ceylon.compiler.typechecker.analyzer.ModuleManager;
@@ -44,6 +45,13 @@ public class CeylonDocModelLoader extends ReflectionModelLoader {
 
     ModulesClassLoader classLoader = new ModulesClassLoader(CeylonDocModelLoader.class.getClassLoader());
     Set<Module> modulesAddedToClassPath = new HashSet<Module>();
+    // we only need to describe classes, so we read them rather than load them
+    ClassFileLoader classFileLoader = new ClassFileLoader(){
+        @Override
+        protected byte[] getClassFile(String name) {
+            return classLoader.getClassFile(name);
+        }
+    };
 
     public CeylonDocModelLoader(ModuleManager moduleManager, Modules modules){
         super(moduleManager, modules, new LoaderJULLogger());
@@ -65,6 +73,11 @@ public class CeylonDocModelLoader extends ReflectionModelLoader {
         return klass;
     }
 
+    @Override
+    protected ClassFileLoader getClassFileLoader() {
+        return classFileLoader;
+    }
+
     @Override
     public void addModuleToClassPath(final Module module, ArtifactResult artifact) {
         // don't add the same module more than once
@@ -78,6 +91,14 @@ public class CeylonDocModelLoader extends ReflectionModelLoader {
         if(module instanceof LazyModule){
             ((LazyModule) module).loadPackageList(artifact);
         }
+        classPathChanged();
+    }
+
+    /**
+     * Closes the jars we read classes from.
+     */
+    public void close() {
+        classLoader.close();
     }
 
     @Override
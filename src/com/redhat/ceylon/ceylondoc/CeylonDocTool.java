@@ -554,6 +554,10 @@ public class CeylonDocTool extends OutputRepoUsingTool {
             // create the documentation
             makeDoc();
         } finally {
+            ModuleManager moduleManager = typeChecker.getPhasedUnits().getModuleManager();
+            if (moduleManager instanceof CeylonDocModuleManager) {
+                ((CeylonDocModelLoader) ((CeylonDocModuleManager) moduleManager).getModelLoader()).close();
+            }
             FileUtil.deleteQuietly(tempDestDir);
         }
     }
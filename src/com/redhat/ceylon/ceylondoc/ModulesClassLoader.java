@@ -32,6 +32,7 @@ import java.util.jar.JarInputStream;
 import com.redhat.ceylon.cmr.api.ArtifactResult;
 import com.redhat.ceylon.cmr.api.JDKUtils;
 import com.redhat.ceylon.compiler.loader.impl.reflect.CachedTOCJars;
+import com.redhat.ceylon.compiler.loader.impl.reflect.bytecode.ClassFileLoader;
 import com.redhat.ceylon.compiler.typechecker.model.Module;
 
 /**
@@ -54,10 +55,28 @@ class ModulesClassLoader extends ClassLoader {
         return super.findClass(name);
     }
 
+    /**
+     * Returns the class file of the given class, looking in our parent first like
+     * {@link #loadClass(String)}, or null if we can't find it.
+     */
+    public byte[] getClassFile(String name) {
+        byte[] contents = ClassFileLoader.readClassFile(getParent(), name);
+        if(contents == null)
+            contents = jars.getContents(name.replace('.', '/').concat(".class"));
+        return contents;
+    }
+
     public void addJar(ArtifactResult artifact, Module module, boolean skipContents) {
         jars.addJar(artifact, module, skipContents);
     }
 
+    /**
+     * Closes the jars we keep open, which we open again if we need to load more classes.
+     */
+    public void close() {
+        jars.close();
+    }
+
     public boolean packageExists(Module module, String name) {
         String moduleName = module.getNameAsString();
         if(JDKUtils.isJDKModule(moduleName)){
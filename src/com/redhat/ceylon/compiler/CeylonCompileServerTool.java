@@ -0,0 +1,84 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler;
+
+import java.io.File;
+
+import com.redhat.ceylon.cmr.ceylon.RepoUsingTool;
+import com.redhat.ceylon.common.tool.Description;
+import com.redhat.ceylon.common.tool.OptionArgument;
+import com.redhat.ceylon.common.tool.Summary;
+import com.redhat.ceylon.common.tools.CeylonTool;
+import com.redhat.ceylon.compiler.java.launcher.CompileServer;
+
+@Summary("Runs a compiler process which compiles the modules sent to it " +
+        "by `ceylon compile --server`.")
+@Description("Keeps a warmed up compiler running, listening on a port of " +
+        "the loopback interface, so that successive compilations do not each " +
+        "have to start a JVM and load the compiler." +
+        "\n\n" +
+        "Compilations are run one at a time, each with a fresh compiler " +
+        "state, and their output is sent back to the `ceylon compile` which " +
+        "requested them. Options which are given to `ceylon compile` are " +
+        "forwarded to the server, except for Java system properties." +
+        "\n\n" +
+        "Only the user running the server can send it compilations: the " +
+        "server writes a secret to `~/.ceylon/compile-server/<port>.secret`, " +
+        "which only that user can read, and drops the connections which do " +
+        "not start with it.")
+public class CeylonCompileServerTool extends RepoUsingTool {
+
+    private int port = CompileServer.DEFAULT_PORT;
+    private String secret;
+
+    public CeylonCompileServerTool() {
+        super(CeylonCompileMessages.RESOURCE_BUNDLE);
+    }
+
+    @OptionArgument(argumentName="port")
+    @Description("The local port to listen on (default: `" + CompileServer.DEFAULT_PORT + "`).")
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    @OptionArgument(argumentName="file")
+    @Description("The file to write the secret of the server to " +
+            "(default: `~/.ceylon/compile-server/<port>.secret`).")
+    public void setSecret(String secret) {
+        this.secret = secret;
+    }
+
+    @Override
+    public void initialize(CeylonTool mainTool) {
+        setSystemProperties();
+    }
+
+    @Override
+    public void run() throws Exception {
+        CompileServer server = new CompileServer(port, secret != null ? new File(secret) : null);
+        try {
+            msg("server.listening", server.getPort());
+            newline();
+            server.serve();
+        } finally {
+            server.close();
+        }
+    }
+}
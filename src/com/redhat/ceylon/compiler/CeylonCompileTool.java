@@ -27,7 +27,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import com.redhat.ceylon.cmr.ceylon.OutputRepoUsingTool;
 import com.redhat.ceylon.common.Constants;
@@ -46,8 +48,10 @@ import com.redhat.ceylon.common.tool.ToolUsageError;
 import com.redhat.ceylon.common.tools.CeylonTool;
 import com.redhat.ceylon.common.tools.ModuleWildcardsHelper;
 import com.redhat.ceylon.common.tools.SourceArgumentsResolver;
+import com.redhat.ceylon.compiler.java.launcher.CompileServer;
 import com.redhat.ceylon.compiler.java.launcher.Main;
 import com.redhat.ceylon.compiler.java.launcher.Main.ExitState.CeylonState;
+import com.redhat.ceylon.compiler.java.tools.UnitRecord;
 import com.redhat.ceylon.compiler.typechecker.analyzer.Warning;
 import com.sun.tools.javac.main.JavacOption;
 import com.sun.tools.javac.main.OptionName;
@@ -174,6 +178,9 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
     private EnumSet<Warning> suppressWarnings = EnumUtil.enumsFromStrings(Warning.class, DefaultToolOptions.getCompilerSuppressWarnings());
     private boolean flatClasspath;
     private boolean autoExportMavenDependencies;
+    private Integer server;
+    private String serverSecret;
+    private boolean incremental;
 
     public CeylonCompileTool() {
         super(CeylonCompileMessages.RESOURCE_BUNDLE);
@@ -294,8 +301,37 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
         this.suppressWarnings = warnings;
     }
 
+    @Option(longName="incremental")
+    @Description("Only compiles the source files of the given modules which changed since " +
+            "the last incremental compilation, and then the files which depend on " +
+            "declarations whose signature changed, updating the existing module archives. " +
+            "The first incremental compilation of a module compiles all of it.")
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    @Hidden
+    @OptionArgument(argumentName="port")
+    @Description("Runs the compilation in the `ceylon compile-server` listening " +
+            "on the given local port instead of in this process.")
+    public void setServer(int port) {
+        this.server = port;
+    }
+
+    @Hidden
+    @OptionArgument(argumentName="file")
+    @Description("The file holding the secret of the `ceylon compile-server` " +
+            "given with `--server` (default: `~/.ceylon/compile-server/<port>.secret`).")
+    public void setServerSecret(String serverSecret) {
+        this.serverSecret = serverSecret;
+    }
+
     private List<String> arguments;
     
+    private List<String> optionArguments;
+    
+    private List<String> expandedModulesOrFiles;
+    
     private Main compiler;
     
     private static void validateWithJavac(Options options, JavacOption encodingOpt, String option, String argument, String key) {
@@ -320,6 +356,10 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
     public void initialize(CeylonTool mainTool) throws IOException {
         setSystemProperties();
         compiler = new Main("ceylon compile");
+        if (server != null && cwd == null) {
+            // the server has its own working directory
+            cwd = new File(".").getAbsoluteFile();
+        }
         Options options = Options.instance(new Context());
         
         if (modulesOrFiles.isEmpty() &&
@@ -329,7 +369,7 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
             throw new IllegalStateException("Argument moduleOrFile should appear at least 1 time(s)");
         }
         
-        arguments = new ArrayList<>();
+        arguments = new ArrayList<String>();
         
         if (cwd != null) {
             arguments.add("-cwd");
@@ -449,6 +489,10 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
             arguments.add(EnumUtil.enumsToString(Warning.class, suppressWarnings));
         }
         
+        if (incremental) {
+            arguments.add("-XD" + UnitRecord.OPTION);
+        }
+        
         addJavacArguments(arguments);
         
         List<File> srcs = applyCwd(this.sources);
@@ -466,6 +510,8 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
         
         validateSourceArguments(expandedModulesOrFiles);
         
+        optionArguments = new ArrayList<String>(arguments);
+        this.expandedModulesOrFiles = expandedModulesOrFiles;
         arguments.addAll(expandedModulesOrFiles);
         
         if (verbose != null) {
@@ -497,10 +543,74 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
      */
     @Override
     public void run() throws IOException {
+        if (incremental) {
+            runIncrementally();
+        } else {
+            compile(arguments);
+        }
+    }
+
+    private void compile(List<String> arguments) throws IOException {
+        if (server != null) {
+            File secretFile = serverSecret != null ? new File(serverSecret) : CompileServer.getSecretFile(server);
+            Main.ExitState exitState = CompileServer.compile(server, secretFile, arguments, new PrintWriter(System.err, true));
+            handleExitCode(exitState.javacExitCode, exitState);
+            return;
+        }
         int result = compiler.compile(arguments.toArray(new String[arguments.size()]));
         handleExitCode(result, compiler.exitState);
     }
 
+    /**
+     * Compiles the modules in rounds, each of which only compiles the files
+     * that need it, see {@link IncrementalBuild}
+     */
+    private void runIncrementally() throws IOException {
+        List<String> round = new ArrayList<String>();
+        List<IncrementalBuild> builds = new ArrayList<IncrementalBuild>();
+        for (String moduleOrFile : expandedModulesOrFiles) {
+            if (isFile(moduleOrFile)) {
+                round.add(moduleOrFile);
+                continue;
+            }
+            IncrementalBuild build = new IncrementalBuild(moduleOrFile, applyCwd(sources), applyCwd(resources), getOutputRepositoryManager());
+            List<File> files = build.getFilesToCompile();
+            if (files == null) {
+                round.add(moduleOrFile);
+            } else {
+                addPaths(round, files);
+            }
+            // even when compiled whole, its signature changes matter to the other modules
+            builds.add(build);
+        }
+        while (!round.isEmpty()) {
+            List<String> arguments = new ArrayList<String>(optionArguments);
+            arguments.addAll(round);
+            compile(arguments);
+            round = new ArrayList<String>();
+            // a module can use the declarations of any other module of the build
+            Set<String> changedDeclarations = new HashSet<String>();
+            for (IncrementalBuild build : builds) {
+                changedDeclarations.addAll(build.getChangedDeclarations());
+            }
+            for (IncrementalBuild build : builds) {
+                addPaths(round, build.getDependentsToCompile(changedDeclarations));
+            }
+        }
+    }
+
+    private boolean isFile(String moduleOrFile) {
+        return moduleOrFile.endsWith(Constants.CEYLON_SUFFIX)
+                || moduleOrFile.endsWith(Constants.JAVA_SUFFIX)
+                || applyCwd(new File(moduleOrFile)).isFile();
+    }
+
+    private static void addPaths(List<String> arguments, List<File> files) {
+        for (File file : files) {
+            arguments.add(file.getPath());
+        }
+    }
+
     private void handleExitCode(
             int javacExitCode,
             Main.ExitState exitState) {
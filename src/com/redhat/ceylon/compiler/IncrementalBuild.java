@@ -0,0 +1,211 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.redhat.ceylon.cmr.api.ArtifactContext;
+import com.redhat.ceylon.cmr.api.RepositoryManager;
+import com.redhat.ceylon.cmr.util.JarUtils;
+import com.redhat.ceylon.common.Constants;
+import com.redhat.ceylon.common.ModuleDescriptorReader.NoSuchModuleException;
+import com.redhat.ceylon.common.tools.SourceArgumentsResolver;
+import com.redhat.ceylon.compiler.java.tools.UnitRecord;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+
+/**
+ * Works out which source files of a module have to be compiled again, from
+ * the {@link UnitRecord}s which the previous incremental compilation kept in
+ * its module archive.
+ * <p>
+ * The first round compiles the files which changed since, or the whole
+ * module. Each following round compiles the files which use a declaration
+ * whose signature was changed by the previous round, in this module or in
+ * another module of the same build, until no signature changes.
+ */
+class IncrementalBuild {
+
+    private static final String PACKAGE_DESCRIPTOR = "package" + Constants.CEYLON_SUFFIX;
+
+    private final List<File> sourceDirs;
+    private final List<File> sourceFiles;
+    private final List<File> resourceFiles;
+    private final Map<String, File> filesByPath = new HashMap<String, File>();
+    private final RepositoryManager repositoryManager;
+    private final ArtifactContext carContext;
+    private Map<String, UnitRecord> records;
+    private Map<String, UnitRecord> newRecords;
+    private Set<String> lastRound = Collections.emptySet();
+
+    IncrementalBuild(String moduleName, List<File> sourceDirs, List<File> resourceDirs, RepositoryManager repositoryManager) throws IOException {
+        this.sourceDirs = sourceDirs;
+        this.repositoryManager = repositoryManager;
+        SourceArgumentsResolver resolver = new SourceArgumentsResolver(sourceDirs, resourceDirs, Constants.CEYLON_SUFFIX, Constants.JAVA_SUFFIX);
+        resolver.parse(Collections.singletonList(moduleName));
+        this.sourceFiles = resolver.getSourceFiles();
+        this.resourceFiles = resolver.getResourceFiles();
+        for (File file : sourceFiles) {
+            filesByPath.put(getPath(file), file);
+        }
+        this.carContext = new ArtifactContext(moduleName, getModuleVersion(moduleName, sourceDirs), ArtifactContext.CAR);
+        this.records = UnitRecord.read(repositoryManager.getArtifact(carContext));
+    }
+
+    private static String getModuleVersion(String moduleName, List<File> sourceDirs) {
+        if (Module.DEFAULT_MODULE_NAME.equals(moduleName))
+            return null;
+        for (File sourceDir : sourceDirs) {
+            try {
+                return new ModuleDescriptorReader(moduleName, sourceDir).getModuleVersion();
+            } catch (NoSuchModuleException e) {
+                // try the next one
+            }
+        }
+        return null;
+    }
+
+    private String getPath(File file) {
+        return JarUtils.toPlatformIndependentPath(sourceDirs, file.getPath());
+    }
+
+    /**
+     * Returns the files to compile in the first round, which can be empty
+     * if nothing changed, or null if the whole module has to be compiled.
+     */
+    List<File> getFilesToCompile() {
+        // until we know better
+        lastRound = filesByPath.keySet();
+        if (records == null)
+            return null;
+        for (String path : records.keySet()) {
+            // a unit was removed, which its users need to hear about
+            if (!filesByPath.containsKey(path))
+                return null;
+        }
+        List<File> changed = new ArrayList<File>();
+        Set<String> changedPaths = new HashSet<String>();
+        try {
+            for (File file : sourceFiles) {
+                String name = file.getName();
+                // Java units are not recorded
+                if (name.endsWith(Constants.JAVA_SUFFIX))
+                    return null;
+                if (name.equals(Constants.MODULE_DESCRIPTOR)
+                        || name.equals(PACKAGE_DESCRIPTOR)) {
+                    // descriptors can change what every unit sees
+                    if (isNewerThanCar(file))
+                        return null;
+                    continue;
+                }
+                String path = getPath(file);
+                UnitRecord record = records.get(path);
+                if (record == null || !record.sourceHash.equals(UnitRecord.hash(file))) {
+                    changed.add(file);
+                    changedPaths.add(path);
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        if (!changed.isEmpty() || haveResourcesChanged()) {
+            // we do not keep track of resources, so they are always copied
+            changed.addAll(resourceFiles);
+        }
+        lastRound = changedPaths;
+        return changed;
+    }
+
+    private boolean haveResourcesChanged() {
+        for (File file : resourceFiles) {
+            if (isNewerThanCar(file))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isNewerThanCar(File file) {
+        File car = repositoryManager.getArtifact(carContext);
+        return car == null || file.lastModified() > car.lastModified();
+    }
+
+    /**
+     * Returns the declarations whose signature was changed by the last round,
+     * including those of the units it removed.
+     */
+    Set<String> getChangedDeclarations() throws IOException {
+        newRecords = UnitRecord.read(repositoryManager.getArtifact(carContext));
+        Set<String> changedDeclarations = new HashSet<String>();
+        if (newRecords == null || lastRound.isEmpty())
+            return changedDeclarations;
+        for (String path : lastRound) {
+            UnitRecord oldRecord = records != null ? records.get(path) : null;
+            UnitRecord newRecord = newRecords.get(path);
+            if (oldRecord != null && newRecord != null 
+                    && oldRecord.signatureHash.equals(newRecord.signatureHash))
+                continue;
+            if (oldRecord != null)
+                changedDeclarations.addAll(oldRecord.declarations);
+            if (newRecord != null)
+                changedDeclarations.addAll(newRecord.declarations);
+        }
+        if (records != null) {
+            for (Map.Entry<String, UnitRecord> entry : records.entrySet()) {
+                if (!newRecords.containsKey(entry.getKey()))
+                    changedDeclarations.addAll(entry.getValue().declarations);
+            }
+        }
+        return changedDeclarations;
+    }
+
+    /**
+     * Returns the files which have to be compiled again because they use
+     * some of the given declarations, whose signature was changed by the last
+     * round in any module of the build.
+     */
+    List<File> getDependentsToCompile(Set<String> changedDeclarations) {
+        List<File> dependents = new ArrayList<File>();
+        Set<String> dependentPaths = new HashSet<String>();
+        if (newRecords == null)
+            return dependents;
+        if (!changedDeclarations.isEmpty()) {
+            for (Map.Entry<String, UnitRecord> entry : newRecords.entrySet()) {
+                String path = entry.getKey();
+                File file = filesByPath.get(path);
+                if (file != null
+                        && !lastRound.contains(path)
+                        && !Collections.disjoint(entry.getValue().uses, changedDeclarations)) {
+                    dependents.add(file);
+                    dependentPaths.add(path);
+                }
+            }
+        }
+        records = newRecords;
+        lastRound = dependentPaths;
+        return dependents;
+    }
+}
@@ -37,8 +37,8 @@ import com.sun.tools.javac.util.List;
  */
 public class CeylonCompilationUnit extends JCCompilationUnit {
 
-    public final CompilationUnit ceylonTree;
-    public final PhasedUnit phasedUnit;
+    public CompilationUnit ceylonTree;
+    public PhasedUnit phasedUnit;
 
     protected CeylonCompilationUnit(List<JCAnnotation> packageAnnotations, JCExpression pid, List<JCTree> defs, JavaFileObject sourcefile, PackageSymbol packge, ImportScope namedImportScope, StarImportScope starImportScope, Tree.CompilationUnit ceylonTree, PhasedUnit phasedUnit) {
         super(packageAnnotations, pid, defs, sourcefile, packge, namedImportScope, starImportScope);
@@ -46,4 +46,14 @@ public class CeylonCompilationUnit extends JCCompilationUnit {
         this.phasedUnit = phasedUnit;
     }
 
+    /**
+     * Drops the Ceylon tree and phased unit of this unit once its javac trees
+     * are made, so that they can be collected while the other units are
+     * generated. The phased unit must be removed from its PhasedUnits too.
+     */
+    public void releaseCeylonTree() {
+        ceylonTree = null;
+        phasedUnit = null;
+    }
+
 }
@@ -0,0 +1,522 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.launcher;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.tools.JavaFileManager;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+import com.redhat.ceylon.common.FileUtil;
+import com.redhat.ceylon.compiler.java.launcher.Main.ExitState;
+import com.redhat.ceylon.compiler.java.launcher.Main.ExitState.CeylonState;
+import com.redhat.ceylon.compiler.java.tools.CeylonLog;
+import com.redhat.ceylon.compiler.java.tools.CeyloncFileManager;
+import com.redhat.ceylon.compiler.java.tools.LanguageCompiler;
+import com.sun.tools.javac.util.Context;
+
+/**
+ * A long-lived compiler process which runs the compilations sent to it on a
+ * local socket, so that they do not each pay for starting a JVM, loading the
+ * compiler and warming up the JIT.
+ * <p>
+ * A compilation which succeeds leaves its javac context to the next one,
+ * which then finds the modules it loaded from the class path already
+ * loaded: the language module, the JDK, and the dependencies resolved for
+ * them, with their symbols and declarations. The modules it compiled from
+ * source are forgotten (see {@link LanguageCompiler#prepareForReuse}). The
+ * next compilation gets a fresh context instead if its options are not the
+ * same, if one of the archives on the class path changed on disk, or if the
+ * last compilation failed, compiled the default module, or loaded a module
+ * which depends on one it compiled. Besides, the JVM-wide caches of
+ * immutable data read from archives carry over in any case: the indexes of
+ * module archives ({@link com.redhat.ceylon.compiler.loader.ModelIndex}),
+ * the types parsed by {@link com.redhat.ceylon.compiler.loader.TypeParser}
+ * and the zip file indexes of javac.
+ * <p>
+ * Compilations are run one at a time, in the order their arguments were
+ * received.
+ * <p>
+ * The socket only listens on the loopback interface, but any local user can
+ * connect to it, so every connection must start with the secret of the
+ * server. The server makes up a new secret when it starts and writes it to a
+ * file only readable by its user, {@link #getSecretFile(int)}, which it
+ * deletes when it is closed. Connections which do not send it are dropped
+ * without running anything. Each connection is read on its own thread, so a
+ * client which sends nothing only holds up itself.
+ * <p>
+ * The protocol is line based and encoded in UTF-8. The client sends the
+ * secret, then the number of arguments, then each argument on its own line, as they would be
+ * given to {@link Main#compile(String[])}. The server replies with the
+ * compiler output, followed by a line starting with {@link #EXIT_MARKER}
+ * holding the {@link ExitState} of the compilation.
+ */
+public class CompileServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 9190;
+
+    public static final String EXIT_MARKER = "#ceylon-compile-exit ";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // how long a client has to send the secret before we drop it
+    private static final int AUTHENTICATION_TIMEOUT = 10000;
+
+    private final ServerSocket serverSocket;
+    private final File secretFile;
+    private final byte[] secret;
+    private final ExecutorService connections = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ceylon compile server connection");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    // fair, so that compilations run in the order they were received
+    private final ReentrantLock compilationLock = new ReentrantLock(true);
+    private volatile boolean closed;
+    // every context logs to this writer, which writes to the client of the current compilation
+    private final RedirectingWriter redirectingWriter = new RedirectingWriter();
+    private final PrintWriter output = new PrintWriter(redirectingWriter, true);
+    // the context left by the last compilation, guarded by compilationLock
+    private Context lastContext;
+    private List<String> lastOptionArguments;
+    private Map<File, String> lastClassPath;
+    private int reusedContexts;
+
+    /**
+     * Starts listening on the given port of the loopback interface, or on
+     * any free port if it is 0, with its secret in the
+     * {@linkplain #getSecretFile(int) default location}.
+     */
+    public CompileServer(int port) throws IOException {
+        this(port, null);
+    }
+
+    /**
+     * Starts listening on the given port of the loopback interface, or on
+     * any free port if it is 0, with its secret in the given file, or in the
+     * {@linkplain #getSecretFile(int) default location} if it is null.
+     */
+    public CompileServer(int port, File secretFile) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+        try {
+            this.secretFile = secretFile != null ? secretFile : getSecretFile(getPort());
+            this.secret = makeSecret();
+            writeSecret(this.secretFile, secret);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the file holding the secret of the server listening on the
+     * given local port, in the user's Ceylon directory.
+     */
+    public static File getSecretFile(int port) {
+        return new File(new File(FileUtil.getDefaultUserDir(), "compile-server"), port + ".secret");
+    }
+
+    private static byte[] makeSecret() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString().getBytes(UTF8);
+    }
+
+    private static void writeSecret(File file, byte[] secret) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create the directory " + dir);
+        Path path = file.toPath();
+        // the secret of a server which did not shut down properly
+        Files.deleteIfExists(path);
+        // the file must never be readable by others, not even before we write it
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system (Windows), where we can only ask for it
+            Files.createFile(path);
+            if (!file.setReadable(false, false)
+                    || !file.setReadable(true, true)
+                    || !file.setWritable(false, false)
+                    || !file.setWritable(true, true)) {
+                Files.delete(path);
+                throw new IOException("Could not make " + file + " private to its user");
+            }
+        }
+        Files.write(path, secret);
+    }
+
+    private static byte[] readSecret(File file) throws IOException {
+        if (!file.isFile())
+            throw new IOException("Missing compile server secret " + file + ": is the compile server running?");
+        return new String(Files.readAllBytes(file.toPath()), UTF8).trim().getBytes(UTF8);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the number of compilations which reused the context of the
+     * compilation before them.
+     */
+    public int getReusedContexts() {
+        compilationLock.lock();
+        try {
+            return reusedContexts;
+        } finally {
+            compilationLock.unlock();
+        }
+    }
+
+    /**
+     * Runs compilations until this server is closed.
+     */
+    public void serve() throws IOException {
+        while (!closed) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (SocketException e) {
+                if (closed)
+                    return;
+                throw e;
+            }
+            connections.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handle(client);
+                    } catch (IOException e) {
+                        // the client went away, that only concerns its own compilation
+                    } finally {
+                        try {
+                            client.close();
+                        } catch (IOException e) {
+                            // nothing we can do
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops accepting connections. Compilations which already started are
+     * left to finish.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            serverSocket.close();
+        } finally {
+            connections.shutdown();
+            secretFile.delete();
+            compilationLock.lock();
+            try {
+                discardLastContext();
+            } finally {
+                compilationLock.unlock();
+            }
+        }
+    }
+
+    private void handle(Socket client) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), UTF8));
+        client.setSoTimeout(AUTHENTICATION_TIMEOUT);
+        String clientSecret;
+        try {
+            clientSecret = in.readLine();
+        } catch (SocketTimeoutException e) {
+            return;
+        }
+        if (clientSecret == null
+                || !MessageDigest.isEqual(secret, clientSecret.getBytes(UTF8)))
+            return;
+        // compilations take as long as they take
+        client.setSoTimeout(0);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), UTF8), true);
+        String[] args = readArguments(in);
+        if (args == null)
+            return;
+        ExitState exitState;
+        compilationLock.lock();
+        try {
+            redirectingWriter.setTarget(out);
+            exitState = compile(args);
+        } catch (RuntimeException e) {
+            // what the compile tool would have thrown (EnvironmentException...)
+            exitState = ExitState.restore(Main.EXIT_SYSERR, CeylonState.SYS, 0, e, 0, 0, 0, 0);
+        } finally {
+            output.flush();
+            redirectingWriter.setTarget(null);
+            compilationLock.unlock();
+        }
+        out.println(EXIT_MARKER + formatExitState(exitState));
+        out.flush();
+    }
+
+    // guarded by compilationLock
+    private ExitState compile(String[] args) {
+        Main compiler = new Main("ceylon compile", output);
+        compiler.setKeepContext(true);
+        List<String> optionArguments = compiler.getOptionArguments(args);
+        Context context = lastContext;
+        lastContext = null;
+        if (context != null
+                && optionArguments != null
+                && optionArguments.equals(lastOptionArguments)
+                && getClassPath(context).equals(lastClassPath)
+                && LanguageCompiler.prepareForReuse(context)) {
+            reusedContexts++;
+        } else {
+            closeContext(context);
+            context = new Context();
+            CeyloncFileManager.preRegister(context);
+            CeylonLog.preRegister(context);
+        }
+        boolean keep = false;
+        try {
+            compiler.compile(args, context);
+            keep = compiler.exitState.javacExitCode == Main.EXIT_OK && optionArguments != null;
+            return compiler.exitState;
+        } finally {
+            if (keep) {
+                lastContext = context;
+                lastOptionArguments = optionArguments;
+                // after the compilation, since it wrote the archives of the modules it compiled
+                lastClassPath = getClassPath(context);
+            } else {
+                closeContext(context);
+            }
+        }
+    }
+
+    // guarded by compilationLock
+    private void discardLastContext() {
+        closeContext(lastContext);
+        lastContext = null;
+    }
+
+    private static void closeContext(Context context) {
+        if (context == null)
+            return;
+        JavaFileManager fileManager = context.get(JavaFileManager.class);
+        if (fileManager != null) {
+            try {
+                fileManager.close();
+            } catch (IOException e) {
+                // nothing we can do
+            }
+        }
+    }
+
+    /**
+     * Returns the size and modification time of every entry of the class
+     * path of the given context.
+     */
+    private static Map<File, String> getClassPath(Context context) {
+        Map<File, String> classPath = new HashMap<File, String>();
+        JavaFileManager fileManager = context.get(JavaFileManager.class);
+        if (fileManager instanceof StandardJavaFileManager) {
+            Iterable<? extends File> files = ((StandardJavaFileManager) fileManager).getLocation(StandardLocation.CLASS_PATH);
+            if (files != null) {
+                for (File file : files) {
+                    classPath.put(file, file.length() + "@" + file.lastModified());
+                }
+            }
+        }
+        return classPath;
+    }
+
+    private static String[] readArguments(BufferedReader in) throws IOException {
+        String count = in.readLine();
+        if (count == null)
+            return null;
+        String[] args;
+        try {
+            args = new String[Integer.parseInt(count.trim())];
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid argument count: " + count);
+        }
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readLine();
+            if (args[i] == null)
+                throw new IOException("Missing arguments");
+        }
+        return args;
+    }
+
+    private static String formatExitState(ExitState exitState) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(exitState.javacExitCode)
+            .append(' ').append(exitState.ceylonState)
+            .append(' ').append(exitState.errorCount)
+            .append(' ').append(exitState.ceylonCodegenExceptionCount)
+            .append(' ').append(exitState.ceylonCodegenErroneousCount)
+            .append(' ').append(exitState.ceylonCodegenGarbageCount)
+            .append(' ').append(exitState.nonCeylonErrorCount);
+        if (exitState.abortingException != null) {
+            String message = exitState.abortingException.toString();
+            sb.append(' ').append(message.replace('\n', ' ').replace('\r', ' '));
+        }
+        return sb.toString();
+    }
+
+    private static ExitState parseExitState(String line) throws IOException {
+        String[] parts = line.split(" ", 8);
+        if (parts.length < 7)
+            throw new IOException("Invalid compile server reply: " + line);
+        try {
+            Throwable abortingException = parts.length == 8 ? new Exception(parts[7]) : null;
+            return ExitState.restore(Integer.parseInt(parts[0]), 
+                    CeylonState.valueOf(parts[1]), 
+                    Integer.parseInt(parts[2]), 
+                    abortingException, 
+                    Integer.parseInt(parts[3]), 
+                    Integer.parseInt(parts[4]), 
+                    Integer.parseInt(parts[5]), 
+                    Integer.parseInt(parts[6]));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid compile server reply: " + line);
+        }
+    }
+
+    /**
+     * Runs a compilation on the server listening on the given local port,
+     * copying its output to the given writer, and returns its exit state.
+     */
+    public static ExitState compile(int port, List<String> arguments, Writer out) throws IOException {
+        return compile(port, getSecretFile(port), arguments, out);
+    }
+
+    /**
+     * Runs a compilation on the server listening on the given local port,
+     * whose secret is in the given file, copying its output to the given
+     * writer, and returns its exit state.
+     */
+    public static ExitState compile(int port, File secretFile, List<String> arguments, Writer out) throws IOException {
+        byte[] secret = readSecret(secretFile);
+        for (String argument : arguments) {
+            if (argument.indexOf('\n') != -1 || argument.indexOf('\r') != -1)
+                throw new IllegalArgumentException("Arguments sent to the compile server cannot span several lines: " + argument);
+        }
+        Socket socket = new Socket(InetAddress.getByName(null), port);
+        try {
+            PrintWriter request = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), UTF8));
+            request.println(new String(secret, UTF8));
+            request.println(arguments.size());
+            for (String argument : arguments) {
+                request.println(argument);
+            }
+            request.flush();
+            BufferedReader response = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+            String line;
+            while ((line = response.readLine()) != null) {
+                if (line.startsWith(EXIT_MARKER))
+                    return parseExitState(line.substring(EXIT_MARKER.length()));
+                out.write(line);
+                out.write(System.getProperty("line.separator"));
+                out.flush();
+            }
+            // also what happens when the secret is wrong
+            throw new IOException("The compile server closed the connection before the end of the compilation");
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Writes to the client of the current compilation, if any.
+     */
+    private static class RedirectingWriter extends Writer {
+        private Writer target;
+
+        synchronized void setTarget(Writer target) {
+            this.target = target;
+        }
+
+        @Override
+        public synchronized void write(char[] cbuf, int off, int len) throws IOException {
+            if (target != null)
+                target.write(cbuf, off, len);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (target != null)
+                target.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the clients close their own connections
+            flush();
+        }
+    }
+
+    /**
+     * Runs a compile server on the port given as argument, or on the
+     * {@link #DEFAULT_PORT}.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        CompileServer server = new CompileServer(port);
+        try {
+            server.serve();
+        } finally {
+            server.close();
+        }
+    }
+}
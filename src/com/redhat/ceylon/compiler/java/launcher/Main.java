@@ -56,6 +56,7 @@ import com.sun.tools.javac.file.JavacFileManager;
 import com.sun.tools.javac.jvm.Target;
 import com.sun.tools.javac.main.JavaCompiler;
 import com.sun.tools.javac.main.JavacOption.Option;
+import com.sun.tools.javac.main.OptionName;
 import com.sun.tools.javac.main.RecognizedOptions;
 import com.sun.tools.javac.main.RecognizedOptions.OptionHelper;
 import com.sun.tools.javac.processing.AnnotationProcessingError;
@@ -94,6 +95,11 @@ public class Main extends com.sun.tools.javac.main.Main {
      */
     boolean fatalErrors;
 
+    /**
+     * If true, the context is left usable for another compilation.
+     */
+    boolean keepContext;
+
     /**
      * Result codes.
      */
@@ -263,6 +269,33 @@ public class Main extends com.sun.tools.javac.main.Main {
             this(javacExitCode, ceylonState, errorCount, abortingException, null); 
         }
         
+        private ExitState(int javacExitCode, CeylonState ceylonState, int errorCount,
+                Throwable abortingException,
+                int ceylonCodegenExceptionCount, int ceylonCodegenErroneousCount,
+                int ceylonCodegenGarbageCount, int nonCeylonErrorCount) {
+            this.javacExitCode = javacExitCode;
+            this.ceylonState = ceylonState;
+            this.errorCount = errorCount;
+            this.abortingException = abortingException;
+            this.ceylonCodegenExceptionCount = ceylonCodegenExceptionCount;
+            this.ceylonCodegenErroneousCount = ceylonCodegenErroneousCount;
+            this.ceylonCodegenGarbageCount = ceylonCodegenGarbageCount;
+            this.nonCeylonErrorCount = nonCeylonErrorCount;
+        }
+
+        /**
+         * Rebuilds the exit state of a compilation which ran elsewhere,
+         * such as in a {@link CompileServer}.
+         */
+        public static ExitState restore(int javacExitCode, CeylonState ceylonState, int errorCount,
+                Throwable abortingException,
+                int ceylonCodegenExceptionCount, int ceylonCodegenErroneousCount,
+                int ceylonCodegenGarbageCount, int nonCeylonErrorCount) {
+            return new ExitState(javacExitCode, ceylonState, errorCount, abortingException,
+                    ceylonCodegenExceptionCount, ceylonCodegenErroneousCount,
+                    ceylonCodegenGarbageCount, nonCeylonErrorCount);
+        }
+
         /**
          * javac had errors logged. Causes:
          * <ul>
@@ -424,6 +457,36 @@ public class Main extends com.sun.tools.javac.main.Main {
         this.fatalErrors = fatalErrors;
     }
 
+    public void setKeepContext(boolean keepContext) {
+        this.keepContext = keepContext;
+    }
+
+    /**
+     * Returns the given command line arguments without the source files and
+     * modules to compile, or null if they are not valid.
+     */
+    public List<String> getOptionArguments(String[] flags) {
+        ListBuffer<String> optionArguments = new ListBuffer<String>();
+        int ac = 0;
+        while (ac < flags.length) {
+            String flag = flags[ac];
+            ac++;
+            Option option = getOption(flag);
+            if (option == null)
+                return null;
+            if (option.getName() == OptionName.SOURCEFILE)
+                continue;
+            optionArguments.append(flag);
+            if (option.hasArg()) {
+                if (ac == flags.length)
+                    return null;
+                optionArguments.append(flags[ac]);
+                ac++;
+            }
+        }
+        return optionArguments.toList();
+    }
+
     /**
      * Process command line arguments: store all command line options in
      * `options' table and return all source filenames.
@@ -696,7 +759,7 @@ public class Main extends com.sun.tools.javac.main.Main {
             return EXIT_ABNORMAL;
         } finally {
             if (comp != null)
-                comp.close();
+                comp.close(!keepContext);
             filenames = null;
             options = null;
             if (timer != null) {
@@ -21,9 +21,13 @@
 package com.redhat.ceylon.compiler.java.loader;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import javax.tools.JavaFileManager;
@@ -52,7 +56,9 @@ import com.redhat.ceylon.compiler.java.tools.CeylonLog;
 import com.redhat.ceylon.compiler.java.tools.CeylonPhasedUnit;
 import com.redhat.ceylon.compiler.java.tools.CeyloncFileManager;
 import com.redhat.ceylon.compiler.java.tools.LanguageCompiler;
+import com.redhat.ceylon.compiler.java.tools.UnitRecord;
 import com.redhat.ceylon.compiler.java.tools.LanguageCompiler.CompilerDelegate;
+import com.redhat.ceylon.compiler.java.util.ParallelPhases;
 import com.redhat.ceylon.compiler.java.util.Timer;
 import com.redhat.ceylon.compiler.java.util.Util;
 import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
@@ -124,6 +130,7 @@ public class CeylonEnter extends Enter {
     private AbstractModelLoader modelLoader;
     private Options options;
     private Timer timer;
+    private ParallelPhases parallelPhases;
     private Paths paths;
     private CeyloncFileManager fileManager;
     private boolean verbose;
@@ -134,6 +141,7 @@ public class CeylonEnter extends Enter {
     private boolean isBootstrap;
     private Annotate annotate;
     private Set<Module> modulesAddedToClassPath = new HashSet<Module>();
+    private Map<Module, File> artifactsAddedToClassPath = new HashMap<Module, File>();
     private TaskListener taskListener;
     private SourceLanguage sourceLanguage;
 
@@ -154,6 +162,7 @@ public class CeylonEnter extends Enter {
         modelLoader = CeylonModelLoader.instance(context);
         options = Options.instance(context);
         timer = Timer.instance(context);
+        parallelPhases = ParallelPhases.instance(context);
         paths = Paths.instance(context);
         fileManager = (CeyloncFileManager) context.get(JavaFileManager.class);
         verbose = options.get(OptionName.VERBOSE) != null;
@@ -255,6 +264,27 @@ public class CeylonEnter extends Enter {
         timer.endTask();
     }
 
+    /**
+     * Prepares for another compilation in the same context, which uses the given phased units,
+     * once the model loader forgot the given modules compiled from source by the last one.
+     */
+    public void reset(PhasedUnits phasedUnits, Collection<Module> sourceModules) {
+        this.phasedUnits = phasedUnits;
+        hasRun = false;
+        chk.compiled.clear();
+        types.reset();
+        annotate.reset();
+        super.reset();
+        todo.reset();
+        for(Module module : sourceModules){
+            modulesAddedToClassPath.remove(module);
+            // we wrote their archives since we opened them
+            File artifact = artifactsAddedToClassPath.remove(module);
+            if(artifact != null)
+                fileManager.closeArchive(artifact);
+        }
+    }
+
     /**
      * This resets a ClassSymbol recursively, for bootstrap
      */
@@ -345,8 +375,16 @@ public class CeylonEnter extends Enter {
         //printModules();
         timer.startTask("Ceylon code generation");
         /*
-         * Here we convert the ceylon tree to its javac AST, after the typechecker has run
+         * Here we convert the ceylon tree to its javac AST, after the typechecker has run.
+         * This stays serial: the transformers lazily fill caches of the shared
+         * typechecker model (produced types, boxing and erasure flags) which are
+         * not thread-safe.
          */
+        // in streaming mode we are done with the Ceylon tree of a unit as soon as
+        // it is generated, and Enter only needs its javac trees, so we drop its
+        // phased unit and with it the Ceylon tree
+        boolean streaming = options.isSet(LanguageCompiler.STREAMING_GENERATE_OPTION);
+        boolean recordUnits = options.isSet(UnitRecord.OPTION);
         Timer nested = timer.nestedTimer();
         for (JCCompilationUnit tree : trees) {
             if (tree instanceof CeylonCompilationUnit) {
@@ -354,7 +392,7 @@ public class CeylonEnter extends Enter {
                 gen.setMap(ceylonTree.lineMap);
                 CeylonPhasedUnit phasedUnit = (CeylonPhasedUnit)ceylonTree.phasedUnit;
                 gen.setFileObject(phasedUnit.getFileObject());
-                nested.startTask("Ceylon code generation for " + phasedUnit.getUnitFile().getName());
+                nested.startFileTask("Ceylon code generation", phasedUnit.getPathRelativeToSrcDir());
                 TaskEvent event = new TaskEvent(TaskEvent.Kind.PARSE, tree);
                 if (taskListener != null) {
                     taskListener.started(event);
@@ -364,24 +402,60 @@ public class CeylonEnter extends Enter {
                     taskListener.finished(event);
                 }
                 nested.endTask();
-                if(isVerbose("ast")){
-                    log.errWriter.println("Model tree for "+tree.getSourceFile());
-                    log.errWriter.println(ceylonTree.ceylonTree);
+                printGeneratedTree(ceylonTree);
+                if (streaming) {
+                    if (recordUnits)
+                        recordUnit(ceylonTree);
+                    printGeneratorErrors(phasedUnit);
+                    phasedUnits.removePhasedUnitForRelativePath(phasedUnit.getPathRelativeToSrcDir());
+                    ceylonTree.releaseCeylonTree();
                 }
-                if(isVerbose("code")){
-                    log.errWriter.println("Java code generated for "+tree.getSourceFile());
-                    log.errWriter.println(ceylonTree);
+            }
+        }
+        if (!streaming) {
+            if (recordUnits) {
+                timer.startTask("Ceylon unit records");
+                for (JCCompilationUnit tree : trees) {
+                    if (tree instanceof CeylonCompilationUnit)
+                        recordUnit((CeylonCompilationUnit) tree);
                 }
             }
+            timer.startTask("Ceylon error generation");
+            for (PhasedUnit pu : phasedUnits.getPhasedUnits()) {
+                printGeneratorErrors(pu);
+            }
         }
-        timer.startTask("Ceylon error generation");
-        printGeneratorErrors();
         timer.endTask();
         // write some stats
         if(verbose)
             modelLoader.printStats();
     }
 
+    /**
+     * Records the dependencies and signatures of the given unit in its module
+     * archive, for the next incremental compilation.
+     */
+    private void recordUnit(CeylonCompilationUnit tree) {
+        CeylonPhasedUnit phasedUnit = (CeylonPhasedUnit)tree.phasedUnit;
+        Module module = phasedUnit.getUnit().getPackage().getModule();
+        try {
+            fileManager.recordUnit(module, phasedUnit, phasedUnit.getFileObject());
+        } catch (IOException e) {
+            log.error("ceylon", "Failed to record unit " + tree.getSourceFile().getName() + " for incremental compilation: " + e.getMessage());
+        }
+    }
+
+    private void printGeneratedTree(CeylonCompilationUnit ceylonTree) {
+        if(isVerbose("ast")){
+            log.errWriter.println("Model tree for "+ceylonTree.getSourceFile());
+            log.errWriter.println(ceylonTree.ceylonTree);
+        }
+        if(isVerbose("code")){
+            log.errWriter.println("Java code generated for "+ceylonTree.getSourceFile());
+            log.errWriter.println(ceylonTree);
+        }
+    }
+
     private boolean isVerbose(String key) {
         return verbose || options.get(OptionName.VERBOSE + ":" + key) != null;
     }
@@ -435,9 +509,12 @@ public class CeylonEnter extends Enter {
                 Log.printLines(log.noticeWriter, "[Could not find module]");
         }
 
+        // the module or its packages may be new to the model loader
+        modelLoader.classPathChanged();
         if(modulesAddedToClassPath.add(module)){
             if(artifact != null && artifact.exists()){
                 classPath.add(artifact);
+                artifactsAddedToClassPath.put(module, artifact);
                 ((LazyModule)module).loadPackageList(result);
             }else if(errorIfMissing){
                 log.error("ceylon", "Failed to find module "+module.getNameAsString()+"/"+module.getVersion()+" in repositories");
@@ -454,25 +531,28 @@ public class CeylonEnter extends Enter {
         compilerDelegate.typeCheck(listOfUnits);
 
         // This phase is proper to the Java backend 
-        for (PhasedUnit pu : listOfUnits) {
-            Unit unit = pu.getUnit();
-            final CompilationUnit compilationUnit = pu.getCompilationUnit();
-            for (Declaration d: unit.getDeclarations()) {
-                if (d instanceof TypedDeclaration && !(d instanceof Setter)) {
-                    compilationUnit.visit(new MethodOrValueReferenceVisitor((TypedDeclaration) d));
+        // Only the passes which change nothing but the declarations of the unit
+        // they visit may visit units concurrently: the others work on types,
+        // which fill caches of the shared model, or use the model loader
+        runBackendPass(listOfUnits, new ParallelPhases.Task<PhasedUnit, Void>() {
+            @Override
+            public Void run(PhasedUnit pu) {
+                Unit unit = pu.getUnit();
+                final CompilationUnit compilationUnit = pu.getCompilationUnit();
+                for (Declaration d: unit.getDeclarations()) {
+                    if (d instanceof TypedDeclaration && !(d instanceof Setter)) {
+                        compilationUnit.visit(new MethodOrValueReferenceVisitor((TypedDeclaration) d));
+                    }
                 }
+                return null;
             }
-        }
+        });
         
         UnsupportedVisitor uv = new UnsupportedVisitor();
         MissingNativeVisitor mnv = new MissingNativeVisitor(modelLoader);
         BoxingDeclarationVisitor boxingDeclarationVisitor = new CompilerBoxingDeclarationVisitor(gen);
         BoxingVisitor boxingVisitor = new CompilerBoxingVisitor(gen);
-        DeferredVisitor deferredVisitor = new DeferredVisitor();
         AnnotationModelVisitor amv = new AnnotationModelVisitor(gen);
-        DefiniteAssignmentVisitor dav = new DefiniteAssignmentVisitor();
-        TypeParameterCaptureVisitor tpCaptureVisitor = new TypeParameterCaptureVisitor();
-        InterfaceVisitor localInterfaceVisitor = new InterfaceVisitor();
         // Extra phases for the compiler
         
         // boxing visitor depends on boxing decl
@@ -487,21 +567,35 @@ public class CeylonEnter extends Enter {
             CompilationUnit compilationUnit = pu.getCompilationUnit();
             compilationUnit.visit(mnv);
             compilationUnit.visit(boxingVisitor);
-            compilationUnit.visit(deferredVisitor);
             compilationUnit.visit(amv);
-            compilationUnit.visit(dav);
-            compilationUnit.visit(tpCaptureVisitor);
-            compilationUnit.visit(localInterfaceVisitor);
-        }
-        
-        for (PhasedUnit pu : listOfUnits) {
-            CompilationUnit compilationUnit = pu.getCompilationUnit();
-            compilationUnit.visit(new WarningSuppressionVisitor<Warning>(Warning.class, pu.getSuppressedWarnings()));
         }
+        // these only look at their unit, so they get a visitor per unit
+        runBackendPass(listOfUnits, new ParallelPhases.Task<PhasedUnit, Void>() {
+            @Override
+            public Void run(PhasedUnit pu) {
+                CompilationUnit compilationUnit = pu.getCompilationUnit();
+                compilationUnit.visit(new DeferredVisitor());
+                compilationUnit.visit(new DefiniteAssignmentVisitor());
+                compilationUnit.visit(new TypeParameterCaptureVisitor());
+                compilationUnit.visit(new InterfaceVisitor());
+                // all the warnings of this unit are in by now
+                compilationUnit.visit(new WarningSuppressionVisitor<Warning>(Warning.class, pu.getSuppressedWarnings()));
+                return null;
+            }
+        });
         
         collectTreeErrors(true, true);
     }
 
+    /**
+     * Runs the given pass on every unit, concurrently if the
+     * {@link ParallelPhases#TYPECHECK} phase is parallel, and returns
+     * once it is done on all of them.
+     */
+    private void runBackendPass(java.util.List<PhasedUnit> listOfUnits, ParallelPhases.Task<PhasedUnit, Void> pass) {
+        parallelPhases.map(ParallelPhases.TYPECHECK, listOfUnits, pass);
+    }
+
     private void collectTreeErrors(boolean runAssertions, final boolean reportWarnings) {
         final java.util.List<PhasedUnit> listOfUnits = phasedUnits.getPhasedUnits();
 
@@ -554,48 +648,44 @@ public class CeylonEnter extends Enter {
     }
 
     /**
-     * Visits the nodes of each unit calling 
+     * Visits the nodes of the given unit calling 
      * {@link #logError(int, String, String)} for each {@link CodeGenError}
      */
-    private void printGeneratorErrors() {
-        final java.util.List<PhasedUnit> listOfUnits = phasedUnits.getPhasedUnits();
-
-        for (PhasedUnit pu : listOfUnits) {
-            pu.getCompilationUnit().visit(new JavacAssertionVisitor((CeylonPhasedUnit) pu, false){
-                @Override
-                protected void out(UnexpectedError err) {
-                    if(err instanceof CodeGenError){
-                        CodeGenError error = ((CodeGenError)err);
-                        String location = locationInfo(error);
-                        logError(getPosition(err.getTreeNode()), 
-                                "ceylon.codegen.exception", 
-                                "compiler bug: "+error.getMessage()+" at " + location);
-                    }
+    private void printGeneratorErrors(PhasedUnit pu) {
+        pu.getCompilationUnit().visit(new JavacAssertionVisitor((CeylonPhasedUnit) pu, false){
+            @Override
+            protected void out(UnexpectedError err) {
+                if(err instanceof CodeGenError){
+                    CodeGenError error = ((CodeGenError)err);
+                    String location = locationInfo(error);
+                    logError(getPosition(err.getTreeNode()), 
+                            "ceylon.codegen.exception", 
+                            "compiler bug: "+error.getMessage()+" at " + location);
                 }
-                private String locationInfo(CodeGenError error) {
-                    if (error.getCause() != null
-                            && error.getCause().getStackTrace() != null
-                            && error.getCause().getStackTrace().length > 0) {
-                        return error.getCause().getStackTrace()[0].toString();
-                    } else {
-                        return "unknown";
-                    }
+            }
+            private String locationInfo(CodeGenError error) {
+                if (error.getCause() != null
+                        && error.getCause().getStackTrace() != null
+                        && error.getCause().getStackTrace().length > 0) {
+                    return error.getCause().getStackTrace()[0].toString();
+                } else {
+                    return "unknown";
                 }
-                // Ignore those
-                @Override
-                protected void out(AnalysisError err) {}
-                @Override
-                protected void out(UnsupportedError err) {}
-                @Override
-                protected void out(UsageWarning warn) {}
-                @Override
-                protected void out(Node that, ParseError err) {}
-                @Override
-                protected void out(Node that, LexError err) {}
-                @Override
-                protected void out(Node that, String message) {}
-            });
-        }
+            }
+            // Ignore those
+            @Override
+            protected void out(AnalysisError err) {}
+            @Override
+            protected void out(UnsupportedError err) {}
+            @Override
+            protected void out(UsageWarning warn) {}
+            @Override
+            protected void out(Node that, ParseError err) {}
+            @Override
+            protected void out(Node that, LexError err) {}
+            @Override
+            protected void out(Node that, String message) {}
+        });
     }
 
     protected void logError(int position, String key, String message) {
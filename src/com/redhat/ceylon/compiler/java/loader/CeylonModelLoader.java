@@ -23,18 +23,23 @@ package com.redhat.ceylon.compiler.java.loader;
 import static javax.tools.StandardLocation.PLATFORM_CLASS_PATH;
 import static javax.tools.StandardLocation.CLASS_PATH;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.EnumSet;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 
 import javax.lang.model.element.NestingKind;
 import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
 
 import com.redhat.ceylon.cmr.api.ArtifactResult;
 import com.redhat.ceylon.cmr.api.JDKUtils;
+import com.redhat.ceylon.common.FileUtil;
 import com.redhat.ceylon.compiler.java.codegen.CeylonCompilationUnit;
 import com.redhat.ceylon.compiler.java.codegen.Naming;
 import com.redhat.ceylon.compiler.java.loader.mirror.JavacClass;
@@ -45,8 +50,10 @@ import com.redhat.ceylon.compiler.java.tools.LanguageCompiler;
 import com.redhat.ceylon.compiler.java.util.Timer;
 import com.redhat.ceylon.compiler.java.util.Util;
 import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
+import com.redhat.ceylon.compiler.loader.ModelIndex;
 import com.redhat.ceylon.compiler.loader.ModelLoaderFactory;
 import com.redhat.ceylon.compiler.loader.ModelResolutionException;
+import com.redhat.ceylon.compiler.loader.ModuleNameMap;
 import com.redhat.ceylon.compiler.loader.SourceDeclarationVisitor;
 import com.redhat.ceylon.compiler.loader.TypeParser;
 import com.redhat.ceylon.compiler.loader.mirror.ClassMirror;
@@ -82,6 +89,8 @@ import com.sun.tools.javac.util.Options;
 
 public class CeylonModelLoader extends AbstractModelLoader {
     
+    public static final String JDK_INDEX_OPTION = "jdkIndex";
+
     private Symtab symtab;
     private Names names;
     private ClassReader reader;
@@ -90,7 +99,7 @@ public class CeylonModelLoader extends AbstractModelLoader {
     private Types types;
     private Options options;
     private JavaFileManager fileManager;
-    protected final Map<String,Boolean> packageExistence = new HashMap<String,Boolean>();
+    protected final ModuleNameMap<Boolean> packageExistence = new ModuleNameMap<Boolean>();
     
     public static AbstractModelLoader instance(Context context) {
         AbstractModelLoader instance = context.get(AbstractModelLoader.class);
@@ -123,6 +132,22 @@ public class CeylonModelLoader extends AbstractModelLoader {
         moduleManager = phasedUnits.getModuleManager();
         modules = ceylonContext.getModules();
         fileManager = context.get(JavaFileManager.class);
+        // the hidden -XDmodelLoaderCacheBudget=N option bounds the caches to about N bytes
+        String cacheBudget = options.get("modelLoaderCacheBudget");
+        if(cacheBudget != null)
+            setCacheBudget(parseCacheBudget(cacheBudget));
+    }
+
+    private long parseCacheBudget(String cacheBudget) {
+        try{
+            long bytes = Long.parseLong(cacheBudget.trim());
+            if(bytes >= 0)
+                return bytes;
+        }catch(NumberFormatException e){
+            // reported below
+        }
+        log.error("ceylon", "Invalid value for -XDmodelLoaderCacheBudget: "+cacheBudget+" (expected a number of bytes, or 0 for no limit)");
+        return 0;
     }
 
     @Override
@@ -136,14 +161,7 @@ public class CeylonModelLoader extends AbstractModelLoader {
             ((CompilerModuleManager)phasedUnits.getModuleManager()).getCeylonEnter().addModuleToClassPath(module, true, artifact);
             // invalidate all the package not found caches since they may be visible now
             synchronized(getLock()){
-                java.util.List<String> clear = new ArrayList<String>(packageExistence.size());
-                for(Map.Entry<String,Boolean> entry : packageExistence.entrySet()){
-                    if(!entry.getValue().booleanValue())
-                        clear.add(entry.getKey());
-                }
-                for(String key : clear){
-                    packageExistence.remove(key);
-                }
+                packageExistence.removeValues(Boolean.FALSE);
             }
         }
     }
@@ -153,6 +171,38 @@ public class CeylonModelLoader extends AbstractModelLoader {
         return ((CompilerModuleManager)phasedUnits.getModuleManager()).getCeylonEnter().isModuleInClassPath(module);
     }
     
+    /**
+     * Prepares this model loader for another compilation in the same context, which uses the
+     * module manager of the given phased units: the modules compiled from source by the last
+     * compilation are forgotten, along with the classes of their packages, which we load again
+     * from their new archives if we need them.
+     */
+    public void reset(PhasedUnits phasedUnits, Collection<Module> sourceModules) {
+        synchronized(getLock()){
+            this.phasedUnits = phasedUnits;
+            moduleManager = phasedUnits.getModuleManager();
+            Set<PackageSymbol> packageSymbols = new HashSet<PackageSymbol>();
+            for(Module module : sourceModules){
+                packageExistence.removeModule(module);
+                for(com.redhat.ceylon.compiler.typechecker.model.Package pkg : module.getPackages()){
+                    PackageSymbol packageSymbol = symtab.packages.get(names.fromString(Util.quoteJavaKeywords(pkg.getQualifiedNameString())));
+                    if(packageSymbol != null)
+                        packageSymbols.add(packageSymbol);
+                }
+            }
+            Iterator<ClassSymbol> classSymbols = symtab.classes.values().iterator();
+            while(classSymbols.hasNext()){
+                if(packageSymbols.contains(classSymbols.next().packge()))
+                    classSymbols.remove();
+            }
+            for(PackageSymbol packageSymbol : packageSymbols){
+                packageSymbol.members_field = null;
+                packageSymbol.completer = reader;
+            }
+            removeModules(sourceModules);
+        }
+    }
+
     public void setupSourceFileObjects(java.util.List<?> treeHolders) {
         setupSourceFileObjects(treeHolders, reader, names);
         // If we're bootstrapping the Ceylon language now load the symbols from the source CU
@@ -213,19 +263,37 @@ public class CeylonModelLoader extends AbstractModelLoader {
             // abort if we already loaded it, but only record that we loaded it if we want
             // to load the declarations, because merely calling complete() on the package
             // is OK
+            String unquotedPackageName = packageName;
             packageName = Util.quoteJavaKeywords(packageName);
-            String cacheKey = cacheKeyByModule(module, packageName);
             if(loadDeclarations){
-                if(!loadedPackages.add(cacheKey)){
+                if(loadedPackages.putIfAbsent(module, packageName, Boolean.TRUE) != null){
                     return true;
                 }
             }else{
-                Boolean exists = packageExistence.get(cacheKey);
+                Boolean exists = packageExistence.get(module, packageName);
                 if(exists != null)
                     return exists.booleanValue();
             }
-            PackageSymbol ceylonPkg = packageName.equals("") ? syms().unnamedPackage : reader.enterPackage(names.fromString(packageName));
             if(loadDeclarations){
+                java.util.List<String> classNames = getIndexedClassNames(module, unquotedPackageName);
+                if(classNames != null){
+                    logVerbose("load package "+packageName+" from its index");
+                    // we only need to read the classes of the declarations, not their member,
+                    // local and anonymous classes
+                    for(String className : classNames){
+                        // skip module and package descriptors
+                        if(isModuleOrPackageDescriptorName(className))
+                            continue;
+                        ClassMirror classMirror = lookupClassMirror(module, packageName.isEmpty() ? className : packageName + "." + className);
+                        if(classMirror != null && !classMirror.isLoadedFromSource())
+                            convertToDeclaration(module, classMirror, DeclarationType.VALUE);
+                    }
+                    if(module.getNameAsString().equals(JAVA_BASE_MODULE_NAME)
+                            && packageName.equals("java.lang"))
+                        loadJavaBaseArrays();
+                    return !classNames.isEmpty();
+                }
+                PackageSymbol ceylonPkg = packageName.equals("") ? syms().unnamedPackage : reader.enterPackage(names.fromString(packageName));
                 logVerbose("load package "+packageName+" full");
                 ceylonPkg.complete();
                 /*
@@ -268,7 +336,7 @@ public class CeylonModelLoader extends AbstractModelLoader {
                             EnumSet.of(JavaFileObject.Kind.CLASS),
                             false);
                     if(list.iterator().hasNext()){
-                        packageExistence.put(cacheKey, Boolean.TRUE);
+                        packageExistence.put(module, packageName, Boolean.TRUE);
                         return true;
                     }
                     list = fileManager.list(CLASS_PATH,
@@ -276,10 +344,10 @@ public class CeylonModelLoader extends AbstractModelLoader {
                             EnumSet.of(JavaFileObject.Kind.CLASS),
                             false);
                     if(list.iterator().hasNext()){
-                        packageExistence.put(cacheKey, Boolean.TRUE);
+                        packageExistence.put(module, packageName, Boolean.TRUE);
                         return true;
                     }else{
-                        packageExistence.put(cacheKey, Boolean.FALSE);
+                        packageExistence.put(module, packageName, Boolean.FALSE);
                         return false;
                     }
                 } catch (IOException e) {
@@ -718,8 +786,39 @@ public class CeylonModelLoader extends AbstractModelLoader {
         return options.isSet(OptionName.CEYLONFLATCLASSPATH);
     }
 
+    @Override
+    protected ModelIndex getJDKIndex() {
+        // kept in the user directory, or the one of the hidden -XDjdkIndex=dir option, and
+        // -XDjdkIndex=none turns it off
+        String dir = options.get(JDK_INDEX_OPTION);
+        if("none".equals(dir) || !(fileManager instanceof StandardJavaFileManager))
+            return null;
+        File indexDir = dir == null || dir.isEmpty() || dir.equals(JDK_INDEX_OPTION)
+                ? new File(FileUtil.getDefaultUserDir(), "jdk-index")
+                : new File(dir);
+        Iterable<? extends File> platformClassPath = ((StandardJavaFileManager)fileManager).getLocation(PLATFORM_CLASS_PATH);
+        if(platformClassPath == null)
+            return null;
+        java.util.List<File> archives = new ArrayList<File>();
+        for(File file : platformClassPath)
+            archives.add(file);
+        try {
+            return ModelIndex.forJDK(archives, indexDir);
+        } catch (IOException e) {
+            // we can still look for the classes
+            logVerbose("Failed to index the JDK: "+e.getMessage());
+            return null;
+        }
+    }
+
     @Override
     protected boolean isAutoExportMavenDependencies() {
         return options.isSet(OptionName.CEYLONAUTOEXPORTMAVENDEPENDENCIES);
     }
+
+    @Override
+    protected boolean isLazyJavaMemberTypes() {
+        // can be turned off with the hidden -XDlazyJavaMembers=false option
+        return !"false".equals(options.get("lazyJavaMembers"));
+    }
 }
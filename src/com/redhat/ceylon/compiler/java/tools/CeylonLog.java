@@ -130,6 +130,16 @@ public class CeylonLog extends Log {
         super.warning(key, args);
     }
 
+    @Override
+    public void reset() {
+        super.reset();
+        numCeylonAnalysisErrors = 0;
+        numCeylonCodegenException = 0;
+        numCeylonCodegenErroneous = 0;
+        numCeylonCodegenGarbage = 0;
+        numNonCeylonErrors = 0;
+    }
+
     /** 
      * The number of errors logged due to uncaught exceptions or makeErroneous() 
      * calls during ceylon codegen.  
@@ -54,6 +54,7 @@ import com.redhat.ceylon.common.FileUtil;
 import com.redhat.ceylon.common.config.Repositories;
 import com.redhat.ceylon.compiler.java.codegen.CeylonFileObject;
 import com.redhat.ceylon.compiler.java.util.Util;
+import com.redhat.ceylon.compiler.typechecker.context.PhasedUnit;
 import com.redhat.ceylon.compiler.typechecker.model.Module;
 import com.sun.source.util.TaskListener;
 import com.sun.tools.javac.main.OptionName;
@@ -236,6 +237,21 @@ public class CeyloncFileManager extends JavacFileManager implements StandardJava
     public void setModule(Module module) {
         currentModule = module;
     }
+
+    /**
+     * Records a compiled Ceylon unit in the archive of its module, for
+     * incremental compilation. Units which were not read from a regular
+     * file are ignored.
+     */
+    public void recordUnit(Module module, PhasedUnit phasedUnit, JavaFileObject fileObject) throws IOException {
+        if (fileObject instanceof CeylonFileObject) {
+            fileObject = ((CeylonFileObject) fileObject).getFile();
+        }
+        if (fileObject instanceof RegularFileObject) {
+            File sourceFile = ((RegularFileObject) fileObject).getUnderlyingFile();
+            getJarRepository().recordUnit(getOutputRepositoryManager(), module, sourceFile, UnitRecord.of(phasedUnit, sourceFile));
+        }
+    }
     
     public RepositoryManager getRepositoryManager() {
         // caching
@@ -72,6 +72,11 @@ public class JarOutputRepositoryManager {
         ProgressiveJar progressiveJar = getProgressiveJar(repositoryManager, module);
         return progressiveJar.getJavaFileObject(fileName, sourceFile);
     }
+
+    public void recordUnit(RepositoryManager repositoryManager, Module module, File sourceFile, UnitRecord record) throws IOException{
+        ProgressiveJar progressiveJar = getProgressiveJar(repositoryManager, module);
+        progressiveJar.recordUnit(sourceFile, record);
+    }
     
     private ProgressiveJar getProgressiveJar(RepositoryManager repositoryManager, Module module) throws IOException {
         ProgressiveJar jarFile = openJars.get(module);
@@ -111,6 +116,7 @@ public class JarOutputRepositoryManager {
         final private Set<String> modifiedResourceFilesRel = new HashSet<String>();
         final private Set<String> modifiedResourceFilesFull = new HashSet<String>();
         final private Properties writtenClassesMapping = new Properties(); 
+        final private Properties writtenUnits = new Properties();
         private Logger cmrLog;
         private Options options;
         private RepositoryManager repoManager;
@@ -123,6 +129,7 @@ public class JarOutputRepositoryManager {
         private boolean writeOsgiManifest;
         private final String resourceRootPath;
         private boolean writeMavenManifest;
+        private boolean writeUnits;
         private TaskListener taskListener;
 
         public ProgressiveJar(RepositoryManager repoManager, Module module, Log log, Options options, CeyloncFileManager ceyloncFileManager, TaskListener taskListener) throws IOException{
@@ -145,6 +152,7 @@ public class JarOutputRepositoryManager {
             this.module = module;
             this.writeOsgiManifest = !options.isSet(OptionName.CEYLONNOOSGI);
             this.writeMavenManifest = !options.isSet(OptionName.CEYLONNOPOM);
+            this.writeUnits = options.isSet(UnitRecord.OPTION);
             
             // Determine the special path that signals that the files it contains
             // should be moved to the root of the output JAR/CAR
@@ -215,6 +223,9 @@ public class JarOutputRepositoryManager {
     
                 Properties previousMapping = getPreviousMapping();
                 writeMappingJarEntry(previousMapping, getJarFilter(previousMapping, copiedSourceFiles));
+                if (writeUnits) {
+                    writeUnitsJarEntry(UnitRecord.readProperties(originalJarFile), copiedSourceFiles);
+                }
                 
                 JarUtils.finishUpdatingJar(
                         originalJarFile, outputJarFile, carContext, jarOutputStream,
@@ -249,6 +260,8 @@ public class JarOutputRepositoryManager {
                     } else {
                         return modifiedResourceFilesRel.contains(entryFullName)
                                 || entryFullName.equals(MAPPING_FILE)
+                                // only kept up to date by incremental compilations
+                                || entryFullName.equals(UnitRecord.UNITS_FILE)
                                 || (writeOsgiManifest && OsgiManifest.isManifestFileName(entryFullName))
                                 || (writeMavenManifest && MavenPomUtil.isMavenDescriptor(entryFullName, module));
                     }
@@ -307,6 +320,39 @@ public class JarOutputRepositoryManager {
             }
         }
 
+        private void writeUnitsJarEntry(Properties previousUnits, Set<String> copiedSourceFiles) {
+            Properties newUnits = new Properties();
+            if (previousUnits != null) {
+                // Keep the records of the units we did not compile again
+                for (String sourceFile : previousUnits.stringPropertyNames()) {
+                    if (!copiedSourceFiles.contains(sourceFile)) {
+                        newUnits.setProperty(sourceFile, previousUnits.getProperty(sourceFile));
+                    }
+                }
+            }
+            newUnits.putAll(writtenUnits);
+            try {
+                folders.add(META_INF+"/");
+                jarOutputStream.putNextEntry(new ZipEntry(UnitRecord.UNITS_FILE));
+                newUnits.store(jarOutputStream, "");
+            }
+            catch(IOException e) {
+                // without them the next incremental compilation compiles the whole module
+                cmrLog.warning("Failed to write the incremental compilation records of module " 
+                        + module.getNameAsString() + ": " + e.getMessage());
+            }
+            finally {
+                try {
+                    jarOutputStream.closeEntry();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        public void recordUnit(File sourceFile, UnitRecord record) {
+            writtenUnits.setProperty(JarUtils.toPlatformIndependentPath(srcCreator.getPaths(), sourceFile.getPath()), record.format());
+        }
+
         public JavaFileObject getJavaFileObject(String fileName, File sourceFile) {
             String entryName = fileName.replace(File.separatorChar, '/');
             
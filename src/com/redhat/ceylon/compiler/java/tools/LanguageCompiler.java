@@ -35,10 +35,13 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
@@ -53,6 +56,7 @@ import javax.tools.StandardLocation;
 
 import org.antlr.runtime.ANTLRStringStream;
 import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.RecognitionException;
 
 import com.redhat.ceylon.cmr.util.JarUtils;
 import com.redhat.ceylon.common.FileUtil;
@@ -62,6 +66,8 @@ import com.redhat.ceylon.compiler.java.codegen.CeylonFileObject;
 import com.redhat.ceylon.compiler.java.codegen.CeylonTransformer;
 import com.redhat.ceylon.compiler.java.loader.CeylonEnter;
 import com.redhat.ceylon.compiler.java.loader.CeylonModelLoader;
+import com.redhat.ceylon.compiler.java.util.ParallelPhases;
+import com.redhat.ceylon.compiler.java.util.ProfileReport;
 import com.redhat.ceylon.compiler.java.util.Timer;
 import com.redhat.ceylon.compiler.java.util.Util;
 import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
@@ -72,6 +78,7 @@ import com.redhat.ceylon.compiler.typechecker.context.PhasedUnits;
 import com.redhat.ceylon.compiler.typechecker.io.VFS;
 import com.redhat.ceylon.compiler.typechecker.io.VirtualFile;
 import com.redhat.ceylon.compiler.typechecker.model.Module;
+import com.redhat.ceylon.compiler.typechecker.model.ModuleImport;
 import com.redhat.ceylon.compiler.typechecker.model.Modules;
 import com.redhat.ceylon.compiler.typechecker.model.Package;
 import com.redhat.ceylon.compiler.typechecker.parser.CeylonLexer;
@@ -95,7 +102,9 @@ import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.tree.JCTree.JCAnnotation;
 import com.sun.tools.javac.tree.JCTree.JCClassDecl;
 import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+import com.sun.tools.javac.tree.JCTree.JCMethodDecl;
 import com.sun.tools.javac.tree.TreeInfo;
+import com.sun.tools.javac.tree.TreeScanner;
 import com.sun.tools.javac.util.Abort;
 import com.sun.tools.javac.util.Context;
 import com.sun.tools.javac.util.Convert;
@@ -117,6 +126,21 @@ public class LanguageCompiler extends JavaCompiler {
     /** The context key for the ceylon context. */
     public static final Context.Key<com.redhat.ceylon.compiler.typechecker.context.Context> ceylonContextKey = new Context.Key<com.redhat.ceylon.compiler.typechecker.context.Context>();
 
+    /** 
+     * The hidden option which releases the Ceylon tree and phased unit of
+     * every unit as soon as its javac trees are made, see
+     * {@link CeylonEnter#completeCeylonTrees}, and its javac trees and
+     * desugared envs as soon as all of its classes are generated, see
+     * {@link #generated(Env)}. The latter only happens with the default
+     * <code>byTodo</code> compile policy, which is the only one which runs
+     * every class through every phase in turn.
+     * <p>
+     * Type checking needs the Ceylon trees of every unit, and javac's Enter
+     * the javac trees of every unit, so the peak is the larger of those two
+     * rather than both of them plus the desugared trees of every unit.
+     */
+    public static final String STREAMING_GENERATE_OPTION = "streamingGenerate";
+
     private final CeylonTransformer gen;
     private final PhasedUnits phasedUnits;
     private final CompilerDelegate compilerDelegate;
@@ -130,6 +154,9 @@ public class LanguageCompiler extends JavaCompiler {
     private Options options;
     
     private Timer timer;
+    private ParallelPhases parallelPhases;
+    private ParseCache parseCache;
+    private Map<JavaFileObject, CeylonParseResult> parsedSources;
     private boolean isBootstrap;
     private boolean addedDefaultModuleToClassPath;
     private boolean treatLikelyBugsAsErrors = false;
@@ -137,6 +164,9 @@ public class LanguageCompiler extends JavaCompiler {
     private List<JavaFileObject> resourceFileObjects;
     private Map<String,CeylonFileObject> moduleNamesToFileObjects = new HashMap<String,CeylonFileObject>();
     private SourceLanguage sourceLanguage;
+    private boolean streamingGenerate;
+    private Map<JCCompilationUnit, Integer> pendingEnvCounts;
+    private Map<JCCompilationUnit, java.util.List<Env<AttrContext>>> generatedEnvs;
 
     /** Get the PhasedUnits instance for this context. */
     public static PhasedUnits getPhasedUnitsInstance(final Context context) {
@@ -189,6 +219,45 @@ public class LanguageCompiler extends JavaCompiler {
         return instance;
     }
 
+    /**
+     * Prepares the given context, whose last compilation succeeded, for another compilation, and
+     * returns false if it cannot be reused. The modules that compilation compiled from source
+     * are forgotten, but the modules it loaded from the class path, such as the language module
+     * and the JDK, stay loaded, along with the dependencies resolved for them.
+     */
+    public static boolean prepareForReuse(Context context) {
+        JavaCompiler previous = context.get(compilerKey);
+        AbstractModelLoader loader = CeylonModelLoader.instance(context);
+        if(!(previous instanceof LanguageCompiler) || !(loader instanceof CeylonModelLoader))
+            return false;
+        LanguageCompiler compiler = (LanguageCompiler) previous;
+        // the language and default modules cannot be forgotten, and the profile report and
+        // standard output are set up once per context
+        if(compiler.isBootstrap 
+                || compiler.addedDefaultModuleToClassPath
+                || compiler.timer.getProfileReport() != null
+                || compiler.options.get("stdout") != null)
+            return false;
+        Set<Module> sourceModules = compiler.modulesLoadedFromSource;
+        for(Module module : compiler.ceylonContext.getModules().getListOfModules()){
+            if(sourceModules.contains(module))
+                continue;
+            // we cannot keep modules which depend on the ones we forget
+            for(ModuleImport moduleImport : module.getImports()){
+                if(sourceModules.contains(moduleImport.getModule()))
+                    return false;
+            }
+        }
+        // a new compiler and new phased units, with their own module manager, for every compilation
+        context.put(compilerKey, (JavaCompiler) null);
+        context.put(phasedUnitsKey, (PhasedUnits) null);
+        PhasedUnits phasedUnits = getPhasedUnitsInstance(context);
+        ((CeylonModelLoader) loader).reset(phasedUnits, sourceModules);
+        CeylonEnter.instance(context).reset(phasedUnits, sourceModules);
+        CeylonLog.instance(context).reset();
+        return true;
+    }
+
     public LanguageCompiler(Context context) {
         super(context);
         ceylonContext = getCeylonContextInstance(context);
@@ -205,7 +274,10 @@ public class LanguageCompiler extends JavaCompiler {
         options = Options.instance(context);
         isBootstrap = options.get(OptionName.BOOTSTRAPCEYLON) != null;
         timer = Timer.instance(context);
+        parallelPhases = ParallelPhases.instance(context);
+        parseCache = ParseCache.instance(context);
         sourceLanguage = SourceLanguage.instance(context);
+        streamingGenerate = options.isSet(STREAMING_GENERATE_OPTION);
     }
 
     @Override
@@ -286,6 +358,8 @@ public class LanguageCompiler extends JavaCompiler {
             addResources();
             resourceFileObjects = null;
         }
+        parallelPhases.shutdown();
+        timer.writeProfileReport();
         super.close(disposeNames);
     }
 
@@ -329,7 +403,13 @@ public class LanguageCompiler extends JavaCompiler {
 
                 t = parse(filename, readSource(filename));
             } else {
+                // files lexed and parsed in parallel were added to the report by their worker thread
+                ProfileReport profileReport = parsedSources == null || !parsedSources.containsKey(filename) 
+                        ? timer.getProfileReport() : null;
+                ProfileReport.Usage usage = profileReport != null ? ProfileReport.Usage.now() : null;
                 t = ceylonParse(filename, readSource(filename));
+                if (profileReport != null)
+                    profileReport.add(ProfileReport.FILE, "parse", getProfilePath(filename), usage);
             }
             if (t.endPositions != null)
                 log.setEndPosTable(filename, t.endPositions);
@@ -339,6 +419,11 @@ public class LanguageCompiler extends JavaCompiler {
         }
     }
 
+    private String getProfilePath(JavaFileObject filename) {
+        Iterable<? extends File> sourcePath = ((JavacFileManager)fileManager).getLocation(StandardLocation.SOURCE_PATH);
+        return JarUtils.toPlatformIndependentPath(sourcePath, filename.getName());
+    }
+
     protected JCCompilationUnit parse(JavaFileObject filename, CharSequence readSource) {
         // FIXME
         if (filename instanceof CeylonFileObject)
@@ -368,6 +453,54 @@ public class LanguageCompiler extends JavaCompiler {
         
     }
     
+    /**
+     * The line map, tree and errors of a lexed and parsed Ceylon source file.
+     * None of it depends on compiler state, so it can be built on any thread.
+     */
+    private static class CeylonParseResult {
+        final CharSequence source;
+        final LineMap map;
+        final CompilationUnit cu;
+        final java.util.List<LexError> lexerErrors;
+        final java.util.List<ParseError> parserErrors;
+
+        CeylonParseResult(CharSequence source, LineMap map, CompilationUnit cu,
+                java.util.List<LexError> lexerErrors, java.util.List<ParseError> parserErrors) {
+            this.source = source;
+            this.map = map;
+            this.cu = cu;
+            this.lexerErrors = lexerErrors;
+            this.parserErrors = parserErrors;
+        }
+    }
+
+    private static LineMap makeLineMap(String source) {
+        char[] chars = source.toCharArray();
+        return Position.makeLineMap(chars, chars.length, false);
+    }
+
+    private static CeylonParseResult lexAndParse(String source, LineMap map, ParseCache parseCache) throws RecognitionException {
+        if (parseCache != null) {
+            CompilationUnit cu = parseCache.get(source);
+            if (cu != null)
+                return new CeylonParseResult(source, map, cu, 
+                        Collections.<LexError>emptyList(), Collections.<ParseError>emptyList());
+        }
+        ANTLRStringStream input = new NewlineFixingStringStream(source);
+        CeylonLexer lexer = new CeylonLexer(input);
+
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+
+        CeylonParser parser = new CeylonParser(tokens);
+        CompilationUnit cu = parser.compilationUnit();
+
+        if (parseCache != null
+                && lexer.getErrors().isEmpty()
+                && parser.getErrors().isEmpty())
+            parseCache.put(source, cu);
+        return new CeylonParseResult(source, map, cu, lexer.getErrors(), parser.getErrors());
+    }
+
     private JCCompilationUnit ceylonParse(JavaFileObject filename, CharSequence readSource) {
         if(ceylonEnter.hasRun())
             throw new RunTwiceException("Trying to load new source file after CeylonEnter has been called: "+filename);
@@ -378,9 +511,10 @@ public class LanguageCompiler extends JavaCompiler {
             VirtualFile file = vfs.getFromFile(sourceFile);
             VirtualFile srcDir = vfs.getFromFile(getSrcDir(sourceFile));
             
+            // we may have lexed and parsed it already in parallel
+            CeylonParseResult parsed = parsedSources != null ? parsedSources.remove(filename) : null;
             String source = readSource.toString();
-            char[] chars = source.toCharArray();
-            LineMap map = Position.makeLineMap(chars, chars.length, false);
+            LineMap map = parsed != null ? parsed.map : makeLineMap(source);
             
             PhasedUnit phasedUnit = null;
             
@@ -414,20 +548,17 @@ public class LanguageCompiler extends JavaCompiler {
                 return gen.makeJCCompilationUnitPlaceholder(phasedUnit.getCompilationUnit(), filename, pkgName, phasedUnit);
             }
             if (phasedUnit == null) {
-                ANTLRStringStream input = new NewlineFixingStringStream(source);
-                CeylonLexer lexer = new CeylonLexer(input);
-
-                CommonTokenStream tokens = new CommonTokenStream(lexer);
-
-                CeylonParser parser = new CeylonParser(tokens);
-                CompilationUnit cu = parser.compilationUnit();
+                if (parsed == null) {
+                    parsed = lexAndParse(source, map, parseCache);
+                }
+                CompilationUnit cu = parsed.cu;
 
-                java.util.List<LexError> lexerErrors = lexer.getErrors();
+                java.util.List<LexError> lexerErrors = parsed.lexerErrors;
                 for (LexError le : lexerErrors) {
                     printError(le, le.getMessage(), "ceylon.lexer", map);
                 }
 
-                java.util.List<ParseError> parserErrors = parser.getErrors();
+                java.util.List<ParseError> parserErrors = parsed.parserErrors;
                 for (ParseError pe : parserErrors) {
                     printError(pe, pe.getMessage(), "ceylon.parser", map);
                 }
@@ -472,7 +603,18 @@ public class LanguageCompiler extends JavaCompiler {
          * Stef: see javadoc for fixDefaultPackage() for why this is here.
          */
         modelLoader.fixDefaultPackage();
-        List<JCCompilationUnit> trees = super.parseFiles(fileObjects);
+        if (parallelPhases.isEnabled(ParallelPhases.PARSE)) {
+            parseCeylonFilesInParallel(fileObjects);
+        }
+        List<JCCompilationUnit> trees;
+        try {
+            trees = super.parseFiles(fileObjects);
+        } finally {
+            parsedSources = null;
+        }
+        if (parseCache != null) {
+            timer.log("Parse cache: " + parseCache.getHits() + " hits, " + parseCache.getMisses() + " misses");
+        }
         timer.startTask("loadCompiledModules");
         LinkedList<JCCompilationUnit> moduleTrees = new LinkedList<JCCompilationUnit>();
         // now load modules and associate their moduleless packages with the corresponding modules
@@ -488,6 +630,66 @@ public class LanguageCompiler extends JavaCompiler {
         return trees;
     }
 
+    /**
+     * Lexes and parses every Ceylon source file on the worker pool, so that
+     * {@link #ceylonParse(JavaFileObject, CharSequence)} only has to report
+     * errors and register the phased units, which it still does serially and
+     * in the original file order.
+     */
+    private void parseCeylonFilesInParallel(Iterable<JavaFileObject> fileObjects) {
+        java.util.List<JavaFileObject> ceylonFiles = new ArrayList<JavaFileObject>();
+        java.util.List<Integer> indices = new ArrayList<Integer>();
+        final java.util.List<String> sources = new ArrayList<String>();
+        final java.util.List<String> profilePaths = new ArrayList<String>();
+        final ProfileReport profileReport = timer.getProfileReport();
+        Set<JavaFileObject> filesSoFar = new HashSet<JavaFileObject>();
+        for (JavaFileObject fileObject : fileObjects) {
+            if (fileObject.getName().endsWith(".java")
+                    || !filesSoFar.add(fileObject))
+                continue;
+            // read on this thread: if it fails we leave it to the serial parse to report it
+            try {
+                CharSequence source = fileObject.getCharContent(false);
+                if (source != null) {
+                    indices.add(ceylonFiles.size());
+                    ceylonFiles.add(fileObject);
+                    sources.add(source.toString());
+                    if (profileReport != null)
+                        profilePaths.add(getProfilePath(fileObject));
+                }
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        java.util.List<CeylonParseResult> results = parallelPhases.map(ParallelPhases.PARSE, indices,
+                new ParallelPhases.Task<Integer, CeylonParseResult>() {
+            @Override
+            public CeylonParseResult run(Integer index) throws Exception {
+                String source = sources.get(index);
+                // the CPU time and allocations of this thread only, so it has to be measured here
+                ProfileReport.Usage usage = profileReport != null ? ProfileReport.Usage.now() : null;
+                CeylonParseResult result = lexAndParse(source, makeLineMap(source), parseCache);
+                if (profileReport != null)
+                    profileReport.add(ProfileReport.FILE, "parse", profilePaths.get(index), usage);
+                return result;
+            }
+        });
+        parsedSources = new HashMap<JavaFileObject, CeylonParseResult>();
+        for (int i = 0; i < ceylonFiles.size(); i++) {
+            parsedSources.put(ceylonFiles.get(i), results.get(i));
+        }
+    }
+
+    @Override
+    public CharSequence readSource(JavaFileObject filename) {
+        CeylonParseResult parsed = parsedSources != null ? parsedSources.get(filename) : null;
+        if (parsed != null) {
+            inputFiles.add(filename);
+            return parsed.source;
+        }
+        return super.readSource(filename);
+    }
+
     private void loadCompiledModules(List<JCCompilationUnit> trees, LinkedList<JCCompilationUnit> moduleTrees) {
         compilerDelegate.visitModules(phasedUnits);
         Modules modules = ceylonContext.getModules();
@@ -836,4 +1038,63 @@ public class LanguageCompiler extends JavaCompiler {
         super.generate(queue, results);
         timer.endTask();
     }
+
+    /**
+     * In streaming generation mode, releases the javac and Ceylon trees of
+     * the unit of the given todo list entry once all of its entries are
+     * generated, so that we only keep the trees of the units we have not
+     * finished yet, rather than those of the whole module. This is only
+     * called with the <code>byTodo</code> compile policy.
+     */
+    @Override
+    protected void generated(Env<AttrContext> env) {
+        if (!streamingGenerate)
+            return;
+        JCCompilationUnit toplevel = env.toplevel;
+        if (pendingEnvCounts == null) {
+            // the first time around: count what is left of each unit, including this entry
+            pendingEnvCounts = new IdentityHashMap<JCCompilationUnit, Integer>();
+            generatedEnvs = new IdentityHashMap<JCCompilationUnit, java.util.List<Env<AttrContext>>>();
+            pendingEnvCounts.put(toplevel, 1);
+            for (Env<AttrContext> pending : todo) {
+                Integer count = pendingEnvCounts.get(pending.toplevel);
+                pendingEnvCounts.put(pending.toplevel, count == null ? 1 : count + 1);
+            }
+        }
+        java.util.List<Env<AttrContext>> envs = generatedEnvs.get(toplevel);
+        if (envs == null) {
+            envs = new ArrayList<Env<AttrContext>>();
+            generatedEnvs.put(toplevel, envs);
+        }
+        envs.add(env);
+        Integer count = pendingEnvCounts.get(toplevel);
+        if (count != null && count > 1) {
+            pendingEnvCounts.put(toplevel, count - 1);
+            return;
+        }
+        pendingEnvCounts.remove(toplevel);
+        generatedEnvs.remove(toplevel);
+        releaseTrees(toplevel, envs);
+    }
+
+    private void releaseTrees(JCCompilationUnit toplevel, java.util.List<Env<AttrContext>> envs) {
+        for (Env<AttrContext> env : envs) {
+            releaseDesugaredEnv(env);
+        }
+        // the envs of the classes are still kept by Enter, so their trees must be emptied,
+        // and those of local classes keep their method
+        new TreeScanner() {
+            @Override
+            public void visitClassDef(JCClassDecl tree) {
+                super.visitClassDef(tree);
+                tree.defs = List.nil();
+            }
+            @Override
+            public void visitMethodDef(JCMethodDecl tree) {
+                super.visitMethodDef(tree);
+                tree.body = null;
+            }
+        }.scan(toplevel);
+        toplevel.defs = List.nil();
+    }
 }
@@ -0,0 +1,626 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+
+import com.redhat.ceylon.common.Versions;
+import com.redhat.ceylon.compiler.typechecker.tree.Node;
+import com.redhat.ceylon.compiler.typechecker.tree.Tree.CompilationUnit;
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.Log;
+import com.sun.tools.javac.util.Options;
+
+/**
+ * An on-disk cache of the trees of parsed Ceylon source files, keyed by the
+ * hash of their contents and the compiler version, so that files which did
+ * not change since the last compilation do not have to be lexed and parsed
+ * again.
+ * <p>
+ * The cache is enabled with the hidden <code>-XDparseCache=dir</code> option.
+ * Only units without lexer or parser errors are cached, since those with
+ * errors have to be fixed and parsed again anyway.
+ * <p>
+ * The trees are written in a compact form of our own, since they are not
+ * serializable: nodes are written field by field, along with the names of
+ * the fields of every node class, and read back by reflection. A tree which
+ * holds anything we do not know how to write is simply not cached, and an
+ * entry which can not be read back, for example because the tree classes
+ * changed, is parsed again and replaced. Entries are written to a temporary
+ * file first so that concurrent compilations sharing a cache never see
+ * partial entries.
+ * <p>
+ * The cache directory is kept to about 128MB, or the number of bytes given
+ * with the hidden <code>-XDparseCacheMaxSize=N</code> option, 0 meaning no
+ * limit: once an entry takes it over that, the least recently used entries
+ * are removed until it is back to three quarters of it.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class ParseCache {
+
+    public static final String OPTION = "parseCache";
+    public static final String MAX_SIZE_OPTION = "parseCacheMaxSize";
+    public static final long DEFAULT_MAX_SIZE = 128L * 1024 * 1024;
+
+    private static final Context.Key<ParseCache> parseCacheKey = new Context.Key<ParseCache>();
+
+    private static final int MAGIC = 0xCE7A57C0;
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".ast";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int NULL = 0;
+    private static final int REFERENCE = 1;
+    private static final int STRING = 2;
+    private static final int INTEGER = 3;
+    private static final int LONG = 4;
+    private static final int BOOLEAN = 5;
+    private static final int CHARACTER = 6;
+    private static final int DOUBLE = 7;
+    private static final int FLOAT = 8;
+    private static final int BYTE = 9;
+    private static final int SHORT = 10;
+    private static final int ENUM = 11;
+    private static final int COLLECTION = 12;
+    private static final int MAP = 13;
+    private static final int TOKEN = 14;
+    private static final int NODE = 15;
+
+    private static final Map<Class<?>, Field[]> fieldsByClass = new ConcurrentHashMap<Class<?>, Field[]>();
+    private static final Object PENDING = new Object();
+
+    private final File dir;
+    private final long maxSize;
+    /** The size of the entries in the directory, or -1 until we looked. Guarded by this. */
+    private long size = -1;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Returns the parse cache of the given context, or null if it is not
+     * enabled.
+     */
+    public static ParseCache instance(Context context) {
+        ParseCache instance = context.get(parseCacheKey);
+        if (instance == null) {
+            String dir = Options.instance(context).get(OPTION);
+            if (dir == null || dir.isEmpty() || dir.equals(OPTION))
+                return null;
+            String maxSize = Options.instance(context).get(MAX_SIZE_OPTION);
+            instance = new ParseCache(new File(dir), maxSize != null ? parseMaxSize(maxSize, Log.instance(context)) : DEFAULT_MAX_SIZE);
+            context.put(parseCacheKey, instance);
+        }
+        return instance;
+    }
+
+    private static long parseMaxSize(String maxSize, Log log) {
+        try{
+            long bytes = Long.parseLong(maxSize.trim());
+            if(bytes >= 0)
+                return bytes;
+        }catch(NumberFormatException e){
+            // reported below
+        }
+        log.error("ceylon", "Invalid value for -XD" + MAX_SIZE_OPTION + ": " + maxSize + " (expected a number of bytes, or 0 for no limit)");
+        return DEFAULT_MAX_SIZE;
+    }
+
+    public ParseCache(File dir) {
+        this(dir, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize the number of bytes the entries can take, or 0 for no limit
+     */
+    public ParseCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns a new copy of the cached tree of the given source, or null if
+     * it is not in the cache.
+     */
+    public CompilationUnit get(String source) {
+        File file = getFile(source);
+        if (!file.exists()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                    throw new IOException("Not a parse cache entry: " + file);
+                Object value = new Reader(in).read();
+                if (value instanceof CompilationUnit) {
+                    hits.incrementAndGet();
+                    // so that it is the last one to be evicted
+                    file.setLastModified(System.currentTimeMillis());
+                    return (CompilationUnit) value;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException | ReflectiveOperationException | RuntimeException e) {
+            // stale or corrupt: it will be replaced
+        }
+        file.delete();
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Adds the tree of the given source to the cache, unless it holds
+     * something we can not write. The tree must not have been touched by
+     * anything but the parser.
+     */
+    public void put(String source, CompilationUnit cu) {
+        File file = getFile(source);
+        File tmp = null;
+        try {
+            file.getParentFile().mkdirs();
+            tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                new Writer(out).write(cu);
+            } finally {
+                out.close();
+            }
+            if (tmp.renameTo(file)) {
+                tmp = null;
+                added(file.length());
+            } else if (file.exists()) {
+                // another compilation beat us to it
+                tmp = null;
+            }
+        } catch (IOException | ReflectiveOperationException | RuntimeException e) {
+            // not cacheable, never mind
+        } finally {
+            if (tmp != null)
+                tmp.delete();
+        }
+    }
+
+    private synchronized void added(long length) {
+        if (maxSize == 0)
+            return;
+        if (size < 0) {
+            // the new entry is in there already
+            size = 0;
+            for (Entry entry : listEntries()) {
+                size += entry.length;
+            }
+        } else {
+            size += length;
+        }
+        if (size > maxSize)
+            evict();
+    }
+
+    /**
+     * Removes the least recently used entries until the cache is back to
+     * three quarters of its maximum size. We look at the directory again
+     * since other compilations may share it.
+     */
+    private void evict() {
+        List<Entry> entries = listEntries();
+        Collections.sort(entries);
+        size = 0;
+        for (Entry entry : entries) {
+            size += entry.length;
+        }
+        for (Entry entry : entries) {
+            if (size <= maxSize / 4 * 3)
+                break;
+            if (entry.file.delete())
+                size -= entry.length;
+        }
+    }
+
+    private List<Entry> listEntries() {
+        List<Entry> entries = new ArrayList<Entry>();
+        File[] subdirs = dir.listFiles();
+        if (subdirs == null)
+            return entries;
+        for (File subdir : subdirs) {
+            File[] files = subdir.listFiles();
+            if (files == null)
+                continue;
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX))
+                    entries.add(new Entry(file));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * A cache file, with its size and time of last use read once, since
+     * they can change while we sort them
+     */
+    private static final class Entry implements Comparable<Entry> {
+        final File file;
+        final long length;
+        final long lastModified;
+
+        Entry(File file) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return lastModified < other.lastModified ? -1 : lastModified == other.lastModified ? 0 : 1;
+        }
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    private File getFile(String source) {
+        String hash = hash(source);
+        return new File(new File(dir, hash.substring(0, 2)), hash.substring(2) + SUFFIX);
+    }
+
+    private static String hash(String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update((Versions.CEYLON_VERSION_NUMBER + "/" + FORMAT_VERSION + "\n").getBytes(UTF8));
+            digest.update(source.getBytes(UTF8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The instance fields of the given class and its superclasses, which is
+     * what we write for nodes.
+     */
+    private static Field[] getFields(Class<?> type) {
+        Field[] fields = fieldsByClass.get(type);
+        if (fields == null) {
+            List<Field> list = new ArrayList<Field>();
+            for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers))
+                        continue;
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            fields = list.toArray(new Field[list.size()]);
+            fieldsByClass.put(type, fields);
+        }
+        return fields;
+    }
+
+    private static boolean isNode(Class<?> type) {
+        return Node.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Only plain collections of java.util can be made again from their class
+     */
+    private static boolean isPlainJavaUtil(Class<?> type) {
+        if (!type.getName().startsWith("java.util.") || type.getName().indexOf('$') != -1)
+            return false;
+        try {
+            type.getConstructor();
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static final class Writer {
+        private final DataOutputStream out;
+        private final Map<Class<?>, Integer> classes = new HashMap<Class<?>, Integer>();
+        private final Map<Object, Integer> objects = new IdentityHashMap<Object, Integer>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        private void writeClass(Class<?> type) throws IOException {
+            Integer index = classes.get(type);
+            if (index != null) {
+                out.writeInt(index);
+                return;
+            }
+            out.writeInt(-1);
+            classes.put(type, classes.size());
+            writeString(out, type.getName());
+            if (isNode(type)) {
+                Field[] fields = getFields(type);
+                out.writeInt(fields.length);
+                for (Field field : fields) {
+                    writeString(out, field.getName());
+                }
+            }
+        }
+
+        void write(Object value) throws IOException, ReflectiveOperationException {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                writeString(out, (String) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof Character) {
+                out.writeByte(CHARACTER);
+                out.writeChar((Character) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) value);
+            } else if (value instanceof Byte) {
+                out.writeByte(BYTE);
+                out.writeByte((Byte) value);
+            } else if (value instanceof Short) {
+                out.writeByte(SHORT);
+                out.writeShort((Short) value);
+            } else if (value instanceof Enum) {
+                out.writeByte(ENUM);
+                writeClass(((Enum<?>) value).getDeclaringClass());
+                writeString(out, ((Enum<?>) value).name());
+            } else {
+                Integer index = objects.get(value);
+                if (index != null) {
+                    out.writeByte(REFERENCE);
+                    out.writeInt(index);
+                    return;
+                }
+                objects.put(value, objects.size());
+                writeObject(value);
+            }
+        }
+
+        private void writeObject(Object value) throws IOException, ReflectiveOperationException {
+            Class<?> type = value.getClass();
+            if (value instanceof Collection && isPlainJavaUtil(type)) {
+                Collection<?> collection = (Collection<?>) value;
+                out.writeByte(COLLECTION);
+                writeClass(type);
+                out.writeInt(collection.size());
+                for (Object element : collection) {
+                    write(element);
+                }
+            } else if (value instanceof Map && isPlainJavaUtil(type)) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                out.writeByte(MAP);
+                writeClass(type);
+                out.writeInt(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    write(entry.getKey());
+                    write(entry.getValue());
+                }
+            } else if (type == CommonToken.class) {
+                CommonToken token = (CommonToken) value;
+                out.writeByte(TOKEN);
+                out.writeInt(token.getType());
+                // the text is kept with the token since we do not keep its input
+                write(token.getText());
+                out.writeInt(token.getLine());
+                out.writeInt(token.getCharPositionInLine());
+                out.writeInt(token.getChannel());
+                out.writeInt(token.getTokenIndex());
+                out.writeInt(token.getStartIndex());
+                out.writeInt(token.getStopIndex());
+            } else if (isNode(type)) {
+                out.writeByte(NODE);
+                writeClass(type);
+                for (Field field : getFields(type)) {
+                    write(field.get(value));
+                }
+            } else {
+                throw new IOException("Can not write " + type.getName());
+            }
+        }
+    }
+
+    private static final class Reader {
+        private final DataInputStream in;
+        private final List<Class<?>> classes = new ArrayList<Class<?>>();
+        private final List<Field[]> classFields = new ArrayList<Field[]>();
+        private final List<Object> objects = new ArrayList<Object>();
+        private final ClassLoader loader = CompilationUnit.class.getClassLoader();
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        private int readClass() throws IOException, ReflectiveOperationException {
+            int index = in.readInt();
+            if (index != -1)
+                return index;
+            Class<?> type = Class.forName(readString(in), false, loader);
+            Field[] fields = null;
+            if (isNode(type)) {
+                Map<String, Field> byName = new HashMap<String, Field>();
+                for (Field field : getFields(type)) {
+                    byName.put(field.getName(), field);
+                }
+                fields = new Field[in.readInt()];
+                for (int i = 0; i < fields.length; i++) {
+                    String name = readString(in);
+                    fields[i] = byName.get(name);
+                    if (fields[i] == null)
+                        throw new IOException("Unknown field " + name + " of " + type.getName());
+                }
+            }
+            classes.add(type);
+            classFields.add(fields);
+            return classes.size() - 1;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Object read() throws IOException, ReflectiveOperationException {
+            int tag = in.readByte();
+            switch (tag) {
+            case NULL: return null;
+            case STRING: return readString(in);
+            case INTEGER: return in.readInt();
+            case LONG: return in.readLong();
+            case BOOLEAN: return in.readBoolean();
+            case CHARACTER: return in.readChar();
+            case DOUBLE: return in.readDouble();
+            case FLOAT: return in.readFloat();
+            case BYTE: return in.readByte();
+            case SHORT: return in.readShort();
+            case ENUM: {
+                Class type = classes.get(readClass());
+                return Enum.valueOf(type, readString(in));
+            }
+            case REFERENCE: {
+                Object value = objects.get(in.readInt());
+                if (value == PENDING)
+                    throw new IOException("Cyclic node reference");
+                return value;
+            }
+            case COLLECTION: {
+                Collection<Object> collection = (Collection<Object>) classes.get(readClass()).newInstance();
+                objects.add(collection);
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    collection.add(read());
+                }
+                return collection;
+            }
+            case MAP: {
+                Map<Object, Object> map = (Map<Object, Object>) classes.get(readClass()).newInstance();
+                objects.add(map);
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    Object key = read();
+                    map.put(key, read());
+                }
+                return map;
+            }
+            case TOKEN: {
+                int index = objects.size();
+                objects.add(PENDING);
+                CommonToken token = new CommonToken(in.readInt(), (String) read());
+                token.setLine(in.readInt());
+                token.setCharPositionInLine(in.readInt());
+                token.setChannel(in.readInt());
+                token.setTokenIndex(in.readInt());
+                token.setStartIndex(in.readInt());
+                token.setStopIndex(in.readInt());
+                objects.set(index, token);
+                return token;
+            }
+            case NODE: {
+                int classIndex = readClass();
+                int index = objects.size();
+                objects.add(PENDING);
+                Field[] fields = classFields.get(classIndex);
+                Object[] values = new Object[fields.length];
+                Token token = null;
+                for (int i = 0; i < fields.length; i++) {
+                    values[i] = read();
+                    if (fields[i].getName().equals("token") && values[i] instanceof Token)
+                        token = (Token) values[i];
+                }
+                Object node = newNode(classes.get(classIndex), token);
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i].set(node, values[i]);
+                }
+                objects.set(index, node);
+                return node;
+            }
+            default:
+                throw new IOException("Unknown tag " + tag);
+            }
+        }
+
+        private static Object newNode(Class<?> type, Token token) throws ReflectiveOperationException {
+            // tree nodes are made from their first token, the rest is set afterwards
+            Constructor<?> constructor = type.getDeclaredConstructor(Token.class);
+            constructor.setAccessible(true);
+            return constructor.newInstance(token);
+        }
+    }
+}
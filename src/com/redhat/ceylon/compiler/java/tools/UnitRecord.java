@@ -0,0 +1,368 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
+import com.redhat.ceylon.compiler.typechecker.context.PhasedUnit;
+import com.redhat.ceylon.compiler.typechecker.model.Class;
+import com.redhat.ceylon.compiler.typechecker.model.Declaration;
+import com.redhat.ceylon.compiler.typechecker.model.Functional;
+import com.redhat.ceylon.compiler.typechecker.model.Generic;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+import com.redhat.ceylon.compiler.typechecker.model.Parameter;
+import com.redhat.ceylon.compiler.typechecker.model.ParameterList;
+import com.redhat.ceylon.compiler.typechecker.model.ProducedType;
+import com.redhat.ceylon.compiler.typechecker.model.Scope;
+import com.redhat.ceylon.compiler.typechecker.model.TypeDeclaration;
+import com.redhat.ceylon.compiler.typechecker.model.TypeParameter;
+import com.redhat.ceylon.compiler.typechecker.model.TypedDeclaration;
+import com.redhat.ceylon.compiler.typechecker.model.Unit;
+import com.redhat.ceylon.compiler.typechecker.tree.Tree;
+import com.redhat.ceylon.compiler.typechecker.tree.Visitor;
+
+/**
+ * What incremental compilation needs to know about a Ceylon unit: the hash of
+ * its source file, the hash of the signatures it exposes to other units, the
+ * toplevel declarations it contains and the toplevel declarations of other
+ * units which it uses. Those include the declarations of the other modules
+ * it imports, except the language module and the JDK, and every supertype
+ * of its types, since a subtype depends on the members of its supertypes
+ * even when it does not name them.
+ * <p>
+ * When the compiler is run with <code>-XDincremental</code>, the records of
+ * the units of a module are kept in its module archive, in
+ * {@link #UNITS_FILE}, with paths relative to the source directories as in
+ * <code>META-INF/mapping.txt</code>.
+ */
+public class UnitRecord {
+
+    public static final String UNITS_FILE = "META-INF/units.txt";
+
+    /** The hidden option which makes the compiler record its units */
+    public static final String OPTION = "incremental";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public final String sourceHash;
+    public final String signatureHash;
+    public final Set<String> declarations;
+    public final Set<String> uses;
+
+    public UnitRecord(String sourceHash, String signatureHash, Set<String> declarations, Set<String> uses) {
+        this.sourceHash = sourceHash;
+        this.signatureHash = signatureHash;
+        this.declarations = declarations;
+        this.uses = uses;
+    }
+
+    /**
+     * Makes the record of a type checked unit.
+     */
+    public static UnitRecord of(PhasedUnit phasedUnit, File sourceFile) throws IOException {
+        final Unit unit = phasedUnit.getUnit();
+        Set<String> declarations = new TreeSet<String>();
+        java.util.List<String> signatures = new ArrayList<String>();
+        for (Declaration decl : unit.getDeclarations()) {
+            if (decl.isToplevel())
+                declarations.add(decl.getQualifiedNameString());
+            if (decl.isToplevel() || decl.isShared())
+                signatures.add(signature(decl));
+        }
+        Collections.sort(signatures);
+        final Set<String> uses = new TreeSet<String>();
+        phasedUnit.getCompilationUnit().visit(new Visitor() {
+            public void visit(Tree.MemberOrTypeExpression expr) {
+                use(expr.getDeclaration());
+                super.visit(expr);
+            }
+
+            public void visit(Tree.SimpleType type) {
+                ProducedType model = type.getTypeModel();
+                if (model != null)
+                    use(model.getDeclaration());
+                super.visit(type);
+            }
+
+            public void visit(Tree.ClassOrInterface that) {
+                useSupertypes(that.getDeclarationModel());
+                super.visit(that);
+            }
+
+            public void visit(Tree.ObjectDefinition that) {
+                useSupertypes(that.getAnonymousClass());
+                super.visit(that);
+            }
+
+            private void useSupertypes(TypeDeclaration type) {
+                if (type == null)
+                    return;
+                Set<TypeDeclaration> seen = new HashSet<TypeDeclaration>();
+                LinkedList<TypeDeclaration> queue = new LinkedList<TypeDeclaration>();
+                queue.add(type);
+                while (!queue.isEmpty()) {
+                    TypeDeclaration supertype = queue.removeFirst();
+                    if (supertype == null || !seen.add(supertype))
+                        continue;
+                    use(supertype);
+                    queue.add(supertype.getExtendedTypeDeclaration());
+                    queue.addAll(supertype.getSatisfiedTypeDeclarations());
+                }
+            }
+
+            private void use(Declaration decl) {
+                if (decl == null 
+                        || decl.getUnit() == null 
+                        || decl.getUnit() == unit
+                        || decl.getUnit().getPackage() == null
+                        || !isRecorded(decl.getUnit().getPackage().getModule()))
+                    return;
+                Declaration toplevel = getToplevel(decl);
+                if (toplevel != null)
+                    uses.add(toplevel.getQualifiedNameString());
+            }
+        });
+        StringBuilder signature = new StringBuilder();
+        for (String s : signatures) {
+            signature.append(s).append('\n');
+        }
+        return new UnitRecord(hash(sourceFile), sha1(signature.toString().getBytes(UTF8)), declarations, uses);
+    }
+
+    /**
+     * Whether we record the uses of the declarations of the given module,
+     * which can be compiled again along with the units using them
+     */
+    private static boolean isRecorded(Module module) {
+        return module != null
+                && !AbstractModelLoader.CEYLON_LANGUAGE.equals(module.getNameAsString())
+                && !AbstractModelLoader.isJDKModule(module.getNameAsString());
+    }
+
+    private static Declaration getToplevel(Declaration decl) {
+        Scope scope = decl;
+        while (scope != null) {
+            if (scope instanceof Declaration && ((Declaration) scope).isToplevel())
+                return (Declaration) scope;
+            scope = scope.getContainer();
+        }
+        return null;
+    }
+
+    /**
+     * The part of a declaration which other units can depend on
+     */
+    private static String signature(Declaration decl) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(decl.getQualifiedNameString());
+        if (decl.isShared()) sb.append(" shared");
+        if (decl.isFormal()) sb.append(" formal");
+        if (decl.isDefault()) sb.append(" default");
+        if (decl.isActual()) sb.append(" actual");
+        if (decl instanceof Generic) {
+            for (TypeParameter tp : ((Generic) decl).getTypeParameters()) {
+                sb.append(" <");
+                if (tp.isCovariant()) sb.append("out ");
+                if (tp.isContravariant()) sb.append("in ");
+                sb.append(tp.getName());
+                appendTypes(sb, " satisfies", tp.getSatisfiedTypes());
+                sb.append('>');
+            }
+        }
+        if (decl instanceof TypedDeclaration) {
+            TypedDeclaration typed = (TypedDeclaration) decl;
+            sb.append(" : ");
+            appendType(sb, typed.getType());
+            if (typed.isVariable()) sb.append(" variable");
+        }
+        if (decl instanceof Functional && ((Functional) decl).getParameterLists() != null) {
+            for (ParameterList parameterList : ((Functional) decl).getParameterLists()) {
+                appendParameters(sb, parameterList);
+            }
+        } else if (decl instanceof Class) {
+            appendParameters(sb, ((Class) decl).getParameterList());
+        }
+        if (decl instanceof TypeDeclaration) {
+            TypeDeclaration type = (TypeDeclaration) decl;
+            if (type instanceof Class && ((Class) type).isAbstract()) sb.append(" abstract");
+            sb.append(" extends ");
+            appendType(sb, type.getExtendedType());
+            appendTypes(sb, " satisfies", type.getSatisfiedTypes());
+            appendTypes(sb, " of", type.getCaseTypes());
+        }
+        return sb.toString();
+    }
+
+    private static void appendParameters(StringBuilder sb, ParameterList parameterList) {
+        if (parameterList == null)
+            return;
+        sb.append(" (");
+        for (Parameter parameter : parameterList.getParameters()) {
+            appendType(sb, parameter.getType());
+            sb.append(' ').append(parameter.getName());
+            if (parameter.isDefaulted()) sb.append('=');
+            if (parameter.isSequenced()) sb.append('*');
+            sb.append(',');
+        }
+        sb.append(')');
+    }
+
+    private static void appendTypes(StringBuilder sb, String prefix, java.util.List<ProducedType> types) {
+        if (types == null)
+            return;
+        sb.append(prefix);
+        for (ProducedType type : types) {
+            sb.append(' ');
+            appendType(sb, type);
+        }
+    }
+
+    private static void appendType(StringBuilder sb, ProducedType type) {
+        sb.append(type != null ? type.getProducedTypeQualifiedName() : "?");
+    }
+
+    /**
+     * Reads the records of a module archive, keyed by source file path, or
+     * returns null if it has none.
+     */
+    public static Map<String, UnitRecord> read(File car) throws IOException {
+        Properties properties = readProperties(car);
+        if (properties == null)
+            return null;
+        Map<String, UnitRecord> records = new HashMap<String, UnitRecord>();
+        for (String path : properties.stringPropertyNames()) {
+            UnitRecord record = parse(properties.getProperty(path));
+            if (record == null)
+                return null;
+            records.put(path, record);
+        }
+        return records;
+    }
+
+    static Properties readProperties(File car) throws IOException {
+        if (car == null || !car.isFile())
+            return null;
+        JarFile jarFile = new JarFile(car);
+        try {
+            JarEntry entry = jarFile.getJarEntry(UNITS_FILE);
+            if (entry == null)
+                return null;
+            InputStream inputStream = jarFile.getInputStream(entry);
+            try {
+                Properties properties = new Properties();
+                properties.load(inputStream);
+                return properties;
+            } finally {
+                inputStream.close();
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    /**
+     * The form of this record stored in {@link #UNITS_FILE}:
+     * <code>sourceHash;signatureHash;declarations;uses</code> where
+     * declarations are separated by <code>|</code>.
+     */
+    public String format() {
+        return sourceHash + ';' + signatureHash + ';' + join(declarations) + ';' + join(uses);
+    }
+
+    private static String join(Set<String> names) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            if (sb.length() > 0)
+                sb.append('|');
+            sb.append(name);
+        }
+        return sb.toString();
+    }
+
+    private static UnitRecord parse(String value) {
+        String[] parts = value.split(";", -1);
+        if (parts.length != 4)
+            return null;
+        return new UnitRecord(parts[0], parts[1], split(parts[2]), split(parts[3]));
+    }
+
+    private static Set<String> split(String names) {
+        Set<String> result = new TreeSet<String>();
+        if (!names.isEmpty())
+            Collections.addAll(result, names.split("\\|"));
+        return result;
+    }
+
+    /**
+     * The hash of the contents of the given source file
+     */
+    public static String hash(File file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            MessageDigest digest = sha1();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return toHex(digest.digest());
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static String sha1(byte[] bytes) {
+        return toHex(sha1().digest(bytes));
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
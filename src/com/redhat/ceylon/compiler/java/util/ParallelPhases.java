@@ -0,0 +1,184 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.Options;
+
+/**
+ * Runs per-unit work of the compiler phases that support it on a shared
+ * fork-join pool.
+ * <p>
+ * Parallel phases are opt-in and are enabled with the hidden
+ * <code>-XDparallel</code> option, which enables every phase, or with
+ * <code>-XDparallel=phase1,phase2</code> to only enable some of them. The
+ * number of worker threads defaults to the number of available processors
+ * and can be set with <code>-XDparallelThreads=N</code>.
+ * <p>
+ * Workers must never touch the javac {@link com.sun.tools.javac.util.Log}
+ * or any other state shared between units: results are handed back to the
+ * calling thread in the order of the input list so that anything with side
+ * effects can be done there, deterministically.
+ * <p>
+ * Code generation is not a parallel phase: the transformers write to the
+ * shared typechecker model as they go, so it always runs on the compiler
+ * thread.
+ */
+public class ParallelPhases {
+
+    /** Lexing and parsing of Ceylon source files */
+    public static final String PARSE = "parse";
+    /** The Java backend visitor passes run after the Ceylon type checker */
+    public static final String TYPECHECK = "typecheck";
+
+    public static final String OPTION = "parallel";
+    public static final String THREADS_OPTION = "parallelThreads";
+
+    private static final Context.Key<ParallelPhases> parallelPhasesKey = new Context.Key<ParallelPhases>();
+
+    /**
+     * A unit of work to run for each element of a list.
+     */
+    public interface Task<T,R> {
+        R run(T item) throws Exception;
+    }
+
+    private final Set<String> enabledPhases;
+    private final boolean allPhasesEnabled;
+    private final int threads;
+    private ForkJoinPool pool;
+
+    public static ParallelPhases instance(Context context) {
+        ParallelPhases instance = context.get(parallelPhasesKey);
+        if (instance == null) {
+            instance = new ParallelPhases(context);
+            context.put(parallelPhasesKey, instance);
+        }
+        return instance;
+    }
+
+    private ParallelPhases(Context context) {
+        Options options = Options.instance(context);
+        String phases = options.get(OPTION);
+        enabledPhases = new HashSet<String>();
+        if (phases == null || phases.equals(OPTION)) {
+            // -XDparallel with no value enables them all
+            allPhasesEnabled = phases != null;
+        } else {
+            allPhasesEnabled = false;
+            for (String phase : phases.split(",")) {
+                enabledPhases.add(phase.trim());
+            }
+        }
+        String threadsOption = options.get(THREADS_OPTION);
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (threadsOption != null) {
+            try {
+                threads = Integer.parseInt(threadsOption);
+            } catch (NumberFormatException e) {
+                // keep the default
+            }
+        }
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Returns true if the given phase should run its per-unit work in
+     * parallel.
+     */
+    public boolean isEnabled(String phase) {
+        return threads > 1
+                && (allPhasesEnabled || enabledPhases.contains(phase));
+    }
+
+    /**
+     * Runs the given task for every item, in parallel if the given phase is
+     * {@linkplain #isEnabled(String) enabled}, serially otherwise.
+     * Results are returned in the order of the given items. If any task
+     * throws, the first exception (in item order) is rethrown after all
+     * tasks are done, wrapped in a {@link RuntimeException} if it is checked.
+     */
+    public <T,R> List<R> map(String phase, List<T> items, final Task<T,R> task) {
+        List<R> results = new ArrayList<R>(items.size());
+        if (!isEnabled(phase) || items.size() < 2) {
+            for (T item : items) {
+                results.add(runTask(task, item));
+            }
+            return results;
+        }
+        ForkJoinPool pool = getPool();
+        List<ForkJoinTask<R>> futures = new ArrayList<ForkJoinTask<R>>(items.size());
+        for (final T item : items) {
+            futures.add(pool.submit(new Callable<R>() {
+                @Override
+                public R call() throws Exception {
+                    return task.run(item);
+                }
+            }));
+        }
+        RuntimeException failure = null;
+        for (ForkJoinTask<R> future : futures) {
+            try {
+                results.add(future.join());
+            } catch (RuntimeException e) {
+                if (failure == null)
+                    failure = e;
+                results.add(null);
+            }
+        }
+        if (failure != null)
+            throw failure;
+        return results;
+    }
+
+    private static <T,R> R runTask(Task<T,R> task, T item) {
+        try {
+            return task.run(item);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool(threads);
+        return pool;
+    }
+
+    /**
+     * Stops the worker threads, if any were started.
+     */
+    public synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+}
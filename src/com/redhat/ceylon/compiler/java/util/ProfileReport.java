@@ -0,0 +1,390 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.Options;
+
+/**
+ * Collects the wall time, CPU time and allocated bytes of the compiler
+ * phases, of the work done for each source file and of the
+ * {@linkplain Timer#startIgnore(String) timer categories} such as the
+ * model loader, and writes them out as a machine-readable report.
+ * <p>
+ * Profiling is enabled with the hidden <code>-XDprofile=file</code> option.
+ * The report is written as CSV if the file name ends with <code>.csv</code>
+ * and as JSON otherwise. With <code>-XDprofileAggregate</code> the numbers
+ * of this compilation are added to those already in the report, so that a
+ * report can aggregate any number of runs: every entry keeps the number of
+ * measures it sums up.
+ * <p>
+ * CPU time and allocated bytes are those of the measuring thread, as told
+ * by the {@link ThreadMXBean}, and are zero when the JVM does not support
+ * them. Measures may be added from any thread.
+ */
+public class ProfileReport {
+
+    public static final String OPTION = "profile";
+    public static final String AGGREGATE_OPTION = "profileAggregate";
+
+    /** The kind of entries measuring a whole compiler phase */
+    public static final String PHASE = "phase";
+    /** The kind of entries measuring the work of a phase for one source file */
+    public static final String FILE = "file";
+    /** The kind of entries measuring a timer category within a phase */
+    public static final String CATEGORY = "category";
+
+    private static final String[] COLUMNS = {"kind", "phase", "name", "count", "wallNanos", "cpuNanos", "allocatedBytes"};
+    private static final Pattern JSON_FIELD = Pattern.compile("\"(\\w+)\"\\s*:\\s*(\"((?:[^\"\\\\]|\\\\.)*)\"|-?\\d+)");
+
+    private static final Context.Key<ProfileReport> profileReportKey = new Context.Key<ProfileReport>();
+
+    /**
+     * A snapshot of the resources used so far by the current thread.
+     */
+    public static final class Usage {
+        private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        final long wallNanos;
+        final long cpuNanos;
+        final long allocatedBytes;
+
+        private Usage(long wallNanos, long cpuNanos, long allocatedBytes) {
+            this.wallNanos = wallNanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public static Usage now() {
+            long cpu = threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+            return new Usage(System.nanoTime(), Math.max(0, cpu), allocatedBytes());
+        }
+
+        private static long allocatedBytes() {
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+                if (sunThreads.isThreadAllocatedMemorySupported()
+                        && sunThreads.isThreadAllocatedMemoryEnabled())
+                    return Math.max(0, sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId()));
+            }
+            return 0;
+        }
+    }
+
+    private static final class Entry {
+        final String kind;
+        final String phase;
+        final String name;
+        long count;
+        long wallNanos;
+        long cpuNanos;
+        long allocatedBytes;
+
+        Entry(String kind, String phase, String name) {
+            this.kind = kind;
+            this.phase = phase;
+            this.name = name;
+        }
+
+        String[] values() {
+            return new String[]{kind, phase, name,
+                    String.valueOf(count), String.valueOf(wallNanos),
+                    String.valueOf(cpuNanos), String.valueOf(allocatedBytes)};
+        }
+    }
+
+    private final File file;
+    private final boolean aggregate;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Returns the report of the given context, or null if profiling is not
+     * enabled.
+     */
+    public static ProfileReport instance(Context context) {
+        ProfileReport instance = context.get(profileReportKey);
+        if (instance == null) {
+            Options options = Options.instance(context);
+            String file = options.get(OPTION);
+            if (file == null || file.isEmpty() || file.equals(OPTION))
+                return null;
+            instance = new ProfileReport(new File(file), options.isSet(AGGREGATE_OPTION));
+            context.put(profileReportKey, instance);
+        }
+        return instance;
+    }
+
+    public ProfileReport(File file, boolean aggregate) {
+        this.file = file;
+        this.aggregate = aggregate;
+    }
+
+    /**
+     * Adds the resources used by the current thread since the given
+     * snapshot to the entry of the given kind, phase and name.
+     */
+    public void add(String kind, String phase, String name, Usage start) {
+        Usage end = Usage.now();
+        add(kind, phase, name, 1,
+                end.wallNanos - start.wallNanos,
+                end.cpuNanos - start.cpuNanos,
+                end.allocatedBytes - start.allocatedBytes);
+    }
+
+    synchronized void add(String kind, String phase, String name, long count, long wallNanos, long cpuNanos, long allocatedBytes) {
+        merge(entries, kind, phase, name, count, wallNanos, cpuNanos, allocatedBytes);
+    }
+
+    private static void merge(Map<String, Entry> entries, String kind, String phase, String name, long count, long wallNanos, long cpuNanos, long allocatedBytes) {
+        if (phase == null)
+            phase = "";
+        if (name == null)
+            name = "";
+        String key = kind + '\0' + phase + '\0' + name;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(kind, phase, name);
+            entries.put(key, entry);
+        }
+        entry.count += count;
+        entry.wallNanos += wallNanos;
+        entry.cpuNanos += cpuNanos;
+        entry.allocatedBytes += allocatedBytes;
+    }
+
+    private boolean isCsv() {
+        return file.getName().toLowerCase().endsWith(".csv");
+    }
+
+    /**
+     * Writes the report, after adding the entries of the existing report
+     * if aggregation is enabled.
+     */
+    public synchronized void write() throws IOException {
+        Map<String, Entry> report = new LinkedHashMap<String, Entry>();
+        if (aggregate && file.exists()) {
+            for (Entry entry : read()) {
+                merge(report, entry.kind, entry.phase, entry.name, entry.count, entry.wallNanos, entry.cpuNanos, entry.allocatedBytes);
+            }
+        }
+        for (Entry entry : entries.values()) {
+            merge(report, entry.kind, entry.phase, entry.name, entry.count, entry.wallNanos, entry.cpuNanos, entry.allocatedBytes);
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            if (isCsv())
+                writeCsv(out, report.values());
+            else
+                writeJson(out, report.values());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeCsv(PrintWriter out, Collection<Entry> entries) {
+        out.println(joinCsv(COLUMNS));
+        for (Entry entry : entries) {
+            out.println(joinCsv(entry.values()));
+        }
+    }
+
+    private static void writeJson(PrintWriter out, Collection<Entry> entries) {
+        out.println("[");
+        int i = 0;
+        for (Entry entry : entries) {
+            String[] values = entry.values();
+            StringBuilder line = new StringBuilder("  {");
+            for (int c = 0; c < COLUMNS.length; c++) {
+                if (c > 0)
+                    line.append(", ");
+                line.append('"').append(COLUMNS[c]).append("\": ");
+                // the first three columns are strings, the others numbers
+                if (c < 3)
+                    line.append('"').append(escapeJson(values[c])).append('"');
+                else
+                    line.append(values[c]);
+            }
+            line.append('}');
+            if (++i < entries.size())
+                line.append(',');
+            out.println(line);
+        }
+        out.println("]");
+    }
+
+    private static String joinCsv(String[] values) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                line.append(',');
+            line.append(escapeCsv(values[i]));
+        }
+        return line.toString();
+    }
+
+    private static String escapeCsv(String value) {
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1
+                && value.indexOf('\n') == -1 && value.indexOf('\r') == -1)
+            return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static String escapeJson(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"': escaped.append("\\\""); break;
+            case '\\': escaped.append("\\\\"); break;
+            case '\n': escaped.append("\\n"); break;
+            case '\r': escaped.append("\\r"); break;
+            case '\t': escaped.append("\\t"); break;
+            default:
+                if (c < ' ')
+                    escaped.append(String.format("\\u%04x", (int) c));
+                else
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescapeJson(String value) {
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '\\' || i + 1 == value.length()) {
+                unescaped.append(c);
+                continue;
+            }
+            c = value.charAt(++i);
+            switch (c) {
+            case 'n': unescaped.append('\n'); break;
+            case 'r': unescaped.append('\r'); break;
+            case 't': unescaped.append('\t'); break;
+            case 'u':
+                unescaped.append((char) Integer.parseInt(value.substring(i + 1, i + 5), 16));
+                i += 4;
+                break;
+            default: unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * Reads back the entries of a report we wrote. Lines we do not
+     * understand are skipped.
+     */
+    private List<Entry> read() throws IOException {
+        List<Entry> read = new ArrayList<Entry>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            boolean csv = isCsv();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Map<String, String> fields = csv ? readCsvLine(line) : readJsonLine(line);
+                if (fields == null)
+                    continue;
+                try {
+                    Entry entry = new Entry(fields.get("kind"), fields.get("phase"), fields.get("name"));
+                    entry.count = Long.parseLong(fields.get("count"));
+                    entry.wallNanos = Long.parseLong(fields.get("wallNanos"));
+                    entry.cpuNanos = Long.parseLong(fields.get("cpuNanos"));
+                    entry.allocatedBytes = Long.parseLong(fields.get("allocatedBytes"));
+                    if (entry.kind != null)
+                        read.add(entry);
+                } catch (NumberFormatException e) {
+                    // not one of ours, skip it
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return read;
+    }
+
+    private static Map<String, String> readJsonLine(String line) {
+        Matcher matcher = JSON_FIELD.matcher(line);
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        while (matcher.find()) {
+            String value = matcher.group(3) != null ? unescapeJson(matcher.group(3)) : matcher.group(2);
+            fields.put(matcher.group(1), value);
+        }
+        return fields.size() == COLUMNS.length ? fields : null;
+    }
+
+    private static Map<String, String> readCsvLine(String line) {
+        List<String> values = new ArrayList<String>(COLUMNS.length);
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        value.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        if (values.size() != COLUMNS.length || values.get(0).equals(COLUMNS[0]))
+            return null;
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            fields.put(COLUMNS[i], values.get(i));
+        }
+        return fields;
+    }
+}
@@ -19,28 +19,44 @@
  */
 package com.redhat.ceylon.compiler.java.util;
 
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.sun.tools.javac.main.OptionName;
 import com.sun.tools.javac.util.Context;
 import com.sun.tools.javac.util.Log;
 import com.sun.tools.javac.util.Options;
 
+/**
+ * Times the compiler tasks, printing them with <code>-verbose:benchmark</code>
+ * and adding them to the {@link ProfileReport} if profiling is enabled.
+ * <p>
+ * Tasks are only started and ended by the compiler thread, but
+ * {@linkplain #startIgnore(String) categories} can be used from the worker
+ * threads of the parallel phases too: each thread keeps its own nesting
+ * count and measures its own CPU time, and their totals are added up.
+ */
 public class Timer {
     private long programStart;
+    private ProfileReport.Usage programUsage;
     private String currentTask;
+    private String currentPhase;
+    private String currentFile;
     private long currentTaskStart;
+    private ProfileReport.Usage currentTaskUsage;
     private boolean verbose;
-    private final Map<String,IgnoredCategory> ignoredCategories;
+    private ProfileReport report;
+    private final ConcurrentMap<String,IgnoredCategory> ignoredCategories;
     private PrintWriter out;
 
     private static final Context.Key<Timer> timerKey = new Context.Key<Timer>();
     
-    private Timer(PrintWriter out, long programStart, boolean verbose, Map<String,IgnoredCategory> ignoredCategories) {
+    private Timer(PrintWriter out, long programStart, boolean verbose, ProfileReport report, ConcurrentMap<String,IgnoredCategory> ignoredCategories) {
         this.programStart = programStart;
         this.verbose = verbose;
+        this.report = report;
         this.ignoredCategories = ignoredCategories;
         this.out = out;
     }
@@ -55,18 +71,30 @@ public class Timer {
     }
     
     public Timer(boolean verbose) {
-        ignoredCategories = new HashMap<String,IgnoredCategory>();
+        ignoredCategories = new ConcurrentHashMap<String,IgnoredCategory>();
         setup(verbose);
     }
     
     private Timer(Context context) {
-        ignoredCategories = new HashMap<String,IgnoredCategory>();
+        ignoredCategories = new ConcurrentHashMap<String,IgnoredCategory>();
         Options options = Options.instance(context);
         verbose = options.get(OptionName.VERBOSE) != null 
                 || options.get(OptionName.VERBOSE + ":benchmark" ) != null;
+        report = ProfileReport.instance(context);
         out = context.get(Log.outKey);
     }
     
+    private boolean isEnabled() {
+        return verbose || report != null;
+    }
+    
+    /**
+     * Returns the profile report, or null if profiling is not enabled.
+     */
+    public ProfileReport getProfileReport() {
+        return report;
+    }
+    
     private void setup(boolean verbose) {
         // we delay printing the program start because we don't know if the verbose option is set yet at
         // that time, so we fake it later on with the correct time
@@ -78,6 +106,8 @@ public class Timer {
      */
     public void init(){
         programStart = System.nanoTime();
+        if(report != null)
+            programUsage = ProfileReport.Usage.now();
         if(verbose)
             log("Program start", programStart);
     }
@@ -88,6 +118,28 @@ public class Timer {
         log("Program end");
     }
 
+    /**
+     * Ends the current task (if any) and {@linkplain ProfileReport#write() writes}
+     * the profile report, if profiling is enabled.
+     */
+    public void writeProfileReport() {
+        if(report == null)
+            return;
+        if(currentTask != null)
+            endTask();
+        if(programUsage != null)
+            report.add(ProfileReport.PHASE, "compilation", null, programUsage);
+        try {
+            report.write();
+        } catch (IOException e) {
+            String msg = "Failed to write the profile report: "+e.getMessage();
+            if(out != null)
+                out.println(msg);
+            else
+                System.err.println(msg);
+        }
+    }
+
     /**
      * {@linkplain #endTask() Ends} the current task (if any) and starts a 
      * timed task with the given name, 
@@ -98,13 +150,36 @@ public class Timer {
      * @see #nestedTimer()
      */
     public void startTask(String name){
-        if(!verbose)
+        startTask(name, name, null);
+    }
+    
+    /**
+     * Like {@link #startTask(String)} but for the part of the given phase 
+     * which works on the given source file, which the profile report 
+     * keeps track of separately.
+     * 
+     * @param phase The name of the phase
+     * @param file The path of the source file
+     */
+    public void startFileTask(String phase, String file){
+        if(!isEnabled())
+            return;
+        startTask(phase+" for "+new java.io.File(file).getName(), phase, file);
+    }
+    
+    private void startTask(String name, String phase, String file){
+        if(!isEnabled())
             return;
         if(currentTask != null)
             endTask();
         currentTask = name;
+        currentPhase = phase;
+        currentFile = file;
         currentTaskStart = System.nanoTime();
-        log("Task "+currentTask+" start");
+        if(report != null)
+            currentTaskUsage = ProfileReport.Usage.now();
+        if(verbose)
+            log("Task "+currentTask+" start");
     }
     
     /**
@@ -146,28 +221,40 @@ public class Timer {
      * @see #startTask(String)
      */
     public void endTask() {
-        if(!verbose)
+        if(!isEnabled())
             return;
+        if(report != null && currentTaskUsage != null){
+            if(currentFile != null)
+                report.add(ProfileReport.FILE, currentPhase, currentFile, currentTaskUsage);
+            else
+                report.add(ProfileReport.PHASE, currentPhase, null, currentTaskUsage);
+        }
         long time = System.nanoTime();
         long delta = (time - currentTaskStart)/1_000_000L;
-        log("Task "+currentTask+" end: "+delta+"ms");
+        if(verbose)
+            log("Task "+currentTask+" end: "+delta+"ms");
         printIgnoredCategories();
         currentTask = null;
+        currentPhase = null;
+        currentFile = null;
+        currentTaskUsage = null;
     }
 
     public void startIgnore(String category) {
-        if(!verbose)
+        if(!isEnabled())
             return;
         IgnoredCategory ignoredCategory = ignoredCategories.get(category);
         if(ignoredCategory == null){
             ignoredCategory = new IgnoredCategory(category);
-            ignoredCategories.put(category, ignoredCategory);
+            IgnoredCategory existing = ignoredCategories.putIfAbsent(category, ignoredCategory);
+            if(existing != null)
+                ignoredCategory = existing;
         }
         ignoredCategory.start();
     }
 
     public void stopIgnore(String category) {
-        if(!verbose)
+        if(!isEnabled())
             return;
         IgnoredCategory ignoredCategory = ignoredCategories.get(category);
         if (ignoredCategory != null) {
@@ -177,39 +264,97 @@ public class Timer {
     
     private void printIgnoredCategories(){
         for(IgnoredCategory category : ignoredCategories.values()){
-            if(category.total != 0){
-                print(" Including "+category.name+" for "+category.total+"ms");
+            synchronized(category){
+                if(category.total != 0){
+                    print(" Including "+category.name+" for "+formatMillis(category.total)+"ms");
+                }
+                if(report != null && category.uses != 0){
+                    report.add(ProfileReport.CATEGORY, currentPhase, category.name, category.uses, 
+                            category.total, category.totalCpu, category.totalAllocated);
+                }
+                category.reset();
             }
-            category.reset();
         }
     }
 
-    private final class IgnoredCategory {
-        String name;
+    /**
+     * Formats the given nanoseconds as milliseconds to the microsecond, since categories
+     * often add up to less than a millisecond.
+     */
+    private static String formatMillis(long nanos) {
+        long micros = nanos / 1_000;
+        String fraction = String.valueOf(1_000 + micros % 1_000).substring(1);
+        return micros / 1_000 + "." + fraction;
+    }
+
+    /**
+     * Where a thread is in a category
+     */
+    private static final class Nesting {
         long start;
-        long total;
+        ProfileReport.Usage startUsage;
         int count;
+    }
+
+    /**
+     * The totals are guarded by the category itself, and are those of every
+     * thread, so the time can add up to more than that of the task.
+     */
+    private final class IgnoredCategory {
+        final String name;
+        long total;
+        long totalCpu;
+        long totalAllocated;
+        int uses;
+        private final ThreadLocal<Nesting> nesting = new ThreadLocal<Nesting>(){
+            @Override
+            protected Nesting initialValue() {
+                return new Nesting();
+            }
+        };
         public IgnoredCategory(String category) {
             this.name = category;
         }
         public void start() {
-            if(count++ == 0){
-                start = System.nanoTime();
+            Nesting nesting = this.nesting.get();
+            if(nesting.count++ == 0){
+                nesting.start = System.nanoTime();
+                if(report != null)
+                    nesting.startUsage = ProfileReport.Usage.now();
             }
         }
         public void stop() {
-            if(--count == 0){
-                long end = System.nanoTime();
-                long delta = (end - start)/1_000_000;
-                total += delta;
+            Nesting nesting = this.nesting.get();
+            if(nesting.count == 0 || --nesting.count != 0)
+                return;
+            long time = System.nanoTime() - nesting.start;
+            long cpu = 0;
+            long allocated = 0;
+            if(nesting.startUsage != null){
+                // both read on this thread, so this is the CPU time of this thread only
+                ProfileReport.Usage endUsage = ProfileReport.Usage.now();
+                cpu = endUsage.cpuNanos - nesting.startUsage.cpuNanos;
+                allocated = endUsage.allocatedBytes - nesting.startUsage.allocatedBytes;
+                nesting.startUsage = null;
+            }
+            synchronized(this){
+                total += time;
+                totalCpu += cpu;
+                totalAllocated += allocated;
+                uses++;
             }
         }
-        public void reset() {
-            if(count != 0)
-                print("Ignored category "+name+" count is "+count+" during reset: timings will be wrong");
+        public synchronized void reset() {
+            Nesting nesting = this.nesting.get();
+            if(nesting.count != 0)
+                print("Ignored category "+name+" count is "+nesting.count+" during reset: timings will be wrong");
             // try to fix it for next time?
-            count = 0;
+            nesting.count = 0;
+            nesting.startUsage = null;
             total = 0;
+            totalCpu = 0;
+            totalAllocated = 0;
+            uses = 0;
         }
     }
     
@@ -220,6 +365,6 @@ public class Timer {
      * @return The new timer
      */
     public Timer nestedTimer() {
-        return new Timer(out, programStart, verbose, ignoredCategories);
+        return new Timer(out, programStart, verbose, report, ignoredCategories);
     }
 }
@@ -22,6 +22,7 @@ package com.redhat.ceylon.compiler.loader;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -293,8 +294,57 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
         return new SimpleReflType(name, SimpleReflType.Module.CEYLON, TypeKind.DECLARED);
     }
 
-    protected Map<String, Declaration> valueDeclarationsByName = new HashMap<String, Declaration>();
-    protected Map<String, Declaration> typeDeclarationsByName = new HashMap<String, Declaration>();
+    // estimates of what the caches keep alive, for their budget
+    private static final int CLASS_MIRROR_SIZE = 512;
+    private static final int DECLARATION_SIZE = 1024;
+    private static final int MEMBER_SIZE = 256;
+
+    /**
+     * Evicted declarations are removed from their package, so that nothing keeps them alive but
+     * their users, and put back if they are still in use when they are looked up again. Otherwise
+     * they are made again, and completed again when needed.
+     */
+    private final ModuleNameMap.Policy<Declaration> declarationCachePolicy = new ModuleNameMap.Policy<Declaration>(){
+        @Override
+        public long weigh(Declaration decl) {
+            return estimateSize(decl);
+        }
+        @Override
+        public boolean keepsEvicted() {
+            return true;
+        }
+        @Override
+        public void evicted(Declaration decl) {
+            detachDeclaration(decl);
+        }
+        @Override
+        public void restored(Declaration decl) {
+            attachDeclaration(decl);
+        }
+    };
+    /** Evicted mirrors are handed out again as long as their declaration uses them */
+    private static final ModuleNameMap.Policy<ClassMirror> classMirrorCachePolicy = new ModuleNameMap.Policy<ClassMirror>(){
+        @Override
+        public long weigh(ClassMirror classMirror) {
+            return CLASS_MIRROR_SIZE;
+        }
+        @Override
+        public boolean keepsEvicted() {
+            return true;
+        }
+    };
+
+    // these caches are concurrent so they can be read without holding the lock, but
+    // they are only written to while holding it
+    protected final ModuleNameMap<Declaration> valueDeclarationsByName = new ModuleNameMap<Declaration>(declarationCachePolicy);
+    protected final ModuleNameMap<Declaration> typeDeclarationsByName = new ModuleNameMap<Declaration>(declarationCachePolicy);
+    /**
+     * Declarations returned by {@link #convertToDeclaration(Module, String, DeclarationType)}, by
+     * requesting module and type name. Only fully set up declarations go in there, so they can be
+     * returned without taking the lock.
+     */
+    private final ModuleNameMap<Declaration> resolvedTypeDeclarations = new ModuleNameMap<Declaration>();
+    private final ModuleNameMap<Declaration> resolvedValueDeclarations = new ModuleNameMap<Declaration>();
     protected Map<Package, Unit> unitsByPackage = new HashMap<Package, Unit>();
     protected TypeParser typeParser;
     /** 
@@ -302,17 +352,23 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
      * (<strong>should not be used while completing a declaration</strong>)
      */
     protected Unit typeFactory;
-    protected final Set<String> loadedPackages = new HashSet<String>();
-    protected final Map<String,LazyPackage> packagesByName = new HashMap<String,LazyPackage>();
+    // these caches are keyed by module and name, so that hits do not allocate
+    protected final ModuleNameMap<Boolean> loadedPackages = new ModuleNameMap<Boolean>();
+    protected final ModuleNameMap<LazyPackage> packagesByName = new ModuleNameMap<LazyPackage>();
     protected boolean packageDescriptorsNeedLoading = false;
     protected boolean isBootstrap;
     protected ModuleManager moduleManager;
     protected Modules modules;
-    protected Map<String, ClassMirror> classMirrorCache = new HashMap<String, ClassMirror>();
+    protected ModuleNameMap<ClassMirror> classMirrorCache = new ModuleNameMap<ClassMirror>(classMirrorCachePolicy);
+    /** The class mirrors we did not find, since we can't put null in classMirrorCache */
+    protected ModuleNameMap<Boolean> missingClassMirrors = new ModuleNameMap<Boolean>();
     protected boolean binaryCompatibilityErrorRaised = false;
     protected Timer timer;
     private Map<String,LazyPackage> modulelessPackages = new HashMap<String,LazyPackage>();
     private ParameterNameParser parameterNameParser = new ParameterNameParser(this);
+    /** Changes whenever a module of the classpath may have got a new package */
+    private int classPathGeneration;
+    private boolean languageModuleImportsAdded;
     
     /**
      * Loads a given package, if required. This is mostly useful for the javac reflection impl.
@@ -324,8 +380,127 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
      */
     public abstract boolean loadPackage(Module module, String packageName, boolean loadDeclarations);
 
+    private final Object lock = new Object();
+
+    /**
+     * Returns the lock which serialises loading and completing declarations. Lookups of
+     * already loaded class mirrors and declarations do not need it.
+     */
     public final Object getLock(){
-        return this;
+        return lock;
+    }
+
+    /**
+     * Limits the estimated number of bytes that the declarations, class mirrors, missing class
+     * mirrors and resolved declarations we cache keep alive, for long-running users of the model
+     * loader, or removes the limit if zero. Half of it goes to the type declarations, which are
+     * the biggest. The caches are evicted with {@link ModuleNameMap}: evicted declarations and
+     * mirrors which are still in use are handed out again, and the others are loaded again when
+     * needed.
+     */
+    public void setCacheBudget(long bytes){
+        synchronized(getLock()){
+            typeDeclarationsByName.setBudget(bytes / 2);
+            classMirrorCache.setBudget(bytes / 4);
+            valueDeclarationsByName.setBudget(bytes / 8);
+            missingClassMirrors.setBudget(bytes / 16);
+            resolvedTypeDeclarations.setBudget(bytes / 32);
+            resolvedValueDeclarations.setBudget(bytes / 32);
+        }
+    }
+
+    /**
+     * Returns the estimated number of bytes that the bounded caches keep alive.
+     */
+    public long getCacheWeight(){
+        return typeDeclarationsByName.getWeight() + valueDeclarationsByName.getWeight()
+                + classMirrorCache.getWeight() + missingClassMirrors.getWeight()
+                + resolvedTypeDeclarations.getWeight() + resolvedValueDeclarations.getWeight();
+    }
+
+    /**
+     * Returns the number of entries of the bounded caches, including the evicted declarations and
+     * mirrors which are still in use.
+     */
+    public int getCacheSize(){
+        return typeDeclarationsByName.size() + valueDeclarationsByName.size()
+                + classMirrorCache.size() + missingClassMirrors.size()
+                + resolvedTypeDeclarations.size() + resolvedValueDeclarations.size();
+    }
+
+    /**
+     * Returns the number of cache entries evicted to stay within the budget.
+     */
+    public long getCacheEvictions(){
+        return typeDeclarationsByName.getEvictions() + valueDeclarationsByName.getEvictions()
+                + classMirrorCache.getEvictions() + missingClassMirrors.getEvictions()
+                + resolvedTypeDeclarations.getEvictions() + resolvedValueDeclarations.getEvictions();
+    }
+
+    /**
+     * Returns the estimated number of evicted cache entries which we had to load again.
+     */
+    public long getCacheReloads(){
+        return typeDeclarationsByName.getReloads() + valueDeclarationsByName.getReloads()
+                + classMirrorCache.getReloads() + missingClassMirrors.getReloads()
+                + resolvedTypeDeclarations.getReloads() + resolvedValueDeclarations.getReloads();
+    }
+
+    private static long estimateSize(Declaration decl){
+        long size = DECLARATION_SIZE;
+        // the members of a completed class, without loading anything
+        if(decl instanceof ClassOrInterface
+                && decl instanceof LazyElement
+                && ((LazyElement)decl).isLoaded())
+            size += MEMBER_SIZE * decl.getMembers().size();
+        return size;
+    }
+
+    private void detachDeclaration(Declaration decl){
+        synchronized(getLock()){
+            // member classes go with their container, and Java annotation types come with
+            // interop declarations which refer to them
+            if(decl.getContainer() instanceof LazyPackage == false
+                    || (decl instanceof LazyInterface
+                            && !((LazyInterface)decl).isCeylon()
+                            && ((LazyInterface)decl).isAnnotationType()))
+                return;
+            LazyPackage pkg = (LazyPackage) decl.getContainer();
+            pkg.removeCompiledMember(decl);
+            if(decl instanceof Class && ((Class)decl).isAbstraction()){
+                for(Declaration overload : ((Class)decl).getOverloads())
+                    pkg.removeCompiledMember(overload);
+            }
+            // a full load of its package must find it again
+            loadedPackages.remove(pkg.getModule(), Util.quoteJavaKeywords(pkg.getNameAsString()));
+            // those are keyed by requesting module and type name, and must only hand out
+            // declarations which are in their package
+            String name = decl.getQualifiedNameString().replace("::", ".");
+            resolvedTypeDeclarations.remove(name, decl);
+            resolvedValueDeclarations.remove(name, decl);
+            resolvedValueDeclarations.remove(name + "_", decl);
+        }
+    }
+
+    private void attachDeclaration(Declaration decl){
+        synchronized(getLock()){
+            if(decl.getContainer() instanceof LazyPackage == false)
+                return;
+            LazyPackage pkg = (LazyPackage) decl.getContainer();
+            pkg.restoreCompiledMember(decl);
+            if(decl instanceof Class && ((Class)decl).isAbstraction()){
+                for(Declaration overload : ((Class)decl).getOverloads())
+                    pkg.restoreCompiledMember(overload);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the types of the methods of Java classes should be loaded lazily.
+     * Defaults to true.
+     */
+    protected boolean isLazyJavaMemberTypes(){
+        return true;
     }
 
     /**
@@ -352,34 +527,40 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
      * @return a ClassMirror for the specified class, or null if not found.
      */
     public final ClassMirror lookupClassMirror(Module module, String name) {
+        // Java array classes are not where we expect them
+        if (JAVA_LANG_OBJECT_ARRAY.equals(name)
+                || JAVA_LANG_BOOLEAN_ARRAY.equals(name)
+                || JAVA_LANG_BYTE_ARRAY.equals(name)
+                || JAVA_LANG_SHORT_ARRAY.equals(name)
+                || JAVA_LANG_INT_ARRAY.equals(name)
+                || JAVA_LANG_LONG_ARRAY.equals(name)
+                || JAVA_LANG_FLOAT_ARRAY.equals(name)
+                || JAVA_LANG_DOUBLE_ARRAY.equals(name)
+                || JAVA_LANG_CHAR_ARRAY.equals(name)) {
+            // turn them into their real class location (get rid of the "java.lang" prefix)
+            name = "com.redhat.ceylon.compiler.java.language" + name.substring(9);
+            module = getLanguageModule();
+        }
+        // try the cache first without locking
+        ClassMirror cachedMirror = classMirrorCache.get(module, name);
+        if(cachedMirror != null)
+            return cachedMirror;
         synchronized(getLock()){
             timer.startIgnore(TIMER_MODEL_LOADER_CATEGORY);
             try{
-                // Java array classes are not where we expect them
-                if (JAVA_LANG_OBJECT_ARRAY.equals(name)
-                        || JAVA_LANG_BOOLEAN_ARRAY.equals(name)
-                        || JAVA_LANG_BYTE_ARRAY.equals(name)
-                        || JAVA_LANG_SHORT_ARRAY.equals(name)
-                        || JAVA_LANG_INT_ARRAY.equals(name)
-                        || JAVA_LANG_LONG_ARRAY.equals(name)
-                        || JAVA_LANG_FLOAT_ARRAY.equals(name)
-                        || JAVA_LANG_DOUBLE_ARRAY.equals(name)
-                        || JAVA_LANG_CHAR_ARRAY.equals(name)) {
-                    // turn them into their real class location (get rid of the "java.lang" prefix)
-                    name = "com.redhat.ceylon.compiler.java.language" + name.substring(9);
-                    module = getLanguageModule();
-                }
-                String cacheKey = cacheKeyByModule(module, name);
-                // we use containsKey to be able to cache null results
-                if(classMirrorCache.containsKey(cacheKey)) {
-                    ClassMirror cachedMirror = classMirrorCache.get(cacheKey);
-                    if (cachedMirror != null || ! searchAgain(module, name)) {
-                        return cachedMirror;
-                    }
-                }
+                // it may have been loaded while we were waiting for the lock
+                cachedMirror = classMirrorCache.get(module, name);
+                if(cachedMirror != null)
+                    return cachedMirror;
+                // we also cache null results
+                if(missingClassMirrors.containsKey(module, name) && !searchAgain(module, name))
+                    return null;
                 ClassMirror mirror = lookupNewClassMirror(module, name);
-                // we even cache null results
-                classMirrorCache.put(cacheKey, mirror);
+                if(mirror != null){
+                    classMirrorCache.put(module, name, mirror);
+                    missingClassMirrors.remove(module, name);
+                }else
+                    missingClassMirrors.put(module, name, Boolean.TRUE);
                 return mirror;
             }finally{
                 timer.stopIgnore(TIMER_MODEL_LOADER_CATEGORY);
@@ -387,6 +568,65 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
         }
     }
 
+    /**
+     * Returns false if we know that the given package has no toplevel declaration with the
+     * given name, so that we do not need to look for its class.
+     */
+    public boolean mayContainDeclaration(LazyPackage pkg, String pkgName, String name) {
+        synchronized(getLock()){
+            Module module = pkg.getModule();
+            if(!(module instanceof LazyModule)
+                    || ((LazyModule)module).mayContainDeclaration(pkgName, name)
+                    || isFlatClasspath())
+                return true;
+            // we find classes in the modules our module imports, so another module with the
+            // same package could still have it. Modules and packages are only ever added, so
+            // once another module has it that does not change
+            if(pkg.isInOtherModule())
+                return true;
+            long stamp = ((long)classPathGeneration << 32) | modules.getListOfModules().size();
+            if(pkg.getInOtherModuleStamp() != stamp)
+                pkg.setInOtherModule(isPackageInOtherModule(module, pkgName), stamp);
+            return pkg.isInOtherModule();
+        }
+    }
+
+    /**
+     * Must be called when modules are added to the classpath, or get new packages, so that we
+     * look again for packages in other modules.
+     */
+    public void classPathChanged() {
+        synchronized(getLock()){
+            classPathGeneration++;
+        }
+    }
+
+    /**
+     * Returns the names of the toplevel classes of the given package of the given module from
+     * the index of its archive, or null if we do not know that they are all its classes, in
+     * which case we have to go through the classes of the package.
+     */
+    protected List<String> getIndexedClassNames(Module module, String pkgName) {
+        if(!(module instanceof LazyModule) || isFlatClasspath())
+            return null;
+        List<String> classNames = ((LazyModule)module).getIndexedClassNames(pkgName);
+        // the classes of a package we find in several modules all end up in the same package
+        if(classNames == null || isPackageInOtherModule(module, pkgName))
+            return null;
+        return classNames;
+    }
+
+    private boolean isPackageInOtherModule(Module module, String pkgName) {
+        for(Module other : modules.getListOfModules()){
+            if(other != module
+                    && other instanceof LazyModule
+                    && isModuleInClassPath(other)
+                    && ((LazyModule)other).containsPackage(pkgName))
+                return true;
+        }
+        return false;
+    }
+
     protected String cacheKeyByModule(Module module, String name) {
         return getCacheKeyByModule(module, name);
     }
@@ -474,22 +714,27 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
         // make sure the language module has its real dependencies added, because we need them in the classpath
         // otherwise we will get errors on the Util and Metamodel calls we insert
         // WARNING! Make sure this list is always the same as the one in /ceylon-runtime/dist/repo/ceylon/language/_version_/module.xml
-        languageModule.addImport(new ModuleImport(findOrCreateModule("com.redhat.ceylon.compiler.java", Versions.CEYLON_VERSION_NUMBER), false, false));
-        languageModule.addImport(new ModuleImport(findOrCreateModule("com.redhat.ceylon.compiler.js", Versions.CEYLON_VERSION_NUMBER), false, false));
-        languageModule.addImport(new ModuleImport(findOrCreateModule("com.redhat.ceylon.common", Versions.CEYLON_VERSION_NUMBER), false, false));
-        languageModule.addImport(new ModuleImport(findOrCreateModule("com.redhat.ceylon.module-resolver", Versions.CEYLON_VERSION_NUMBER), false, false));
-        languageModule.addImport(new ModuleImport(findOrCreateModule("com.redhat.ceylon.typechecker", Versions.CEYLON_VERSION_NUMBER), false, false));
-        languageModule.addImport(new ModuleImport(findOrCreateModule("org.jboss.modules", "1.3.3.Final"), false, false));
-        languageModule.addImport(new ModuleImport(findOrCreateModule("org.jboss.jandex", "1.0.3.Final"), false, false));
+        // (only once, since the language module stays loaded when the compile server reuses the context)
+        if(!languageModuleImportsAdded){
+            languageModule.addImport(new ModuleImport(findOrCreateModule("com.redhat.ceylon.compiler.java", Versions.CEYLON_VERSION_NUMBER), false, false));
+            languageModule.addImport(new ModuleImport(findOrCreateModule("com.redhat.ceylon.compiler.js", Versions.CEYLON_VERSION_NUMBER), false, false));
+            languageModule.addImport(new ModuleImport(findOrCreateModule("com.redhat.ceylon.common", Versions.CEYLON_VERSION_NUMBER), false, false));
+            languageModule.addImport(new ModuleImport(findOrCreateModule("com.redhat.ceylon.module-resolver", Versions.CEYLON_VERSION_NUMBER), false, false));
+            languageModule.addImport(new ModuleImport(findOrCreateModule("com.redhat.ceylon.typechecker", Versions.CEYLON_VERSION_NUMBER), false, false));
+            languageModule.addImport(new ModuleImport(findOrCreateModule("org.jboss.modules", "1.3.3.Final"), false, false));
+            languageModule.addImport(new ModuleImport(findOrCreateModule("org.jboss.jandex", "1.0.3.Final"), false, false));
+            languageModuleImportsAdded = true;
+        }
         
         nested.endTask();
         
         nested.startTask("load JDK");
         // make sure the jdk modules are loaded
+        ModelIndex jdkIndex = getJDKIndex();
         for(String jdkModule : JDKUtils.getJDKModuleNames())
-            findOrCreateModule(jdkModule, JDKUtils.jdk.version);
+            setModelIndex(findOrCreateModule(jdkModule, JDKUtils.jdk.version), jdkIndex);
         for(String jdkOracleModule : JDKUtils.getOracleJDKModuleNames())
-            findOrCreateModule(jdkOracleModule, JDKUtils.jdk.version);
+            setModelIndex(findOrCreateModule(jdkOracleModule, JDKUtils.jdk.version), jdkIndex);
         Module jdkModule = findOrCreateModule(JAVA_BASE_MODULE_NAME, JDKUtils.jdk.version);
         nested.endTask();
         
@@ -503,6 +748,19 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
         nested.endTask();
     }
 
+    private static void setModelIndex(Module module, ModelIndex index) {
+        if(index != null && module instanceof LazyModule)
+            ((LazyModule)module).setModelIndex(index);
+    }
+
+    /**
+     * Returns the index of the classes of the JDK, which all its modules share, or null if we
+     * do not have one, in which case we look for their classes.
+     */
+    protected ModelIndex getJDKIndex() {
+        return null;
+    }
+
     /**
      * This is meant to be called if your subclass doesn't call loadStandardModules for whatever reason
      */
@@ -1012,9 +1270,9 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
             type = ClassType.CLASS;
         }
 
-        String key = classMirror.getCacheKey(module);
+        String key = classMirror.getQualifiedName();
         // see if we already have it
-        Map<String, Declaration> declarationCache = null;
+        ModuleNameMap<Declaration> declarationCache = null;
         switch(type){
         case OBJECT:
             if(declarationType == DeclarationType.TYPE){
@@ -1030,9 +1288,10 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
         case INTERFACE:
             declarationCache = typeDeclarationsByName;
         }
-        if(declarationCache.containsKey(key)){
+        Declaration existing = declarationCache.get(module, key);
+        if(existing != null){
             alreadyExists[0] = true;
-            return declarationCache.get(key);
+            return existing;
         }
         
 
@@ -1054,12 +1313,12 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
             case OBJECT:
                 // we first make a class
                 Declaration objectClassDecl = makeLazyClass(classMirror, null, null);
-                typeDeclarationsByName.put(key, objectClassDecl);
+                typeDeclarationsByName.put(module, key, objectClassDecl);
                 decls.add(objectClassDecl);
                 // then we make a value for it, if it's not an inline object expr
                 if(objectClassDecl.isNamed()){
                     Declaration objectDecl = makeToplevelAttribute(classMirror);
-                    valueDeclarationsByName.put(key, objectDecl);
+                    valueDeclarationsByName.put(module, key, objectDecl);
                     decls.add(objectDecl);
                     // which one did we want?
                     decl = declarationType == DeclarationType.TYPE ? objectClassDecl : objectDecl;
@@ -1144,7 +1403,7 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
 
         // objects have special handling above
         if(type != ClassType.OBJECT){
-            declarationCache.put(key, decl);
+            declarationCache.put(module, key, decl);
             decls.add(decl);
         }
         
@@ -1406,11 +1665,17 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
     }
 
     public Declaration convertToDeclaration(Module module, String typeName, DeclarationType declarationType)  {
+        // FIXME: this needs to move to the type parser and report warnings
+        //This should be done where the TypeInfo annotation is parsed
+        //to avoid retarded errors because of a space after a comma
+        typeName = typeName.trim();
+        // try the declarations we already resolved first without locking
+        ModuleNameMap<Declaration> resolvedDeclarations = declarationType == DeclarationType.TYPE
+                ? resolvedTypeDeclarations : resolvedValueDeclarations;
+        Declaration resolved = module != null ? resolvedDeclarations.get(module, typeName) : null;
+        if(resolved != null)
+            return resolved;
         synchronized(getLock()){
-            // FIXME: this needs to move to the type parser and report warnings
-            //This should be done where the TypeInfo annotation is parsed
-            //to avoid retarded errors because of a space after a comma
-            typeName = typeName.trim();
             timer.startIgnore(TIMER_MODEL_LOADER_CATEGORY);
             try{
                 if ("ceylon.language.Nothing".equals(typeName)) {
@@ -1445,7 +1710,13 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
                 // (well, technically before the ceylon code)
                 if(classMirror.isLoadedFromSource() && !classMirror.isJavaSource())
                     return null;
-                return convertToDeclaration(module, classMirror, declarationType);
+                resolved = convertToDeclaration(module, classMirror, declarationType);
+                // nested calls can see declarations which are not in their container and unit yet,
+                // and we don't want to hand those out without the lock
+                if(resolved != null && module != null
+                        && resolved.getUnit() != null && resolved.getContainer() != null)
+                    resolvedDeclarations.put(module, typeName, resolved);
+                return resolved;
             }finally{
                 timer.stopIgnore(TIMER_MODEL_LOADER_CATEGORY);
             }
@@ -1533,7 +1804,7 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
     }
     
     private LazyPackage findCachedPackage(Module module, String quotedPkgName) {
-        LazyPackage pkg = packagesByName.get(cacheKeyByModule(module, quotedPkgName));
+        LazyPackage pkg = packagesByName.get(module, quotedPkgName);
         if(pkg != null){
             // only return it if it matches the module we're looking for, because if it doesn't we have an issue already logged
             // for a direct dependency on same module different versions logged, so no need to confuse this further
@@ -1562,10 +1833,11 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
                 // FIXME: some refactoring needed
                 pkg.setName(Arrays.asList(pkgName.split("\\.")));
             }
-            packagesByName.put(cacheKeyByModule(module, quotedPkgName), pkg);
+            packagesByName.put(module, quotedPkgName, pkg);
 
             // only bind it if we already have a module
             if(isNew && module != null){
+                classPathGeneration++;
                 pkg.setModule(module);
                 if(module instanceof LazyModule)
                     ((LazyModule) module).addPackage(pkg);
@@ -2053,6 +2325,9 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
         // of lists that contain methods with the same name
         Map<String, List<MethodMirror>> methods = new LinkedHashMap<String, List<MethodMirror>>();
         collectMethods(classMirror.getDirectMethods(), methods, isCeylon, isFromJDK);
+        // Java code only needs a few members of the Java classes it uses, so we only load the
+        // types of their methods when they are needed
+        boolean lazyTypes = !isCeylon && isLazyJavaMemberTypes();
 
         if(isCeylon && klass instanceof LazyInterface && CodegenUtil.isCompanionClassNeeded(klass)){
             ClassMirror companionClass = ((LazyInterface)klass).companionClass;
@@ -2089,7 +2364,7 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
                 } else if(!methodMirror.getName().equals("hash")
                         && !methodMirror.getName().equals("string")){
                     // normal method
-                    Method m = addMethod(klass, methodMirror, classMirror, isCeylon, isOverloaded);
+                    Method m = addMethod(klass, methodMirror, classMirror, isCeylon, isOverloaded, lazyTypes);
                     if (isOverloaded) {
                         overloads.add(m);
                     }
@@ -2192,7 +2467,7 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
             
             if(!foundGetter){
                 // it was not a setter, it was a method, let's add it as such
-                addMethod(klass, setter, classMirror, isCeylon, false);
+                addMethod(klass, setter, classMirror, isCeylon, false, lazyTypes);
             }
         }
 
@@ -2477,6 +2752,11 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
 
     private Method addMethod(ClassOrInterface klass, MethodMirror methodMirror, ClassMirror classMirror, 
                              boolean isCeylon, boolean isOverloaded) {
+        return addMethod(klass, methodMirror, classMirror, isCeylon, isOverloaded, false);
+    }
+
+    private Method addMethod(ClassOrInterface klass, MethodMirror methodMirror, ClassMirror classMirror, 
+                             boolean isCeylon, boolean isOverloaded, boolean lazyTypes) {
         
         JavaMethod method = new JavaMethod(methodMirror);
         String methodName = methodMirror.getName();
@@ -2500,11 +2780,49 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
             method.setName(Util.strip(methodName, isCeylon, method.isShared()));
         method.setDefaultedAnnotation(methodMirror.isDefault());
 
+        // these only need the mirror
+        method.setUncheckedNullType((!isCeylon && !methodMirror.getReturnType().isPrimitive()) || isUncheckedNull(methodMirror));
+        markDeclaredVoid(method, methodMirror);
+        markUnboxed(method, methodMirror, methodMirror.getReturnType());
+        markTypeErased(method, methodMirror, methodMirror.getReturnType());
+        markUntrustedType(method, methodMirror, methodMirror.getReturnType());
+
+        klass.getMembers().add(method);
+        DeclarationVisitor.setVisibleScope(method);
+
+        // do not log an additional error if we had one from checking if it was overriding
+        if(lazyTypes && type == null)
+            method.setCompleter(this);
+        else
+            completeMethodTypes(klass, method, classMirror, isCeylon, type);
+
+        return method;
+    }
+
+    @Override
+    public void complete(JavaMethod method) {
+        synchronized(getLock()){
+            timer.startIgnore(TIMER_MODEL_LOADER_CATEGORY);
+            try{
+                ClassOrInterface klass = (ClassOrInterface) method.getContainer();
+                ClassMirror classMirror = klass instanceof LazyClass 
+                        ? ((LazyClass)klass).classMirror 
+                        : ((LazyInterface)klass).classMirror;
+                completeMethodTypes(klass, method, classMirror, false, null);
+            }finally{
+                timer.stopIgnore(TIMER_MODEL_LOADER_CATEGORY);
+            }
+        }
+    }
+
+    private void completeMethodTypes(ClassOrInterface klass, JavaMethod method, ClassMirror classMirror, 
+                                     boolean isCeylon, ProducedType type) {
+        MethodMirror methodMirror = method.mirror;
+
         // type params first
         setTypeParameters(method, methodMirror, isCeylon);
 
         // and its return type
-        // do not log an additional error if we had one from checking if it was overriding
         if(type == null)
             type = obtainType(methodMirror.getReturnType(), methodMirror, method, Decl.getModuleContainer(method), VarianceLocation.COVARIANT,
                               "method '"+methodMirror.getName()+"'", klass);
@@ -2516,20 +2834,10 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
         else
             setParameters(method, classMirror, methodMirror, isCeylon, klass);
         
-        method.setUncheckedNullType((!isCeylon && !methodMirror.getReturnType().isPrimitive()) || isUncheckedNull(methodMirror));
         type.setRaw(isRaw(Decl.getModuleContainer(klass), methodMirror.getReturnType()));
-        markDeclaredVoid(method, methodMirror);
-        markUnboxed(method, methodMirror, methodMirror.getReturnType());
-        markTypeErased(method, methodMirror, methodMirror.getReturnType());
-        markUntrustedType(method, methodMirror, methodMirror.getReturnType());
         setAnnotations(method, methodMirror);
         
-        klass.getMembers().add(method);
-        DeclarationVisitor.setVisibleScope(method);
-        
         addLocalDeclarations(method, classMirror, methodMirror);
-
-        return method;
     }
 
     private List<ProducedType> getSignature(Declaration decl) {
@@ -2745,7 +3053,7 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
             }
             if(!path.isEmpty() && klass.isLoadedFromSource()){
                 // we need to find its model
-                Scope scope = packagesByName.get(cacheKeyByModule(module, unquotedPkgName));
+                Scope scope = packagesByName.get(module, unquotedPkgName);
                 if(scope == null)
                     return false;
                 for(String name : path){
@@ -4549,8 +4857,8 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
             for (Declaration decl : declarations) {
                 String fqn = decl.getQualifiedNameString().replace("::", ".");
                 Module module = Decl.getModuleContainer(decl.getContainer());
-                Map<String, Declaration> firstCache = null;
-                Map<String, Declaration> secondCache = null;
+                ModuleNameMap<Declaration> firstCache = null;
+                ModuleNameMap<Declaration> secondCache = null;
                 if(Decl.isToplevel(decl)){
                     if(Decl.isValue(decl)){
                         firstCache = valueDeclarationsByName;
@@ -4571,20 +4879,53 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
                     firstCache = typeDeclarationsByName;
                 }
                 // ignore declarations which we do not cache, like member method/attributes
-                String key = cacheKeyByModule(module, fqn);
                 if(firstCache != null) {
-                    firstCache.remove(key);
-                    firstCache.remove(key + "_");
+                    firstCache.remove(module, fqn);
+                    firstCache.remove(module, fqn + "_");
 
                     if(secondCache != null) {
-                        secondCache.remove(key);
-                        secondCache.remove(key + "_");
+                        secondCache.remove(module, fqn);
+                        secondCache.remove(module, fqn + "_");
                     }
                 }
 
-                classMirrorCache.remove(key);
-                classMirrorCache.remove(key + "_");
+                classMirrorCache.remove(module, fqn);
+                classMirrorCache.remove(module, fqn + "_");
+                missingClassMirrors.remove(module, fqn);
+                missingClassMirrors.remove(module, fqn + "_");
             }
+            // those are keyed by requesting module and type name so we can't tell which ones to remove
+            resolvedTypeDeclarations.clear();
+            resolvedValueDeclarations.clear();
+            typeParser.clearCache();
+        }
+    }
+
+    /**
+     * Forgets the given modules, which were compiled from source, along with their packages
+     * and declarations, so that the next compilation which uses this model loader loads them
+     * again. The other modules, such as the language module and the JDK, stay loaded.
+     */
+    public void removeModules(Collection<Module> removedModules) {
+        synchronized(getLock()){
+            for(Module module : removedModules){
+                for(Package pkg : module.getPackages()){
+                    unitsByPackage.remove(pkg);
+                }
+                packagesByName.removeModule(module);
+                loadedPackages.removeModule(module);
+                valueDeclarationsByName.removeModule(module);
+                typeDeclarationsByName.removeModule(module);
+                classMirrorCache.removeModule(module);
+                missingClassMirrors.removeModule(module);
+                modules.getListOfModules().remove(module);
+            }
+            // those are keyed by requesting module and type name so we can't tell which ones to remove
+            resolvedTypeDeclarations.clear();
+            resolvedValueDeclarations.clear();
+            typeParser.clearCache();
+            packageDescriptorsNeedLoading = false;
+            classPathChanged();
         }
     }
 
@@ -4592,7 +4933,7 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
         int loaded, total;
     }
 
-    private int inspectForStats(Map<String,Declaration> cache, Map<Package, Stats> loadedByPackage){
+    private int inspectForStats(ModuleNameMap<Declaration> cache, Map<Package, Stats> loadedByPackage){
         int loaded = 0;
         for(Declaration decl : cache.values()){
             if(decl instanceof LazyElement){
@@ -4622,6 +4963,18 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
             int loaded = inspectForStats(typeDeclarationsByName, loadedByPackage)
                     + inspectForStats(valueDeclarationsByName, loadedByPackage);
             logVerbose("[Model loader: "+loaded+"(loaded)/"+(typeDeclarationsByName.size()+valueDeclarationsByName.size())+"(total) declarations]");
+            logVerbose("[Type parser: "+typeParser.getParsedTypeHits()+"(cached)/"
+                    +(typeParser.getParsedTypeHits()+typeParser.getParsedTypeMisses())+"(total) parsed types, "
+                    +typeParser.getDeclarationHits()+"(cached)/"
+                    +(typeParser.getDeclarationHits()+typeParser.getDeclarationMisses())+"(total) qualified type declarations]");
+            if(typeDeclarationsByName.getBudget() > 0){
+                logVerbose("[Model loader caches: "+cacheStats("types", typeDeclarationsByName)
+                        +", "+cacheStats("values", valueDeclarationsByName)
+                        +", "+cacheStats("class mirrors", classMirrorCache)
+                        +", "+cacheStats("missing class mirrors", missingClassMirrors)
+                        +", "+cacheStats("resolved types", resolvedTypeDeclarations)
+                        +", "+cacheStats("resolved values", resolvedValueDeclarations)+"]");
+            }
             for(Entry<Package, Stats> packageEntry : loadedByPackage.entrySet()){
                 logVerbose("[ Package "+packageEntry.getKey().getNameAsString()+": "
                         +packageEntry.getValue().loaded+"(loaded)/"+packageEntry.getValue().total+"(total) declarations]");
@@ -4629,6 +4982,10 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
         }
     }
 
+    private static String cacheStats(String name, ModuleNameMap<?> cache){
+        return cache.size()+" "+name+" in "+cache.getWeight()+"/"+cache.getBudget()+" bytes ("+cache.getEvictions()+" evicted, "+cache.getReloads()+" reloaded)";
+    }
+
     private static Package getPackage(Object decl) {
         if(decl == null)
             return null;
@@ -4728,7 +5085,7 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
         synchronized(getLock()){
             for(LazyPackage pkg : modulelessPackages.values()){
                 String quotedPkgName = Util.quoteJavaKeywords(pkg.getQualifiedNameString());
-                packagesByName.put(cacheKeyByModule(pkg.getModule(), quotedPkgName), pkg);
+                packagesByName.put(pkg.getModule(), quotedPkgName, pkg);
             }
             modulelessPackages.clear();
         }
@@ -20,6 +20,7 @@
 
 package com.redhat.ceylon.compiler.loader;
 
+import com.redhat.ceylon.compiler.loader.model.JavaMethod;
 import com.redhat.ceylon.compiler.loader.model.LazyClass;
 import com.redhat.ceylon.compiler.loader.model.LazyClassAlias;
 import com.redhat.ceylon.compiler.loader.model.LazyInterface;
@@ -96,6 +97,11 @@ public interface ModelCompleter {
      */
     void completeTypeParameters(LazyTypeAlias lazyTypeAlias);
 
+    /**
+     * Completes loading of the types of a Java method
+     */
+    void complete(JavaMethod javaMethod);
+
     /**
      * Returns a lock we can use for thread-safety
      */
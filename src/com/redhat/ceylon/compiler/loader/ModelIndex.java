@@ -0,0 +1,454 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.redhat.ceylon.common.Versions;
+
+/**
+ * The index of the toplevel declarations of a module archive, made from its table of contents,
+ * so that the model loader can tell that a package of a module does not contain a declaration
+ * without looking for its class, and can load every declaration of a package without going
+ * through every class of the package.
+ * <p>
+ * Declarations are recorded by the name of their toplevel class, and looked up by that name
+ * without the quoting <code>$</code> or the trailing <code>_</code> of values, functions and
+ * objects, so by the Ceylon name for Ceylon declarations and the class name for Java classes.
+ * <p>
+ * Indexes are immutable, so the index of an archive is shared by every compiler and model
+ * loader of the JVM, see {@link #forArchive(File)}. The index of the JDK is also kept on disk,
+ * so that a new JVM does not have to go through its archives either, see
+ * {@link #forJDK(List, File)}.
+ */
+public class ModelIndex {
+
+    /** How many archive indexes we keep for the JVM */
+    private static final int MAX_ARCHIVE_INDEXES = 256;
+    // the end of central directory record, which a comment of up to 64K may follow
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int END_LENGTH = 22;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+    // the files of JDK indexes
+    private static final int MAGIC = 0xCE7A1D3C;
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".idx";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The indexes of the archives we read, by absolute path, least recently used first. They
+     * are only cached, so the memory they use can be reclaimed.
+     */
+    @SuppressWarnings("serial")
+    private static final Map<String, SoftReference<ArchiveIndex>> archiveIndexes = Collections.synchronizedMap(
+            new LinkedHashMap<String, SoftReference<ArchiveIndex>>(16, 0.75f, true){
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SoftReference<ArchiveIndex>> eldest) {
+                    return size() > MAX_ARCHIVE_INDEXES;
+                }
+            });
+
+    /** The JDK index we read or made last, with the key of its platform class path */
+    private static SoftReference<ArchiveIndex> jdkIndex;
+
+    private static class ArchiveIndex {
+        final long length;
+        final long lastModified;
+        final long checksum;
+        final String key;
+        final ModelIndex index;
+
+        ArchiveIndex(long length, long lastModified, long checksum, ModelIndex index) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+            this.key = null;
+            this.index = index;
+        }
+
+        ArchiveIndex(String key, ModelIndex index) {
+            this.length = -1;
+            this.lastModified = -1;
+            this.checksum = -1;
+            this.key = key;
+            this.index = index;
+        }
+    }
+
+    /** The sorted class names of the declarations of each package */
+    private final Map<String, String[]> classNamesByPackage;
+    /** The sorted declaration names of each package */
+    private final Map<String, String[]> namesByPackage;
+
+    private ModelIndex(Map<String, String[]> classNamesByPackage) {
+        this.classNamesByPackage = classNamesByPackage;
+        this.namesByPackage = new HashMap<String, String[]>();
+        for (Map.Entry<String, String[]> entry : classNamesByPackage.entrySet()) {
+            Set<String> names = new TreeSet<String>();
+            for (String className : entry.getValue()) {
+                names.add(normalise(className));
+            }
+            namesByPackage.put(entry.getKey(), names.toArray(new String[names.size()]));
+        }
+    }
+
+    /**
+     * Makes the index of an archive from the names of its class file entries.
+     */
+    public static ModelIndex of(Iterable<String> classEntries) {
+        Map<String, Set<String>> classNames = new TreeMap<String, Set<String>>();
+        for (String entry : classEntries) {
+            if (!entry.endsWith(".class"))
+                continue;
+            int lastSlash = entry.lastIndexOf('/');
+            // packages are unquoted, like in LazyModule
+            String pkg = lastSlash == -1 ? "" : entry.substring(0, lastSlash).replace("$", "").replace('/', '.');
+            String name = entry.substring(lastSlash + 1, entry.length() - 6);
+            // skip member, local and anonymous classes, but not quoted names
+            if (name.indexOf('$', 1) != -1)
+                continue;
+            Set<String> packageClassNames = classNames.get(pkg);
+            if (packageClassNames == null) {
+                packageClassNames = new TreeSet<String>();
+                classNames.put(pkg, packageClassNames);
+            }
+            packageClassNames.add(name);
+        }
+        Map<String, String[]> classNamesByPackage = new HashMap<String, String[]>();
+        for (Map.Entry<String, Set<String>> entry : classNames.entrySet()) {
+            classNamesByPackage.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+        }
+        return new ModelIndex(classNamesByPackage);
+    }
+
+    private static String normalise(String name) {
+        int start = name.startsWith("$") ? 1 : 0;
+        int end = name.length() > start + 1 && name.endsWith("_") ? name.length() - 1 : name.length();
+        return name.substring(start, end);
+    }
+
+    /**
+     * Returns the packages of the archive which contain classes.
+     */
+    public Set<String> getPackages() {
+        return Collections.unmodifiableSet(classNamesByPackage.keySet());
+    }
+
+    /**
+     * Returns the names of the toplevel classes of the given package of the archive, which
+     * hold its declarations and are not quoted, or null if the archive has no class in that
+     * package.
+     */
+    public List<String> getClassNames(String pkg) {
+        String[] classNames = classNamesByPackage.get(pkg);
+        return classNames != null ? Collections.unmodifiableList(Arrays.asList(classNames)) : null;
+    }
+
+    /**
+     * Returns false if the given package of the archive does not contain a declaration
+     * with the given name, true if it might, or if we know nothing about the package.
+     */
+    public boolean mayContain(String pkg, String name) {
+        String[] names = namesByPackage.get(pkg);
+        // we skip nested classes, so we know nothing about their names
+        if (names == null || name.indexOf('$', 1) != -1)
+            return true;
+        return Arrays.binarySearch(names, normalise(name)) >= 0;
+    }
+
+    /**
+     * Returns the index of the given module archive, made from its table of contents. This is
+     * only done once per JVM for each archive, unless it changes, so that compilers which run
+     * one after the other, like the tests or the ant tasks, do not have to go through the
+     * archives of the language module and of the other dependencies again. An archive is taken
+     * to be unchanged if it has the same length, modification time and central directory, which
+     * holds the name, size and CRC of every entry.
+     */
+    public static ModelIndex forArchive(File archive) throws IOException {
+        String path = archive.getAbsolutePath();
+        long length = archive.length();
+        long lastModified = archive.lastModified();
+        SoftReference<ArchiveIndex> reference = archiveIndexes.get(path);
+        ArchiveIndex archiveIndex = reference != null ? reference.get() : null;
+        boolean sameFile = archiveIndex != null
+                && archiveIndex.length == length
+                && archiveIndex.lastModified == lastModified;
+        // if it looks different we read it again anyway, and its checksum must be taken first
+        // so that we never pair it with an index of newer contents
+        long checksum = getCentralDirectoryChecksum(archive);
+        if (sameFile && checksum != -1 && archiveIndex.checksum == checksum)
+            return archiveIndex.index;
+        ZipFile zipFile = new ZipFile(archive);
+        ModelIndex index;
+        try {
+            List<String> classEntries = new ArrayList<String>();
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory())
+                    classEntries.add(entry.getName());
+            }
+            index = of(classEntries);
+        } finally {
+            try {
+                zipFile.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        if (checksum != -1)
+            archiveIndexes.put(path, new SoftReference<ArchiveIndex>(new ArchiveIndex(length, lastModified, checksum, index)));
+        else
+            archiveIndexes.remove(path);
+        return index;
+    }
+
+    /**
+     * Returns the index of the JDK whose archives make up the given platform class path, from
+     * the given directory if we made it before, or null if some part of the class path is not
+     * an archive. Indexes are kept in files named after the hash of their key, which is made of
+     * the version of the JDK and of the compiler, and the path, length and modification time of
+     * every archive, so a JDK update or another class path gets its own index. Files are
+     * written to a temporary file first, so that concurrent compilations never see partial
+     * indexes, and a file which can not be read is made again.
+     */
+    public static ModelIndex forJDK(List<File> platformClassPath, File dir) throws IOException {
+        List<File> archives = new ArrayList<File>();
+        StringBuilder keyBuilder = new StringBuilder();
+        keyBuilder.append(System.getProperty("java.home")).append('\n')
+            .append(System.getProperty("java.runtime.version")).append('\n')
+            .append(Versions.CEYLON_VERSION_NUMBER).append('\n');
+        for (File entry : platformClassPath) {
+            // the boot class path names archives which are not always there
+            if (!entry.exists())
+                continue;
+            if (!entry.isFile())
+                return null;
+            archives.add(entry);
+            keyBuilder.append(entry.getAbsolutePath()).append('/')
+                .append(entry.length()).append('/')
+                .append(entry.lastModified()).append('\n');
+        }
+        if (archives.isEmpty())
+            return null;
+        String key = keyBuilder.toString();
+        synchronized (ModelIndex.class) {
+            ArchiveIndex archiveIndex = jdkIndex != null ? jdkIndex.get() : null;
+            if (archiveIndex != null && archiveIndex.key.equals(key))
+                return archiveIndex.index;
+        }
+        File file = new File(dir, sha1(key) + SUFFIX);
+        ModelIndex index = read(file, key);
+        if (index == null) {
+            List<String> classEntries = new ArrayList<String>();
+            for (File archive : archives) {
+                ZipFile zipFile = new ZipFile(archive);
+                try {
+                    Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                    while (entries.hasMoreElements()) {
+                        ZipEntry entry = entries.nextElement();
+                        if (!entry.isDirectory())
+                            classEntries.add(entry.getName());
+                    }
+                } finally {
+                    try {
+                        zipFile.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+            index = of(classEntries);
+            write(file, key, index);
+        }
+        synchronized (ModelIndex.class) {
+            jdkIndex = new SoftReference<ArchiveIndex>(new ArchiveIndex(key, index));
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index kept in the given file for the given key, or null if there is none or
+     * it can not be read.
+     */
+    private static ModelIndex read(File file, String key) {
+        if (!file.exists())
+            return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                // the key guards against hash collisions
+                if (in.readInt() != MAGIC 
+                        || in.readInt() != FORMAT_VERSION
+                        || !readString(in).equals(key))
+                    return null;
+                int packages = in.readInt();
+                Map<String, String[]> classNamesByPackage = new HashMap<String, String[]>();
+                for (int i = 0; i < packages; i++) {
+                    String pkg = readString(in);
+                    String[] classNames = new String[in.readInt()];
+                    for (int j = 0; j < classNames.length; j++) {
+                        classNames[j] = readString(in);
+                    }
+                    classNamesByPackage.put(pkg, classNames);
+                }
+                return new ModelIndex(classNamesByPackage);
+            } finally {
+                in.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // stale or corrupt: it will be replaced
+            return null;
+        }
+    }
+
+    private static void write(File file, String key, ModelIndex index) {
+        File tmp = null;
+        try {
+            file.getParentFile().mkdirs();
+            tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                writeString(out, key);
+                out.writeInt(index.classNamesByPackage.size());
+                for (Map.Entry<String, String[]> entry : index.classNamesByPackage.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    for (String className : entry.getValue()) {
+                        writeString(out, className);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            // replaces a corrupt one, or loses to another compilation which was faster
+            file.delete();
+            if (tmp.renameTo(file) || file.exists())
+                tmp = null;
+        } catch (IOException e) {
+            // we will make it again next time
+        } finally {
+            if (tmp != null)
+                tmp.delete();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static String sha1(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(key.getBytes(UTF8))) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the CRC of the central directory of the given zip archive, or -1 if we can't find
+     * it, as for Zip64 archives.
+     */
+    static long getCentralDirectoryChecksum(File archive) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(archive, "r");
+        try {
+            long length = file.length();
+            if (length < END_LENGTH)
+                return -1;
+            // there usually is no comment
+            byte[] tail = new byte[END_LENGTH];
+            file.seek(length - END_LENGTH);
+            file.readFully(tail);
+            int end = 0;
+            if (readInt(tail, 0) != END_SIGNATURE) {
+                tail = new byte[(int) Math.min(length, END_LENGTH + MAX_COMMENT_LENGTH)];
+                file.seek(length - tail.length);
+                file.readFully(tail);
+                end = tail.length - END_LENGTH;
+                while (end >= 0 && readInt(tail, end) != END_SIGNATURE)
+                    end--;
+                if (end < 0)
+                    return -1;
+            }
+            long size = readInt(tail, end + 12) & 0xFFFFFFFFL;
+            long offset = readInt(tail, end + 16) & 0xFFFFFFFFL;
+            if (offset + size > length - tail.length + end)
+                return -1;
+            byte[] directory = new byte[(int) size];
+            file.seek(offset);
+            file.readFully(directory);
+            CRC32 crc = new CRC32();
+            crc.update(directory);
+            return crc.getValue();
+        } finally {
+            file.close();
+        }
+    }
+
+    // zip archives are little-endian
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF)
+                | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16
+                | (bytes[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,523 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+
+/**
+ * A concurrent map of values by module and name, which holds one map per module signature.
+ * Unlike keys made with {@link AbstractModelLoader#getCacheKeyByModule(Module, String)}, looking
+ * something up does not allocate anything.
+ * <p>
+ * The map is unbounded unless it is given a budget in bytes with {@link #setBudget(long)}, in
+ * which case it evicts the entries which were not used since the last time it went over budget,
+ * oldest first, like a clock. The size of an entry is estimated by the {@link Policy} of the map.
+ * It should only be bounded when its values can be computed again. Evicted entries are removed,
+ * unless the policy {@link Policy#keepsEvicted() keeps them}, in which case the map only keeps a
+ * weak reference to their value, so that it hands out the same value again as long as something
+ * else uses it, and removes the entry once it is collected. The names of the values which had to
+ * be computed again are counted with a fixed size sketch, so they do not count against the budget.
+ */
+public class ModuleNameMap<V> {
+
+    /**
+     * How a bounded map weighs and evicts its values. The default policy only counts the
+     * entries themselves, and drops evicted entries.
+     */
+    public static class Policy<V> {
+        /**
+         * Returns the estimated number of bytes that the map keeps alive through the given value.
+         * It must not load anything.
+         */
+        public long weigh(V value) {
+            return 0;
+        }
+
+        /**
+         * Returns true if evicted values should be handed out again as long as they are in use.
+         */
+        public boolean keepsEvicted() {
+            return false;
+        }
+
+        /**
+         * Called when the given value is evicted, on the thread which went over the budget.
+         */
+        public void evicted(V value) {
+        }
+
+        /**
+         * Called when an evicted value which was still in use is looked up again.
+         */
+        public void restored(V value) {
+        }
+    }
+
+    // the entry, its key and its node in the maps and in the clock, with compressed references
+    private static final int ENTRY_SIZE = 160;
+    // the number of bits and of hash functions of the sketch of evicted names, which
+    // we reset when it holds more names than it can tell apart reliably
+    private static final int SKETCH_BITS = 1 << 16;
+    private static final int SKETCH_HASHES = 2;
+    private static final int SKETCH_MAX_NAMES = SKETCH_BITS / 16;
+
+    private static final class Entry<V> extends WeakReference<V> {
+        final String signature;
+        final String name;
+        // the value while it is within the budget, null once evicted or removed
+        volatile V value;
+        volatile boolean used;
+        // guarded by this entry
+        long weight;
+
+        Entry(String signature, String name, V value, ReferenceQueue<? super V> queue) {
+            super(value, queue);
+            this.signature = signature;
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    private final Policy<? super V> policy;
+    private final ConcurrentMap<String, ConcurrentMap<String, Entry<V>>> mapsByModule = new ConcurrentHashMap<String, ConcurrentMap<String, Entry<V>>>();
+    // the evicted entries whose value was collected
+    private final ReferenceQueue<V> collected = new ReferenceQueue<V>();
+    // the entries within the budget, in the order in which they were put
+    private final Queue<Entry<V>> clock = new ConcurrentLinkedQueue<Entry<V>>();
+    private final AtomicInteger clockSize = new AtomicInteger();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+    private final long[] evictedNames = new long[SKETCH_BITS / 64];
+    private int evictedNameCount;
+    private volatile long budget;
+
+    public ModuleNameMap() {
+        this(new Policy<V>());
+    }
+
+    public ModuleNameMap(Policy<? super V> policy) {
+        this.policy = policy;
+    }
+
+    private ConcurrentMap<String, Entry<V>> getMap(String signature, boolean create) {
+        ConcurrentMap<String, Entry<V>> map = mapsByModule.get(signature);
+        if (map == null && create) {
+            map = new ConcurrentHashMap<String, Entry<V>>();
+            ConcurrentMap<String, Entry<V>> existing = mapsByModule.putIfAbsent(signature, map);
+            if (existing != null)
+                map = existing;
+        }
+        return map;
+    }
+
+    private Entry<V> getEntry(Module module, String name) {
+        // the signature is computed once per module
+        ConcurrentMap<String, Entry<V>> map = getMap(module.getSignature(), false);
+        return map != null ? map.get(name) : null;
+    }
+
+    public V get(Module module, String name) {
+        Entry<V> entry = getEntry(module, name);
+        if (entry == null)
+            return null;
+        V value = entry.value;
+        if (value != null) {
+            if (budget > 0 && !entry.used)
+                entry.used = true;
+            return value;
+        }
+        // it was evicted, but it is still in use
+        value = entry.get();
+        if (value != null && restore(entry, value))
+            policy.restored(value);
+        return value;
+    }
+
+    public boolean containsKey(Module module, String name) {
+        return get(module, name) != null;
+    }
+
+    private Entry<V> newEntry(String signature, String name, V value) {
+        Entry<V> entry = new Entry<V>(signature, name, value, collected);
+        entry.weight = weigh(name, value);
+        // it counts as soon as it can be seen
+        weight.addAndGet(entry.weight);
+        return entry;
+    }
+
+    private long weigh(String name, V value) {
+        return ENTRY_SIZE + name.length() + policy.weigh(value);
+    }
+
+    public V put(Module module, String name, V value) {
+        expunge();
+        String signature = module.getSignature();
+        ConcurrentMap<String, Entry<V>> map = getMap(signature, true);
+        Entry<V> entry = newEntry(signature, name, value);
+        return added(map.put(name, entry), entry);
+    }
+
+    public V putIfAbsent(Module module, String name, V value) {
+        expunge();
+        String signature = module.getSignature();
+        ConcurrentMap<String, Entry<V>> map = getMap(signature, true);
+        Entry<V> entry = newEntry(signature, name, value);
+        while (true) {
+            Entry<V> existing = map.putIfAbsent(name, entry);
+            if (existing == null)
+                return added(null, entry);
+            V existingValue = existing.value;
+            if (existingValue == null) {
+                existingValue = existing.get();
+                if (existingValue != null && restore(existing, existingValue))
+                    policy.restored(existingValue);
+            }
+            if (existingValue != null) {
+                weight.addAndGet(-entry.weight);
+                return existingValue;
+            }
+            // it was removed or collected, so we can replace it
+            if (map.replace(name, existing, entry))
+                return added(existing, entry);
+        }
+    }
+
+    private V added(Entry<V> previous, Entry<V> entry) {
+        V previousValue = null;
+        if (previous != null) {
+            previousValue = discard(previous);
+            if (previousValue == null && budget > 0)
+                reloads.incrementAndGet();
+        } else {
+            size.incrementAndGet();
+            if (budget > 0 && wasEvicted(entry.signature, entry.name))
+                reloads.incrementAndGet();
+        }
+        if (budget > 0) {
+            addToClock(entry);
+            evict(entry);
+        }
+        return previousValue;
+    }
+
+    /**
+     * Forgets the given entry, which is no longer in the map, and returns its value if we had one.
+     */
+    private V discard(Entry<V> entry) {
+        synchronized (entry) {
+            V value = entry.value;
+            if (value != null) {
+                entry.value = null;
+                weight.addAndGet(-entry.weight);
+            } else {
+                value = entry.get();
+            }
+            // so that it is neither restored nor enqueued
+            entry.clear();
+            return value;
+        }
+    }
+
+    private boolean restore(Entry<V> entry, V value) {
+        long entryWeight = weigh(entry.name, value);
+        synchronized (entry) {
+            // it may have been restored, removed or replaced meanwhile
+            if (entry.value != null || entry.get() != value)
+                return false;
+            entry.value = value;
+            entry.used = true;
+            entry.weight = entryWeight;
+            weight.addAndGet(entryWeight);
+        }
+        if (budget > 0) {
+            addToClock(entry);
+            evict(entry);
+        }
+        return true;
+    }
+
+    public V remove(Module module, String name) {
+        ConcurrentMap<String, Entry<V>> map = getMap(module.getSignature(), false);
+        if (map == null)
+            return null;
+        Entry<V> entry = map.remove(name);
+        if (entry == null)
+            return null;
+        size.decrementAndGet();
+        return discard(entry);
+    }
+
+    /**
+     * Removes every entry of the given module.
+     */
+    public void removeModule(Module module) {
+        ConcurrentMap<String, Entry<V>> map = mapsByModule.remove(module.getSignature());
+        if (map == null)
+            return;
+        for (Entry<V> entry : map.values()) {
+            size.decrementAndGet();
+            discard(entry);
+        }
+    }
+
+    /**
+     * Removes the given value from the given name in every module.
+     */
+    public void remove(String name, V value) {
+        for (ConcurrentMap<String, Entry<V>> map : mapsByModule.values()) {
+            Entry<V> entry = map.get(name);
+            if (entry != null && (entry.value == value || entry.get() == value) && map.remove(name, entry)) {
+                size.decrementAndGet();
+                discard(entry);
+            }
+        }
+    }
+
+    /**
+     * Removes every entry with the given value.
+     */
+    public void removeValues(V value) {
+        for (ConcurrentMap<String, Entry<V>> map : mapsByModule.values()) {
+            Iterator<Entry<V>> iterator = map.values().iterator();
+            while (iterator.hasNext()) {
+                Entry<V> entry = iterator.next();
+                V entryValue = entry.value;
+                if (entryValue == null)
+                    entryValue = entry.get();
+                if (value.equals(entryValue)) {
+                    iterator.remove();
+                    size.decrementAndGet();
+                    discard(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the values of every module, including the evicted values which are still
+     * in use.
+     */
+    public Collection<V> values() {
+        List<V> values = new ArrayList<V>();
+        for (ConcurrentMap<String, Entry<V>> map : mapsByModule.values()) {
+            for (Entry<V> entry : map.values()) {
+                V value = entry.value;
+                if (value == null)
+                    value = entry.get();
+                if (value != null)
+                    values.add(value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns the number of entries, including the evicted values which are still in use.
+     */
+    public int size() {
+        expunge();
+        return size.get();
+    }
+
+    /**
+     * Returns the estimated number of bytes that this map keeps alive.
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    public void clear() {
+        mapsByModule.clear();
+        clock.clear();
+        clockSize.set(0);
+        size.set(0);
+        weight.set(0);
+    }
+
+    /**
+     * Sets the number of bytes that this map may keep alive, or zero for no limit, which is the
+     * default.
+     */
+    public void setBudget(long budget) {
+        long previousBudget = this.budget;
+        this.budget = budget;
+        if (budget <= 0) {
+            clock.clear();
+            clockSize.set(0);
+        } else {
+            // the entries we already have become candidates for eviction
+            if (previousBudget <= 0) {
+                for (ConcurrentMap<String, Entry<V>> map : mapsByModule.values()) {
+                    for (Entry<V> entry : map.values()) {
+                        if (entry.value != null)
+                            addToClock(entry);
+                    }
+                }
+            }
+            evict(null);
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    private void addToClock(Entry<V> entry) {
+        clock.add(entry);
+        clockSize.incrementAndGet();
+    }
+
+    /**
+     * Evicts entries until we are within budget, but never the one we just added.
+     */
+    private void evict(Entry<V> added) {
+        // every used entry gets a second chance, so we can go around twice
+        int turns = 2 * clockSize.get();
+        while (weight.get() > budget && turns-- > 0) {
+            Entry<V> entry = clock.poll();
+            if (entry == null)
+                break;
+            clockSize.decrementAndGet();
+            V value = entry.value;
+            // skip the entries which were evicted, removed or replaced
+            if (value == null)
+                continue;
+            if (entry == added) {
+                addToClock(entry);
+            } else if (entry.used) {
+                entry.used = false;
+                // its value may have grown since we weighed it
+                reweigh(entry, value);
+                addToClock(entry);
+            } else {
+                evictEntry(entry, value);
+            }
+        }
+    }
+
+    private void reweigh(Entry<V> entry, V value) {
+        long entryWeight = weigh(entry.name, value);
+        synchronized (entry) {
+            if (entry.value == value) {
+                weight.addAndGet(entryWeight - entry.weight);
+                entry.weight = entryWeight;
+            }
+        }
+    }
+
+    private void evictEntry(Entry<V> entry, V value) {
+        boolean keep = policy.keepsEvicted();
+        synchronized (entry) {
+            if (entry.value != value)
+                return;
+            entry.value = null;
+            weight.addAndGet(-entry.weight);
+            if (!keep)
+                entry.clear();
+        }
+        if (!keep) {
+            ConcurrentMap<String, Entry<V>> map = getMap(entry.signature, false);
+            if (map != null && map.remove(entry.name, entry)) {
+                size.decrementAndGet();
+                recordEvicted(entry.signature, entry.name);
+            }
+        }
+        evictions.incrementAndGet();
+        policy.evicted(value);
+    }
+
+    /**
+     * Removes the entries whose evicted value was collected.
+     */
+    @SuppressWarnings("unchecked")
+    private void expunge() {
+        Entry<V> entry;
+        while ((entry = (Entry<V>) collected.poll()) != null) {
+            ConcurrentMap<String, Entry<V>> map = getMap(entry.signature, false);
+            if (map != null && map.remove(entry.name, entry)) {
+                size.decrementAndGet();
+                recordEvicted(entry.signature, entry.name);
+            }
+        }
+    }
+
+    private static int hash(String signature, String name, int function) {
+        int hash = signature.hashCode() * 31 + name.hashCode();
+        if (function > 0)
+            hash *= 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (SKETCH_BITS - 1);
+    }
+
+    private void recordEvicted(String signature, String name) {
+        synchronized (evictedNames) {
+            if (++evictedNameCount > SKETCH_MAX_NAMES) {
+                // it would start seeing names it never had
+                Arrays.fill(evictedNames, 0);
+                evictedNameCount = 1;
+            }
+            for (int i = 0; i < SKETCH_HASHES; i++) {
+                int bit = hash(signature, name, i);
+                evictedNames[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    private boolean wasEvicted(String signature, String name) {
+        synchronized (evictedNames) {
+            for (int i = 0; i < SKETCH_HASHES; i++) {
+                int bit = hash(signature, name, i);
+                if ((evictedNames[bit >>> 6] & (1L << bit)) == 0)
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of entries evicted to stay within the budget.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of entries which had to be put back after being evicted. This is an
+     * estimate, which may count a few names which were never evicted.
+     */
+    public long getReloads() {
+        return reloads.get();
+    }
+}
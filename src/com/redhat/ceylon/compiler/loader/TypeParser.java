@@ -19,9 +19,15 @@
  */
 package com.redhat.ceylon.compiler.loader;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.redhat.ceylon.compiler.loader.model.FunctionOrValueInterface;
 import com.redhat.ceylon.compiler.typechecker.model.Declaration;
@@ -37,84 +43,218 @@ import com.redhat.ceylon.compiler.typechecker.model.TypedDeclaration;
 import com.redhat.ceylon.compiler.typechecker.model.UnionType;
 import com.redhat.ceylon.compiler.typechecker.model.Unit;
 
+/**
+ * Decodes the type strings we store in annotations into ProducedTypes.
+ * <p>
+ * Type strings are first parsed into a {@link ParsedType}, which does not depend on where the
+ * type is used, and is cached by type string. Then it is resolved in its scope into a new
+ * ProducedType every time, because callers modify the types they get. The declarations of
+ * package-qualified types do not depend on the scope, so they are cached by module.
+ * <p>
+ * Parsed types do not depend on the compiler either, so the first {@link #SHARED_CACHE_SIZE}
+ * type strings are also shared by every type parser of the JVM: those of the language module
+ * and the JDK come up again in every compile of the tests and the ant tasks.
+ * <p>
+ * Not thread-safe: the model loader only decodes types while holding its lock. The shared parsed
+ * types are never modified once cached, so they are safe to share.
+ */
 public class TypeParser {
-    public class Part {
+
+    /** How many type strings, and how many qualified type names per module, we cache */
+    static final int CACHE_SIZE = 4096;
+    /** How many type strings we share between the type parsers of the JVM */
+    static final int SHARED_CACHE_SIZE = 16384;
+
+    /**
+     * A parsed type string
+     */
+    static abstract class ParsedType {
+    }
+
+    /*
+     * unionType: intersectionType (| intersectionType)*
+     */
+    static class ParsedUnionType extends ParsedType {
+        final List<ParsedType> caseTypes;
+        ParsedUnionType(List<ParsedType> caseTypes){
+            this.caseTypes = caseTypes;
+        }
+    }
+
+    /*
+     * intersectionType: qualifiedType (& qualifiedType)*
+     */
+    static class ParsedIntersectionType extends ParsedType {
+        final List<ParsedType> satisfiedTypes;
+        ParsedIntersectionType(List<ParsedType> satisfiedTypes){
+            this.satisfiedTypes = satisfiedTypes;
+        }
+    }
+
+    /*
+     * qualifiedType: < unionType > . typeNameWithArguments (. typeNameWithArguments)*
+     * qualifiedType: [packageName (. packageName)* ::] typeNameWithArguments (. typeNameWithArguments)*
+     */
+    static class ParsedQualifiedType extends ParsedType {
+        /** The qualifying union type of compound qualified types, or null */
+        final ParsedType qualifyingType;
+        /** The package name, empty for the default package and compound qualified types */
+        final String pkg;
+        final List<Part> parts;
+        ParsedQualifiedType(ParsedType qualifyingType, String pkg, List<Part> parts){
+            this.qualifyingType = qualifyingType;
+            this.pkg = pkg;
+            this.parts = parts;
+        }
+    }
+
+    /*
+     * typeNameWithArguments: WORD (< variance type (, variance type)* >)?
+     */
+    static class Part {
         String name;
-        List<ProducedType> parameters;
+        /** The name qualified with the package and the previous parts, which is what we look up */
+        String fullName;
+        List<ParsedType> parameters;
         List<SiteVariance> variance;
-        List<ProducedType> getParameters(){
-            return parameters != null ? parameters : Collections.<ProducedType>emptyList();
+        List<ParsedType> getParameters(){
+            return parameters != null ? parameters : Collections.<ParsedType>emptyList();
         }
         List<SiteVariance> getVariance(){
             return variance != null ? variance : Collections.<SiteVariance>emptyList();
         }
     }
 
+    @SuppressWarnings("serial")
+    private static class LruCache<K,V> extends LinkedHashMap<K,V> {
+        LruCache(){
+            super(16, 0.75f, true);
+        }
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    }
+
     private ModelLoader loader;
     private Unit unit;
     private TypeLexer lexer = new TypeLexer();
     private Scope scope;
     private Module moduleScope;
 
+    private static final ConcurrentMap<String, ParsedType> sharedParsedTypes = new ConcurrentHashMap<String, ParsedType>();
+    private final Map<String, ParsedType> parsedTypes = new LruCache<String, ParsedType>();
+    private final Map<Module, Map<String, Declaration>> qualifiedDeclarations = new HashMap<Module, Map<String, Declaration>>();
+    private int parsedHits, parsedMisses;
+    private int declarationHits, declarationMisses;
+
     public TypeParser(ModelLoader loader){
         this.loader = loader;
     }
-    
+
     /*
      * type: unionType EOT
      */
     public ProducedType decodeType(String type, Scope scope, Module moduleScope, Unit unit){
+        ParsedType parsedType = parse(type);
         // save the previous state (this method is reentrant)
-        char[] oldType = lexer.type;
-        int oldIndex = lexer.index;
-        int oldMark = lexer.mark;
         Scope oldScope = this.scope;
         Module oldModuleScope = this.moduleScope;
         Unit oldUnit = this.unit;
         try{
             // setup the new state
-            lexer.setup(type);
             this.scope = scope;
             this.moduleScope = moduleScope;
             this.unit = unit;
-            // do the parsing
-            ProducedType ret = parseType();
+            return resolve(parsedType);
+        }finally{
+            // restore the previous state
+            this.scope = oldScope;
+            this.moduleScope = oldModuleScope;
+            this.unit = oldUnit;
+        }
+    }
+
+    /**
+     * Forgets the declarations we resolved, for when the model loader removes declarations.
+     */
+    public void clearCache() {
+        qualifiedDeclarations.clear();
+    }
+
+    public int getParsedTypeHits() {
+        return parsedHits;
+    }
+
+    public int getParsedTypeMisses() {
+        return parsedMisses;
+    }
+
+    public int getDeclarationHits() {
+        return declarationHits;
+    }
+
+    public int getDeclarationMisses() {
+        return declarationMisses;
+    }
+
+    //
+    // Parsing
+
+    private ParsedType parse(String type) {
+        ParsedType ret = parsedTypes.get(type);
+        if(ret == null){
+            ret = sharedParsedTypes.get(type);
+            if(ret != null)
+                parsedTypes.put(type, ret);
+        }
+        if(ret != null){
+            parsedHits++;
+            return ret;
+        }
+        parsedMisses++;
+        // save the previous state (this method is reentrant)
+        char[] oldType = lexer.type;
+        int oldIndex = lexer.index;
+        int oldMark = lexer.mark;
+        try{
+            lexer.setup(type);
+            ret = parseType();
             if(!lexer.lookingAt(TypeLexer.EOT))
                 throw new TypeParserException("Junk lexemes remaining: "+lexer.eatTokenString());
-            return ret;
         }finally{
             // restore the previous state
             lexer.type = oldType;
             lexer.index = oldIndex;
             lexer.mark = oldMark;
-            this.scope = oldScope;
-            this.moduleScope = oldModuleScope;
-            this.unit = oldUnit;
         }
+        parsedTypes.put(type, ret);
+        // we stop sharing when it is full rather than evicting, it is mostly hits by then
+        if(sharedParsedTypes.size() < SHARED_CACHE_SIZE)
+            sharedParsedTypes.putIfAbsent(type, ret);
+        return ret;
     }
 
     /*
      * type: unionType EOT
      */
-    private ProducedType parseType(){
+    private ParsedType parseType(){
         return parseUnionType();
     }
 
     /*
      * unionType: intersectionType (| intersectionType)*
      */
-    private ProducedType parseUnionType() {
-        ProducedType firstType = parseIntersectionType();
+    private ParsedType parseUnionType() {
+        ParsedType firstType = parseIntersectionType();
         if(lexer.lookingAt(TypeLexer.OR)){
-            UnionType type = new UnionType(unit);
-            List<ProducedType> caseTypes = new LinkedList<ProducedType>();
-            type.setCaseTypes(caseTypes);
+            List<ParsedType> caseTypes = new ArrayList<ParsedType>(2);
             caseTypes.add(firstType);
             while(lexer.lookingAt(TypeLexer.OR)){
                 lexer.eat();
                 caseTypes.add(parseIntersectionType());
             }
-            return type.getType();
+            return new ParsedUnionType(caseTypes);
         }else{
             return firstType;
         }
@@ -123,18 +263,16 @@ public class TypeParser {
     /*
      * intersectionType: qualifiedType (& qualifiedType)*
      */
-    private ProducedType parseIntersectionType() {
-        ProducedType firstType = parseQualifiedType();
+    private ParsedType parseIntersectionType() {
+        ParsedType firstType = parseQualifiedType();
         if(lexer.lookingAt(TypeLexer.AND)){
-            IntersectionType type = new IntersectionType(unit);
-            List<ProducedType> satisfiedTypes = new LinkedList<ProducedType>();
-            type.setSatisfiedTypes(satisfiedTypes);
+            List<ParsedType> satisfiedTypes = new ArrayList<ParsedType>(2);
             satisfiedTypes.add(firstType);
             while(lexer.lookingAt(TypeLexer.AND)){
                 lexer.eat();
                 satisfiedTypes.add(parseQualifiedType());
             }
-            return type.getType();
+            return new ParsedIntersectionType(satisfiedTypes);
         }else{
             return firstType;
         }
@@ -143,7 +281,7 @@ public class TypeParser {
     /*
      * qualifiedType: compoundQualifiedType | simpleQualifiedType
      */
-    private ProducedType parseQualifiedType() {
+    private ParsedType parseQualifiedType() {
         if (lexer.lookingAt(TypeLexer.LT)) {
             return parseCompoundQualifiedType();
         } else {
@@ -154,35 +292,21 @@ public class TypeParser {
     /*
      * qualifiedType: < unionType > . typeNameWithArguments (. typeNameWithArguments)*
      */
-    private ProducedType parseCompoundQualifiedType() {
+    private ParsedType parseCompoundQualifiedType() {
         lexer.eat(TypeLexer.LT);
-        ProducedType unionType = parseUnionType();
+        ParsedType unionType = parseUnionType();
         lexer.eat(TypeLexer.GT);
         lexer.eat(TypeLexer.DOT);
-        Part part = parseTypeNameWithArguments();
-        String fullName = part.name;
-        ProducedType qualifyingType = loadType("", fullName, part, unionType);
-        while(lexer.lookingAt(TypeLexer.DOT)){
-            lexer.eat();
-            part = parseTypeNameWithArguments();
-            fullName = fullName + '.' + part.name;
-            qualifyingType = loadType("", fullName, part, qualifyingType);
-        }
-        if(qualifyingType == null){
-            throw new ModelResolutionException("Could not find type '"+fullName+"'");
-        }
-        if(qualifyingType instanceof ProducedType == false){
-            throw new ModelResolutionException("Type is a declaration (should be a ProducedType): '"+fullName+"'");
-        }
-        return (ProducedType) qualifyingType;
+        List<Part> parts = parseParts("");
+        return new ParsedQualifiedType(unionType, "", parts);
     }
 
     /*
      * qualifiedType: [packageName (. packageName)* ::] typeNameWithArguments (. typeNameWithArguments)*
      */
-    private ProducedType parseSimpleQualifiedType() {
+    private ParsedType parseSimpleQualifiedType() {
         String pkg;
-        
+
         if (hasPackage()) {
             // handle the package name
             StringBuilder pkgstr = new StringBuilder(lexer.eatWord());
@@ -196,24 +320,28 @@ public class TypeParser {
             // type is in default package
             pkg = "";
         }
-        
+
         // then the type itself
+        List<Part> parts = parseParts(pkg);
+        return new ParsedQualifiedType(null, pkg, parts);
+    }
+
+    /*
+     * typeNameWithArguments (. typeNameWithArguments)*
+     */
+    private List<Part> parseParts(String pkg) {
+        List<Part> parts = new ArrayList<Part>(1);
         Part part = parseTypeNameWithArguments();
-        String fullName = (pkg.isEmpty()) ? part.name : pkg + "." + part.name;
-        ProducedType qualifyingType = loadType(pkg, fullName, part, null);
+        part.fullName = (pkg.isEmpty()) ? part.name : pkg + "." + part.name;
+        parts.add(part);
         while(lexer.lookingAt(TypeLexer.DOT)){
             lexer.eat();
+            String fullName = part.fullName;
             part = parseTypeNameWithArguments();
-            fullName = fullName + '.' + part.name;
-            qualifyingType = loadType(pkg, fullName, part, qualifyingType);
+            part.fullName = fullName + '.' + part.name;
+            parts.add(part);
         }
-        if(qualifyingType == null){
-            throw new ModelResolutionException("Could not find type '"+fullName+"'");
-        }
-        if(qualifyingType instanceof ProducedType == false){
-            throw new ModelResolutionException("Type is a declaration (should be a ProducedType): '"+fullName+"'");
-        }
-        return (ProducedType) qualifyingType;
+        return parts;
     }
 
     private boolean hasPackage() {
@@ -226,22 +354,106 @@ public class TypeParser {
         lexer.reset();
         return result;
     }
-    
-    private ProducedType loadType(String pkg, String fullName, Part part, ProducedType qualifyingType) {
+
+    /*
+     * typeNameWithArguments: WORD (< variance type (, variance type)* >)?
+     */
+    private Part parseTypeNameWithArguments() {
+        Part type = new Part();
+        type.name = lexer.eatWord();
+        if(lexer.lookingAt(TypeLexer.LT)){
+            lexer.eat();
+            parseTypeArgumentVariance(type);
+            type.parameters = new ArrayList<ParsedType>(2);
+            type.parameters.add(parseType());
+            while(lexer.lookingAt(TypeLexer.COMMA)){
+                lexer.eat();
+                parseTypeArgumentVariance(type);
+                type.parameters.add(parseType());
+            }
+            lexer.eat(TypeLexer.GT);
+        }
+        return type;
+    }
+
+    /*
+     * variance: [in |out ]?
+     */
+    private void parseTypeArgumentVariance(Part type) {
+        SiteVariance variance = null;
+        if(lexer.lookingAt(TypeLexer.OUT)){
+            variance = SiteVariance.OUT;
+            lexer.eat();
+        }else if(lexer.lookingAt(TypeLexer.IN)){
+            variance = SiteVariance.IN;
+            lexer.eat();
+        }
+        // lazy allocation
+        if(variance != null && type.variance == null){
+            type.variance = new ArrayList<SiteVariance>(2);
+            for(int i=0,l=type.getParameters().size();i<l;i++){
+                // patch it up for the previous type params which did not have variance
+                type.variance.add(null);
+            }
+        }
+        // only add the variance if we have to
+        if(type.variance != null){
+            // we add it even if it's null, as long as we're recording variance
+            type.variance.add(variance);
+        }
+    }
+
+    //
+    // Resolving
+
+    private ProducedType resolve(ParsedType type) {
+        if(type instanceof ParsedUnionType)
+            return resolveUnionType((ParsedUnionType) type);
+        if(type instanceof ParsedIntersectionType)
+            return resolveIntersectionType((ParsedIntersectionType) type);
+        return resolveQualifiedType((ParsedQualifiedType) type);
+    }
+
+    private ProducedType resolveUnionType(ParsedUnionType parsedType) {
+        UnionType type = new UnionType(unit);
+        List<ProducedType> caseTypes = new LinkedList<ProducedType>();
+        type.setCaseTypes(caseTypes);
+        for(ParsedType caseType : parsedType.caseTypes){
+            caseTypes.add(resolve(caseType));
+        }
+        return type.getType();
+    }
+
+    private ProducedType resolveIntersectionType(ParsedIntersectionType parsedType) {
+        IntersectionType type = new IntersectionType(unit);
+        List<ProducedType> satisfiedTypes = new LinkedList<ProducedType>();
+        type.setSatisfiedTypes(satisfiedTypes);
+        for(ParsedType satisfiedType : parsedType.satisfiedTypes){
+            satisfiedTypes.add(resolve(satisfiedType));
+        }
+        return type.getType();
+    }
+
+    private ProducedType resolveQualifiedType(ParsedQualifiedType parsedType) {
+        ProducedType qualifyingType = parsedType.qualifyingType != null ? resolve(parsedType.qualifyingType) : null;
+        Part part = null;
+        for(int i=0;i<parsedType.parts.size();i++){
+            part = parsedType.parts.get(i);
+            qualifyingType = loadType(parsedType.pkg, part, qualifyingType);
+        }
+        if(qualifyingType == null){
+            throw new ModelResolutionException("Could not find type '"+part.fullName+"'");
+        }
+        return qualifyingType;
+    }
+
+    private ProducedType loadType(String pkg, Part part, ProducedType qualifyingType) {
+        List<ProducedType> parameters = resolveParameters(part);
         // try to find a qualified type
         try{
             Declaration newDeclaration;
             if(qualifyingType == null){
-                // FIXME: this only works for packages not contained in multiple modules
-                Package foundPackage = moduleScope.getPackage(pkg);
-                if(foundPackage != null)
-                    newDeclaration = loader.getDeclaration(foundPackage.getModule(), pkg, fullName, scope);
-                else if(scope != null){
-                    // if we did not find any package and the scope is null, chances are we're after a type variable
-                    // or a relative type, so use the module scope
-                    newDeclaration = loader.getDeclaration(moduleScope, pkg, fullName, scope);
-                }else
-                    newDeclaration = null;
+                newDeclaration = findDeclaration(pkg, part.fullName);
             }else{
                 // look it up via its qualifying type or decl
                 Declaration qualifyingDeclaration = qualifyingType.getDeclaration();
@@ -262,7 +474,7 @@ public class TypeParser {
                 newTypeDeclaration = (TypeDeclaration) newDeclaration;
             else
                 newTypeDeclaration = new FunctionOrValueInterface((TypedDeclaration) newDeclaration);
-            ProducedType ret = newTypeDeclaration.getProducedType(qualifyingType, part.getParameters());
+            ProducedType ret = newTypeDeclaration.getProducedType(qualifyingType, parameters);
             // set the use-site variance if required, now that we know the TypeParameter declarations
             if(!part.getVariance().isEmpty()){
                 List<TypeParameter> tps = newTypeDeclaration.getTypeParameters();
@@ -281,57 +493,58 @@ public class TypeParser {
             // - if we have a qualifying type then the inner type must exist
             // - if we have type parameters we must have a type
             if(qualifyingType != null
-                    || (part.parameters != null && !part.parameters.isEmpty()))
+                    || !parameters.isEmpty())
                 throw x;
             return null;
         }
     }
 
-    /*
-     * typeNameWithArguments: WORD (< variance type (, variance type)* >)?
-     */
-    private Part parseTypeNameWithArguments() {
-        Part type = new Part();
-        type.name = lexer.eatWord();
-        if(lexer.lookingAt(TypeLexer.LT)){
-            lexer.eat();
-            parseTypeArgumentVariance(type);
-            type.parameters = new LinkedList<ProducedType>();
-            type.parameters.add(parseType());
-            while(lexer.lookingAt(TypeLexer.COMMA)){
-                lexer.eat();
-                parseTypeArgumentVariance(type);
-                type.parameters.add(parseType());
-            }
-            lexer.eat(TypeLexer.GT);
+    private List<ProducedType> resolveParameters(Part part) {
+        if(part.parameters == null)
+            return Collections.<ProducedType>emptyList();
+        List<ProducedType> parameters = new LinkedList<ProducedType>();
+        for(ParsedType parameter : part.parameters){
+            parameters.add(resolve(parameter));
         }
-        return type;
+        return parameters;
     }
 
-    /*
-     * variance: [in |out ]?
-     */
-    private void parseTypeArgumentVariance(Part type) {
-        SiteVariance variance = null;
-        if(lexer.lookingAt(TypeLexer.OUT)){
-            variance = SiteVariance.OUT;
-            lexer.eat();
-        }else if(lexer.lookingAt(TypeLexer.IN)){
-            variance = SiteVariance.IN;
-            lexer.eat();
-        }
-        // lazy allocation
-        if(variance != null && type.variance == null){
-            type.variance = new LinkedList<SiteVariance>();
-            for(int i=0,l=type.getParameters().size();i<l;i++){
-                // patch it up for the previous type params which did not have variance
-                type.variance.add(null);
+    private Declaration findDeclaration(String pkg, String fullName) {
+        // FIXME: this only works for packages not contained in multiple modules
+        Package foundPackage = moduleScope.getPackage(pkg);
+        if(foundPackage != null){
+            // the declaration of a type with a package does not depend on the scope, because its
+            // name is qualified so it can't be a type parameter, as long as we're in the same module
+            Map<String, Declaration> cache = null;
+            if(!pkg.isEmpty() && isInModuleScope(scope)){
+                cache = qualifiedDeclarations.get(moduleScope);
+                if(cache == null){
+                    cache = new LruCache<String, Declaration>();
+                    qualifiedDeclarations.put(moduleScope, cache);
+                }
+                Declaration ret = cache.get(fullName);
+                if(ret != null){
+                    declarationHits++;
+                    return ret;
+                }
+                declarationMisses++;
             }
+            Declaration ret = loader.getDeclaration(foundPackage.getModule(), pkg, fullName, scope);
+            if(ret != null && cache != null)
+                cache.put(fullName, ret);
+            return ret;
+        }else if(scope != null){
+            // if we did not find any package and the scope is null, chances are we're after a type variable
+            // or a relative type, so use the module scope
+            return loader.getDeclaration(moduleScope, pkg, fullName, scope);
+        }else
+            return null;
+    }
+
+    private boolean isInModuleScope(Scope scope) {
+        while(scope != null && scope instanceof Package == false){
+            scope = scope.getContainer();
         }
-        // only add the variance if we have to
-        if(type.variance != null){
-            // we add it even if it's null, as long as we're recording variance
-            type.variance.add(variance);
-        }
+        return scope == null || ((Package)scope).getModule() == moduleScope;
     }
 }
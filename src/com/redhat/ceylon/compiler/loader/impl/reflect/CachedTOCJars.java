@@ -28,10 +28,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -42,15 +42,20 @@ import com.redhat.ceylon.compiler.typechecker.model.Module;
 
 public class CachedTOCJars {
 
+    /** The default number of archives we keep open */
+    public static final int DEFAULT_MAX_OPEN_JARS = 16;
+
     /**
      * Jar file where we cache the TOC
      */
     static class CachedTOCJar {
         ArtifactResult artifact;
-        // stores class file names with slashes
-        Set<String> contents = new HashSet<String>();
-        // stores package paths with slashes but not last one
-        Set<String> packages = new HashSet<String>();
+        // opened on demand, and closed by the pool when we have too many open
+        private ZipFile zipFile;
+        private int zipFileUsers;
+        private boolean zipFileExpired;
+        // stores file names with slashes, and package paths with slashes but not last one
+        CompactTOC toc;
         // not not attempt to load contents from this jar, just its TOC
         boolean skipContents;
         
@@ -58,9 +63,10 @@ public class CachedTOCJars {
             this.artifact = artifact;
             this.skipContents = skipContents;
             if (artifact instanceof ContentAwareArtifactResult) {
-                packages.addAll(((ContentAwareArtifactResult) artifact).getPackages());
-                contents.addAll(((ContentAwareArtifactResult) artifact).getEntries());
+                toc = CompactTOC.of(((ContentAwareArtifactResult) artifact).getEntries(),
+                        ((ContentAwareArtifactResult) artifact).getPackages());
             } else {
+                List<String> contents = new ArrayList<String>();
                 if (artifact.artifact() != null) {
                     try {
                         ZipFile zf = new ZipFile(artifact.artifact());
@@ -68,11 +74,8 @@ public class CachedTOCJars {
                             Enumeration<? extends ZipEntry> entries = zf.entries();
                             while(entries.hasMoreElements()){
                                 ZipEntry entry = entries.nextElement();
-                                // only cache class files
-                                if(!entry.isDirectory()){
-                                    packages.add(getPackageName(entry.getName()));
+                                if(!entry.isDirectory())
                                     contents.add(entry.getName());
-                                }
                             }
                         }finally{
                             zf.close();
@@ -81,38 +84,32 @@ public class CachedTOCJars {
                         throw new RuntimeException(e);
                     }
                 }
+                toc = CompactTOC.of(contents, Collections.<String>emptyList());
             }
         }
 
-        private String getPackageName(String name) {
-            int lastSlash = name.lastIndexOf('/');
-            if(lastSlash == -1)
-                return "";
-            return name.substring(0, lastSlash);
-        }
-
         boolean containsFile(String path){
-            return contents.contains(path);
+            return toc.containsFile(path);
         }
 
         boolean containsPackage(String path) {
-            return packages.contains(path);
+            return toc.containsPackage(path);
         }
 
-        byte[] getContents(String path){
+        byte[] getContents(String path, OpenJars openJars){
             if (artifact instanceof ContentAwareArtifactResult) {
                 return ((ContentAwareArtifactResult) artifact).getContents(path);
             }
             File jar = artifact.artifact();
             if (jar != null) {
                 try {
-                    ZipFile zf = new ZipFile(jar);
+                    ZipFile zf = acquireZipFile(jar, openJars);
                     try{
                         ZipEntry entry = zf.getEntry(path);
                         if(entry != null)
                             return loadFile(zf.getInputStream(entry), (int)entry.getSize());
                     }finally{
-                        zf.close();
+                        releaseZipFile();
                     }
                 } catch (IOException e) {
                     throw new RuntimeException(e);
@@ -128,25 +125,65 @@ public class CachedTOCJars {
             }
             File jar = artifact.artifact();
             if (jar != null) {
-                try {
-                    ZipFile zf = new ZipFile(jar);
-                    try{
-                        ZipEntry entry = zf.getEntry(path);
-                        if (entry != null) {
-                            String uripath = FileUtil.absoluteFile(jar).toURI().getSchemeSpecificPart();
-                            return new URI("classpath:" + uripath + "!" + entry.getName());
-                        }
-                    }finally{
-                        zf.close();
+                // no need to open the jar, we know its entries
+                if (containsFile(path)) {
+                    try {
+                        String uripath = FileUtil.absoluteFile(jar).toURI().getSchemeSpecificPart();
+                        return new URI("classpath:" + uripath + "!" + path);
+                    } catch (URISyntaxException e) {
+                        throw new RuntimeException(e);
                     }
-                } catch (IOException | URISyntaxException e) {
-                    throw new RuntimeException(e);
                 }
                 throw new RuntimeException("Missing entry: "+path+" in jar file: "+ jar.getPath());
             }
             throw new RuntimeException("No file associated with artifact : " + artifact.toString());
         }
 
+        ZipFile acquireZipFile(File jar, OpenJars openJars) throws IOException {
+            ZipFile zf;
+            synchronized(this){
+                if(zipFile == null){
+                    zipFile = new ZipFile(jar);
+                    zipFileExpired = false;
+                }
+                zipFileUsers++;
+                zf = zipFile;
+            }
+            // not while holding our lock, since the pool may close other jars
+            openJars.used(this);
+            return zf;
+        }
+
+        synchronized void releaseZipFile(){
+            zipFileUsers--;
+            if(zipFileUsers == 0 && zipFileExpired)
+                closeZipFile();
+        }
+
+        /**
+         * Closes our archive, or lets the last reader close it if it is being read.
+         */
+        synchronized void expireZipFile(){
+            zipFileExpired = true;
+            if(zipFileUsers == 0)
+                closeZipFile();
+        }
+
+        synchronized boolean isZipFileOpen(){
+            return zipFile != null;
+        }
+
+        private void closeZipFile(){
+            if(zipFile != null){
+                try {
+                    zipFile.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                zipFile = null;
+            }
+        }
+
         private byte[] loadFile(InputStream inputStream, int size) throws IOException {
             byte[] buf = new byte[size];
             try{
@@ -168,30 +205,8 @@ public class CachedTOCJars {
             
             File jar = artifact.artifact();
             if (jar != null) {
-                try {
-                    // add a trailing / to only list members
-                    path += "/";
-                    ZipFile zf = new ZipFile(jar);
-                    try{
-                        Enumeration<? extends ZipEntry> entries = zf.entries();
-                        List<String> ret = new ArrayList<String>();
-                        while(entries.hasMoreElements()){
-                            ZipEntry entry = entries.nextElement();
-                            String name = entry.getName();
-                            // only cache class files
-                            if(!entry.isDirectory() && name.startsWith(path)){
-                                String part = name.substring(path.length());
-                                if(part.indexOf('/') == -1)
-                                    ret.add(name);
-                            }
-                        }
-                        return ret;
-                    }finally{
-                        zf.close();
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
+                // no need to open the jar, we know its entries
+                return toc.getFileNames(path);
             } else {
                 throw new RuntimeException("No file associated with artifact : " + artifact.toString());
             }
@@ -199,11 +214,68 @@ public class CachedTOCJars {
 
         @Override
         public String toString(){
-            return "CachedTOCJar[jar="+artifact+"; contents="+contents+"; packages="+packages+"]";
+            return "CachedTOCJar[jar="+artifact+"; toc="+toc+"]";
         }
     }
     
+    /**
+     * The jars whose archive is open, least recently used first, which we close when
+     * there are too many of them.
+     */
+    static class OpenJars {
+        private final int maxOpenJars;
+        private final LinkedHashMap<CachedTOCJar, Boolean> jars = new LinkedHashMap<CachedTOCJar, Boolean>(16, 0.75f, true);
+
+        OpenJars(int maxOpenJars) {
+            this.maxOpenJars = maxOpenJars;
+        }
+
+        void used(CachedTOCJar jar) {
+            List<CachedTOCJar> expired = null;
+            synchronized(jars){
+                jars.put(jar, Boolean.TRUE);
+                Iterator<CachedTOCJar> iterator = jars.keySet().iterator();
+                while(jars.size() > maxOpenJars && iterator.hasNext()){
+                    if(expired == null)
+                        expired = new ArrayList<CachedTOCJar>(1);
+                    expired.add(iterator.next());
+                    iterator.remove();
+                }
+            }
+            // not while holding our lock, since the jars lock themselves
+            if(expired != null){
+                for(CachedTOCJar expiredJar : expired)
+                    expiredJar.expireZipFile();
+            }
+        }
+
+        void closeAll() {
+            List<CachedTOCJar> expired;
+            synchronized(jars){
+                expired = new ArrayList<CachedTOCJar>(jars.keySet());
+                jars.clear();
+            }
+            for(CachedTOCJar expiredJar : expired)
+                expiredJar.expireZipFile();
+        }
+    }
+
     private Map<Module, CachedTOCJar> jars = new HashMap<Module, CachedTOCJar>();
+    // the jars we read each package from when we don't know the module, in the order they were
+    // added so that the first one wins, excluding the jars we don't read contents from
+    private Map<String, List<CachedTOCJar>> jarsByPackage = new HashMap<String, List<CachedTOCJar>>();
+    private final OpenJars openJars;
+
+    public CachedTOCJars() {
+        this(DEFAULT_MAX_OPEN_JARS);
+    }
+
+    /**
+     * Keeps at most the given number of archives open to read their contents.
+     */
+    public CachedTOCJars(int maxOpenJars) {
+        openJars = new OpenJars(maxOpenJars);
+    }
     
     public void addJar(ArtifactResult artifact, Module module) {
         addJar(artifact, module, false);
@@ -213,7 +285,31 @@ public class CachedTOCJars {
         // skip duplicates
         if(jars.containsKey(module))
             return;
-        jars.put(module, new CachedTOCJar(artifact, skipContents));
+        CachedTOCJar jar = new CachedTOCJar(artifact, skipContents);
+        jars.put(module, jar);
+        if(!skipContents){
+            for(String pkg : jar.toc.getPackages()){
+                List<CachedTOCJar> packageJars = jarsByPackage.get(pkg);
+                if(packageJars == null){
+                    // most packages are in a single jar
+                    packageJars = new ArrayList<CachedTOCJar>(1);
+                    jarsByPackage.put(pkg, packageJars);
+                }
+                packageJars.add(jar);
+            }
+        }
+    }
+
+    private CachedTOCJar findJar(String path) {
+        int lastSlash = path.lastIndexOf('/');
+        List<CachedTOCJar> packageJars = jarsByPackage.get(lastSlash == -1 ? "" : path.substring(0, lastSlash));
+        if(packageJars != null){
+            for(CachedTOCJar jar : packageJars){
+                if(jar.containsFile(path))
+                    return jar;
+            }
+        }
+        return null;
     }
 
     public boolean packageExists(Module module, String name) {
@@ -230,27 +326,19 @@ public class CachedTOCJars {
     }
 
     public byte[] getContents(String path) {
-        for(CachedTOCJar jar : jars.values()){
-            if(!jar.skipContents && jar.containsFile(path)){
-                return jar.getContents(path);
-            }
-        }
-        return null;
+        CachedTOCJar jar = findJar(path);
+        return jar != null ? jar.getContents(path, openJars) : null;
     }
 
     public URI getContentUri(String path) {
-        for(CachedTOCJar jar : jars.values()){
-            if(!jar.skipContents && jar.containsFile(path)){
-                return jar.getContentUri(path);
-            }
-        }
-        return null;
+        CachedTOCJar jar = findJar(path);
+        return jar != null ? jar.getContentUri(path) : null;
     }
 
     public byte[] getContents(Module module, String path) {
         CachedTOCJar jar = jars.get(module);
         if(jar != null && !jar.skipContents && jar.containsFile(path)){
-            return jar.getContents(path);
+            return jar.getContents(path, openJars);
         }
         return null;
     }
@@ -263,6 +351,13 @@ public class CachedTOCJars {
         return null;
     }
 
+    /**
+     * Closes the archives we keep open. They will be opened again if we read from them.
+     */
+    public void close() {
+        openJars.closeAll();
+    }
+
     @Override
     public String toString(){
         return "CachedTOCJars[jars="+jars+"]";
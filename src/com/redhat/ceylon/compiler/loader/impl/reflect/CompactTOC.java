@@ -0,0 +1,215 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The table of contents of a jar, which only holds one object per package: the file names
+ * of all the packages are packed in a single array, sorted by package, then by name, so
+ * that we can look them up with a binary search.
+ */
+final class CompactTOC {
+
+    /** Package paths with slashes but not last one, sorted */
+    private final String[] packages;
+    /** The index in {@link #nameOffsets} of the first file name of each package, plus the end */
+    private final int[] packageStarts;
+    /** The offset in {@link #names} of each file name, plus the end */
+    private final int[] nameOffsets;
+    /** The file names, without their package path */
+    private final char[] names;
+
+    private CompactTOC(String[] packages, int[] packageStarts, int[] nameOffsets, char[] names) {
+        this.packages = packages;
+        this.packageStarts = packageStarts;
+        this.nameOffsets = nameOffsets;
+        this.names = names;
+    }
+
+    /**
+     * Makes the table of contents of the given file paths, with slashes, plus the given
+     * packages, which may have no file.
+     */
+    static CompactTOC of(Iterable<String> paths, Iterable<String> extraPackages) {
+        Map<String, List<String>> namesByPackage = new TreeMap<String, List<String>>();
+        int totalNames = 0;
+        int totalChars = 0;
+        for (String path : paths) {
+            int lastSlash = path.lastIndexOf('/');
+            String pkg = lastSlash == -1 ? "" : path.substring(0, lastSlash);
+            List<String> packageNames = getNames(namesByPackage, pkg);
+            String name = path.substring(lastSlash + 1);
+            packageNames.add(name);
+            totalNames++;
+            totalChars += name.length();
+        }
+        for (String pkg : extraPackages) {
+            getNames(namesByPackage, pkg);
+        }
+        String[] packages = new String[namesByPackage.size()];
+        int[] packageStarts = new int[packages.length + 1];
+        int[] nameOffsets = new int[totalNames + 1];
+        char[] names = new char[totalChars];
+        int p = 0, n = 0, offset = 0;
+        for (Map.Entry<String, List<String>> entry : namesByPackage.entrySet()) {
+            packages[p] = entry.getKey();
+            packageStarts[p++] = n;
+            List<String> packageNames = entry.getValue();
+            Collections.sort(packageNames);
+            String previous = null;
+            for (String name : packageNames) {
+                // the same path may be listed twice
+                if (name.equals(previous))
+                    continue;
+                nameOffsets[n++] = offset;
+                name.getChars(0, name.length(), names, offset);
+                offset += name.length();
+                previous = name;
+            }
+        }
+        packageStarts[p] = n;
+        nameOffsets[n] = offset;
+        if (n < totalNames) {
+            nameOffsets = Arrays.copyOf(nameOffsets, n + 1);
+            names = Arrays.copyOf(names, offset);
+        }
+        return new CompactTOC(packages, packageStarts, nameOffsets, names);
+    }
+
+    private static List<String> getNames(Map<String, List<String>> namesByPackage, String pkg) {
+        List<String> packageNames = namesByPackage.get(pkg);
+        if (packageNames == null) {
+            packageNames = new ArrayList<String>();
+            namesByPackage.put(pkg, packageNames);
+        }
+        return packageNames;
+    }
+
+    /**
+     * Returns the package paths, sorted.
+     */
+    List<String> getPackages() {
+        return Collections.unmodifiableList(Arrays.asList(packages));
+    }
+
+    boolean containsPackage(String path) {
+        return Arrays.binarySearch(packages, path) >= 0;
+    }
+
+    boolean containsFile(String path) {
+        int lastSlash = path.lastIndexOf('/');
+        int p = lastSlash == -1
+                ? Arrays.binarySearch(packages, "")
+                : binarySearchPackage(path, lastSlash);
+        if (p < 0)
+            return false;
+        int nameStart = lastSlash + 1;
+        int low = packageStarts[p];
+        int high = packageStarts[p + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareName(mid, path, nameStart);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the paths of the files of the given package, with slashes.
+     */
+    List<String> getFileNames(String path) {
+        int p = Arrays.binarySearch(packages, path);
+        if (p < 0)
+            return Collections.emptyList();
+        int start = packageStarts[p];
+        int end = packageStarts[p + 1];
+        List<String> ret = new ArrayList<String>(end - start);
+        String prefix = path.isEmpty() ? "" : path + "/";
+        for (int i = start; i < end; i++) {
+            ret.add(prefix.concat(new String(names, nameOffsets[i], nameOffsets[i + 1] - nameOffsets[i])));
+        }
+        return ret;
+    }
+
+    int getFileCount() {
+        return nameOffsets.length - 1;
+    }
+
+    /**
+     * Looks up the package of the given path, which ends before the given index, without
+     * making a substring.
+     */
+    private int binarySearchPackage(String path, int end) {
+        int low = 0;
+        int high = packages.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = comparePrefix(packages[mid], path, end);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    private static int comparePrefix(String pkg, String path, int end) {
+        int min = Math.min(pkg.length(), end);
+        for (int i = 0; i < min; i++) {
+            char c1 = pkg.charAt(i);
+            char c2 = path.charAt(i);
+            if (c1 != c2)
+                return c1 - c2;
+        }
+        return pkg.length() - end;
+    }
+
+    private int compareName(int index, String path, int nameStart) {
+        int start = nameOffsets[index];
+        int length = nameOffsets[index + 1] - start;
+        int otherLength = path.length() - nameStart;
+        int min = Math.min(length, otherLength);
+        for (int i = 0; i < min; i++) {
+            char c1 = names[start + i];
+            char c2 = path.charAt(nameStart + i);
+            if (c1 != c2)
+                return c1 - c2;
+        }
+        return length - otherLength;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactTOC[packages=" + packages.length + "; files=" + getFileCount() + "]";
+    }
+}
@@ -20,14 +20,19 @@
 
 package com.redhat.ceylon.compiler.loader.impl.reflect;
 
-import java.lang.reflect.Member;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import com.redhat.ceylon.common.log.Logger;
 import com.redhat.ceylon.compiler.java.util.Timer;
 import com.redhat.ceylon.compiler.java.util.Util;
 import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
 import com.redhat.ceylon.compiler.loader.TypeParser;
+import com.redhat.ceylon.compiler.loader.impl.reflect.bytecode.BytecodeClass;
+import com.redhat.ceylon.compiler.loader.impl.reflect.bytecode.BytecodeMethod;
+import com.redhat.ceylon.compiler.loader.impl.reflect.bytecode.ClassFileLoader;
 import com.redhat.ceylon.compiler.loader.impl.reflect.mirror.ReflectionClass;
 import com.redhat.ceylon.compiler.loader.impl.reflect.mirror.ReflectionMethod;
 import com.redhat.ceylon.compiler.loader.mirror.ClassMirror;
@@ -44,6 +49,8 @@ import com.redhat.ceylon.compiler.typechecker.model.Unit;
  */
 public abstract class ReflectionModelLoader extends AbstractModelLoader {
 	protected Logger log;
+    private int packageLoadThreads = 1;
+    private ForkJoinPool packageLoadPool;
 	
     public ReflectionModelLoader(ModuleManager moduleManager, Modules modules, Logger log){
         this.moduleManager = moduleManager;
@@ -58,6 +65,15 @@ public abstract class ReflectionModelLoader extends AbstractModelLoader {
     protected abstract boolean packageExists(Module module, String packageName);
     protected abstract Class<?> loadClass(Module module, String name);
 
+    /**
+     * Returns the loader of class files which we use to describe classes without loading them,
+     * or null to load them with {@link #loadClass(Module, String)} and describe them with
+     * reflection, which is the default. Classes it can't find are still loaded.
+     */
+    protected ClassFileLoader getClassFileLoader() {
+        return null;
+    }
+
     @Override
     public void loadStandardModules() {
         super.loadStandardModules();
@@ -75,12 +91,13 @@ public abstract class ReflectionModelLoader extends AbstractModelLoader {
         // to load the declarations, because merely calling complete() on the package
         // is OK
         packageName = Util.quoteJavaKeywords(packageName);
-        if(loadDeclarations && !loadedPackages.add(cacheKeyByModule(module, packageName))){
+        if(loadDeclarations && loadedPackages.putIfAbsent(module, packageName, Boolean.TRUE) != null){
             return true;
         }
         if(!packageExists(module, packageName))
             return false;
         if(loadDeclarations){
+            List<String> classNames = new ArrayList<String>();
             for(String file : getPackageList(module, packageName)){
                 // ignore non-class stuff
                 if(!file.toLowerCase().endsWith(".class"))
@@ -104,7 +121,17 @@ public abstract class ReflectionModelLoader extends AbstractModelLoader {
                 if(!isLoadedFromSource(className) 
                         && (!className.endsWith("_") || !isLoadedFromSource(className.substring(0, className.length()-1)))
                         && !isTypeHidden(module, className))
-                    convertToDeclaration(module, className, DeclarationType.TYPE);
+                    classNames.add(className);
+            }
+            // the classes are read concurrently, but looked up and converted one after the other
+            List<ForkJoinTask<?>> reads = null;
+            if(packageLoadThreads > 1 && classNames.size() > 1)
+                reads = readClasses(module, classNames);
+            for(int i=0;i<classNames.size();i++){
+                // this throws what reading the class threw, as if we had read it ourselves
+                if(reads != null)
+                    reads.get(i).join();
+                convertToDeclaration(module, classNames.get(i), DeclarationType.TYPE);
             }
             if(module.getNameAsString().equals(JAVA_BASE_MODULE_NAME)
                     && packageName.equals("java.lang"))
@@ -113,19 +140,96 @@ public abstract class ReflectionModelLoader extends AbstractModelLoader {
         return true;
     }
 
+    /**
+     * Sets the number of threads which read the classes of a package concurrently when we load
+     * all its declarations, before they are looked up and converted one after the other. Defaults
+     * to one, which reads them while converting them. {@link #loadClass(Module, String)} and the
+     * {@link ClassFileLoader} must be thread-safe to use more.
+     */
+    public synchronized void setPackageLoadThreads(int threads) {
+        threads = Math.max(1, threads);
+        if(threads != packageLoadThreads && packageLoadPool != null){
+            packageLoadPool.shutdown();
+            packageLoadPool = null;
+        }
+        packageLoadThreads = threads;
+    }
+
+    public int getPackageLoadThreads() {
+        return packageLoadThreads;
+    }
+
+    private synchronized ForkJoinPool getPackageLoadPool() {
+        if(packageLoadPool == null)
+            packageLoadPool = new ForkJoinPool(packageLoadThreads);
+        return packageLoadPool;
+    }
+
+    /**
+     * Starts reading the given classes concurrently, so that looking up their mirrors with
+     * {@link #lookupClassMirror(Module, String)} finds them already read. Our callers hold the
+     * lock, so the tasks must not take it: they only fill the caches of the
+     * {@link ClassFileLoader}, or of the class loader when we have no class file loader, and
+     * never touch our own caches. Returns one task per class.
+     */
+    private List<ForkJoinTask<?>> readClasses(final Module module, List<String> classNames) {
+        ForkJoinPool pool = getPackageLoadPool();
+        final ClassFileLoader classFileLoader = getClassFileLoader();
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(classNames.size());
+        for(final String className : classNames){
+            tasks.add(pool.submit(new Runnable(){
+                @Override
+                public void run() {
+                    if(classFileLoader != null){
+                        BytecodeClass bytecodeClass = lookupBytecodeClass(classFileLoader, module, className);
+                        if(bytecodeClass != null){
+                            // and read what the conversion needs while we're at it
+                            bytecodeClass.getDirectMethods();
+                            bytecodeClass.getDirectFields();
+                            bytecodeClass.getTypeParameters();
+                            bytecodeClass.getInterfaces();
+                            bytecodeClass.getSuperclass();
+                            return;
+                        }
+                    }
+                    loadClassForName(module, className);
+                }
+            }));
+        }
+        return tasks;
+    }
+
     protected boolean isLoadedFromSource(String className) {
         return false;
     }
 
     @Override
     public ClassMirror lookupNewClassMirror(Module module, String name) {
-        Class<?> klass = null;
+        ClassFileLoader classFileLoader = getClassFileLoader();
+        if(classFileLoader != null){
+            BytecodeClass bytecodeClass = lookupBytecodeClass(classFileLoader, module, name);
+            if(bytecodeClass != null)
+                return bytecodeClass;
+        }
+        Class<?> klass = loadClassForName(module, name);
+        return klass != null ? new ReflectionClass(klass) : null;
+    }
+
+    private BytecodeClass lookupBytecodeClass(ClassFileLoader classFileLoader, Module module, String name) {
+        BytecodeClass bytecodeClass = classFileLoader.lookupClass(module, Util.quoteJavaKeywords(name));
+        if (bytecodeClass == null && lastPartHasLowerInitial(name) && !name.endsWith("_")) {
+            bytecodeClass = classFileLoader.lookupClass(module, Util.quoteJavaKeywords(name+"_"));
+        }
+        return bytecodeClass;
+    }
+
+    private Class<?> loadClassForName(Module module, String name) {
         // first try with the same name, for Java interop with classes with lowercase name
-        klass = loadClass(module, Util.quoteJavaKeywords(name));
+        Class<?> klass = loadClass(module, Util.quoteJavaKeywords(name));
         if (klass == null && lastPartHasLowerInitial(name) && !name.endsWith("_")) {
             klass = loadClass(module, Util.quoteJavaKeywords(name+"_"));
         }
-        return klass != null ? new ReflectionClass(klass) : null;
+        return klass;
     }
 
     @Override
@@ -143,22 +247,27 @@ public abstract class ReflectionModelLoader extends AbstractModelLoader {
     
     @Override
     protected boolean isOverridingMethod(MethodMirror methodSymbol) {
-        final Member method = ((ReflectionMethod)methodSymbol).method;
-        if (method.getDeclaringClass().getName().contentEquals("ceylon.language.Identifiable")) {
-            if (method.getName().contentEquals("equals") || method.getName().contentEquals("hashCode")) {
+        final String declaringClass = methodSymbol.getEnclosingClass().getQualifiedName();
+        final String name = methodSymbol.getName();
+        if (declaringClass.equals("ceylon.language.Identifiable")) {
+            if (name.equals("equals") || name.equals("hashCode")) {
                 return true;
             }
         }
-        if (method.getDeclaringClass().getName().contentEquals("ceylon.language.Object")) {
-            if (method.getName().contentEquals("equals") || method.getName().contentEquals("hashCode") || method.getName().contentEquals("toString")) {
+        if (declaringClass.equals("ceylon.language.Object")) {
+            if (name.equals("equals") || name.equals("hashCode") || name.equals("toString")) {
                 return false;
             }
         }
+        if(methodSymbol instanceof BytecodeMethod)
+            return ((BytecodeMethod)methodSymbol).isOverridingMethod();
         return ((ReflectionMethod)methodSymbol).isOverridingMethod();
     }
     
     @Override
     protected boolean isOverloadingMethod(MethodMirror methodSymbol) {
+        if(methodSymbol instanceof BytecodeMethod)
+            return ((BytecodeMethod)methodSymbol).isOverloadingMethod();
         return ((ReflectionMethod)methodSymbol).isOverloadingMethod();
     }
 
@@ -0,0 +1,58 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.bytecode;
+
+import java.util.Map;
+
+import com.redhat.ceylon.compiler.loader.mirror.AnnotationMirror;
+
+public class BytecodeAnnotation implements AnnotationMirror {
+
+    private final String type;
+    private final Map<String, Object> values;
+
+    BytecodeAnnotation(String type, Map<String, Object> values) {
+        this.type = type;
+        this.values = values;
+    }
+
+    /**
+     * Returns the name of the annotation type.
+     */
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public Object getValue(String fieldName) {
+        // default values are not in the class file, like for javac annotations
+        return values.get(fieldName);
+    }
+
+    @Override
+    public Object getValue() {
+        return getValue("value");
+    }
+
+    @Override
+    public String toString() {
+        return "[BytecodeAnnotation: @"+type+values+"]";
+    }
+}
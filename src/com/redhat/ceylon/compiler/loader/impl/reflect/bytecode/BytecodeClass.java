@@ -0,0 +1,401 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.bytecode;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
+import com.redhat.ceylon.compiler.loader.mirror.AnnotationMirror;
+import com.redhat.ceylon.compiler.loader.mirror.ClassMirror;
+import com.redhat.ceylon.compiler.loader.mirror.FieldMirror;
+import com.redhat.ceylon.compiler.loader.mirror.MethodMirror;
+import com.redhat.ceylon.compiler.loader.mirror.PackageMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeParameterMirror;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+
+/**
+ * A class mirror read from a class file, which describes the same things as
+ * {@link com.redhat.ceylon.compiler.loader.impl.reflect.mirror.ReflectionClass} without
+ * loading the class.
+ * <p>
+ * Mirrors are shared by the threads which look up classes, so what we compute on demand is
+ * published through volatile fields once complete. The signature and the methods are computed
+ * once under our lock, because their type parameters are compared by identity.
+ */
+public class BytecodeClass implements ClassMirror, TypeVariableScope {
+
+    private final ClassFileLoader loader;
+    private final ClassFile classFile;
+    private volatile List<FieldMirror> fields;
+    private volatile List<MethodMirror> methods;
+    private volatile List<BytecodeMethod> allMethods;
+    private volatile Signatures.ClassSignature classSignature;
+    private volatile List<TypeParameterMirror> typeParameters;
+    private volatile BytecodePackage pkg;
+    private volatile boolean enclosingClassSet;
+    private volatile BytecodeClass enclosingClass;
+    private volatile boolean enclosingMethodSet;
+    private volatile BytecodeMethod enclosingMethod;
+    private volatile List<ClassMirror> innerClasses;
+    private volatile String cacheKey;
+
+    BytecodeClass(ClassFileLoader loader, ClassFile classFile) {
+        this.loader = loader;
+        this.classFile = classFile;
+    }
+
+    ClassFileLoader getLoader() {
+        return loader;
+    }
+
+    @Override
+    public AnnotationMirror getAnnotation(String type) {
+        return classFile.annotations.get(type);
+    }
+
+    private boolean isAnnotationPresent(String type) {
+        return classFile.annotations.containsKey(type);
+    }
+
+    private int getModifiers() {
+        // like reflection, nested classes get their modifiers from the InnerClasses attribute
+        return classFile.nested ? classFile.innerAccess : classFile.access;
+    }
+
+    @Override
+    public boolean isPublic() {
+        return (getModifiers() & ClassFile.ACC_PUBLIC) != 0;
+    }
+
+    @Override
+    public boolean isProtected() {
+        return (getModifiers() & ClassFile.ACC_PROTECTED) != 0;
+    }
+
+    @Override
+    public boolean isDefaultAccess() {
+        return (getModifiers() & (ClassFile.ACC_PUBLIC | ClassFile.ACC_PROTECTED | ClassFile.ACC_PRIVATE)) == 0;
+    }
+
+    @Override
+    public String getQualifiedName() {
+        return classFile.name.replace('/', '.');
+    }
+
+    @Override
+    public String getFlatName() {
+        return getQualifiedName();
+    }
+
+    @Override
+    public String getName() {
+        if(classFile.nested)
+            return classFile.simpleName;
+        return classFile.name.substring(classFile.name.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public PackageMirror getPackage() {
+        BytecodePackage pkg = this.pkg;
+        if(pkg != null)
+            return pkg;
+        int lastSlash = classFile.name.lastIndexOf('/');
+        pkg = new BytecodePackage(lastSlash == -1 ? "" : classFile.name.substring(0, lastSlash).replace('/', '.'));
+        this.pkg = pkg;
+        return pkg;
+    }
+
+    @Override
+    public boolean isInterface() {
+        return (classFile.access & ClassFile.ACC_INTERFACE) != 0;
+    }
+
+    @Override
+    public boolean isAnnotationType() {
+        return (classFile.access & ClassFile.ACC_ANNOTATION) != 0;
+    }
+
+    @Override
+    public boolean isAbstract() {
+        return (getModifiers() & ClassFile.ACC_ABSTRACT) != 0;
+    }
+
+    @Override
+    public boolean isStatic() {
+        return (getModifiers() & ClassFile.ACC_STATIC) != 0;
+    }
+
+    @Override
+    public boolean isFinal() {
+        return (getModifiers() & ClassFile.ACC_FINAL) != 0;
+    }
+
+    /**
+     * Returns every method and constructor of the class file, including the synthetic ones
+     * and the bridges, but not the static initialiser.
+     */
+    List<BytecodeMethod> getAllMethods() {
+        List<BytecodeMethod> allMethods = this.allMethods;
+        if(allMethods != null)
+            return allMethods;
+        synchronized(this){
+            allMethods = this.allMethods;
+            if(allMethods != null)
+                return allMethods;
+            allMethods = new ArrayList<BytecodeMethod>(classFile.methods.size());
+            for(ClassFile.Member method : classFile.methods){
+                if(!method.name.equals("<clinit>"))
+                    allMethods.add(new BytecodeMethod(this, method));
+            }
+            this.allMethods = allMethods;
+            return allMethods;
+        }
+    }
+
+    @Override
+    public List<MethodMirror> getDirectMethods() {
+        List<MethodMirror> methods = this.methods;
+        if(methods != null)
+            return methods;
+        List<BytecodeMethod> allMethods = getAllMethods();
+        methods = new ArrayList<MethodMirror>(allMethods.size());
+        for(BytecodeMethod method : allMethods){
+            // Note: like ReflectionClass we return private members, because the runtime manager
+            // depends on them
+            if(!method.isSynthetic() && !method.isBridge())
+                methods.add(method);
+        }
+        this.methods = methods;
+        return methods;
+    }
+
+    @Override
+    public List<FieldMirror> getDirectFields() {
+        List<FieldMirror> fields = this.fields;
+        if(fields != null)
+            return fields;
+        fields = new ArrayList<FieldMirror>(classFile.fields.size());
+        for(ClassFile.Member field : classFile.fields)
+            if((field.access & ClassFile.ACC_SYNTHETIC) == 0)
+                fields.add(new BytecodeField(this, field));
+        this.fields = fields;
+        return fields;
+    }
+
+    private Signatures.ClassSignature getClassSignature() {
+        Signatures.ClassSignature classSignature = this.classSignature;
+        if(classSignature != null)
+            return classSignature;
+        // parsing may look up the type parameters of our enclosing method or class, never of
+        // the classes we enclose, so we can't take these locks in the reverse order
+        synchronized(this){
+            classSignature = this.classSignature;
+            if(classSignature == null){
+                classSignature = Signatures.parseClassSignature(classFile, loader, this);
+                this.classSignature = classSignature;
+            }
+            return classSignature;
+        }
+    }
+
+    @Override
+    public TypeMirror getSuperclass() {
+        return getClassSignature().superclass;
+    }
+
+    /**
+     * Returns the name of the superclass, or null for interfaces and java.lang.Object.
+     */
+    String getSuperclassName() {
+        return isInterface() || classFile.superName == null ? null : classFile.superName.replace('/', '.');
+    }
+
+    /**
+     * Returns the names of the implemented interfaces.
+     */
+    String[] getInterfaceNames() {
+        String[] names = new String[classFile.interfaces.length];
+        for(int i=0;i<names.length;i++)
+            names[i] = classFile.interfaces[i].replace('/', '.');
+        return names;
+    }
+
+    @Override
+    public List<TypeMirror> getInterfaces() {
+        return getClassSignature().interfaces;
+    }
+
+    @Override
+    public List<TypeParameterMirror> getTypeParameters() {
+        List<TypeParameterMirror> typeParameters = this.typeParameters;
+        if(typeParameters != null)
+            return typeParameters;
+        typeParameters = new ArrayList<TypeParameterMirror>(getClassSignature().typeParameters);
+        this.typeParameters = typeParameters;
+        return typeParameters;
+    }
+
+    @Override
+    public BytecodeTypeParameter findTypeParameter(String name) {
+        for(BytecodeTypeParameter typeParameter : getClassSignature().typeParameters){
+            if(typeParameter.getName().equals(name))
+                return typeParameter;
+        }
+        // local classes can use the type parameters of their method, and of its class
+        BytecodeMethod enclosingMethod = getEnclosingMethod();
+        if(enclosingMethod != null)
+            return enclosingMethod.findTypeParameter(name);
+        BytecodeClass enclosingClass = getEnclosingClass();
+        if(enclosingClass != null)
+            return enclosingClass.findTypeParameter(name);
+        return null;
+    }
+
+    @Override
+    public boolean isCeylonToplevelAttribute() {
+        return !isInnerClass() && isAnnotationPresent(AbstractModelLoader.CEYLON_ATTRIBUTE_ANNOTATION);
+    }
+
+    @Override
+    public boolean isCeylonToplevelObject() {
+        return !isInnerClass() && isAnnotationPresent(AbstractModelLoader.CEYLON_OBJECT_ANNOTATION);
+    }
+
+    @Override
+    public boolean isCeylonToplevelMethod() {
+        return !isInnerClass() && isAnnotationPresent(AbstractModelLoader.CEYLON_METHOD_ANNOTATION);
+    }
+
+    @Override
+    public boolean isLoadedFromSource() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "[BytecodeClass: "+getQualifiedName()+"]";
+    }
+
+    boolean isMemberClass() {
+        // local and anonymous classes have an EnclosingMethod attribute, even outside of methods
+        return classFile.nested && classFile.outerName != null && classFile.enclosingClassName == null;
+    }
+
+    /**
+     * Returns true if this is a local class for Java, unlike {@link #isLocalClass()} which also
+     * returns true for local Ceylon declarations.
+     */
+    boolean isJavaLocalClass() {
+        return classFile.enclosingClassName != null && !isAnonymous();
+    }
+
+    @Override
+    public boolean isInnerClass() {
+        return isMemberClass() || isAnnotationPresent(AbstractModelLoader.CEYLON_CONTAINER_ANNOTATION);
+    }
+
+    @Override
+    public boolean isLocalClass() {
+        return isJavaLocalClass()
+                || isAnnotationPresent(AbstractModelLoader.CEYLON_LOCAL_DECLARATION_ANNOTATION);
+    }
+
+    @Override
+    public List<ClassMirror> getDirectInnerClasses() {
+        List<ClassMirror> innerClasses = this.innerClasses;
+        if(innerClasses == null){
+            innerClasses = new LinkedList<ClassMirror>();
+            for(ClassFile.InnerClass memberClass : classFile.memberClasses){
+                BytecodeClass innerClass = loader.getClass(memberClass.name.replace('/', '.'));
+                if(innerClass != null)
+                    innerClasses.add(innerClass);
+            }
+            this.innerClasses = innerClasses;
+        }
+        return innerClasses;
+    }
+
+    @Override
+    public boolean isAnonymous() {
+        return classFile.nested && classFile.simpleName.isEmpty();
+    }
+
+    @Override
+    public boolean isJavaSource() {
+        return false;
+    }
+
+    @Override
+    public BytecodeClass getEnclosingClass() {
+        if(enclosingClassSet)
+            return enclosingClass;
+        String name = classFile.enclosingClassName != null ? classFile.enclosingClassName
+                : isMemberClass() ? classFile.outerName : null;
+        // the loader hands out the same mirror to every thread
+        if(name != null)
+            enclosingClass = loader.getClass(name.replace('/', '.'));
+        enclosingClassSet = true;
+        return enclosingClass;
+    }
+
+    @Override
+    public BytecodeMethod getEnclosingMethod() {
+        if(enclosingMethodSet)
+            return enclosingMethod;
+        // we're not in a method if we're in an initialiser
+        if(classFile.enclosingMethodName != null){
+            BytecodeClass declaringClass = getEnclosingClass();
+            if(declaringClass != null)
+                enclosingMethod = declaringClass.findMethod(classFile.enclosingMethodName,
+                        classFile.enclosingMethodDescriptor);
+        }
+        enclosingMethodSet = true;
+        return enclosingMethod;
+    }
+
+    private BytecodeMethod findMethod(String name, String descriptor) {
+        for(BytecodeMethod method : getAllMethods()){
+            if(method.getMember().name.equals(name)
+                    && method.getMember().descriptor.equals(descriptor))
+                return method;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isEnum() {
+        return (classFile.access & ClassFile.ACC_ENUM) != 0
+                && "java/lang/Enum".equals(classFile.superName);
+    }
+
+    @Override
+    public String getCacheKey(Module module) {
+        String cacheKey = this.cacheKey;
+        if(cacheKey == null){
+            String className = getQualifiedName();
+            cacheKey = AbstractModelLoader.getCacheKeyByModule(module, className);
+            this.cacheKey = cacheKey;
+        }
+        return cacheKey;
+    }
+}
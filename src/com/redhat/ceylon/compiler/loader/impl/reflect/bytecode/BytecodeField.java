@@ -0,0 +1,87 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.bytecode;
+
+import com.redhat.ceylon.compiler.loader.mirror.AnnotationMirror;
+import com.redhat.ceylon.compiler.loader.mirror.FieldMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeMirror;
+
+public class BytecodeField implements FieldMirror {
+
+    private final BytecodeClass enclosingClass;
+    private final ClassFile.Member field;
+    private volatile BytecodeType type;
+
+    BytecodeField(BytecodeClass enclosingClass, ClassFile.Member field) {
+        this.enclosingClass = enclosingClass;
+        this.field = field;
+    }
+
+    @Override
+    public AnnotationMirror getAnnotation(String type) {
+        return field.annotations.get(type);
+    }
+
+    @Override
+    public String getName() {
+        return field.name;
+    }
+
+    @Override
+    public boolean isStatic() {
+        return (field.access & ClassFile.ACC_STATIC) != 0;
+    }
+
+    @Override
+    public boolean isPublic() {
+        return (field.access & ClassFile.ACC_PUBLIC) != 0;
+    }
+
+    @Override
+    public boolean isProtected() {
+        return (field.access & ClassFile.ACC_PROTECTED) != 0;
+    }
+
+    @Override
+    public boolean isDefaultAccess() {
+        return (field.access & (ClassFile.ACC_PUBLIC | ClassFile.ACC_PROTECTED | ClassFile.ACC_PRIVATE)) == 0;
+    }
+
+    @Override
+    public boolean isFinal() {
+        return (field.access & ClassFile.ACC_FINAL) != 0;
+    }
+
+    @Override
+    public TypeMirror getType() {
+        BytecodeType type = this.type;
+        if(type != null)
+            return type;
+        type = Signatures.parseType(field.signature != null ? field.signature : field.descriptor,
+                enclosingClass.getLoader(), enclosingClass);
+        this.type = type;
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return "[BytecodeField: "+enclosingClass.getQualifiedName()+"."+field.name+"]";
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.bytecode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.redhat.ceylon.compiler.loader.mirror.AnnotationMirror;
+import com.redhat.ceylon.compiler.loader.mirror.MethodMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeParameterMirror;
+import com.redhat.ceylon.compiler.loader.mirror.VariableMirror;
+
+public class BytecodeMethod implements MethodMirror, TypeVariableScope {
+
+    private final BytecodeClass enclosingClass;
+    private final ClassFile.Member method;
+    // like in BytecodeClass, what we compute on demand is published once complete, and the
+    // signatures, which hold our type parameters, are parsed once under our lock
+    private volatile Signatures.MethodSignature descriptor;
+    private volatile Signatures.MethodSignature signature;
+    private volatile List<VariableMirror> parameters;
+    private volatile List<TypeParameterMirror> typeParameters;
+    private volatile Boolean overridingMethod;
+    private volatile Boolean overloadingMethod;
+
+    BytecodeMethod(BytecodeClass enclosingClass, ClassFile.Member method) {
+        this.enclosingClass = enclosingClass;
+        this.method = method;
+    }
+
+    ClassFile.Member getMember() {
+        return method;
+    }
+
+    @Override
+    public AnnotationMirror getAnnotation(String type) {
+        return method.annotations.get(type);
+    }
+
+    @Override
+    public String getName() {
+        // like reflection, constructors are named after their class
+        if(isConstructor())
+            return enclosingClass.getQualifiedName();
+        return method.name;
+    }
+
+    @Override
+    public boolean isStatic() {
+        return (method.access & ClassFile.ACC_STATIC) != 0;
+    }
+
+    @Override
+    public boolean isPublic() {
+        return (method.access & ClassFile.ACC_PUBLIC) != 0;
+    }
+
+    @Override
+    public boolean isProtected() {
+        return (method.access & ClassFile.ACC_PROTECTED) != 0;
+    }
+
+    @Override
+    public boolean isDefaultAccess() {
+        return (method.access & (ClassFile.ACC_PUBLIC | ClassFile.ACC_PROTECTED | ClassFile.ACC_PRIVATE)) == 0;
+    }
+
+    boolean isPrivate() {
+        return (method.access & ClassFile.ACC_PRIVATE) != 0;
+    }
+
+    boolean isSynthetic() {
+        return (method.access & ClassFile.ACC_SYNTHETIC) != 0;
+    }
+
+    boolean isBridge() {
+        return (method.access & ClassFile.ACC_BRIDGE) != 0;
+    }
+
+    @Override
+    public boolean isConstructor() {
+        return method.name.equals("<init>");
+    }
+
+    @Override
+    public boolean isStaticInit() {
+        return false;
+    }
+
+    @Override
+    public boolean isVariadic() {
+        return (method.access & ClassFile.ACC_VARARGS) != 0;
+    }
+
+    /**
+     * Returns the types of the descriptor, which include every synthetic parameter.
+     */
+    Signatures.MethodSignature getDescriptor() {
+        Signatures.MethodSignature descriptor = this.descriptor;
+        if(descriptor != null)
+            return descriptor;
+        synchronized(this){
+            descriptor = this.descriptor;
+            if(descriptor == null){
+                descriptor = Signatures.parseMethodSignature(method.descriptor, enclosingClass.getLoader(), this);
+                this.descriptor = descriptor;
+            }
+            return descriptor;
+        }
+    }
+
+    /**
+     * Returns the generic types of the signature, or of the descriptor if there is no signature.
+     */
+    Signatures.MethodSignature getSignature() {
+        Signatures.MethodSignature signature = this.signature;
+        if(signature != null)
+            return signature;
+        synchronized(this){
+            signature = this.signature;
+            if(signature == null){
+                signature = method.signature != null
+                    ? Signatures.parseMethodSignature(method.signature, enclosingClass.getLoader(), this)
+                    : getDescriptor();
+                this.signature = signature;
+            }
+            return signature;
+        }
+    }
+
+    @Override
+    public List<VariableMirror> getParameters() {
+        List<VariableMirror> parameters = this.parameters;
+        if(parameters != null)
+            return parameters;
+        List<BytecodeType> javaParameters = getSignature().parameters;
+        // the descriptor always includes synthetic parameters
+        int parameterCount = getDescriptor().parameters.size();
+        List<Map<String, AnnotationMirror>> annotations = method.parameterAnnotations;
+        if(annotations == null)
+            annotations = Collections.nCopies(parameterCount, Collections.<String, AnnotationMirror>emptyMap());
+        parameters = new ArrayList<VariableMirror>(parameterCount);
+        int start = 0;
+        if(isConstructor()){
+            // enums will always add two synthetic parameters (string and int) and always be static so none more
+            if(enclosingClass.isEnum())
+                start = 2;
+            // inner classes will always add a synthetic parameter to the constructor, unless they are static
+            // FIXME: local and anonymous classes may add more but we don't know how to find out
+            else if((enclosingClass.isMemberClass()
+                        || enclosingClass.isAnonymous()
+                        // if it's a local class its container method must not be static
+                        || (enclosingClass.isJavaLocalClass() && !isStaticLocalContainer(enclosingClass)))
+                    && !enclosingClass.isStatic())
+                start = 1;
+        }
+
+        // see ReflectionMethod: signatures and parameter annotations may only include the non-synthetic
+        // parameters, in which case we subtract the synthetic ones
+        int parametersOffset = javaParameters.size() != parameterCount ? -start : 0;
+        int annotationsOffset = annotations.size() != parameterCount ? -start : 0;
+
+        // we have synthetic parameters first (skipped with start), then regular params, then synthetic captured params
+        if(javaParameters.size() != parameterCount)
+            parameterCount = javaParameters.size() + start;
+        else if(annotations.size() != parameterCount)
+            parameterCount = annotations.size() + start;
+
+        // skip synthetic parameters
+        for(int i=start;i<parameterCount;i++){
+            parameters.add(new BytecodeVariable(javaParameters.get(i+parametersOffset), annotations.get(i+annotationsOffset)));
+        }
+        this.parameters = parameters;
+        return parameters;
+    }
+
+    private boolean isStaticLocalContainer(BytecodeClass klass) {
+        BytecodeMethod enclosingMethod = klass.getEnclosingMethod();
+        return enclosingMethod != null && enclosingMethod.isStatic();
+    }
+
+    @Override
+    public boolean isAbstract() {
+        return (method.access & ClassFile.ACC_ABSTRACT) != 0;
+    }
+
+    @Override
+    public boolean isFinal() {
+        return (method.access & ClassFile.ACC_FINAL) != 0;
+    }
+
+    @Override
+    public TypeMirror getReturnType() {
+        return getSignature().returnType;
+    }
+
+    @Override
+    public boolean isDeclaredVoid() {
+        return !isConstructor() && method.descriptor.endsWith(")V");
+    }
+
+    @Override
+    public List<TypeParameterMirror> getTypeParameters() {
+        List<TypeParameterMirror> typeParameters = this.typeParameters;
+        if(typeParameters != null)
+            return typeParameters;
+        typeParameters = new ArrayList<TypeParameterMirror>(getSignature().typeParameters);
+        this.typeParameters = typeParameters;
+        return typeParameters;
+    }
+
+    @Override
+    public BytecodeTypeParameter findTypeParameter(String name) {
+        for(BytecodeTypeParameter typeParameter : getSignature().typeParameters){
+            if(typeParameter.getName().equals(name))
+                return typeParameter;
+        }
+        return enclosingClass.findTypeParameter(name);
+    }
+
+    public boolean isOverridingMethod() {
+        Boolean overridingMethod = this.overridingMethod;
+        if(overridingMethod == null){
+            overridingMethod = !isConstructor() && BytecodeUtils.isOverridingMethod(this);
+            this.overridingMethod = overridingMethod;
+        }
+        return overridingMethod.booleanValue();
+    }
+
+    public boolean isOverloadingMethod() {
+        Boolean overloadingMethod = this.overloadingMethod;
+        if(overloadingMethod == null){
+            overloadingMethod = !isConstructor() && BytecodeUtils.isOverloadingMethod(this);
+            this.overloadingMethod = overloadingMethod;
+        }
+        return overloadingMethod.booleanValue();
+    }
+
+    @Override
+    public String toString() {
+        return "[BytecodeMethod: "+enclosingClass.getQualifiedName()+"."+method.name+method.descriptor+"]";
+    }
+
+    @Override
+    public boolean isDefault() {
+        return method.hasAnnotationDefault;
+    }
+
+    @Override
+    public BytecodeClass getEnclosingClass() {
+        return enclosingClass;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.bytecode;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.lang.model.type.TypeKind;
+
+import com.redhat.ceylon.compiler.loader.ModelResolutionException;
+import com.redhat.ceylon.compiler.loader.mirror.ClassMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeParameterMirror;
+
+public class BytecodeType implements TypeMirror {
+
+    private final TypeKind kind;
+    // the class name for declared types, the name of type variables and primitives
+    private final String name;
+    private final List<TypeMirror> typeArguments;
+    private final BytecodeType componentType;
+    private final BytecodeType upperBound;
+    private final BytecodeType lowerBound;
+    private final ClassFileLoader loader;
+    private final TypeVariableScope scope;
+    // resolved on demand, to mirrors which are the same for every thread
+    private volatile boolean declaredClassSet;
+    private volatile ClassMirror declaredClass;
+    private volatile boolean typeParameterSet;
+    private volatile TypeParameterMirror typeParameter;
+
+    private BytecodeType(TypeKind kind, String name, List<TypeMirror> typeArguments,
+            BytecodeType componentType, BytecodeType upperBound, BytecodeType lowerBound,
+            ClassFileLoader loader, TypeVariableScope scope) {
+        this.kind = kind;
+        this.name = name;
+        this.typeArguments = typeArguments != null ? typeArguments : Collections.<TypeMirror>emptyList();
+        this.componentType = componentType;
+        this.upperBound = upperBound;
+        this.lowerBound = lowerBound;
+        this.loader = loader;
+        this.scope = scope;
+    }
+
+    static BytecodeType primitive(TypeKind kind) {
+        return new BytecodeType(kind, kind.name().toLowerCase(), null, null, null, null, null, null);
+    }
+
+    static BytecodeType declared(String name, List<TypeMirror> typeArguments, ClassFileLoader loader) {
+        return new BytecodeType(TypeKind.DECLARED, name, typeArguments, null, null, null, loader, null);
+    }
+
+    static BytecodeType array(BytecodeType componentType) {
+        return new BytecodeType(TypeKind.ARRAY, null, null, componentType, null, null, null, null);
+    }
+
+    static BytecodeType typeVariable(String name, TypeVariableScope scope) {
+        return new BytecodeType(TypeKind.TYPEVAR, name, null, null, null, null, null, scope);
+    }
+
+    static BytecodeType wildcard(BytecodeType upperBound, BytecodeType lowerBound) {
+        return new BytecodeType(TypeKind.WILDCARD, null, null, null, upperBound, lowerBound, null, null);
+    }
+
+    @Override
+    public String getQualifiedName() {
+        if(kind == TypeKind.ARRAY)
+            return "[" + componentType.getErasure();
+        return name;
+    }
+
+    /**
+     * Returns the erasure of this type like in a descriptor, but with dots, so that array
+     * names are the same as {@link Class#getName()}.
+     */
+    String getErasure() {
+        switch(kind){
+        case BOOLEAN: return "Z";
+        case BYTE: return "B";
+        case CHAR: return "C";
+        case SHORT: return "S";
+        case INT: return "I";
+        case LONG: return "J";
+        case FLOAT: return "F";
+        case DOUBLE: return "D";
+        case VOID: return "V";
+        case ARRAY: return "[" + componentType.getErasure();
+        case DECLARED: return "L" + name + ";";
+        case WILDCARD: return upperBound != null ? upperBound.getErasure() : "Ljava.lang.Object;";
+        default:
+            // type variables are erased by whoever knows their type arguments
+            return "Ljava.lang.Object;";
+        }
+    }
+
+    @Override
+    public List<TypeMirror> getTypeArguments() {
+        return typeArguments;
+    }
+
+    @Override
+    public TypeKind getKind() {
+        return kind;
+    }
+
+    @Override
+    public TypeMirror getComponentType() {
+        return componentType;
+    }
+
+    @Override
+    public boolean isPrimitive() {
+        return kind.isPrimitive() || kind == TypeKind.VOID;
+    }
+
+    @Override
+    public boolean isRaw() {
+        switch(kind){
+        case DECLARED:
+            // we're raw if our type is a parameterised type that should have type params
+            BytecodeClass klass = loader.getClass(name);
+            return klass != null && klass.getTypeParameters().size() != typeArguments.size();
+        case ARRAY:
+            return componentType.isRaw();
+        default:
+            return false;
+        }
+    }
+
+    @Override
+    public TypeMirror getUpperBound() {
+        // like reflection, wildcards with a lower bound have no upper bound
+        return lowerBound == null ? upperBound : null;
+    }
+
+    @Override
+    public TypeMirror getLowerBound() {
+        return lowerBound;
+    }
+
+    @Override
+    public ClassMirror getDeclaredClass() {
+        if(!declaredClassSet){
+            if(kind == TypeKind.DECLARED){
+                declaredClass = loader.getClass(name);
+                if(declaredClass == null)
+                    throw new ModelResolutionException("Failed to find class "+name);
+            }
+            declaredClassSet = true;
+        }
+        return declaredClass;
+    }
+
+    @Override
+    public TypeParameterMirror getTypeParameter() {
+        if(kind != TypeKind.TYPEVAR)
+            return null;
+        if(!typeParameterSet){
+            typeParameter = scope != null ? scope.findTypeParameter(name) : null;
+            typeParameterSet = true;
+        }
+        return typeParameter;
+    }
+
+    @Override
+    public String toString() {
+        switch(kind){
+        case DECLARED:
+            return "[BytecodeType: "+name+(typeArguments.isEmpty() ? "" : typeArguments.toString())+"]";
+        case WILDCARD:
+            return "[BytecodeType: ?"+(upperBound != null ? " extends "+upperBound : "")
+                    +(lowerBound != null ? " super "+lowerBound : "")+"]";
+        case ARRAY:
+            return "[BytecodeType: "+componentType+"[]]";
+        default:
+            return "[BytecodeType: "+name+"]";
+        }
+    }
+}
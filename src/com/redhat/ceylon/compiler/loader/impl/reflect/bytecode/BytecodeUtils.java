@@ -0,0 +1,281 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.bytecode;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.type.TypeKind;
+
+import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
+import com.redhat.ceylon.compiler.loader.mirror.TypeMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeParameterMirror;
+
+/**
+ * Tells if methods override or overload others like
+ * {@link com.redhat.ceylon.compiler.loader.impl.reflect.mirror.ReflectionUtils}, but from
+ * class files. Erasures are compared by name, like in descriptors.
+ */
+class BytecodeUtils {
+
+    private static final String OBJECT_ERASURE = "Ljava.lang.Object;";
+
+    private enum OverXing {
+        Overloading, Overriding
+    }
+
+    static boolean isOverridingMethod(BytecodeMethod method) {
+        return isOverXingMethod(OverXing.Overriding, method);
+    }
+
+    static boolean isOverloadingMethod(BytecodeMethod method) {
+        return isOverXingMethod(OverXing.Overloading, method);
+    }
+
+    private static boolean isOverXingMethod(OverXing searchType, BytecodeMethod method) {
+        // fast exit
+        if(method.isPrivate())
+            return false;
+        String name = method.getName();
+        String[] parameterTypes = getParameterErasures(method);
+        BytecodeClass declaringClass = method.getEnclosingClass();
+        ClassFileLoader loader = declaringClass.getLoader();
+        // make sure we don't visit interfaces more than once
+        Set<String> visited = new HashSet<String>();
+        // try the superclass first
+        BytecodeClass superclass = getClass(loader, declaringClass.getSuperclassName());
+        if(superclass != null){
+            if(isOverXingMethodInClassRecursive(searchType, name, parameterTypes, declaringClass, superclass, visited))
+                return true;
+        }
+        // now try the interfaces
+        for(String interfce : declaringClass.getInterfaceNames()){
+            BytecodeClass klass = getClass(loader, interfce);
+            if(klass != null
+                    && isOverXingMethodInClassRecursive(searchType, name, parameterTypes, declaringClass, klass, visited))
+                return true;
+        }
+        // not overriding anything
+        return false;
+    }
+
+    private static BytecodeClass getClass(ClassFileLoader loader, String name) {
+        // like for reflection, we can't tell anything about supertypes we can't find
+        return name != null ? loader.getClass(name) : null;
+    }
+
+    private static boolean isOverXingMethodInClassRecursive(OverXing searchType, String name, String[] parameterTypes,
+            BytecodeClass declaringClass, BytecodeClass klass, Set<String> visited) {
+        if(!visited.add(klass.getQualifiedName()))
+            return false;
+        if(isOverXingMethodInClass(searchType, name, parameterTypes, declaringClass, klass))
+            return true;
+        ClassFileLoader loader = klass.getLoader();
+        // try the superclass first
+        BytecodeClass superclass = getClass(loader, klass.getSuperclassName());
+        if(superclass != null){
+            if(isOverXingMethodInClassRecursive(searchType, name, parameterTypes, declaringClass, superclass, visited))
+                return true;
+        }
+        // now try the interfaces
+        for(String interfce : klass.getInterfaceNames()){
+            BytecodeClass superinterface = getClass(loader, interfce);
+            if(superinterface != null
+                    && isOverXingMethodInClassRecursive(searchType, name, parameterTypes, declaringClass, superinterface, visited))
+                return true;
+        }
+        // not overriding anything here
+        return false;
+    }
+
+    private static boolean isOverXingMethodInClass(OverXing searchType, String name, String[] parameterTypes,
+            BytecodeClass declaringClass, BytecodeClass klass) {
+        switch(searchType){
+        case Overloading:
+            return isOverloadingMethodInClass(name, parameterTypes, declaringClass, klass);
+        case Overriding:
+            return isOverridingMethodInClass(name, parameterTypes, declaringClass, klass);
+        default:
+            throw new RuntimeException("Non-exhaustive switch");
+        }
+    }
+
+    private static boolean isOverridingMethodInClass(String name, String[] parameterTypes,
+            BytecodeClass declaringClass, BytecodeClass lookupClass) {
+        // look it up by its erasure first, preferring the method to its bridges like reflection does
+        BytecodeMethod sameErasure = null;
+        for(BytecodeMethod m : lookupClass.getAllMethods()){
+            if(!m.isConstructor()
+                    && m.getName().equals(name)
+                    && Arrays.equals(getParameterErasures(m), parameterTypes)
+                    && (sameErasure == null || !m.isBridge()))
+                sameErasure = m;
+        }
+        if(sameErasure != null){
+            // present
+            return !sameErasure.isBridge() && !sameErasure.isSynthetic() && !sameErasure.isPrivate()
+                    && !isIgnored(sameErasure)
+                    && !isHiddenMethod(sameErasure);
+        }
+        NEXT_METHOD:
+        for(BytecodeMethod m : lookupClass.getAllMethods()){
+            if(m.isConstructor()
+                    || !m.getName().equals(name)
+                    || m.isBridge()
+                    || m.isSynthetic()
+                    || isIgnored(m)
+                    || m.isFinal()
+                    || m.isPrivate()
+                    || isHiddenMethod(m))
+                continue;
+            List<BytecodeType> genericParameterTypes = m.getSignature().parameters;
+            if(genericParameterTypes.size() != parameterTypes.length)
+                continue;
+            int i=0;
+            // get the type argument mappings for that method's container
+            Map<TypeParameterMirror, String> typeArguments = getTypeArguments(declaringClass, lookupClass);
+            for(BytecodeType t : genericParameterTypes){
+                String parameterErasure = getParameterErasure(typeArguments, t);
+                if(!parameterErasure.equals(parameterTypes[i++]))
+                    continue NEXT_METHOD;
+            }
+            // must be the same?
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isOverloadingMethodInClass(String name, String[] parameterTypes,
+            BytecodeClass declaringClass, BytecodeClass lookupClass) {
+        for(BytecodeMethod m : lookupClass.getAllMethods()){
+            if(m.isConstructor()
+                    || !m.getName().equals(name)
+                    || m.isBridge()
+                    || m.isSynthetic()
+                    || isIgnored(m)
+                    || m.isPrivate()
+                    || isHiddenMethod(m))
+                continue;
+            List<BytecodeType> genericParameterTypes = m.getSignature().parameters;
+            if(genericParameterTypes.size() != parameterTypes.length)
+                return true;
+            int i=0;
+            // get the type argument mappings for that method's container
+            Map<TypeParameterMirror, String> typeArguments = getTypeArguments(declaringClass, lookupClass);
+            for(BytecodeType t : genericParameterTypes){
+                String parameterErasure = getParameterErasure(typeArguments, t);
+                if(!parameterErasure.equals(parameterTypes[i++]))
+                    return true;
+            }
+            // must be the overriding, check the next one
+        }
+        // no overload here
+        return false;
+    }
+
+    private static boolean isIgnored(BytecodeMethod m) {
+        return m.getAnnotation(AbstractModelLoader.CEYLON_IGNORE_ANNOTATION) != null;
+    }
+
+    private static boolean isHiddenMethod(BytecodeMethod m) {
+        return m.getEnclosingClass().getQualifiedName().equals("java.lang.Object")
+                && (m.getName().equals("finalize")
+                        || m.getName().equals("clone"));
+    }
+
+    private static String[] getParameterErasures(BytecodeMethod method) {
+        List<BytecodeType> parameters = method.getDescriptor().parameters;
+        String[] erasures = new String[parameters.size()];
+        for(int i=0;i<erasures.length;i++)
+            erasures[i] = parameters.get(i).getErasure();
+        return erasures;
+    }
+
+    private static String getParameterErasure(Map<TypeParameterMirror, String> typeArguments, TypeMirror t) {
+        BytecodeType type = (BytecodeType) t;
+        if(type.getKind() == TypeKind.TYPEVAR){
+            TypeParameterMirror typeParameter = type.getTypeParameter();
+            String parameterErasure = typeParameter != null ? typeArguments.get(typeParameter) : null;
+            // see the erasure bounds note in ReflectionUtils
+            return parameterErasure != null ? parameterErasure : OBJECT_ERASURE;
+        }else if(type.getKind() == TypeKind.ARRAY){
+            return "[" + getParameterErasure(typeArguments, type.getComponentType());
+        }else
+            return type.getErasure();
+    }
+
+    private static Map<TypeParameterMirror, String> getTypeArguments(BytecodeClass base, BytecodeClass searchedSuperType) {
+        Map<TypeParameterMirror, String> typeArguments = getTypeArguments(base, searchedSuperType,
+                Collections.<TypeParameterMirror, String>emptyMap());
+        return typeArguments != null ? typeArguments : Collections.<TypeParameterMirror, String>emptyMap();
+    }
+
+    private static Map<TypeParameterMirror, String> getTypeArguments(BytecodeClass base, BytecodeClass searchedSuperType,
+            Map<TypeParameterMirror, String> baseTypeArguments){
+        // fast exit for non-generics
+        if(searchedSuperType.getTypeParameters().isEmpty())
+            return Collections.<TypeParameterMirror, String>emptyMap();
+
+        if(base == searchedSuperType){
+            return baseTypeArguments;
+        }
+        Map<TypeParameterMirror, String> ret = null;
+        // look for it in our super class
+        TypeMirror superclass = base.getSuperclass();
+        if(superclass != null){
+            ret = getTypeArgumentsForSuperType(base.getLoader(), superclass, searchedSuperType, baseTypeArguments);
+        }
+        if(ret != null)
+            return ret;
+        // if not, look for interfaces, but only if the super type in question is an interface, otherwise there's no point
+        if(searchedSuperType.isInterface()){
+            for(TypeMirror superinterface : base.getInterfaces()){
+                ret = getTypeArgumentsForSuperType(base.getLoader(), superinterface, searchedSuperType, baseTypeArguments);
+                if(ret != null)
+                    return ret;
+            }
+        }
+        // no match
+        return null;
+    }
+
+    private static Map<TypeParameterMirror, String> getTypeArgumentsForSuperType(ClassFileLoader loader, TypeMirror superType,
+            BytecodeClass searchedSuperType, Map<TypeParameterMirror, String> baseTypeArguments) {
+        BytecodeClass sc = loader.getClass(superType.getQualifiedName());
+        if(sc == null)
+            return null;
+        List<TypeMirror> typeArguments = superType.getTypeArguments();
+        if(typeArguments.isEmpty()){
+            // not generic, or raw, so every type parameter is erased to Object
+            return getTypeArguments(sc, searchedSuperType, Collections.<TypeParameterMirror, String>emptyMap());
+        }
+        Map<TypeParameterMirror, String> newTypeArgs = new HashMap<TypeParameterMirror, String>();
+        List<TypeParameterMirror> typeParameters = sc.getTypeParameters();
+        for(int i=0;i<typeParameters.size() && i<typeArguments.size();i++){
+            newTypeArgs.put(typeParameters.get(i), getParameterErasure(baseTypeArguments, typeArguments.get(i)));
+        }
+        return getTypeArguments(sc, searchedSuperType, newTypeArgs);
+    }
+}
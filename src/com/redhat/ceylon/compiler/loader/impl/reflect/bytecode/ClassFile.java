@@ -0,0 +1,378 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.bytecode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.redhat.ceylon.compiler.loader.ModelResolutionException;
+import com.redhat.ceylon.compiler.loader.mirror.AnnotationMirror;
+
+/**
+ * The parts of a class file that we need to describe it: its header, the signatures and
+ * runtime-visible annotations of the class and its members, and the nesting attributes.
+ * Annotations are read like {@link java.lang.reflect.AnnotatedElement#getDeclaredAnnotations()}
+ * would, but only with the values that are in the class file, like for the javac mirrors.
+ */
+final class ClassFile {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_PROTECTED = 0x0004;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_BRIDGE = 0x0040;
+    static final int ACC_VARARGS = 0x0080;
+    static final int ACC_INTERFACE = 0x0200;
+    static final int ACC_ABSTRACT = 0x0400;
+    static final int ACC_SYNTHETIC = 0x1000;
+    static final int ACC_ANNOTATION = 0x2000;
+    static final int ACC_ENUM = 0x4000;
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    static final class Member {
+        int access;
+        String name;
+        String descriptor;
+        String signature;
+        Map<String, AnnotationMirror> annotations = Collections.emptyMap();
+        // only for methods
+        List<Map<String, AnnotationMirror>> parameterAnnotations;
+        boolean hasAnnotationDefault;
+    }
+
+    /** A member class of this class, from the InnerClasses attribute */
+    static final class InnerClass {
+        String name;
+        int access;
+    }
+
+    int access;
+    /** The binary name, with slashes */
+    String name;
+    /** The binary name of the superclass, with slashes, or null for java.lang.Object */
+    String superName;
+    String[] interfaces;
+    String signature;
+    Map<String, AnnotationMirror> annotations = Collections.emptyMap();
+    List<Member> fields;
+    List<Member> methods;
+    List<InnerClass> memberClasses = Collections.emptyList();
+    /** From our own entry in InnerClasses, if we are nested */
+    boolean nested;
+    String outerName;
+    String simpleName;
+    int innerAccess;
+    /** From EnclosingMethod, if we are local or anonymous */
+    String enclosingClassName;
+    String enclosingMethodName;
+    String enclosingMethodDescriptor;
+
+    // only used while we read the class file
+    private byte[] bytes;
+    private ClassFileLoader loader;
+    private int[] offsets;
+    private String[] strings;
+    private int pos;
+
+    ClassFile(byte[] bytes, ClassFileLoader loader) {
+        this.bytes = bytes;
+        this.loader = loader;
+        try{
+            if (u4() != MAGIC)
+                throw new ModelResolutionException("Not a class file");
+            // minor and major versions
+            pos += 4;
+            int constantCount = u2();
+            offsets = new int[constantCount];
+            strings = new String[constantCount];
+            for (int i = 1; i < constantCount; i++) {
+                offsets[i] = pos;
+                int tag = u1();
+                switch (tag) {
+                case 1: // Utf8
+                    int length = u2();
+                    pos += length;
+                    break;
+                case 3: case 4: // Integer, Float
+                case 9: case 10: case 11: case 12: // refs, NameAndType
+                case 17: case 18: // Dynamic, InvokeDynamic
+                    pos += 4;
+                    break;
+                case 5: case 6: // Long, Double take two entries
+                    pos += 8;
+                    i++;
+                    break;
+                case 7: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+                    pos += 2;
+                    break;
+                case 15: // MethodHandle
+                    pos += 3;
+                    break;
+                default:
+                    throw new ModelResolutionException("Unknown constant pool tag "+tag);
+                }
+            }
+            access = u2();
+            name = className(u2());
+            int superIndex = u2();
+            superName = superIndex != 0 ? className(superIndex) : null;
+            interfaces = new String[u2()];
+            for (int i = 0; i < interfaces.length; i++)
+                interfaces[i] = className(u2());
+            fields = readMembers(false);
+            methods = readMembers(true);
+            int attributes = u2();
+            for (int i = 0; i < attributes; i++) {
+                String attribute = utf8(u2());
+                int length = u4();
+                int end = pos + length;
+                if (attribute.equals("Signature")) {
+                    signature = utf8(u2());
+                } else if (attribute.equals("RuntimeVisibleAnnotations")) {
+                    annotations = readAnnotations();
+                } else if (attribute.equals("InnerClasses")) {
+                    readInnerClasses();
+                } else if (attribute.equals("EnclosingMethod")) {
+                    enclosingClassName = className(u2());
+                    int nameAndType = u2();
+                    if (nameAndType != 0) {
+                        int offset = offsets[nameAndType];
+                        enclosingMethodName = utf8(u2(offset + 1));
+                        enclosingMethodDescriptor = utf8(u2(offset + 3));
+                    }
+                }
+                pos = end;
+            }
+        }catch(ArrayIndexOutOfBoundsException x){
+            throw new ModelResolutionException("Truncated class file", x);
+        }finally{
+            // don't keep the class file around
+            this.bytes = null;
+            this.loader = null;
+            offsets = null;
+            strings = null;
+        }
+    }
+
+    private List<Member> readMembers(boolean methods) {
+        int count = u2();
+        List<Member> members = new ArrayList<Member>(count);
+        for (int i = 0; i < count; i++) {
+            Member member = new Member();
+            member.access = u2();
+            member.name = utf8(u2());
+            member.descriptor = utf8(u2());
+            int attributes = u2();
+            for (int j = 0; j < attributes; j++) {
+                String attribute = utf8(u2());
+                int length = u4();
+                int end = pos + length;
+                if (attribute.equals("Signature")) {
+                    member.signature = utf8(u2());
+                } else if (attribute.equals("RuntimeVisibleAnnotations")) {
+                    member.annotations = readAnnotations();
+                } else if (methods && attribute.equals("RuntimeVisibleParameterAnnotations")) {
+                    int parameters = u1();
+                    member.parameterAnnotations = new ArrayList<Map<String, AnnotationMirror>>(parameters);
+                    for (int p = 0; p < parameters; p++)
+                        member.parameterAnnotations.add(readAnnotations());
+                } else if (methods && attribute.equals("AnnotationDefault")) {
+                    member.hasAnnotationDefault = true;
+                } else if (attribute.equals("Synthetic")) {
+                    member.access |= ACC_SYNTHETIC;
+                }
+                pos = end;
+            }
+            members.add(member);
+        }
+        return members;
+    }
+
+    private void readInnerClasses() {
+        int count = u2();
+        for (int i = 0; i < count; i++) {
+            int innerIndex = u2();
+            int outerIndex = u2();
+            int nameIndex = u2();
+            int innerAccess = u2();
+            String innerName = className(innerIndex);
+            String outerName = outerIndex != 0 ? className(outerIndex) : null;
+            if (innerName.equals(name)) {
+                this.nested = true;
+                this.outerName = outerName;
+                this.simpleName = nameIndex != 0 ? utf8(nameIndex) : "";
+                this.innerAccess = innerAccess;
+            } else if (name.equals(outerName) && (innerAccess & ACC_SYNTHETIC) == 0) {
+                if (memberClasses.isEmpty())
+                    memberClasses = new ArrayList<InnerClass>();
+                InnerClass memberClass = new InnerClass();
+                memberClass.name = innerName;
+                memberClass.access = innerAccess;
+                memberClasses.add(memberClass);
+            }
+        }
+    }
+
+    private Map<String, AnnotationMirror> readAnnotations() {
+        int count = u2();
+        if (count == 0)
+            return Collections.emptyMap();
+        Map<String, AnnotationMirror> annotations = new HashMap<String, AnnotationMirror>();
+        for (int i = 0; i < count; i++) {
+            BytecodeAnnotation annotation = readAnnotation();
+            annotations.put(annotation.getType(), annotation);
+        }
+        return annotations;
+    }
+
+    private BytecodeAnnotation readAnnotation() {
+        String type = descriptorToName(utf8(u2()));
+        int count = u2();
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < count; i++) {
+            String name = utf8(u2());
+            values.put(name, readElementValue());
+        }
+        return new BytecodeAnnotation(type, values);
+    }
+
+    private Object readElementValue() {
+        int tag = u1();
+        switch (tag) {
+        case 'B':
+            return Byte.valueOf((byte) intConstant(u2()));
+        case 'C':
+            return Character.valueOf((char) intConstant(u2()));
+        case 'S':
+            return Short.valueOf((short) intConstant(u2()));
+        case 'Z':
+            return Boolean.valueOf(intConstant(u2()) != 0);
+        case 'I':
+            return Integer.valueOf(intConstant(u2()));
+        case 'F':
+            return Float.valueOf(Float.intBitsToFloat(intConstant(u2())));
+        case 'J':
+            return Long.valueOf(longConstant(u2()));
+        case 'D':
+            return Double.valueOf(Double.longBitsToDouble(longConstant(u2())));
+        case 's':
+            return utf8(u2());
+        case 'e':
+            // the type of the enum
+            u2();
+            // like reflection, we only keep the name
+            return utf8(u2());
+        case 'c':
+            return Signatures.parseType(utf8(u2()), loader, null);
+        case '@':
+            return readAnnotation();
+        case '[':
+            int count = u2();
+            List<Object> values = new ArrayList<Object>(count);
+            for (int i = 0; i < count; i++)
+                values.add(readElementValue());
+            return values;
+        default:
+            throw new ModelResolutionException("Unknown annotation element tag "+(char)tag);
+        }
+    }
+
+    /**
+     * Turns a descriptor like <code>Lfoo/Bar$Baz;</code> into <code>foo.Bar$Baz</code>.
+     */
+    static String descriptorToName(String descriptor) {
+        return descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
+    }
+
+    private int intConstant(int index) {
+        return u4(offsets[index] + 1);
+    }
+
+    private long longConstant(int index) {
+        int offset = offsets[index] + 1;
+        return ((long) u4(offset) << 32) | (u4(offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private String className(int index) {
+        return utf8(u2(offsets[index] + 1));
+    }
+
+    private String utf8(int index) {
+        String string = strings[index];
+        if (string == null) {
+            int offset = offsets[index] + 1;
+            int length = u2(offset);
+            string = decodeUtf8(offset + 2, length);
+            strings[index] = string;
+        }
+        return string;
+    }
+
+    /**
+     * Decodes the modified UTF-8 of class files, see {@link java.io.DataInput#readUTF()}.
+     */
+    private String decodeUtf8(int start, int length) {
+        char[] chars = new char[length];
+        int count = 0;
+        int i = start;
+        int end = start + length;
+        while (i < end) {
+            int c = bytes[i++] & 0xFF;
+            if (c < 0x80) {
+                chars[count++] = (char) c;
+            } else if ((c & 0xE0) == 0xC0) {
+                chars[count++] = (char) (((c & 0x1F) << 6) | (bytes[i++] & 0x3F));
+            } else {
+                chars[count++] = (char) (((c & 0x0F) << 12) | ((bytes[i++] & 0x3F) << 6) | (bytes[i++] & 0x3F));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private int u1() {
+        return bytes[pos++] & 0xFF;
+    }
+
+    private int u2() {
+        int value = u2(pos);
+        pos += 2;
+        return value;
+    }
+
+    private int u4() {
+        int value = u4(pos);
+        pos += 4;
+        return value;
+    }
+
+    private int u2(int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private int u4(int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+}
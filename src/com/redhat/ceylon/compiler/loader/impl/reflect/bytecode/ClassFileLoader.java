@@ -0,0 +1,143 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+
+/**
+ * Finds class files and makes {@link BytecodeClass} mirrors out of them, so that the reflection
+ * model loader can describe classes without loading, linking or initialising them. The classes
+ * we refer to, like supertypes, are looked up with {@link #getClassFile(String)} when needed.
+ * <p>
+ * The same class name may stand for different classes in different modules, so the classes of
+ * each module are looked up and cached by a loader of their own, along with the classes they
+ * refer to, which are looked up with {@link #getClassFile(Module, String)} for that module.
+ */
+public abstract class ClassFileLoader {
+
+    /** The mirrors of the classes we found, by name */
+    private final ConcurrentMap<String, BytecodeClass> classes = new ConcurrentHashMap<String, BytecodeClass>();
+    /** The loaders of the classes of each module */
+    private final ConcurrentMap<Module, ClassFileLoader> moduleLoaders = new ConcurrentHashMap<Module, ClassFileLoader>();
+
+    /**
+     * Looks up the classes of a single module, and the classes they refer to, in that module.
+     */
+    private static class ModuleClassFileLoader extends ClassFileLoader {
+        private final ClassFileLoader parent;
+        private final Module module;
+
+        ModuleClassFileLoader(ClassFileLoader parent, Module module) {
+            this.parent = parent;
+            this.module = module;
+        }
+
+        @Override
+        protected byte[] getClassFile(String name) {
+            return parent.getClassFile(module, name);
+        }
+
+        @Override
+        public BytecodeClass lookupClass(Module module, String name) {
+            return parent.lookupClass(module, name);
+        }
+    }
+
+    /**
+     * Returns the contents of the class file of the given class, given by its binary name
+     * with dots, like <code>java.util.Map$Entry</code>, or null if we can't find it.
+     */
+    protected abstract byte[] getClassFile(String name);
+
+    /**
+     * Returns the contents of the class file of the given class in the given module, or null if
+     * we can't find it. Looks in every module by default.
+     */
+    protected byte[] getClassFile(Module module, String name) {
+        return getClassFile(name);
+    }
+
+    /**
+     * Returns the mirror of the given class of the given module, or null if we can't find it.
+     */
+    public BytecodeClass lookupClass(Module module, String name) {
+        if (module == null)
+            return getClass(name);
+        ClassFileLoader moduleLoader = moduleLoaders.get(module);
+        if (moduleLoader == null) {
+            moduleLoader = new ModuleClassFileLoader(this, module);
+            ClassFileLoader existing = moduleLoaders.putIfAbsent(module, moduleLoader);
+            if (existing != null)
+                moduleLoader = existing;
+        }
+        return moduleLoader.getClass(name);
+    }
+
+    /**
+     * Returns the mirror of a class we refer to, or null if we can't find it.
+     */
+    public BytecodeClass getClass(String name) {
+        BytecodeClass klass = classes.get(name);
+        if (klass != null)
+            return klass;
+        byte[] bytes = getClassFile(name);
+        return bytes != null ? define(name, bytes) : null;
+    }
+
+    private BytecodeClass define(String name, byte[] bytes) {
+        BytecodeClass klass = new BytecodeClass(this, new ClassFile(bytes, this));
+        // we want a single mirror per class, since we compare their type parameters
+        BytecodeClass existing = classes.putIfAbsent(name, klass);
+        return existing != null ? existing : klass;
+    }
+
+    /**
+     * Reads the class file of the given class from the resources of the given class loader,
+     * or returns null if it has none.
+     */
+    public static byte[] readClassFile(ClassLoader classLoader, String name) {
+        String path = name.replace('.', '/').concat(".class");
+        InputStream inputStream = classLoader != null
+                ? classLoader.getResourceAsStream(path)
+                : ClassLoader.getSystemResourceAsStream(path);
+        if (inputStream == null)
+            return null;
+        try {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = inputStream.read(buffer)) != -1)
+                    bytes.write(buffer, 0, read);
+                return bytes.toByteArray();
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
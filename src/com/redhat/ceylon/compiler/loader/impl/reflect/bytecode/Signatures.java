@@ -0,0 +1,218 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.bytecode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.lang.model.type.TypeKind;
+
+import com.redhat.ceylon.compiler.loader.ModelResolutionException;
+import com.redhat.ceylon.compiler.loader.mirror.TypeMirror;
+
+/**
+ * Parses the signatures and descriptors of class files into types.
+ */
+final class Signatures {
+
+    static final class ClassSignature {
+        List<BytecodeTypeParameter> typeParameters;
+        /** null for interfaces and java.lang.Object, like for reflection */
+        BytecodeType superclass;
+        List<TypeMirror> interfaces;
+    }
+
+    static final class MethodSignature {
+        List<BytecodeTypeParameter> typeParameters;
+        List<BytecodeType> parameters;
+        BytecodeType returnType;
+    }
+
+    private final String signature;
+    private final ClassFileLoader loader;
+    private final TypeVariableScope scope;
+    private int pos;
+
+    private Signatures(String signature, ClassFileLoader loader, TypeVariableScope scope) {
+        this.signature = signature;
+        this.loader = loader;
+        this.scope = scope;
+    }
+
+    /**
+     * Parses a field signature, or a field descriptor.
+     */
+    static BytecodeType parseType(String signature, ClassFileLoader loader, TypeVariableScope scope) {
+        return new Signatures(signature, loader, scope).type();
+    }
+
+    /**
+     * Parses the signature of a class, or makes it from its superclass and interfaces if
+     * the class has no signature.
+     */
+    static ClassSignature parseClassSignature(ClassFile classFile, ClassFileLoader loader, TypeVariableScope scope) {
+        ClassSignature classSignature = new ClassSignature();
+        boolean isInterface = (classFile.access & ClassFile.ACC_INTERFACE) != 0;
+        if (classFile.signature != null) {
+            Signatures parser = new Signatures(classFile.signature, loader, scope);
+            classSignature.typeParameters = parser.typeParameters();
+            BytecodeType superclass = parser.type();
+            classSignature.superclass = isInterface || classFile.superName == null ? null : superclass;
+            classSignature.interfaces = new ArrayList<TypeMirror>(classFile.interfaces.length);
+            while (parser.pos < parser.signature.length())
+                classSignature.interfaces.add(parser.type());
+        } else {
+            classSignature.typeParameters = Collections.emptyList();
+            classSignature.superclass = isInterface || classFile.superName == null
+                    ? null : BytecodeType.declared(classFile.superName.replace('/', '.'), null, loader);
+            classSignature.interfaces = new ArrayList<TypeMirror>(classFile.interfaces.length);
+            for (String iface : classFile.interfaces)
+                classSignature.interfaces.add(BytecodeType.declared(iface.replace('/', '.'), null, loader));
+        }
+        return classSignature;
+    }
+
+    /**
+     * Parses a method signature, or a method descriptor.
+     */
+    static MethodSignature parseMethodSignature(String signature, ClassFileLoader loader, TypeVariableScope scope) {
+        Signatures parser = new Signatures(signature, loader, scope);
+        MethodSignature methodSignature = new MethodSignature();
+        methodSignature.typeParameters = parser.typeParameters();
+        parser.expect('(');
+        methodSignature.parameters = new ArrayList<BytecodeType>();
+        while (parser.peek() != ')')
+            methodSignature.parameters.add(parser.type());
+        parser.expect(')');
+        methodSignature.returnType = parser.type();
+        // we don't need the thrown types
+        return methodSignature;
+    }
+
+    private List<BytecodeTypeParameter> typeParameters() {
+        if (peek() != '<')
+            return Collections.emptyList();
+        pos++;
+        List<BytecodeTypeParameter> typeParameters = new ArrayList<BytecodeTypeParameter>();
+        while (peek() != '>') {
+            String name = identifier(':');
+            expect(':');
+            List<TypeMirror> bounds = new ArrayList<TypeMirror>(1);
+            // the class bound may be empty if there are interface bounds
+            if (peek() != ':')
+                bounds.add(type());
+            while (peek() == ':') {
+                pos++;
+                bounds.add(type());
+            }
+            typeParameters.add(new BytecodeTypeParameter(name, bounds));
+        }
+        pos++;
+        return typeParameters;
+    }
+
+    private BytecodeType type() {
+        char c = signature.charAt(pos++);
+        switch (c) {
+        case 'Z': return BytecodeType.primitive(TypeKind.BOOLEAN);
+        case 'B': return BytecodeType.primitive(TypeKind.BYTE);
+        case 'C': return BytecodeType.primitive(TypeKind.CHAR);
+        case 'S': return BytecodeType.primitive(TypeKind.SHORT);
+        case 'I': return BytecodeType.primitive(TypeKind.INT);
+        case 'J': return BytecodeType.primitive(TypeKind.LONG);
+        case 'F': return BytecodeType.primitive(TypeKind.FLOAT);
+        case 'D': return BytecodeType.primitive(TypeKind.DOUBLE);
+        case 'V': return BytecodeType.primitive(TypeKind.VOID);
+        case '[': return BytecodeType.array(type());
+        case 'T': {
+            String name = identifier(';');
+            expect(';');
+            return BytecodeType.typeVariable(name, scope);
+        }
+        case 'L': {
+            StringBuilder name = new StringBuilder();
+            List<TypeMirror> typeArguments = null;
+            while (true) {
+                name.append(identifier('<', '.', ';').replace('/', '.'));
+                // like reflection, we only keep the type arguments of the innermost class
+                typeArguments = peek() == '<' ? typeArguments() : null;
+                if (peek() == '.') {
+                    pos++;
+                    name.append('$');
+                } else {
+                    break;
+                }
+            }
+            expect(';');
+            return BytecodeType.declared(name.toString(), typeArguments, loader);
+        }
+        default:
+            throw new ModelResolutionException("Invalid signature: "+signature);
+        }
+    }
+
+    private List<TypeMirror> typeArguments() {
+        expect('<');
+        List<TypeMirror> typeArguments = new ArrayList<TypeMirror>();
+        while (peek() != '>') {
+            char c = peek();
+            if (c == '*') {
+                pos++;
+                typeArguments.add(BytecodeType.wildcard(BytecodeType.declared("java.lang.Object", null, loader), null));
+            } else if (c == '+') {
+                pos++;
+                typeArguments.add(BytecodeType.wildcard(type(), null));
+            } else if (c == '-') {
+                pos++;
+                typeArguments.add(BytecodeType.wildcard(null, type()));
+            } else {
+                typeArguments.add(type());
+            }
+        }
+        pos++;
+        return typeArguments;
+    }
+
+    private String identifier(char... terminators) {
+        int start = pos;
+        while (pos < signature.length()) {
+            char c = signature.charAt(pos);
+            for (char terminator : terminators) {
+                if (c == terminator)
+                    return signature.substring(start, pos);
+            }
+            pos++;
+        }
+        throw new ModelResolutionException("Invalid signature: "+signature);
+    }
+
+    private char peek() {
+        if (pos >= signature.length())
+            throw new ModelResolutionException("Invalid signature: "+signature);
+        return signature.charAt(pos);
+    }
+
+    private void expect(char c) {
+        if (peek() != c)
+            throw new ModelResolutionException("Invalid signature: "+signature);
+        pos++;
+    }
+}
@@ -30,7 +30,7 @@ import com.redhat.ceylon.compiler.typechecker.model.Package;
 public class ReflectionModule extends LazyModule {
 
     private ReflectionModuleManager modelManager;
-    private boolean packagesLoaded = false;
+    private volatile boolean packagesLoaded = false;
 
     public ReflectionModule(ReflectionModuleManager reflectionModuleManager) {
         this.modelManager = reflectionModuleManager;
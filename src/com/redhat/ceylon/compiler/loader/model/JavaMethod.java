@@ -20,14 +20,27 @@
 package com.redhat.ceylon.compiler.loader.model;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import com.redhat.ceylon.compiler.loader.ModelCompleter;
 import com.redhat.ceylon.compiler.loader.mirror.MethodMirror;
+import com.redhat.ceylon.compiler.typechecker.model.Annotation;
 import com.redhat.ceylon.compiler.typechecker.model.Declaration;
+import com.redhat.ceylon.compiler.typechecker.model.DeclarationWithProximity;
 import com.redhat.ceylon.compiler.typechecker.model.Method;
+import com.redhat.ceylon.compiler.typechecker.model.ParameterList;
+import com.redhat.ceylon.compiler.typechecker.model.ProducedReference;
+import com.redhat.ceylon.compiler.typechecker.model.ProducedType;
+import com.redhat.ceylon.compiler.typechecker.model.ProducedTypedReference;
+import com.redhat.ceylon.compiler.typechecker.model.TypeParameter;
+import com.redhat.ceylon.compiler.typechecker.model.Unit;
 
 /**
- * Instance method that allows us to remember the exact method name
+ * Instance method that allows us to remember the exact method name.
+ * 
+ * Methods of Java classes can be created with only their name and flags, in which case their
+ * type parameters, types, parameters and annotations are loaded the first time they are needed.
  *
  * @author Stéphane Épardaud <stef@epardaud.fr>
  */
@@ -38,6 +51,10 @@ public class JavaMethod extends Method implements LocalDeclarationContainer {
     public final MethodMirror mirror;
     private Map<String,Declaration> localDeclarations;
     
+    private ModelCompleter completer;
+    private boolean isLoaded = true;
+    private volatile boolean isLoaded2 = true;
+    
     @Override
     protected Class<?> getModelClass() {
         return getClass().getSuperclass(); 
@@ -47,6 +64,27 @@ public class JavaMethod extends Method implements LocalDeclarationContainer {
         this.mirror = mirror;
     }
     
+    /**
+     * Makes this method load its types lazily with the given completer.
+     */
+    public void setCompleter(ModelCompleter completer) {
+        this.completer = completer;
+        this.isLoaded = false;
+        this.isLoaded2 = false;
+    }
+    
+    private void load() {
+        if(!isLoaded2){
+            synchronized(completer.getLock()){
+                if(!isLoaded){
+                    isLoaded = true;
+                    completer.complete(this);
+                    isLoaded2 = true;
+                }
+            }
+        }
+    }
+    
     public void setRealName(String name) {
         this.realName = name;
     }
@@ -67,8 +105,96 @@ public class JavaMethod extends Method implements LocalDeclarationContainer {
         this.defaultedAnnotation = defaultedAnnotation;
     }
 
+    @Override
+    public String toString() {
+        if (!isLoaded) {
+            return "UNLOADED:" + super.toString();
+        }
+        return super.toString();
+    }
+
+    @Override
+    public ProducedType getType() {
+        load();
+        return super.getType();
+    }
+
+    @Override
+    public boolean isParameterized() {
+        load();
+        return super.isParameterized();
+    }
+
+    @Override
+    public List<TypeParameter> getTypeParameters() {
+        load();
+        return super.getTypeParameters();
+    }
+
+    @Override
+    public List<ParameterList> getParameterLists() {
+        load();
+        return super.getParameterLists();
+    }
+
+    @Override
+    public ProducedTypedReference getProducedTypedReference(ProducedType qualifyingType, 
+            List<ProducedType> typeArguments, boolean assignment) {
+        load();
+        return super.getProducedTypedReference(qualifyingType, typeArguments, assignment);
+    }
+
+    @Override
+    public ProducedReference getProducedReference(ProducedType pt, List<ProducedType> typeArguments) {
+        load();
+        return super.getProducedReference(pt, typeArguments);
+    }
+
+    @Override
+    public Map<String, DeclarationWithProximity> getMatchingDeclarations(Unit unit, String startingWith, int proximity) {
+        load();
+        return super.getMatchingDeclarations(unit, startingWith, proximity);
+    }
+
+    @Override
+    public List<Annotation> getAnnotations() {
+        load();
+        return super.getAnnotations();
+    }
+
+    @Override
+    public List<Declaration> getMembers() {
+        load();
+        return super.getMembers();
+    }
+
+    @Override
+    protected Declaration getMemberOrParameter(String name, List<ProducedType> signature, boolean ellipsis) {
+        load();
+        return super.getMemberOrParameter(name, signature, ellipsis);
+    }
+
+    @Override
+    public Declaration getMember(String name, List<ProducedType> signature, boolean ellipsis) {
+        load();
+        return super.getMember(name, signature, ellipsis);
+    }
+
+    @Override
+    public Declaration getDirectMember(String name, List<ProducedType> signature, boolean ellipsis) {
+        load();
+        return super.getDirectMember(name, signature, ellipsis);
+    }
+
+    @Override
+    public Declaration getMemberOrParameter(Unit unit, String name, List<ProducedType> signature, boolean ellipsis) {
+        load();
+        return super.getMemberOrParameter(unit, name, signature, ellipsis);
+    }
+
     @Override
     public Declaration getLocalDeclaration(String name) {
+        load();
         if(localDeclarations == null)
             return null;
         return localDeclarations.get(name);
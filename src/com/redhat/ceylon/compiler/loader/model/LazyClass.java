@@ -59,9 +59,9 @@ public class LazyClass extends Class implements LazyContainer {
     private Map<String,Declaration> localDeclarations;
     
     private boolean isLoaded = false;
-    private boolean isLoaded2 = false;
+    private volatile boolean isLoaded2 = false;
     private boolean isTypeParamsLoaded = false;
-    private boolean isTypeParamsLoaded2 = false;
+    private volatile boolean isTypeParamsLoaded2 = false;
     private boolean local = false;
 
     @Override
@@ -48,9 +48,9 @@ public class LazyClassAlias extends ClassAlias implements LazyContainer {
     private ModelCompleter completer;
     
     private boolean isLoaded = false;
-    private boolean isLoaded2 = false;
+    private volatile boolean isLoaded2 = false;
     private boolean isTypeParamsLoaded = false;
-    private boolean isTypeParamsLoaded2 = false;
+    private volatile boolean isTypeParamsLoaded2 = false;
     private boolean local;
 
     @Override
@@ -57,7 +57,7 @@ public class LazyMethod extends Method implements LazyElement, LocalDeclarationC
     private String realMethodName;
     
     private boolean isLoaded = false;
-    private boolean isLoaded2 = false;
+    private volatile boolean isLoaded2 = false;
     
     private Map<String,Declaration> localDeclarations;
     
@@ -22,12 +22,10 @@ package com.redhat.ceylon.compiler.loader.model;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Enumeration;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 import com.redhat.ceylon.cmr.api.ArtifactResult;
 import com.redhat.ceylon.cmr.api.JDKUtils;
@@ -35,6 +33,7 @@ import com.redhat.ceylon.cmr.api.PathFilter;
 import com.redhat.ceylon.compiler.java.util.Util;
 import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
 import com.redhat.ceylon.compiler.loader.ContentAwareArtifactResult;
+import com.redhat.ceylon.compiler.loader.ModelIndex;
 import com.redhat.ceylon.compiler.typechecker.model.Module;
 import com.redhat.ceylon.compiler.typechecker.model.ModuleImport;
 import com.redhat.ceylon.compiler.typechecker.model.Package;
@@ -48,6 +47,7 @@ public abstract class LazyModule extends Module {
 
     private boolean isJava = false;
     protected Set<String> jarPackages = new HashSet<String>();
+    private ModelIndex modelIndex;
 
     public LazyModule() {
     }
@@ -161,41 +161,37 @@ public abstract class LazyModule extends Module {
 
     public void loadPackageList(ArtifactResult artifact) {
         if (artifact instanceof ContentAwareArtifactResult) {
+            // we also index the classes we find, to answer lookups for missing declarations
+            List<String> classEntries = new ArrayList<String>();
             for (String entry : ((ContentAwareArtifactResult) artifact).getEntries()) {
-                addPackageForPath(entry, artifact.filter());
+                if(addPackageForPath(entry, artifact.filter()))
+                    classEntries.add(entry);
             }
+            modelIndex = ModelIndex.of(classEntries);
         } else {
             File file = artifact.artifact();
             if (file != null) {
-                ZipFile zipFile;
                 try {
-                    zipFile = new ZipFile(artifact.artifact());
+                    // the index of an archive is shared by all the compilers of the JVM
+                    modelIndex = ModelIndex.forArchive(file);
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
-                try{
-                    Enumeration<? extends ZipEntry> entries = zipFile.entries();
-                    while(entries.hasMoreElements())
-                        loadPackageList(entries.nextElement(), artifact.filter());
-                }finally{
-                    try {
-                        zipFile.close();
-                    } catch (IOException e) {
-                        // ignore
-                    }
+                PathFilter pathFilter = artifact.filter();
+                for(String pkg : modelIndex.getPackages()){
+                    if(!pkg.isEmpty()
+                            && (pathFilter == null || pathFilter.accept(pkg.replace('.', '/')+"/")))
+                        jarPackages.add(pkg);
                 }
             }
         }
     }
     
-    private void loadPackageList(ZipEntry entry, PathFilter pathFilter) {
-        if(!entry.isDirectory()){
-            String path = entry.getName();
-            addPackageForPath(path, pathFilter);
-        }
-    }
-
-    private void addPackageForPath(String path, PathFilter pathFilter) {
+    /**
+     * Adds the package of the given path if it is a class file that the filter lets through,
+     * and returns true if it does.
+     */
+    private boolean addPackageForPath(String path, PathFilter pathFilter) {
         if(path.toLowerCase().endsWith(".class")){
             int sep = path.lastIndexOf('/');
             if(sep != -1)
@@ -211,8 +207,34 @@ public abstract class LazyModule extends Module {
             if(pathFilter == null || pathFilter.accept(pathQuery)){
                 pkg = pkg.replace('/', '.');
                 jarPackages.add(pkg);
+                return true;
             }
         }
+        return false;
+    }
+
+    /**
+     * Sets the index of the classes of this module, for modules which do not come from an
+     * archive of their own, like those of the JDK.
+     */
+    public void setModelIndex(ModelIndex modelIndex){
+        this.modelIndex = modelIndex;
+    }
+
+    /**
+     * Returns false if we know from the table of contents of this module's archive that the
+     * given package does not contain a toplevel declaration of the given name, true otherwise.
+     */
+    public boolean mayContainDeclaration(String pkgName, String name){
+        return modelIndex == null || modelIndex.mayContain(pkgName, name);
+    }
+
+    /**
+     * Returns the names of the toplevel classes of the given package in the index of this
+     * module's archive, or null if we have no index or it has no class in that package.
+     */
+    public List<String> getIndexedClassNames(String pkgName){
+        return modelIndex != null ? modelIndex.getClassNames(pkgName) : null;
     }
 
     public boolean containsPackage(String pkgName){
@@ -24,13 +24,15 @@ import static com.redhat.ceylon.compiler.typechecker.model.Util.lookupMember;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.redhat.ceylon.compiler.java.codegen.AnnotationArgument;
 import com.redhat.ceylon.compiler.java.codegen.AnnotationConstructorParameter;
@@ -65,7 +67,14 @@ public class LazyPackage extends Package {
     private AbstractModelLoader modelLoader;
     private List<Declaration> compiledDeclarations = new ArrayList<Declaration>(3);
     private Set<Unit> lazyUnits = new HashSet<Unit>();
-    private Map<String,Declaration> cache = new HashMap<String,Declaration>();
+    // read without the model loader lock
+    private Map<String,Declaration> cache = new ConcurrentHashMap<String,Declaration>();
+    // the names we did not find, since we can't put null in the cache
+    private Set<String> missingCache = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+    // whether another module of the classpath has this package too, and the state of the
+    // classpath we found that for
+    private boolean inOtherModule;
+    private long inOtherModuleStamp = -1;
     
     public LazyPackage(AbstractModelLoader modelLoader){
         this.modelLoader = modelLoader;
@@ -83,17 +92,19 @@ public class LazyPackage extends Package {
 //        System.err.println("getMember "+name+" "+signature+" "+ellipsis);
         boolean canCache = (signature == null && !ellipsis);
         if(canCache){
-            if(cache.containsKey(name)) {
-                Declaration cachedDeclaration = cache.get(name);
-                if (cachedDeclaration != null || ! modelLoader.searchAgain(this, name)) {
-                    return cachedDeclaration;
-                }
-
-            }
+            Declaration cachedDeclaration = cache.get(name);
+            if(cachedDeclaration != null)
+                return cachedDeclaration;
+            if(missingCache.contains(name) && !modelLoader.searchAgain(this, name))
+                return null;
         }
         Declaration ret = getDirectMemberMemoised(name, signature, ellipsis);
         if(canCache){
-            cache.put(name, ret);
+            if(ret != null){
+                cache.put(name, ret);
+                missingCache.remove(name);
+            }else
+                missingCache.add(name);
         }
         return ret;
     }
@@ -114,8 +125,13 @@ public class LazyPackage extends Package {
                 return d;
             }
 
-            String className = getQualifiedName(pkgName, name);
-            ClassMirror classSymbol = modelLoader.lookupClassMirror(module, className);
+            // no need to look for classes that we know are not there
+            String className = null;
+            ClassMirror classSymbol = null;
+            if(modelLoader.mayContainDeclaration(this, pkgName, name)){
+                className = getQualifiedName(pkgName, name);
+                classSymbol = modelLoader.lookupClassMirror(module, className);
+            }
 
             // only get it from the classpath if we're not compiling it, unless
             // it happens to be a java source
@@ -196,6 +212,7 @@ public class LazyPackage extends Package {
     
     private void flushCache(Declaration declaration) {
         cache.remove(declaration.getName());
+        missingCache.remove(declaration.getName());
     }
 
     public void addCompiledMember(Declaration d) {
@@ -215,6 +232,74 @@ public class LazyPackage extends Package {
         }
     }
 
+    /**
+     * Removes a declaration which the model loader evicted from its caches from this package and
+     * from its unit, so that they do not keep it alive. It is put back with
+     * {@link #restoreCompiledMember(Declaration)} if it is still in use when it is looked up again.
+     */
+    public void removeCompiledMember(Declaration d) {
+        synchronized(modelLoader.getLock()){
+            flushCache(d);
+            removeIdentical(compiledDeclarations, d);
+            if(d.getUnit() != null)
+                removeIdentical(d.getUnit().getDeclarations(), d);
+        }
+    }
+
+    /**
+     * Puts back a declaration removed with {@link #removeCompiledMember(Declaration)}.
+     */
+    public void restoreCompiledMember(Declaration d) {
+        synchronized(modelLoader.getLock()){
+            if(d.getUnit() != null && !containsIdentical(d.getUnit().getDeclarations(), d))
+                d.getUnit().addDeclaration(d);
+            if(!containsIdentical(compiledDeclarations, d))
+                addCompiledMember(d);
+        }
+    }
+
+    /**
+     * Returns true if the given declaration is one of the compiled members of this package,
+     * without loading anything.
+     */
+    public boolean hasCompiledMember(Declaration d) {
+        synchronized(modelLoader.getLock()){
+            return containsIdentical(compiledDeclarations, d);
+        }
+    }
+
+    public boolean isInOtherModule() {
+        return inOtherModule;
+    }
+
+    public long getInOtherModuleStamp() {
+        return inOtherModuleStamp;
+    }
+
+    public void setInOtherModule(boolean inOtherModule, long stamp) {
+        this.inOtherModule = inOtherModule;
+        this.inOtherModuleStamp = stamp;
+    }
+
+    // overloads are equal to each other
+    private static boolean containsIdentical(List<Declaration> declarations, Declaration d) {
+        for(Declaration declaration : declarations){
+            if(declaration == d)
+                return true;
+        }
+        return false;
+    }
+
+    private static void removeIdentical(List<Declaration> declarations, Declaration d) {
+        Iterator<Declaration> iterator = declarations.iterator();
+        while(iterator.hasNext()){
+            if(iterator.next() == d){
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
     /**
      * Adds extra members to the package for annotation interop.
      * For a Java declaration {@code @interface Annotation} we generate 
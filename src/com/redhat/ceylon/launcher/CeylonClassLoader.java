@@ -1,29 +1,51 @@
 package com.redhat.ceylon.launcher;
 
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.JarURLConnection;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.security.CodeSource;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
 /**
  * Ceylon-specific class loader that knows how to find and add
  * all needed dependencies for compiler and runtime.
  * Implements child-first class loading to prevent mix-ups with
  * Java's own tool-chain.
+ * <p>
+ * When the class path only has archives, the class loader opens them
+ * itself the first time it looks something up, and indexes their
+ * packages, so that a class or resource is only looked up in the
+ * archives which contain its package, and classes of other packages go
+ * straight to the parent class loader. Classes and resources are both
+ * read from these archives, which are only opened once. Class paths
+ * with folders are left to URLClassLoader. On Java 7 and later the
+ * class loader is parallel capable, so it only locks the class it
+ * loads, with the same lock as the JDK.
  *
  * @author Tako Schotanus
  *
@@ -38,16 +60,224 @@ public class CeylonClassLoader extends URLClassLoader {
         return new CeylonClassLoader(classPath);
     }
 
+    public static CeylonClassLoader newInstance(List<File> classPath, ClassLoader parentLoader) throws URISyntaxException, MalformedURLException, FileNotFoundException {
+        return new CeylonClassLoader(classPath, parentLoader);
+    }
+
+    // the launcher must run on Java 5 to say it needs Java 7, so we can't call these directly
+    private static final boolean parallelCapable = registerParallelCapable();
+    private static final Method getClassLoadingLock = findClassLoadingLock();
+
     private String signature;
+    // null if we leave the class path to URLClassLoader
+    private final Index index;
     
     private CeylonClassLoader(List<File> classPath) throws URISyntaxException, MalformedURLException, FileNotFoundException {
-        super(toUrls(classPath));
+        super(toUrls(classPath, isIndexable(classPath)));
         this.signature = toString(classPath);
+        this.index = isIndexable(classPath) ? new Index(classPath) : null;
     }
 
     private CeylonClassLoader(List<File> classPath, ClassLoader parentLoader) throws URISyntaxException, MalformedURLException, FileNotFoundException {
-        super(toUrls(classPath), parentLoader);
+        super(toUrls(classPath, isIndexable(classPath)), parentLoader);
         this.signature = toString(classPath);
+        this.index = isIndexable(classPath) ? new Index(classPath) : null;
+    }
+
+    private static boolean registerParallelCapable() {
+        try {
+            Method register = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+            return Boolean.TRUE.equals(register.invoke(null));
+        } catch (Throwable t) {
+            // before Java 7
+            return false;
+        }
+    }
+
+    private static Method findClassLoadingLock() {
+        try {
+            return ClassLoader.class.getDeclaredMethod("getClassLoadingLock", String.class);
+        } catch (Throwable t) {
+            // before Java 7
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if we can index the class path ourselves, which is when it only has
+     * archives. Missing files are ignored, like URLClassLoader does.
+     */
+    private static boolean isIndexable(List<File> classPath) {
+        for (File file : classPath) {
+            if (file.exists() && !file.isFile())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The archives of the class path and their packages, so that we know which archives
+     * can contain a class or a resource. The archives are opened and indexed the first
+     * time we look something up, and then it only gets read.
+     */
+    private static class Index {
+        private final File[] files;
+        private final URL[] urls;
+        private JarFile[] jars;
+        private URLStreamHandler[] handlers;
+        /** The indices of the archives which contain each package, by directory name */
+        private volatile Map<String, int[]> archivesByDirectory;
+
+        Index(List<File> classPath) throws MalformedURLException {
+            files = classPath.toArray(new File[classPath.size()]);
+            urls = toUrls(classPath, false);
+        }
+
+        private Map<String, int[]> getArchivesByDirectory() {
+            Map<String, int[]> archivesByDirectory = this.archivesByDirectory;
+            if (archivesByDirectory == null) {
+                synchronized (this) {
+                    archivesByDirectory = this.archivesByDirectory;
+                    if (archivesByDirectory == null) {
+                        archivesByDirectory = open();
+                        this.archivesByDirectory = archivesByDirectory;
+                    }
+                }
+            }
+            return archivesByDirectory;
+        }
+
+        private Map<String, int[]> open() {
+            Map<String, int[]> archivesByDirectory = new HashMap<String, int[]>();
+            jars = new JarFile[files.length];
+            handlers = new URLStreamHandler[files.length];
+            for (int i = 0; i < files.length; i++) {
+                if (!files[i].isFile())
+                    continue;
+                try {
+                    jars[i] = new JarFile(files[i]);
+                } catch (IOException e) {
+                    // URLClassLoader skips the archives it can't open too
+                    continue;
+                }
+                handlers[i] = new ArchiveHandler(jars[i]);
+                add(archivesByDirectory, jars[i], i);
+            }
+            return archivesByDirectory;
+        }
+
+        private static void add(Map<String, int[]> archivesByDirectory, JarFile jar, int index) {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                String directory = getDirectory(entries.nextElement().getName());
+                int[] indices = archivesByDirectory.get(directory);
+                if (indices == null) {
+                    archivesByDirectory.put(directory, new int[]{ index });
+                } else if (indices[indices.length - 1] != index) {
+                    // in class path order, since the first archive wins
+                    int[] newIndices = new int[indices.length + 1];
+                    System.arraycopy(indices, 0, newIndices, 0, indices.length);
+                    newIndices[indices.length] = index;
+                    archivesByDirectory.put(directory, newIndices);
+                }
+            }
+        }
+
+        /**
+         * Returns the indices of the archives which may contain the given path, or null
+         * if none of them does.
+         */
+        int[] getArchives(String path) {
+            return getArchivesByDirectory().get(getDirectory(path));
+        }
+
+        JarFile getJar(int archive) {
+            return jars[archive];
+        }
+
+        URL getUrl(int archive) {
+            return urls[archive];
+        }
+
+        /**
+         * Returns the URL of the given entry of an archive, which reads it from the
+         * archive we opened.
+         */
+        URL getResourceUrl(int archive, String name) throws MalformedURLException {
+            return new URL("jar", "", -1, urls[archive] + "!/" + encodePath(name), handlers[archive]);
+        }
+
+        private static String getDirectory(String path) {
+            // directory entries end with a slash
+            int lastSlash = path.lastIndexOf('/', path.length() - 2);
+            return lastSlash == -1 ? "" : path.substring(0, lastSlash);
+        }
+
+        private static String encodePath(String path) {
+            try {
+                return new URI(null, null, path, null).getRawPath();
+            } catch (URISyntaxException e) {
+                return path;
+            }
+        }
+
+        synchronized void close() {
+            if (jars != null) {
+                for (JarFile jar : jars) {
+                    if (jar != null) {
+                        try {
+                            jar.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            }
+            // don't open them again
+            archivesByDirectory = new HashMap<String, int[]>();
+        }
+    }
+
+    /**
+     * Opens the resource URLs of an archive we opened, with the same
+     * {@link JarURLConnection} API as the JDK's.
+     */
+    private static class ArchiveHandler extends URLStreamHandler {
+        private final JarFile jar;
+
+        ArchiveHandler(JarFile jar) {
+            this.jar = jar;
+        }
+
+        @Override
+        protected URLConnection openConnection(URL url) throws IOException {
+            return new JarURLConnection(url) {
+                @Override
+                public void connect() throws IOException {
+                    if (getJarEntry() == null)
+                        throw new FileNotFoundException("JAR entry " + getEntryName() + " not found in " + jar.getName());
+                    connected = true;
+                }
+
+                @Override
+                public JarFile getJarFile() throws IOException {
+                    return jar;
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    connect();
+                    return jar.getInputStream(getJarEntry());
+                }
+            };
+        }
+    }
+
+    @Override
+    public URL[] getURLs() {
+        if (index == null)
+            return super.getURLs();
+        return index.urls.clone();
     }
 
     public String getSignature(){
@@ -58,7 +288,10 @@ public class CeylonClassLoader extends URLClassLoader {
         return signature != null && this.signature.equals(signature);
     }
     
-    private static URL[] toUrls(List<File> cp) throws MalformedURLException {
+    private static URL[] toUrls(List<File> cp, boolean indexed) throws MalformedURLException {
+        // URLClassLoader would open the archives we index a second time
+        if (indexed)
+            return new URL[0];
         URL[] urls = new URL[cp.size()];
         int i = 0;
         for (File f : cp) {
@@ -146,25 +379,115 @@ public class CeylonClassLoader extends URLClassLoader {
         return new File(repo, moduleName.replace('.', '/') + "/" + version + "/" + moduleName + "-" + version + "." + extension);
     }
 
+    private Object getLoadingLock(String name) {
+        if (parallelCapable && getClassLoadingLock != null) {
+            try {
+                // the lock ClassLoader.loadClass takes when we delegate to it
+                return getClassLoadingLock.invoke(this, name);
+            } catch (Throwable t) {
+                // lock the class loader then
+            }
+        }
+        return this;
+    }
+
     @Override
-    protected synchronized Class<?> loadClass(String name, boolean resolve)
+    protected Class<?> loadClass(String name, boolean resolve)
             throws ClassNotFoundException {
-        // First, check if the class has already been loaded
-        Class<?> c = findLoadedClass(name);
-        if (c == null) {
-            try {
-                // checking local
-                c = findClass(name);
-            } catch (ClassNotFoundException e) {
-                // checking parent
-                // This call to loadClass may eventually call findClass again, in case the parent doesn't find anything.
-                c = super.loadClass(name, resolve);
+        synchronized (getLoadingLock(name)) {
+            // First, check if the class has already been loaded
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                // don't bother looking for classes of packages we don't have, like the JDK's
+                if (index == null || index.getArchives(name.replace('.', '/')) != null) {
+                    try {
+                        // checking local
+                        c = findClass(name);
+                    } catch (ClassNotFoundException e) {
+                        // try the parent
+                    }
+                }
+                if (c == null) {
+                    // checking parent
+                    // This call to loadClass may eventually call findClass again, in case the parent doesn't find anything.
+                    c = super.loadClass(name, resolve);
+                }
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        if (index == null)
+            return super.findClass(name);
+        String path = name.replace('.', '/').concat(".class");
+        int[] archives = index.getArchives(path);
+        if (archives != null) {
+            for (int archive : archives) {
+                JarEntry entry = index.getJar(archive).getJarEntry(path);
+                if (entry != null)
+                    return defineClass(name, archive, entry);
             }
         }
-        if (resolve) {
-            resolveClass(c);
+        throw new ClassNotFoundException(name);
+    }
+
+    private Class<?> defineClass(String name, int archive, JarEntry entry) throws ClassNotFoundException {
+        JarFile jar = index.getJar(archive);
+        URL url = index.getUrl(archive);
+        try {
+            byte[] bytes = read(jar, entry);
+            int lastDot = name.lastIndexOf('.');
+            if (lastDot != -1) {
+                String pkg = name.substring(0, lastDot);
+                if (getPackage(pkg) == null) {
+                    try {
+                        Manifest manifest = jar.getManifest();
+                        if (manifest != null)
+                            definePackage(pkg, manifest, url);
+                        else
+                            definePackage(pkg, null, null, null, null, null, null, null);
+                    } catch (IllegalArgumentException e) {
+                        // another thread defined it
+                    }
+                }
+            }
+            // the signers are only known once we read the entry
+            CodeSource codeSource = new CodeSource(url, entry.getCodeSigners());
+            return defineClass(name, bytes, 0, bytes.length, codeSource);
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+
+    private static byte[] read(JarFile jar, JarEntry entry) throws IOException {
+        InputStream in = jar.getInputStream(entry);
+        try {
+            long size = entry.getSize();
+            if (size >= 0) {
+                byte[] bytes = new byte[(int) size];
+                int length = 0;
+                while (length < bytes.length) {
+                    int read = in.read(bytes, length, bytes.length - length);
+                    if (read == -1)
+                        throw new EOFException("Truncated entry " + entry.getName() + " in " + jar.getName());
+                    length += read;
+                }
+                return bytes;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                bytes.write(buffer, 0, read);
+            return bytes.toByteArray();
+        } finally {
+            in.close();
         }
-        return c;
     }
 
     @Override
@@ -177,6 +500,40 @@ public class CeylonClassLoader extends URLClassLoader {
         return url;
     }
 
+    @Override
+    public URL findResource(String name) {
+        if (index == null)
+            return super.findResource(name);
+        int[] archives = index.getArchives(name);
+        if (archives != null) {
+            for (int archive : archives) {
+                if (index.getJar(archive).getJarEntry(name) != null) {
+                    try {
+                        return index.getResourceUrl(archive, name);
+                    } catch (MalformedURLException e) {
+                        // try the next one
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        if (index == null)
+            return super.findResources(name);
+        List<URL> urls = new ArrayList<URL>();
+        int[] archives = index.getArchives(name);
+        if (archives != null) {
+            for (int archive : archives) {
+                if (index.getJar(archive).getJarEntry(name) != null)
+                    urls.add(index.getResourceUrl(archive, name));
+            }
+        }
+        return Collections.enumeration(urls);
+    }
+
     @Override
     public Enumeration<URL> getResources(String name) throws IOException {
         /**
@@ -224,11 +581,27 @@ public class CeylonClassLoader extends URLClassLoader {
         return null;
     }
 
+    /**
+     * Closes the archives we opened ourselves, then those of URLClassLoader, which has none
+     * when we index the class path.
+     */
+    @Override
+    public void close() throws IOException {
+        if (index != null)
+            index.close();
+        super.close();
+    }
+
     /**
      * Cleans up any resource associated with this class loader. This class loader will not be usable after calling this
      * method, so any code using it to run better not be running anymore.
      */
     public void clearCache() {
+        if (index != null) {
+            // URLClassLoader has nothing open
+            index.close();
+            return;
+        }
         try {
             Class<?> klass = java.net.URLClassLoader.class;
             Field ucp = klass.getDeclaredField("ucp");
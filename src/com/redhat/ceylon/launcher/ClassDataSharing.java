@@ -0,0 +1,288 @@
+package com.redhat.ceylon.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import com.redhat.ceylon.common.Constants;
+
+/**
+ * Manages the application class data sharing archives of the launcher class path,
+ * which hold the classes loaded by the {@link CeylonClassLoader} during a compile,
+ * already parsed and verified, so that the JVM can map them instead of loading them
+ * from the archives of the class path on every run.
+ * <p>
+ * An archive is made by <code>ceylon --generate-cds</code>, which compiles a small
+ * module in a JVM started with <code>-XX:ArchiveClassesAtExit</code>, so it needs
+ * Java 13 or later. It lives next to <code>ceylon-bootstrap.jar</code>, along with
+ * the class path signature and the JVM it was made for, and its name holds the
+ * version of that JVM and a hash of the class path signature, so that installations
+ * used with several JVMs or system repositories get one archive for each. The
+ * <code>ceylon</code> scripts read the version of the JVM they start and only use
+ * the archive made for it. Ordinary runs never delete archives: only generating
+ * one discards those which can no longer be used.
+ *
+ * @see CeylonClassLoader#getClassPathSignature(List)
+ */
+public class ClassDataSharing {
+    private ClassDataSharing() {}
+
+    public static final String GENERATE_ARGUMENT = "--generate-cds";
+
+    // the scripts look for "ceylon-bootstrap-<JVM version>-*.jsa"
+    private static final String ARCHIVE_PREFIX = "ceylon-bootstrap-";
+    private static final String ARCHIVE_SUFFIX = ".jsa";
+    private static final String SIGNATURE_SUFFIX = ".properties";
+    private static final String PROP_SIGNATURE = "signature";
+    private static final String PROP_VM_VERSION = "java.vm.version";
+    private static final String PROP_JAVA_HOME = "java.home";
+    // dynamic archives appeared in Java 13
+    private static final int MIN_JAVA_VERSION = 13;
+
+    /**
+     * Returns the archive of this installation for the given class path and the
+     * running JVM, which may not exist.
+     */
+    public static File getArchive(String classPathSignature) throws URISyntaxException {
+        return new File(LauncherUtil.determineRuntimeJar().getParentFile(),
+                getArchiveName(classPathSignature, System.getProperty(PROP_VM_VERSION)));
+    }
+
+    static String getArchiveName(String classPathSignature, String vmVersion) {
+        CRC32 hash = new CRC32();
+        try {
+            hash.update(classPathSignature.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        // the JVM version as the release file of the JDK has it, which the scripts
+        // read, but with what can't go in a file name replaced like they do
+        return ARCHIVE_PREFIX + vmVersion.replaceAll("[^A-Za-z0-9.-]", "_")
+                + "-" + Long.toHexString(hash.getValue()) + ARCHIVE_SUFFIX;
+    }
+
+    private static File getSignatureFile(File archive) {
+        return new File(archive.getParentFile(), archive.getName() + SIGNATURE_SUFFIX);
+    }
+
+    /**
+     * Returns true if the archive with the given recorded signature can no longer be
+     * used by anyone, which is when we don't know what it was made for, or when the JVM
+     * it was made for is gone. Archives of other class paths or other JVMs are kept,
+     * since other users of the installation may run it with them.
+     */
+    static boolean isDiscardable(Properties signature) {
+        if (signature == null
+                || signature.getProperty(PROP_SIGNATURE) == null
+                || signature.getProperty(PROP_VM_VERSION) == null)
+            return true;
+        String javaHome = signature.getProperty(PROP_JAVA_HOME);
+        return javaHome == null || !new File(javaHome).isDirectory();
+    }
+
+    /**
+     * Deletes the archives next to the given one which {@link #isDiscardable(Properties)}.
+     */
+    private static void discardArchives(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(ARCHIVE_PREFIX) && name.endsWith(ARCHIVE_SUFFIX)
+                    && isDiscardable(readSignature(file))) {
+                // this fails on Windows if a JVM mapped it, in which case we try again next time
+                if (file.delete())
+                    getSignatureFile(file).delete();
+            }
+        }
+    }
+
+    private static Properties readSignature(File archive) {
+        File file = getSignatureFile(archive);
+        if (!file.isFile())
+            return null;
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                Properties signature = new Properties();
+                signature.load(in);
+                return signature;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeSignature(File archive, String classPathSignature) throws IOException {
+        Properties signature = new Properties();
+        signature.setProperty(PROP_SIGNATURE, classPathSignature);
+        signature.setProperty(PROP_VM_VERSION, System.getProperty(PROP_VM_VERSION));
+        signature.setProperty(PROP_JAVA_HOME, System.getProperty(PROP_JAVA_HOME));
+        OutputStream out = new FileOutputStream(getSignatureFile(archive));
+        try {
+            signature.store(out, "Class data sharing archive of the Ceylon launcher");
+        } finally {
+            out.close();
+        }
+    }
+
+    static int getJavaVersion() {
+        return getJavaVersion(System.getProperty("java.specification.version"));
+    }
+
+    static int getJavaVersion(String version) {
+        // "1.8" up to Java 8, then "9", "10"...
+        if (version.startsWith("1."))
+            version = version.substring(2);
+        int end = 0;
+        while (end < version.length() && Character.isDigit(version.charAt(end)))
+            end++;
+        return end > 0 ? Integer.parseInt(version.substring(0, end)) : 0;
+    }
+
+    /**
+     * Generates the archive for the running JVM by compiling a small module in a new
+     * JVM which records the classes it loads. The archive replaces the previous one
+     * only if that worked.
+     */
+    public static int generateArchive() throws URISyntaxException, IOException, InterruptedException {
+        if (getJavaVersion() < MIN_JAVA_VERSION) {
+            System.err.println("Generating a class data sharing archive requires Java " + MIN_JAVA_VERSION + " or later");
+            return 1;
+        }
+        String classPathSignature = CeylonClassLoader.getClassPathSignature(CeylonClassLoader.getClassPath());
+        File archive = getArchive(classPathSignature);
+        File dir = archive.getParentFile();
+        if (!dir.canWrite()) {
+            System.err.println("Cannot write the class data sharing archive to " + dir);
+            return 1;
+        }
+        File workDir = createTempDir();
+        try {
+            File sourceDir = new File(workDir, "source");
+            sourceDir.mkdirs();
+            writeFile(new File(sourceDir, "run.ceylon"),
+                    "shared void run() {\n    print(\"Hello, world!\");\n}\n");
+
+            File newArchive = new File(dir, archive.getName() + ".tmp");
+            newArchive.delete();
+            List<String> command = new ArrayList<String>();
+            command.add(new File(new File(System.getProperty(PROP_JAVA_HOME), "bin"), "java").getPath());
+            command.add("-XX:ArchiveClassesAtExit=" + newArchive.getAbsolutePath());
+            // the archive is only valid for the class path we were given
+            addSystemProperty(command, Constants.PROP_CEYLON_HOME_DIR);
+            addSystemProperty(command, Constants.PROP_CEYLON_SYSTEM_REPO);
+            addSystemProperty(command, Constants.PROP_CEYLON_SYSTEM_VERSION);
+            // this must be the JVM class path of the ceylon scripts
+            File runtimeJar = LauncherUtil.determineRuntimeJar();
+            if (runtimeJar.isFile()) {
+                command.add("-jar");
+                command.add(runtimeJar.getAbsolutePath());
+            } else {
+                command.add("-cp");
+                command.add(runtimeJar.getAbsolutePath());
+                command.add(Launcher.class.getName());
+            }
+            command.add("compile");
+            command.add("--offline");
+            command.add("--src=" + sourceDir.getAbsolutePath());
+            command.add("--out=" + new File(workDir, "modules").getAbsolutePath());
+            command.add("default");
+
+            ProcessBuilder processBuilder = new ProcessBuilder(command);
+            processBuilder.directory(workDir);
+            processBuilder.redirectErrorStream(true);
+            Process process = processBuilder.start();
+            String output = readOutput(process.getInputStream());
+            int exit = process.waitFor();
+            if (exit != 0 || !newArchive.isFile()) {
+                System.err.print(output);
+                System.err.println("Failed to generate the class data sharing archive " + archive);
+                newArchive.delete();
+                return exit != 0 ? exit : 1;
+            }
+            try {
+                // the signature goes first, because an archive without one is discarded
+                writeSignature(archive, classPathSignature);
+            } catch (IOException e) {
+                System.err.println("Failed to write the signature of the class data sharing archive " + archive + ": " + e.getMessage());
+                newArchive.delete();
+                return 1;
+            }
+            archive.delete();
+            if (!newArchive.renameTo(archive)) {
+                System.err.println("Failed to replace the class data sharing archive " + archive);
+                newArchive.delete();
+                return 1;
+            }
+            discardArchives(dir);
+            System.out.println("Generated the class data sharing archive " + archive);
+            return 0;
+        } finally {
+            delete(workDir);
+        }
+    }
+
+    private static void addSystemProperty(List<String> command, String name) {
+        String value = System.getProperty(name);
+        if (value != null)
+            command.add("-D" + name + "=" + value);
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("ceylon-cds", "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new FileNotFoundException("Could not create the temporary directory " + dir);
+        return dir;
+    }
+
+    private static void writeFile(File file, String contents) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String readOutput(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        try {
+            StringBuilder output = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.append(line).append('\n');
+            }
+            return output.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -35,6 +35,9 @@ public class Launcher {
 
     public static int run(boolean cleanupClassLoader, String... args) throws Throwable {
         Java7Checker.check();
+        if (args.length > 0 && ClassDataSharing.GENERATE_ARGUMENT.equals(args[0])) {
+            return ClassDataSharing.generateArchive();
+        }
         CeylonClassLoader loader = getClassLoader();
         try{
             return runInJava7Checked(loader, args);
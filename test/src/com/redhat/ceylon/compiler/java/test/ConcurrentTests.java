@@ -61,6 +61,9 @@ import com.redhat.ceylon.compiler.java.test.structure.ConstructorTests;
 import com.redhat.ceylon.compiler.java.test.structure.StructureTests;
 import com.redhat.ceylon.compiler.java.test.structure.StructureTests2;
 import com.redhat.ceylon.compiler.java.test.structure.StructureTests3;
+import com.redhat.ceylon.compiler.loader.impl.reflect.CachedTOCJarsTests;
+import com.redhat.ceylon.launcher.CeylonClassLoaderTests;
+import com.redhat.ceylon.launcher.ClassDataSharingTests;
 import com.redhat.ceylon.tools.test.CompilerToolsTests;
 
 @RunWith(ConcurrentSuite.class) 
@@ -94,6 +97,9 @@ import com.redhat.ceylon.tools.test.CompilerToolsTests;
     OptimizationTests.class,
     TryCatchTests.class,
     TypeParserTests.class,
+    CachedTOCJarsTests.class,
+    CeylonClassLoaderTests.class,
+    ClassDataSharingTests.class,
     QuotingTests.class,
     CMRTests.class,
     RuntimeSuite.class,
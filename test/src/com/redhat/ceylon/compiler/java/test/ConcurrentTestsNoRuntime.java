@@ -55,6 +55,9 @@ import com.redhat.ceylon.compiler.java.test.statement.TryCatchTests;
 import com.redhat.ceylon.compiler.java.test.structure.StructureTests;
 import com.redhat.ceylon.compiler.java.test.structure.StructureTests2;
 import com.redhat.ceylon.compiler.java.test.structure.StructureTests3;
+import com.redhat.ceylon.compiler.loader.impl.reflect.CachedTOCJarsTests;
+import com.redhat.ceylon.launcher.CeylonClassLoaderTests;
+import com.redhat.ceylon.launcher.ClassDataSharingTests;
 import com.redhat.ceylon.tools.test.CompilerToolsTests;
 
 /**
@@ -91,6 +94,9 @@ import com.redhat.ceylon.tools.test.CompilerToolsTests;
     OptimizationTests.class,
     TryCatchTests.class,
     TypeParserTests.class,
+    CachedTOCJarsTests.class,
+    CeylonClassLoaderTests.class,
+    ClassDataSharingTests.class,
     QuotingTests.class,
     CMRTests.class,
     BcTests.class,
@@ -22,7 +22,9 @@ package com.redhat.ceylon.compiler.java.test.cmr;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -37,6 +39,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -79,6 +82,7 @@ import com.redhat.ceylon.compiler.java.test.ErrorCollector;
 import com.redhat.ceylon.compiler.java.tools.CeyloncTaskImpl;
 import com.redhat.ceylon.compiler.java.tools.JarEntryManifestFileObject.OsgiManifest;
 import com.redhat.ceylon.compiler.java.util.Util;
+import com.redhat.ceylon.compiler.loader.ModelIndex;
 
 public class CMRTests extends CompilerTests {
     
@@ -177,6 +181,107 @@ public class CMRTests extends CompilerTests {
         compile("modules/incremental/A.ceylon", "modules/incremental/UsesB.ceylon");
     }
 
+    @Test
+    public void testMdlModelIndex() throws IOException{
+        compile("modules/incremental/A.ceylon", "modules/incremental/BUsesA.ceylon", "modules/incremental/UsesB.ceylon");
+        String pkg = "com.redhat.ceylon.compiler.java.test.cmr.modules.incremental";
+        
+        ModelIndex index = readModelIndex(getModuleArchive("default", null));
+        assertTrue(index.getPackages().contains(pkg));
+        assertTrue(index.mayContain(pkg, "A"));
+        assertTrue(index.mayContain(pkg, "AInterface"));
+        assertTrue(index.mayContain(pkg, "BUsesA"));
+        assertTrue(index.mayContain(pkg, "UsesB"));
+        assertFalse(index.mayContain(pkg, "Inner"));
+        assertFalse(index.mayContain(pkg, "Missing"));
+        // the classes of the declarations, which are all we load for the whole package
+        List<String> classNames = index.getClassNames(pkg);
+        assertTrue(classNames.contains("A"));
+        assertTrue(classNames.contains("AInterface"));
+        assertFalse(classNames.contains("A$Inner"));
+        assertFalse(classNames.contains("AInterface$impl"));
+        assertNull(index.getClassNames(pkg + ".missing"));
+        
+        // the classes we keep from the previous car must still be in it
+        compile("modules/incremental/A.ceylon");
+        index = readModelIndex(getModuleArchive("default", null));
+        assertTrue(index.mayContain(pkg, "A"));
+        assertTrue(index.mayContain(pkg, "BUsesA"));
+        assertTrue(index.mayContain(pkg, "UsesB"));
+        assertFalse(index.mayContain(pkg, "Missing"));
+        
+        // the index of an archive is shared until it changes
+        File car = getModuleArchive("default", null);
+        ModelIndex shared = ModelIndex.forArchive(car);
+        assertSame(shared, ModelIndex.forArchive(car));
+        assertTrue(car.setLastModified(car.lastModified() - 10000));
+        assertNotSame(shared, ModelIndex.forArchive(car));
+        // even if it keeps its length and modification time
+        shared = ModelIndex.forArchive(car);
+        long lastModified = car.lastModified();
+        byte[] contents = Files.readAllBytes(car.toPath());
+        int header = contents.length - 4;
+        while (!(contents[header] == 'P' && contents[header + 1] == 'K'
+                && contents[header + 2] == 1 && contents[header + 3] == 2))
+            header--;
+        // the CRC of the last entry of the central directory
+        contents[header + 16] ^= 1;
+        Files.write(car.toPath(), contents);
+        assertTrue(car.setLastModified(lastModified));
+        assertEquals(lastModified, car.lastModified());
+        assertNotSame(shared, ModelIndex.forArchive(car));
+    }
+
+    @Test
+    public void testMdlJDKModelIndex() throws IOException{
+        File indexDir = new File(destDir, "jdk-index");
+        FileUtil.delete(indexDir);
+        List<String> options = new ArrayList<String>(defaultOptions);
+        options.add("-XDjdkIndex=" + indexDir.getPath());
+        ErrorCollector c = new ErrorCollector();
+        assertCompilesOk(c, getCompilerTask(options, c, "modules/incremental/A.ceylon").call2());
+        // made once for the JDK and kept for the next compilations
+        assertEquals(1, indexDir.listFiles().length);
+        File indexFile = indexDir.listFiles()[0];
+        long lastModified = indexFile.lastModified();
+        c = new ErrorCollector();
+        assertCompilesOk(c, getCompilerTask(options, c, "modules/incremental/A.ceylon").call2());
+        assertEquals(1, indexDir.listFiles().length);
+        assertEquals(lastModified, indexFile.lastModified());
+        
+        File apiIndexDir = new File(destDir, "jdk-index-api");
+        FileUtil.delete(apiIndexDir);
+        List<File> platformClassPath = new ArrayList<File>();
+        for (String path : System.getProperty("sun.boot.class.path").split(File.pathSeparator)) {
+            platformClassPath.add(new File(path));
+        }
+        ModelIndex index = ModelIndex.forJDK(platformClassPath, apiIndexDir);
+        assertTrue(index.mayContain("java.lang", "String"));
+        assertFalse(index.mayContain("java.lang", "Missing"));
+        assertTrue(index.getClassNames("java.util").contains("ArrayList"));
+        assertFalse(index.getClassNames("java.util").contains("Map$Entry"));
+        assertSame(index, ModelIndex.forJDK(platformClassPath, apiIndexDir));
+        assertEquals(1, apiIndexDir.listFiles().length);
+        // a class path we can not index
+        platformClassPath.add(apiIndexDir);
+        assertNull(ModelIndex.forJDK(platformClassPath, apiIndexDir));
+    }
+
+    private ModelIndex readModelIndex(File carFile) throws IOException {
+        assertTrue(carFile.exists());
+        ZipFile car = new ZipFile(carFile);
+        try {
+            List<String> entries = new ArrayList<String>();
+            Enumeration<? extends ZipEntry> zipEntries = car.entries();
+            while (zipEntries.hasMoreElements()) {
+                entries.add(zipEntries.nextElement().getName());
+            }
+            return ModelIndex.of(entries);
+        } finally {
+            car.close();
+        }
+    }
+
     @Test
     public void testMdlModuleDefaultIncrementalNoPackage() throws IOException{
         List<String> options = new LinkedList<String>();
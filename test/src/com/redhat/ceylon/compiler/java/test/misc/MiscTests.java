@@ -19,14 +19,25 @@
  */
 package com.redhat.ceylon.compiler.java.test.misc;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.ProcessBuilder.Redirect;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+import javax.tools.Diagnostic;
 import javax.tools.JavaFileObject;
 
 import org.junit.Assert;
@@ -34,12 +45,31 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import com.redhat.ceylon.cmr.api.JDKUtils;
+import com.redhat.ceylon.common.FileUtil;
 import com.redhat.ceylon.common.OSUtil;
+import com.redhat.ceylon.compiler.java.codegen.CeylonCompilationUnit;
 import com.redhat.ceylon.compiler.java.test.CompilerTests;
+import com.redhat.ceylon.compiler.java.launcher.Main;
+import com.redhat.ceylon.compiler.java.launcher.Main.ExitState;
+import com.redhat.ceylon.compiler.java.test.CompilerError;
 import com.redhat.ceylon.compiler.java.test.ErrorCollector;
 import com.redhat.ceylon.compiler.java.tools.CeyloncFileManager;
 import com.redhat.ceylon.compiler.java.tools.CeyloncTaskImpl;
 import com.redhat.ceylon.compiler.java.tools.CeyloncTool;
+import com.redhat.ceylon.compiler.java.tools.LanguageCompiler;
+import com.redhat.ceylon.compiler.java.tools.ParseCache;
+import com.redhat.ceylon.compiler.typechecker.context.PhasedUnit;
+import com.redhat.ceylon.compiler.typechecker.context.PhasedUnits;
+import com.redhat.ceylon.compiler.typechecker.model.MethodOrValue;
+import com.redhat.ceylon.compiler.typechecker.model.ProducedType;
+import com.redhat.ceylon.compiler.typechecker.model.TypedDeclaration;
+import com.redhat.ceylon.compiler.typechecker.tree.Node;
+import com.redhat.ceylon.compiler.typechecker.tree.Tree;
+import com.redhat.ceylon.compiler.typechecker.tree.Visitor;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.tools.javac.tree.JCTree.JCMethodDecl;
+import com.sun.tools.javac.tree.TreeScanner;
 
 public class MiscTests extends CompilerTests {
 
@@ -70,6 +100,306 @@ public class MiscTests extends CompilerTests {
         compileAndRun("com.redhat.ceylon.compiler.java.test.misc.twoclasses.main", "twoclasses/One.ceylon", "twoclasses/Two.ceylon", "twoclasses/main.ceylon");
     }
 
+    @Test
+    public void testCompileTwoClassesParallelParse() throws Exception{
+        compileAndRunTwoClasses("-XDparallel=parse", "-XDparallelThreads=4");
+    }
+
+    @Test
+    public void testCompileTwoClassesParallelTypeCheck() throws Exception{
+        compileAndRunTwoClasses("-XDparallel=typecheck", "-XDparallelThreads=4");
+    }
+
+    @Test
+    public void testParallelPhasesSameAsSerial() throws Exception{
+        String[] units = {
+                "twoclasses/One.ceylon", "twoclasses/Two.ceylon", "twoclasses/main.ceylon",
+                "defaultedmodel/DefineDefaulted.ceylon", "defaultedmodel/UseDefaulted.ceylon",
+                "keyword/Attribute.ceylon", "keyword/Method.ceylon", "keyword/Parameter.ceylon", "keyword/Variable.ceylon"
+        };
+        List<String> serialFlags = compileAndGetModelFlags(units);
+        Map<String, byte[]> serialClasses = readDefaultModuleClasses();
+        List<String> parallelFlags = compileAndGetModelFlags(units, "-XDparallel", "-XDparallelThreads=4");
+        Map<String, byte[]> parallelClasses = readDefaultModuleClasses();
+        Assert.assertFalse(serialFlags.isEmpty());
+        Assert.assertEquals(serialFlags, parallelFlags);
+        assertSameClasses(serialClasses, parallelClasses);
+    }
+
+    /**
+     * Compiles the given units and returns the boxing, erasure and raw flags the
+     * backend passes left on their terms and declarations, in visiting order.
+     */
+    private List<String> compileAndGetModelFlags(String[] units, String... extraOptions) {
+        List<String> options = new ArrayList<String>(defaultOptions);
+        options.addAll(Arrays.asList(extraOptions));
+        ErrorCollector c = new ErrorCollector();
+        CeyloncTaskImpl task = getCompilerTask(options, c, units);
+        final List<CeylonCompilationUnit> trees = new ArrayList<CeylonCompilationUnit>();
+        task.setTaskListener(new TaskListener() {
+            @Override
+            public void started(TaskEvent e) {
+            }
+
+            @Override
+            public void finished(TaskEvent e) {
+                if (e.getKind() == TaskEvent.Kind.PARSE
+                        && e.getCompilationUnit() instanceof CeylonCompilationUnit
+                        && !trees.contains(e.getCompilationUnit()))
+                    trees.add((CeylonCompilationUnit) e.getCompilationUnit());
+            }
+        });
+        assertCompilesOk(c, task.call2());
+        Collections.sort(trees, new Comparator<CeylonCompilationUnit>() {
+            @Override
+            public int compare(CeylonCompilationUnit a, CeylonCompilationUnit b) {
+                return a.getSourceFile().getName().compareTo(b.getSourceFile().getName());
+            }
+        });
+        final List<String> flags = new ArrayList<String>();
+        for (CeylonCompilationUnit tree : trees) {
+            flags.add(tree.getSourceFile().getName());
+            tree.ceylonTree.visit(new Visitor() {
+                @Override
+                public void visitAny(Node that) {
+                    if (that instanceof Tree.Term) {
+                        Tree.Term term = (Tree.Term) that;
+                        ProducedType type = term.getTypeModel();
+                        flags.add(that.getClass().getSimpleName()
+                                + " unboxed=" + term.getUnboxed()
+                                + " erased=" + term.getTypeErased()
+                                + " untrusted=" + term.getUntrustedType()
+                                + " raw=" + (type != null && type.isRaw()));
+                    }
+                    if (that instanceof Tree.TypedDeclaration) {
+                        TypedDeclaration model = ((Tree.TypedDeclaration) that).getDeclarationModel();
+                        if (model != null) {
+                            ProducedType type = model.getType();
+                            flags.add(model.getQualifiedNameString()
+                                    + " unboxed=" + model.getUnboxed()
+                                    + " erased=" + model.getTypeErased()
+                                    + " untrusted=" + model.getUntrustedType()
+                                    + " raw=" + (type != null && type.isRaw())
+                                    + " captured=" + (model instanceof MethodOrValue && ((MethodOrValue) model).isCaptured()));
+                        }
+                    }
+                    super.visitAny(that);
+                }
+            });
+        }
+        return flags;
+    }
+
+    private static void assertSameClasses(Map<String, byte[]> expected, Map<String, byte[]> actual) {
+        Assert.assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            Assert.assertArrayEquals(entry.getKey(), entry.getValue(), actual.get(entry.getKey()));
+        }
+    }
+
+    private Map<String, byte[]> readDefaultModuleClasses() throws IOException {
+        Map<String, byte[]> classes = new TreeMap<String, byte[]>();
+        ZipFile car = new ZipFile(getModuleArchive("default", null));
+        try {
+            Enumeration<? extends ZipEntry> entries = car.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.getName().endsWith(".class"))
+                    continue;
+                InputStream in = car.getInputStream(entry);
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        bytes.write(buffer, 0, read);
+                    }
+                    classes.put(entry.getName(), bytes.toByteArray());
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            car.close();
+        }
+        return classes;
+    }
+
+    @Test
+    public void testCompileTwoClassesStreamingGenerate() throws Exception{
+        List<String> options = new ArrayList<String>(defaultOptions);
+        options.add("-XDstreamingGenerate");
+        ErrorCollector c = new ErrorCollector();
+        CeyloncTaskImpl task = getCompilerTask(options, c, "twoclasses/One.ceylon", "twoclasses/Two.ceylon", "twoclasses/main.ceylon");
+        final PhasedUnits phasedUnits = LanguageCompiler.getPhasedUnitsInstance(task.getContext());
+        // the methods generated for each unit, whose bodies must be gone once it is written
+        final Map<String, List<JCMethodDecl>> methods = new HashMap<String, List<JCMethodDecl>>();
+        final Map<String, CeylonCompilationUnit> units = new HashMap<String, CeylonCompilationUnit>();
+        final List<PhasedUnit> seenPhasedUnits = new ArrayList<PhasedUnit>();
+        final List<String> releasedUnits = new ArrayList<String>();
+        final List<String> leakedUnits = new ArrayList<String>();
+        task.setTaskListener(new TaskListener() {
+            private String generatingUnit;
+
+            @Override
+            public void started(TaskEvent e) {
+                if (e.getKind() != TaskEvent.Kind.GENERATE)
+                    return;
+                String unit = e.getSourceFile().getName();
+                if (generatingUnit != null && !generatingUnit.equals(unit)) {
+                    // every class of the previous unit is written, so its trees must be gone
+                    if (isReleased(units.get(generatingUnit), methods.get(generatingUnit)))
+                        releasedUnits.add(generatingUnit);
+                    else
+                        leakedUnits.add(generatingUnit);
+                }
+                generatingUnit = unit;
+            }
+
+            @Override
+            public void finished(TaskEvent e) {
+                if (e.getKind() != TaskEvent.Kind.PARSE
+                        || !(e.getCompilationUnit() instanceof CeylonCompilationUnit))
+                    return;
+                // this is also sent when it is parsed, but the last one is once its javac trees are made
+                CeylonCompilationUnit unit = (CeylonCompilationUnit) e.getCompilationUnit();
+                String name = e.getSourceFile().getName();
+                final List<JCMethodDecl> unitMethods = new ArrayList<JCMethodDecl>();
+                new TreeScanner() {
+                    @Override
+                    public void visitMethodDef(JCMethodDecl tree) {
+                        super.visitMethodDef(tree);
+                        if (tree.body != null)
+                            unitMethods.add(tree);
+                    }
+                }.scan(unit);
+                methods.put(name, unitMethods);
+                units.put(name, unit);
+                if (!seenPhasedUnits.contains(unit.phasedUnit))
+                    seenPhasedUnits.add(unit.phasedUnit);
+            }
+        });
+        assertCompilesOk(c, task.call2());
+        Assert.assertTrue(leakedUnits.toString(), leakedUnits.isEmpty());
+        Assert.assertEquals(2, releasedUnits.size());
+        // the Ceylon trees went with their phased units as soon as their javac trees were made
+        Assert.assertEquals(3, units.size());
+        for (CeylonCompilationUnit unit : units.values()) {
+            Assert.assertNull(unit.ceylonTree);
+            Assert.assertNull(unit.phasedUnit);
+        }
+        for (PhasedUnit phasedUnit : seenPhasedUnits) {
+            Assert.assertFalse(phasedUnits.getPhasedUnits().contains(phasedUnit));
+        }
+        run("com.redhat.ceylon.compiler.java.test.misc.twoclasses.main");
+    }
+
+    private static boolean isReleased(CeylonCompilationUnit unit, List<JCMethodDecl> methods) {
+        Assert.assertFalse(methods.isEmpty());
+        if (!unit.defs.isEmpty())
+            return false;
+        for (JCMethodDecl method : methods) {
+            if (method.body != null)
+                return false;
+        }
+        return true;
+    }
+
+    @Test
+    public void testCompileTwoClassesProfileReport() throws Exception{
+        File csv = new File(destDir, "profile.csv");
+        csv.delete();
+        compileAndRunTwoClasses("-XDprofile=" + csv.getPath());
+        String report = readFile(csv);
+        Assert.assertTrue(report.startsWith("kind,phase,name,count,wallNanos,cpuNanos,allocatedBytes"));
+        Assert.assertTrue(report.contains("\nphase,parse,,1,"));
+        Assert.assertTrue(report.contains("\nfile,Ceylon code generation,com/redhat/ceylon/compiler/java/test/misc/twoclasses/One.ceylon,1,"));
+        // aggregated with the previous run
+        compileAndRunTwoClasses("-XDprofile=" + csv.getPath(), "-XDprofileAggregate");
+        Assert.assertTrue(readFile(csv).contains("\nphase,parse,,2,"));
+        
+        File json = new File(destDir, "profile.json");
+        json.delete();
+        compileAndRunTwoClasses("-XDprofile=" + json.getPath(), "-XDparallel", "-XDparallelThreads=4");
+        report = readFile(json);
+        Assert.assertTrue(report.startsWith("["));
+        Assert.assertTrue(report.contains("{\"kind\": \"file\", \"phase\": \"Ceylon code generation\", \"name\": \"com/redhat/ceylon/compiler/java/test/misc/twoclasses/Two.ceylon\", \"count\": 1,"));
+        // parsed by the worker threads, which record their own file
+        Assert.assertTrue(report.contains("{\"kind\": \"file\", \"phase\": \"parse\", \"name\": \"com/redhat/ceylon/compiler/java/test/misc/twoclasses/One.ceylon\", \"count\": 1,"));
+    }
+
+    @Test
+    public void testCompileTwoClassesParseCache() throws Exception{
+        File cacheDir = new File(destDir, "parse-cache");
+        FileUtil.delete(cacheDir);
+        ParseCache cache = ParseCache.instance(compileAndRunTwoClasses("-XDparseCache=" + cacheDir.getPath()).getContext());
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(3, cache.getMisses());
+        Assert.assertEquals(3, countParseCacheEntries(cacheDir));
+        Map<String, byte[]> parsedClasses = readDefaultModuleClasses();
+        // now from the cached trees
+        cache = ParseCache.instance(compileAndRunTwoClasses("-XDparseCache=" + cacheDir.getPath()).getContext());
+        Assert.assertEquals(3, cache.getHits());
+        Assert.assertEquals(0, cache.getMisses());
+        assertSameClasses(parsedClasses, readDefaultModuleClasses());
+        // and in parallel
+        cache = ParseCache.instance(compileAndRunTwoClasses("-XDparseCache=" + cacheDir.getPath(), "-XDparallel=parse", "-XDparallelThreads=4").getContext());
+        Assert.assertEquals(3, cache.getHits());
+        Assert.assertEquals(0, cache.getMisses());
+        assertSameClasses(parsedClasses, readDefaultModuleClasses());
+    }
+
+    @Test
+    public void testCompileTwoClassesParseCacheMaxSize() throws Exception{
+        File cacheDir = new File(destDir, "parse-cache-max-size");
+        FileUtil.delete(cacheDir);
+        // no entry fits, so each one is evicted as soon as it is written
+        ParseCache cache = ParseCache.instance(compileAndRunTwoClasses("-XDparseCache=" + cacheDir.getPath(), "-XDparseCacheMaxSize=1").getContext());
+        Assert.assertEquals(3, cache.getMisses());
+        Assert.assertEquals(0, countParseCacheEntries(cacheDir));
+        cache = ParseCache.instance(compileAndRunTwoClasses("-XDparseCache=" + cacheDir.getPath(), "-XDparseCacheMaxSize=1").getContext());
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(3, cache.getMisses());
+        // without a limit they are all kept
+        compileAndRunTwoClasses("-XDparseCache=" + cacheDir.getPath(), "-XDparseCacheMaxSize=0");
+        Assert.assertEquals(3, countParseCacheEntries(cacheDir));
+    }
+
+    private static int countParseCacheEntries(File cacheDir) {
+        int entries = 0;
+        for (File dir : cacheDir.listFiles()) {
+            entries += dir.listFiles().length;
+        }
+        return entries;
+    }
+
+    @Test
+    public void testInvalidModelLoaderCacheBudget() throws Exception{
+        List<String> options = new ArrayList<String>(defaultOptions);
+        options.add("-XDmodelLoaderCacheBudget=lots");
+        ErrorCollector c = new ErrorCollector();
+        ExitState exitState = getCompilerTask(options, c, "twoclasses/One.ceylon", "twoclasses/Two.ceylon", "twoclasses/main.ceylon").call2();
+        // reported like any other error rather than crashing the compiler
+        Assert.assertNull(exitState.abortingException);
+        Assert.assertNotEquals(Main.EXIT_OK, exitState.javacExitCode);
+        boolean reported = false;
+        for (CompilerError error : c.get(Diagnostic.Kind.ERROR)) {
+            if (error.message.contains("-XDmodelLoaderCacheBudget"))
+                reported = true;
+        }
+        Assert.assertTrue(reported);
+    }
+
+    private CeyloncTaskImpl compileAndRunTwoClasses(String... extraOptions) {
+        List<String> options = new ArrayList<String>(defaultOptions);
+        options.addAll(Arrays.asList(extraOptions));
+        ErrorCollector c = new ErrorCollector();
+        CeyloncTaskImpl task = getCompilerTask(options, c, "twoclasses/One.ceylon", "twoclasses/Two.ceylon", "twoclasses/main.ceylon");
+        assertCompilesOk(c, task.call2());
+        run("com.redhat.ceylon.compiler.java.test.misc.twoclasses.main");
+        return task;
+    }
+
     @Test
     public void testEqualsHashOverriding(){
         compareWithJavaSource("equalshashoverriding/EqualsHashOverriding");
@@ -38,11 +38,16 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import javax.lang.model.type.TypeKind;
+
 import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -71,8 +76,18 @@ import com.redhat.ceylon.compiler.java.tools.LanguageCompiler;
 import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
 import com.redhat.ceylon.compiler.loader.ModelLoader;
 import com.redhat.ceylon.compiler.loader.ModelLoader.DeclarationType;
+import com.redhat.ceylon.compiler.loader.impl.reflect.bytecode.BytecodeMethod;
+import com.redhat.ceylon.compiler.loader.impl.reflect.bytecode.ClassFileLoader;
+import com.redhat.ceylon.compiler.loader.impl.reflect.mirror.ReflectionClass;
+import com.redhat.ceylon.compiler.loader.impl.reflect.mirror.ReflectionMethod;
 import com.redhat.ceylon.compiler.loader.impl.reflect.mirror.ReflectionUtils;
+import com.redhat.ceylon.compiler.loader.mirror.ClassMirror;
+import com.redhat.ceylon.compiler.loader.mirror.MethodMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeMirror;
+import com.redhat.ceylon.compiler.loader.mirror.VariableMirror;
+import com.redhat.ceylon.compiler.loader.model.JavaMethod;
 import com.redhat.ceylon.compiler.loader.model.LazyElement;
+import com.redhat.ceylon.compiler.loader.model.LazyPackage;
 import com.redhat.ceylon.compiler.typechecker.TypeChecker;
 import com.redhat.ceylon.compiler.typechecker.TypeCheckerBuilder;
 import com.redhat.ceylon.compiler.typechecker.context.PhasedUnit;
@@ -1231,6 +1246,162 @@ public class ModelLoaderTests extends CompilerTests {
         }, Arrays.asList("-verbose:loader"));
     }
 
+    @Test
+    public void parallelLookups(){
+        // whatever test, doesn't matter
+        verifyCompilerClassLoading("Any.ceylon", new RunnableTest(){
+            @Override
+            public void test(final ModelLoader loader) {
+                final AbstractModelLoader modelLoader = (AbstractModelLoader) loader;
+                final Module languageModule = modelLoader.getLanguageModule();
+                final String[] names = {"ceylon.language.String", "ceylon.language.Iterable", "ceylon.language.Integer",
+                        "ceylon.language.Sequence", "ceylon.language.Entry", "ceylon.language.process_"};
+                // look the same declarations up from every thread, half of them loaded and half not
+                modelLoader.convertToDeclaration(languageModule, names[0], DeclarationType.TYPE);
+                modelLoader.convertToDeclaration(languageModule, names[1], DeclarationType.TYPE);
+                modelLoader.convertToDeclaration(languageModule, names[2], DeclarationType.TYPE);
+                Callable<Object> lookups = new Callable<Object>(){
+                    @Override
+                    public Object call() throws Exception {
+                        List<Declaration> ret = new ArrayList<Declaration>(names.length);
+                        for(int i=0;i<100;i++){
+                            ret.clear();
+                            for(String name : names){
+                                Assert.assertNotNull(modelLoader.lookupClassMirror(languageModule, name));
+                                Declaration decl = modelLoader.convertToDeclaration(languageModule, name, DeclarationType.TYPE);
+                                Assert.assertNotNull(decl.getUnit());
+                                Assert.assertNotNull(decl.getContainer());
+                                // that causes model loading
+                                decl.getMembers();
+                                ret.add(decl);
+                            }
+                        }
+                        return ret;
+                    }
+                };
+                List<Callable<Object>> tasks = Collections.nCopies(10, lookups);
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(10, 10, 1, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(10));
+                try {
+                    List<Future<Object>> futures = executor.invokeAll(tasks);
+                    List<?> first = (List<?>) futures.get(0).get();
+                    // everyone must have seen the same declarations
+                    for(Future<Object> f : futures){
+                        List<?> decls = (List<?>) f.get();
+                        for(int i=0;i<names.length;i++){
+                            Assert.assertSame(first.get(i), decls.get(i));
+                        }
+                    }
+                    executor.shutdown();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void lazyJavaMethodTypes(){
+        // whatever test, doesn't matter
+        verifyCompilerClassLoading("Any.ceylon", new RunnableTest(){
+            @Override
+            public void test(ModelLoader loader) {
+                Module mod = loader.getLoadedModule("java.base", JDKUtils.jdk.version);
+                Assert.assertNotNull(mod);
+                Package p = mod.getDirectPackage("java.util");
+                ClassOrInterface collections = (ClassOrInterface) p.getDirectMember("Collections", null, false);
+                Assert.assertNotNull(collections);
+                // completing the class gives us its members, but not their types
+                Declaration emptyList = collections.getDirectMember("emptyList", null, false);
+                Assert.assertTrue(emptyList instanceof JavaMethod);
+                Assert.assertTrue(emptyList.toString().startsWith("UNLOADED:"));
+                Declaration reverse = collections.getDirectMember("reverse", null, false);
+                Assert.assertTrue(reverse.toString().startsWith("UNLOADED:"));
+                // until we ask for them
+                Method method = (Method) emptyList;
+                Assert.assertNotNull(method.getType());
+                Assert.assertFalse(method.toString().startsWith("UNLOADED:"));
+                Assert.assertEquals(1, method.getTypeParameters().size());
+                Assert.assertEquals(1, method.getParameterLists().size());
+                Assert.assertTrue(method.getParameterLists().get(0).getParameters().isEmpty());
+                // the others are still not loaded
+                Assert.assertTrue(reverse.toString().startsWith("UNLOADED:"));
+            }
+        });
+    }
+
+    @Test
+    public void parallelPackageLoading(){
+        verifyRuntimeClassLoading(new RunnableTest(){
+            @Override
+            public void test(ModelLoader loader) {
+                RuntimeModelLoader modelLoader = (RuntimeModelLoader) loader;
+                modelLoader.setPackageLoadThreads(4);
+                Module languageModule = modelLoader.getLoadedModule(AbstractModelLoader.CEYLON_LANGUAGE, Versions.CEYLON_VERSION_NUMBER);
+                Assert.assertTrue(modelLoader.loadPackage(languageModule, AbstractModelLoader.CEYLON_LANGUAGE, true));
+                // the mirrors were looked up concurrently, but every declaration must be there
+                Package pkg = languageModule.getDirectPackage(AbstractModelLoader.CEYLON_LANGUAGE);
+                Assert.assertNotNull(pkg.getDirectMember("Iterable", null, false));
+                Assert.assertNotNull(pkg.getDirectMember("String", null, false));
+                Assert.assertNotNull(pkg.getDirectMember("print", null, false));
+                Assert.assertNotNull(pkg.getDirectMember("true", null, false));
+            }
+        });
+    }
+
+    @Test
+    public void boundedModelLoaderCaches(){
+        // whatever test, doesn't matter
+        verifyCompilerClassLoading("Any.ceylon", new RunnableTest(){
+            @Override
+            public void test(ModelLoader loader) {
+                AbstractModelLoader modelLoader = (AbstractModelLoader) loader;
+                Module mod = loader.getLoadedModule("java.base", JDKUtils.jdk.version);
+                Assert.assertNotNull(mod);
+                // room for a few dozen classes
+                long budget = 256 * 1024;
+                modelLoader.setCacheBudget(budget);
+                try{
+                    // we hold on to everything we load, so what is evicted is detached from its
+                    // package but never collected, whatever the garbage collector does
+                    List<Declaration> loaded = new ArrayList<Declaration>();
+                    for(String pkgName : Arrays.asList("java.util", "java.util.concurrent", "java.io", "java.net", "java.text")){
+                        for(Declaration member : mod.getDirectPackage(pkgName).getMembers()){
+                            if(member instanceof ClassOrInterface
+                                    && !member.getMembers().isEmpty()){
+                                loaded.add(member);
+                            }
+                        }
+                    }
+                    Assert.assertTrue(loaded.size() > 200);
+                    Assert.assertTrue(modelLoader.getCacheEvictions() > 0);
+                    Assert.assertTrue(modelLoader.getCacheWeight() <= 2 * budget);
+                    // the evicted declarations are no longer members of their package
+                    List<Declaration> detached = new ArrayList<Declaration>();
+                    for(Declaration decl : loaded){
+                        // constructor overloads go and come back with their abstraction
+                        if(!((LazyPackage)decl.getContainer()).hasCompiledMember(decl)
+                                && !(decl instanceof Class && ((Class)decl).isOverloaded()))
+                            detached.add(decl);
+                    }
+                    Assert.assertFalse(detached.isEmpty());
+                    Assert.assertTrue(detached.size() < loaded.size());
+                    // but they are still in use, so they are handed out again and put back
+                    Declaration decl = detached.get(0);
+                    LazyPackage pkg = (LazyPackage) decl.getContainer();
+                    String className = pkg.getQualifiedName(pkg.getQualifiedNameString(), decl.getName());
+                    Assert.assertSame(decl, modelLoader.convertToDeclaration(mod, className, DeclarationType.TYPE));
+                    Assert.assertTrue(pkg.hasCompiledMember(decl));
+                    Assert.assertSame(decl, pkg.getDirectMember(decl.getName(), null, false));
+                    Assert.assertTrue(modelLoader.getCacheWeight() <= 2 * budget);
+                }finally{
+                    modelLoader.setCacheBudget(0);
+                }
+            }
+        });
+    }
+
     @Ignore("This is the single-threaded version of parallelLoader that loads the JDK entirely to benchmark the model loader")
     @Test
     public void jdkModelLoaderSpeedTest(){
@@ -1566,6 +1737,170 @@ public class ModelLoaderTests extends CompilerTests {
         Assert.assertTrue(ReflectionUtils.isOverridingMethod(HiddenObjectMethods.class.getDeclaredMethod("equals", Object.class)));
     }
     
+    @Test
+    public void testBytecodeMirrors() throws NoSuchMethodException, SecurityException{
+        ClassFileLoader classFileLoader = new ClassFileLoader(){
+            @Override
+            protected byte[] getClassFile(String name) {
+                return ClassFileLoader.readClassFile(ModelLoaderTests.class.getClassLoader(), name);
+            }
+        };
+        // the class file mirrors must describe the same things as the reflection ones
+        for(java.lang.Class<?> klass : Arrays.<java.lang.Class<?>>asList(C.class, C2.class, RawC.class, 
+                ContainerSubClass.Inner.class, VisibilitySubClass.class, HiddenObjectMethods.class,
+                AbstractReceiveListener.class, java.util.ArrayList.class, java.util.HashMap.class,
+                java.util.Map.Entry.class, Thread.State.class)){
+            ClassMirror reflectionClass = new ReflectionClass(klass);
+            ClassMirror bytecodeClass = classFileLoader.lookupClass(null, klass.getName());
+            Assert.assertNotNull(klass.getName(), bytecodeClass);
+            Assert.assertEquals(reflectionClass.getQualifiedName(), bytecodeClass.getQualifiedName());
+            Assert.assertEquals(reflectionClass.getName(), bytecodeClass.getName());
+            Assert.assertEquals(reflectionClass.getPackage().getQualifiedName(), bytecodeClass.getPackage().getQualifiedName());
+            Assert.assertEquals(klass.getName(), reflectionClass.isPublic(), bytecodeClass.isPublic());
+            Assert.assertEquals(klass.getName(), reflectionClass.isProtected(), bytecodeClass.isProtected());
+            Assert.assertEquals(klass.getName(), reflectionClass.isStatic(), bytecodeClass.isStatic());
+            Assert.assertEquals(klass.getName(), reflectionClass.isAbstract(), bytecodeClass.isAbstract());
+            Assert.assertEquals(klass.getName(), reflectionClass.isFinal(), bytecodeClass.isFinal());
+            Assert.assertEquals(klass.getName(), reflectionClass.isInterface(), bytecodeClass.isInterface());
+            Assert.assertEquals(klass.getName(), reflectionClass.isEnum(), bytecodeClass.isEnum());
+            Assert.assertEquals(klass.getName(), reflectionClass.isInnerClass(), bytecodeClass.isInnerClass());
+            Assert.assertEquals(klass.getName(), reflectionClass.isLocalClass(), bytecodeClass.isLocalClass());
+            Assert.assertEquals(klass.getName(), reflectionClass.isAnonymous(), bytecodeClass.isAnonymous());
+            Assert.assertEquals(getTypeName(reflectionClass.getSuperclass()), getTypeName(bytecodeClass.getSuperclass()));
+            Assert.assertEquals(getTypeNames(reflectionClass.getInterfaces()), getTypeNames(bytecodeClass.getInterfaces()));
+            Assert.assertEquals(reflectionClass.getTypeParameters().size(), bytecodeClass.getTypeParameters().size());
+            Assert.assertEquals(getMethodDescriptions(reflectionClass), getMethodDescriptions(bytecodeClass));
+            Assert.assertEquals(reflectionClass.getDirectFields().size(), bytecodeClass.getDirectFields().size());
+        }
+        // and we must only have one mirror per class
+        Assert.assertSame(classFileLoader.getClass("java.util.ArrayList"), classFileLoader.lookupClass(null, "java.util.ArrayList"));
+        Assert.assertNull(classFileLoader.getClass("no.such.Klass"));
+    }
+
+    @Test
+    public void testBytecodeMirrorsByModule(){
+        final Module m1 = new Module();
+        m1.setName(Arrays.asList("m1"));
+        final Module m2 = new Module();
+        m2.setName(Arrays.asList("m2"));
+        final List<String> lookups = Collections.synchronizedList(new ArrayList<String>());
+        ClassFileLoader classFileLoader = new ClassFileLoader(){
+            @Override
+            protected byte[] getClassFile(String name) {
+                lookups.add(name);
+                return ClassFileLoader.readClassFile(ModelLoaderTests.class.getClassLoader(), name);
+            }
+            @Override
+            protected byte[] getClassFile(Module module, String name) {
+                lookups.add(module.getNameAsString() + "/" + name);
+                // each module has its own class of that name
+                if(name.equals("test.Same"))
+                    name = (module == m1 ? C.class : C2.class).getName();
+                return ClassFileLoader.readClassFile(ModelLoaderTests.class.getClassLoader(), name);
+            }
+        };
+        ClassMirror same1 = classFileLoader.lookupClass(m1, "test.Same");
+        ClassMirror same2 = classFileLoader.lookupClass(m2, "test.Same");
+        Assert.assertEquals(new ReflectionClass(C.class).getQualifiedName(), same1.getQualifiedName());
+        Assert.assertEquals(new ReflectionClass(C2.class).getQualifiedName(), same2.getQualifiedName());
+        Assert.assertSame(same1, classFileLoader.lookupClass(m1, "test.Same"));
+        Assert.assertSame(same2, classFileLoader.lookupClass(m2, "test.Same"));
+        
+        // the classes they refer to are looked up in their module
+        String outer = ContainerSubClass.class.getName();
+        ClassMirror inner1 = classFileLoader.lookupClass(m1, ContainerSubClass.Inner.class.getName());
+        lookups.clear();
+        ClassMirror outer1 = inner1.getEnclosingClass();
+        Assert.assertEquals(Arrays.asList("m1/" + outer), lookups);
+        Assert.assertSame(outer1, classFileLoader.lookupClass(m1, outer));
+        Assert.assertNotSame(outer1, classFileLoader.lookupClass(m2, outer));
+        Assert.assertNotSame(outer1, classFileLoader.getClass(outer));
+    }
+
+    @Test
+    public void testBytecodeMirrorsConcurrently() throws InterruptedException, ExecutionException{
+        final ClassFileLoader classFileLoader = new ClassFileLoader(){
+            @Override
+            protected byte[] getClassFile(String name) {
+                return ClassFileLoader.readClassFile(ModelLoaderTests.class.getClassLoader(), name);
+            }
+        };
+        final List<String> names = Arrays.asList(C.class.getName(), C2.class.getName(), RawC.class.getName(),
+                ContainerSubClass.Inner.class.getName(), java.util.ArrayList.class.getName(),
+                java.util.HashMap.class.getName(), java.util.concurrent.ConcurrentHashMap.class.getName());
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try{
+            List<Future<List<Object>>> results = new ArrayList<Future<List<Object>>>(threads);
+            for(int i=0;i<threads;i++){
+                results.add(executor.submit(new Callable<List<Object>>(){
+                    @Override
+                    public List<Object> call() throws InterruptedException {
+                        start.await();
+                        // everything whose identity matters, which each thread computes on demand
+                        List<Object> mirrors = new ArrayList<Object>();
+                        for(String name : names){
+                            ClassMirror klass = classFileLoader.lookupClass(null, name);
+                            mirrors.add(klass);
+                            mirrors.addAll(klass.getTypeParameters());
+                            mirrors.add(klass.getEnclosingClass());
+                            if(klass.getSuperclass() != null)
+                                mirrors.add(klass.getSuperclass().getDeclaredClass());
+                            for(MethodMirror method : klass.getDirectMethods()){
+                                mirrors.add(method);
+                                mirrors.addAll(method.getTypeParameters());
+                                for(VariableMirror parameter : method.getParameters()){
+                                    TypeMirror type = parameter.getType();
+                                    if(type.getKind() == TypeKind.TYPEVAR)
+                                        mirrors.add(type.getTypeParameter());
+                                }
+                            }
+                        }
+                        return mirrors;
+                    }
+                }));
+            }
+            start.countDown();
+            // every thread must see the same mirrors
+            List<Object> expected = results.get(0).get();
+            for(Future<List<Object>> result : results){
+                List<Object> mirrors = result.get();
+                Assert.assertEquals(expected.size(), mirrors.size());
+                for(int i=0;i<mirrors.size();i++)
+                    Assert.assertSame(String.valueOf(expected.get(i)), expected.get(i), mirrors.get(i));
+            }
+        }finally{
+            executor.shutdown();
+        }
+    }
+
+    private static String getTypeName(TypeMirror type) {
+        return type != null ? type.getQualifiedName() + "<" + getTypeNames(type.getTypeArguments()) + ">" : null;
+    }
+
+    private static List<String> getTypeNames(List<TypeMirror> types) {
+        List<String> names = new ArrayList<String>(types.size());
+        for(TypeMirror type : types)
+            names.add(type.getKind() == TypeKind.DECLARED ? getTypeName(type) : type.getKind().name());
+        return names;
+    }
+
+    private static Set<String> getMethodDescriptions(ClassMirror klass) {
+        Set<String> descriptions = new TreeSet<String>();
+        for(MethodMirror method : klass.getDirectMethods()){
+            boolean overriding = method instanceof BytecodeMethod 
+                    ? ((BytecodeMethod)method).isOverridingMethod() : ((ReflectionMethod)method).isOverridingMethod();
+            boolean overloading = method instanceof BytecodeMethod 
+                    ? ((BytecodeMethod)method).isOverloadingMethod() : ((ReflectionMethod)method).isOverloadingMethod();
+            descriptions.add(method.getName() + "/" + method.getParameters().size() + "/" + method.getTypeParameters().size()
+                    + (method.isStatic() ? "/static" : "") + (method.isVariadic() ? "/variadic" : "")
+                    + (method.isDeclaredVoid() ? "/void" : "")
+                    + (overriding ? "/overriding" : "") + (overloading ? "/overloading" : ""));
+        }
+        return descriptions;
+    }
+
     @Test
     public void loadPublicJavaClassWithPackageConstructor(){
         compile("PublicJavaClassWithPackageConstructor.java");
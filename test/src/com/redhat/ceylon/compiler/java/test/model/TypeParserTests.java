@@ -433,6 +433,26 @@ public class TypeParserTests {
         Assert.assertEquals("a&b", qualifyingDeclaration.getName());
     }
 
+    @Test
+    public void testCache(){
+        TypeParser parser = new TypeParser(MockLoader.instance);
+        ProducedType first = parser.decodeType("pkg::b.c|pkg::a", null, mockModule, mockUnit);
+        ProducedType second = parser.decodeType("pkg::b.c|pkg::a", null, mockModule, mockUnit);
+        Assert.assertEquals(1, parser.getParsedTypeHits());
+        Assert.assertEquals(1, parser.getParsedTypeMisses());
+        // pkg::b and pkg::a are cached, not pkg::b.c which is looked up in pkg::b
+        Assert.assertEquals(2, parser.getDeclarationHits());
+        Assert.assertEquals(2, parser.getDeclarationMisses());
+        // callers modify the types they get, so we need new ones every time
+        Assert.assertNotSame(first, second);
+        Assert.assertTrue(first.isExactly(second));
+        
+        parser.clearCache();
+        parser.decodeType("pkg::a", null, mockModule, mockUnit);
+        Assert.assertEquals(2, parser.getParsedTypeMisses());
+        Assert.assertEquals(3, parser.getDeclarationMisses());
+    }
+
     @Test(expected = ModelResolutionException.class)
     public void testParameterisedPackage(){
         new TypeParser(MockLoader.instance).decodeType("unknown<a>.b", null, mockModule, mockUnit);
@@ -0,0 +1,300 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redhat.ceylon.common.FileUtil;
+import com.redhat.ceylon.compiler.java.test.CompilerTests;
+import com.redhat.ceylon.compiler.loader.impl.reflect.CachedTOCJars.CachedTOCJar;
+import com.redhat.ceylon.compiler.loader.impl.reflect.CachedTOCJars.OpenJars;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+
+public class CachedTOCJarsTests {
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("cached-toc-jars", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void deleteDir() {
+        FileUtil.deleteQuietly(dir);
+    }
+
+    private File makeJar(String name, String... paths) throws IOException {
+        File jar = new File(dir, name + ".jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            for (String path : paths) {
+                out.putNextEntry(new ZipEntry(path));
+                if (!path.endsWith("/"))
+                    out.write((name + ":" + path).getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+
+    private static Module makeModule(String name) {
+        Module module = new Module();
+        module.setName(Arrays.asList(name));
+        module.setVersion("1");
+        return module;
+    }
+
+    private static String contents(byte[] contents) throws IOException {
+        assertNotNull(contents);
+        return new String(contents, "UTF-8");
+    }
+
+    @Test
+    public void testCompactTOC() {
+        CompactTOC toc = CompactTOC.of(Arrays.asList(
+                    "a/b/C.class", "a/b/B.class", "a/D.class", "ab/E.class", "a/b/c/F.class",
+                    "G.class", "a/b/C.class", "a/b/Ca.class", "a/bC.class"),
+                Arrays.asList("empty", "a/b"));
+        // the package paths are sorted, and the one listed twice is only there once
+        assertEquals(Arrays.asList("", "a", "a/b", "a/b/c", "ab", "empty"), toc.getPackages());
+        // the duplicate path is only there once
+        assertEquals(8, toc.getFileCount());
+        for (String pkg : toc.getPackages())
+            assertTrue(pkg, toc.containsPackage(pkg));
+        assertFalse(toc.containsPackage("a/"));
+        assertFalse(toc.containsPackage("a/b/c/d"));
+        assertFalse(toc.containsPackage("b"));
+
+        assertTrue(toc.containsFile("G.class"));
+        assertTrue(toc.containsFile("a/D.class"));
+        assertTrue(toc.containsFile("a/bC.class"));
+        assertTrue(toc.containsFile("a/b/B.class"));
+        assertTrue(toc.containsFile("a/b/C.class"));
+        assertTrue(toc.containsFile("a/b/Ca.class"));
+        assertTrue(toc.containsFile("a/b/c/F.class"));
+        assertTrue(toc.containsFile("ab/E.class"));
+        // names which are prefixes of others, or others are prefixes of
+        assertFalse(toc.containsFile("a/b/C"));
+        assertFalse(toc.containsFile("a/b/C.class2"));
+        assertFalse(toc.containsFile("a/b/A.class"));
+        assertFalse(toc.containsFile("a/b/D.class"));
+        // files in the wrong package
+        assertFalse(toc.containsFile("D.class"));
+        assertFalse(toc.containsFile("a/G.class"));
+        assertFalse(toc.containsFile("a/b/F.class"));
+        assertFalse(toc.containsFile("b/E.class"));
+        assertFalse(toc.containsFile("empty/E.class"));
+        assertFalse(toc.containsFile("missing/E.class"));
+
+        assertEquals(Arrays.asList("G.class"), toc.getFileNames(""));
+        assertEquals(Arrays.asList("a/D.class", "a/bC.class"), toc.getFileNames("a"));
+        assertEquals(Arrays.asList("a/b/B.class", "a/b/C.class", "a/b/Ca.class"), toc.getFileNames("a/b"));
+        assertEquals(Collections.emptyList(), toc.getFileNames("empty"));
+        assertEquals(Collections.emptyList(), toc.getFileNames("missing"));
+    }
+
+    @Test
+    public void testCompactTOCWithoutFiles() {
+        CompactTOC toc = CompactTOC.of(Collections.<String>emptyList(), Collections.<String>emptyList());
+        assertEquals(0, toc.getFileCount());
+        assertEquals(Collections.emptyList(), toc.getPackages());
+        assertFalse(toc.containsPackage(""));
+        assertFalse(toc.containsFile("A.class"));
+        assertFalse(toc.containsFile("a/A.class"));
+        assertEquals(Collections.emptyList(), toc.getFileNames(""));
+
+        toc = CompactTOC.of(Collections.<String>emptyList(), Arrays.asList("a", "b"));
+        assertEquals(0, toc.getFileCount());
+        assertEquals(Arrays.asList("a", "b"), toc.getPackages());
+        assertFalse(toc.containsFile("a/A.class"));
+        assertEquals(Collections.emptyList(), toc.getFileNames("b"));
+    }
+
+    @Test
+    public void testCompactTOCBinarySearch() {
+        // enough packages and names to exercise every branch of both binary searches
+        List<String> paths = new ArrayList<String>();
+        for (int p = 0; p < 100; p += 2) {
+            for (int n = 0; n < 50; n += 2) {
+                paths.add("p/k" + p + "/N" + n + ".class");
+            }
+        }
+        Collections.shuffle(paths);
+        CompactTOC toc = CompactTOC.of(paths, Collections.<String>emptyList());
+        assertEquals(paths.size(), toc.getFileCount());
+        assertEquals(50, toc.getPackages().size());
+        for (int p = 0; p < 100; p++) {
+            String pkg = "p/k" + p;
+            assertEquals(pkg, p % 2 == 0, toc.containsPackage(pkg));
+            for (int n = 0; n < 50; n++) {
+                String path = pkg + "/N" + n + ".class";
+                assertEquals(path, p % 2 == 0 && n % 2 == 0, toc.containsFile(path));
+            }
+            List<String> names = toc.getFileNames(pkg);
+            assertEquals(p % 2 == 0 ? 25 : 0, names.size());
+            List<String> sorted = new ArrayList<String>(names);
+            Collections.sort(sorted);
+            assertEquals(sorted, names);
+        }
+    }
+
+    @Test
+    public void testSplitPackages() throws IOException {
+        CachedTOCJars jars = new CachedTOCJars();
+        try {
+            Module m1 = makeModule("m1");
+            Module m2 = makeModule("m2");
+            Module m3 = makeModule("m3");
+            jars.addJar(CompilerTests.makeArtifactResult(makeJar("m1", "split/A.class", "split/Same.class", "m1/M.class")), m1);
+            jars.addJar(CompilerTests.makeArtifactResult(makeJar("m2", "split/B.class", "split/Same.class", "empty/")), m2);
+            // we don't read the contents of this one
+            jars.addJar(CompilerTests.makeArtifactResult(makeJar("m3", "split/C.class")), m3, true);
+
+            // by path, the first jar which has it wins
+            assertEquals("m1:split/A.class", contents(jars.getContents("split/A.class")));
+            assertEquals("m2:split/B.class", contents(jars.getContents("split/B.class")));
+            assertEquals("m1:split/Same.class", contents(jars.getContents("split/Same.class")));
+            assertEquals("m1:m1/M.class", contents(jars.getContents("m1/M.class")));
+            assertNull(jars.getContents("split/C.class"));
+            assertNull(jars.getContents("split/D.class"));
+            assertNull(jars.getContents("m2/M.class"));
+            assertNotNull(jars.getContentUri("split/B.class"));
+            assertNull(jars.getContentUri("split/C.class"));
+
+            // by module, only that module's jar
+            assertEquals("m2:split/Same.class", contents(jars.getContents(m2, "split/Same.class")));
+            assertNull(jars.getContents(m2, "split/A.class"));
+            assertNull(jars.getContents(m3, "split/C.class"));
+            assertNull(jars.getContentUri(m3, "split/C.class"));
+            assertTrue(jars.packageExists(m1, "split"));
+            assertTrue(jars.packageExists(m3, "split"));
+            assertFalse(jars.packageExists(m1, "m2"));
+            assertEquals(Arrays.asList("split/A.class", "split/Same.class"), jars.getPackageList(m1, "split"));
+            assertEquals(Arrays.asList("split/C.class"), jars.getPackageList(m3, "split"));
+
+            // directory entries do not make packages, only files do
+            assertFalse(jars.packageExists(m2, "empty"));
+            assertEquals(Collections.emptyList(), jars.getPackageList(m2, "empty"));
+        } finally {
+            jars.close();
+        }
+    }
+
+    @Test
+    public void testManyJars() throws IOException {
+        int count = CachedTOCJars.DEFAULT_MAX_OPEN_JARS + 4;
+        CachedTOCJars jars = new CachedTOCJars();
+        try {
+            Module[] modules = new Module[count];
+            for (int i = 0; i < count; i++) {
+                modules[i] = makeModule("m" + i);
+                jars.addJar(CompilerTests.makeArtifactResult(makeJar("m" + i, "split/C" + i + ".class", "m" + i + "/M.class")), modules[i]);
+            }
+            // twice, so that we read from jars that were closed
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < count; i++) {
+                    assertEquals("m" + i + ":split/C" + i + ".class", contents(jars.getContents("split/C" + i + ".class")));
+                    assertEquals("m" + i + ":m" + i + "/M.class", contents(jars.getContents(modules[i], "m" + i + "/M.class")));
+                }
+            }
+            assertNull(jars.getContents("split/C" + count + ".class"));
+            jars.close();
+            // we open them again if we need to
+            assertEquals("m0:split/C0.class", contents(jars.getContents("split/C0.class")));
+        } finally {
+            jars.close();
+        }
+    }
+
+    @Test
+    public void testOpenJars() throws IOException {
+        int count = CachedTOCJars.DEFAULT_MAX_OPEN_JARS + 4;
+        OpenJars openJars = new OpenJars(CachedTOCJars.DEFAULT_MAX_OPEN_JARS);
+        CachedTOCJar[] jars = new CachedTOCJar[count];
+        for (int i = 0; i < count; i++) {
+            jars[i] = new CachedTOCJar(CompilerTests.makeArtifactResult(makeJar("m" + i, "p/C.class")), false);
+            assertFalse(jars[i].isZipFileOpen());
+        }
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(("m" + i + ":p/C.class").getBytes("UTF-8"), jars[i].getContents("p/C.class", openJars));
+        }
+        // the least recently used ones were closed
+        for (int i = 0; i < count; i++) {
+            assertEquals("jar " + i, i >= count - CachedTOCJars.DEFAULT_MAX_OPEN_JARS, jars[i].isZipFileOpen());
+        }
+        // using one makes it the most recently used
+        int first = count - CachedTOCJars.DEFAULT_MAX_OPEN_JARS;
+        jars[first].getContents("p/C.class", openJars);
+        jars[0].getContents("p/C.class", openJars);
+        assertTrue(jars[0].isZipFileOpen());
+        assertTrue(jars[first].isZipFileOpen());
+        assertFalse(jars[first + 1].isZipFileOpen());
+
+        // a jar which expires while being read is closed by its last reader
+        File file = jars[1].artifact.artifact();
+        ZipFile zipFile = jars[1].acquireZipFile(file, openJars);
+        ZipFile again = jars[1].acquireZipFile(file, openJars);
+        assertSame(zipFile, again);
+        for (int i = 2; i < count; i++) {
+            jars[i].getContents("p/C.class", openJars);
+        }
+        assertTrue(jars[1].isZipFileOpen());
+        assertNotNull(zipFile.getEntry("p/C.class"));
+        jars[1].releaseZipFile();
+        assertTrue(jars[1].isZipFileOpen());
+        jars[1].releaseZipFile();
+        assertFalse(jars[1].isZipFileOpen());
+
+        openJars.closeAll();
+        for (int i = 0; i < count; i++) {
+            assertFalse("jar " + i, jars[i].isZipFileOpen());
+        }
+        // and they can be read again
+        assertArrayEquals("m1:p/C.class".getBytes("UTF-8"), jars[1].getContents("p/C.class", openJars));
+        assertTrue(jars[1].isZipFileOpen());
+        openJars.closeAll();
+    }
+}
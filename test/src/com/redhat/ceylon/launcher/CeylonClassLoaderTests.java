@@ -0,0 +1,338 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.launcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redhat.ceylon.common.FileUtil;
+
+public class CeylonClassLoaderTests {
+
+    public static class Probe {}
+    public static class SubProbe extends Probe {}
+    public static class OtherProbe {}
+
+    private static final String PACKAGE_DIR = "com/redhat/ceylon/launcher/";
+    private static final String RESOURCE = PACKAGE_DIR + "probe.txt";
+
+    private File dir;
+    private List<CeylonClassLoader> loaders = new ArrayList<CeylonClassLoader>();
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("ceylon-class-loader", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        for (CeylonClassLoader loader : loaders) {
+            loader.close();
+        }
+        FileUtil.deleteQuietly(dir);
+    }
+
+    private static byte[] getClassBytes(Class<?> klass) throws IOException {
+        InputStream in = klass.getResourceAsStream(klass.getName().substring(klass.getName().lastIndexOf('.') + 1) + ".class");
+        assertNotNull(in);
+        try {
+            return readAll(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            bytes.write(buffer, 0, read);
+        return bytes.toByteArray();
+    }
+
+    private static String read(URL url) throws IOException {
+        InputStream in = url.openStream();
+        try {
+            return new String(readAll(in), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private File makeJar(String name, Class<?>... classes) throws IOException {
+        File jar = new File(dir, name + ".jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            for (Class<?> klass : classes) {
+                out.putNextEntry(new ZipEntry(klass.getName().replace('.', '/') + ".class"));
+                out.write(getClassBytes(klass));
+                out.closeEntry();
+            }
+            out.putNextEntry(new ZipEntry(RESOURCE));
+            out.write(name.getBytes("UTF-8"));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+
+    private File makeFolder(String name, Class<?>... classes) throws IOException {
+        File folder = new File(dir, name);
+        for (Class<?> klass : classes) {
+            File file = new File(folder, klass.getName().replace('.', '/') + ".class");
+            file.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(getClassBytes(klass));
+            } finally {
+                out.close();
+            }
+        }
+        return folder;
+    }
+
+    private CeylonClassLoader newLoader(File... classPath) throws Exception {
+        CeylonClassLoader loader = CeylonClassLoader.newInstance(Arrays.asList(classPath), getClass().getClassLoader());
+        loaders.add(loader);
+        return loader;
+    }
+
+    private static boolean isParallelCapable(ClassLoader loader) throws Exception {
+        try {
+            // Java 9 and later
+            return (Boolean) ClassLoader.class.getMethod("isRegisteredAsParallelCapable").invoke(loader);
+        } catch (NoSuchMethodException e) {
+            // Java 7 and 8 only have a lock map for parallel capable class loaders
+            Field parallelLockMap = ClassLoader.class.getDeclaredField("parallelLockMap");
+            parallelLockMap.setAccessible(true);
+            return parallelLockMap.get(loader) != null;
+        }
+    }
+
+    @Test
+    public void testParallelCapable() throws Exception {
+        // if registering fails we silently lock the whole class loader instead
+        assertTrue(isParallelCapable(newLoader(makeJar("probe", Probe.class))));
+        assertTrue(isParallelCapable(newLoader(makeFolder("classes", Probe.class))));
+    }
+
+    @Test
+    public void testCloseClosesIndexedArchives() throws Exception {
+        CeylonClassLoader loader = newLoader(makeJar("probe", Probe.class));
+        URL url = loader.findResource(RESOURCE);
+        assertNotNull(url);
+        JarFile jar = ((JarURLConnection) url.openConnection()).getJarFile();
+        loader.close();
+        try {
+            jar.getEntry(RESOURCE);
+            fail("The archive should be closed");
+        } catch (IllegalStateException e) {
+            // closed
+        }
+        assertNull(loader.findResource(RESOURCE));
+    }
+
+    @Test
+    public void testChildFirst() throws Exception {
+        CeylonClassLoader loader = newLoader(makeJar("a", Probe.class, SubProbe.class));
+
+        Class<?> probe = loader.loadClass(Probe.class.getName());
+        assertNotSame(Probe.class, probe);
+        assertSame(loader, probe.getClassLoader());
+        assertSame(probe, loader.loadClass(Probe.class.getName()));
+        // its super class comes from us too
+        Class<?> subProbe = loader.loadClass(SubProbe.class.getName());
+        assertSame(loader, subProbe.getClassLoader());
+        assertSame(probe, subProbe.getSuperclass());
+        // defined with the archive as code source and its package
+        assertEquals(new File(dir, "a.jar").toURI().toURL(),
+                probe.getProtectionDomain().getCodeSource().getLocation());
+        assertNotNull(probe.getPackage());
+    }
+
+    @Test
+    public void testParentDelegation() throws Exception {
+        CeylonClassLoader loader = newLoader(makeJar("a", Probe.class));
+
+        // packages we don't have
+        assertSame(String.class, loader.loadClass(String.class.getName()));
+        assertSame(Test.class, loader.loadClass(Test.class.getName()));
+        // classes we don't have in packages we have
+        assertSame(OtherProbe.class, loader.loadClass(OtherProbe.class.getName()));
+        assertSame(CeylonClassLoaderTests.class, loader.loadClass(CeylonClassLoaderTests.class.getName()));
+        try {
+            loader.loadClass(PACKAGE_DIR.replace('/', '.') + "NoSuchClass");
+            throw new AssertionError("Expected a ClassNotFoundException");
+        } catch (ClassNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testClassPathOrder() throws Exception {
+        CeylonClassLoader loader = newLoader(makeJar("a", Probe.class), makeJar("b", Probe.class, SubProbe.class));
+
+        assertEquals(new File(dir, "a.jar").toURI().toURL(),
+                loader.loadClass(Probe.class.getName()).getProtectionDomain().getCodeSource().getLocation());
+        assertEquals(new File(dir, "b.jar").toURI().toURL(),
+                loader.loadClass(SubProbe.class.getName()).getProtectionDomain().getCodeSource().getLocation());
+        assertArrayEquals(new URL[]{ new File(dir, "a.jar").toURI().toURL(), new File(dir, "b.jar").toURI().toURL() },
+                loader.getURLs());
+    }
+
+    @Test
+    public void testResources() throws Exception {
+        File a = makeJar("a", Probe.class);
+        File b = makeJar("b", Probe.class);
+        CeylonClassLoader loader = newLoader(a, b);
+
+        URL url = loader.getResource(RESOURCE);
+        assertNotNull(url);
+        assertEquals("a", read(url));
+        // read from the archive we opened
+        URLConnection connection = url.openConnection();
+        assertTrue(connection instanceof JarURLConnection);
+        assertEquals(a.getPath(), ((JarURLConnection)connection).getJarFile().getName());
+        assertEquals(RESOURCE, ((JarURLConnection)connection).getEntryName());
+
+        InputStream in = loader.getResourceAsStream(RESOURCE);
+        assertNotNull(in);
+        try {
+            assertEquals("a", new String(readAll(in), "UTF-8"));
+        } finally {
+            in.close();
+        }
+
+        List<String> contents = new ArrayList<String>();
+        for (URL resource : Collections.list(loader.getResources(RESOURCE))) {
+            contents.add(read(resource));
+        }
+        assertEquals(Arrays.asList("a", "b"), contents);
+
+        // the parent's
+        String ownClass = CeylonClassLoaderTests.class.getName().replace('.', '/') + ".class";
+        assertEquals(getClass().getClassLoader().getResource(ownClass), loader.getResource(ownClass));
+        assertNull(loader.getResource(PACKAGE_DIR + "no-such-resource.txt"));
+        assertNull(loader.getResource("no/such/package/resource.txt"));
+    }
+
+    @Test
+    public void testFolders() throws Exception {
+        // folders are left to URLClassLoader
+        CeylonClassLoader loader = newLoader(makeFolder("a", Probe.class), makeJar("b", Probe.class, SubProbe.class));
+
+        Class<?> probe = loader.loadClass(Probe.class.getName());
+        assertSame(loader, probe.getClassLoader());
+        assertEquals(new File(dir, "a").toURI().toURL(),
+                probe.getProtectionDomain().getCodeSource().getLocation());
+        assertSame(probe, loader.loadClass(SubProbe.class.getName()).getSuperclass());
+        assertSame(String.class, loader.loadClass(String.class.getName()));
+        assertEquals("b", read(loader.getResource(RESOURCE)));
+    }
+
+    @Test
+    public void testMissingArchives() throws Exception {
+        CeylonClassLoader loader = newLoader(new File(dir, "missing.jar"), makeJar("a", Probe.class));
+
+        assertSame(loader, loader.loadClass(Probe.class.getName()).getClassLoader());
+        assertEquals("a", read(loader.getResource(RESOURCE)));
+    }
+
+    @Test
+    public void testConcurrentLoading() throws Exception {
+        final CeylonClassLoader loader = newLoader(makeJar("a", Probe.class, SubProbe.class, OtherProbe.class));
+        final String[] names = { SubProbe.class.getName(), Probe.class.getName(), OtherProbe.class.getName(), String.class.getName() };
+
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Class<?>[]>> results = new ArrayList<Future<Class<?>[]>>();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                results.add(executor.submit(new Callable<Class<?>[]>() {
+                    @Override
+                    public Class<?>[] call() throws Exception {
+                        start.await();
+                        Class<?>[] classes = new Class<?>[names.length];
+                        // each thread starts with another class
+                        for (int i = 0; i < names.length; i++) {
+                            int index = (i + offset) % names.length;
+                            classes[index] = loader.loadClass(names[index]);
+                        }
+                        return classes;
+                    }
+                }));
+            }
+            start.countDown();
+            Class<?>[] first = results.get(0).get();
+            for (Future<Class<?>[]> result : results) {
+                Class<?>[] classes = result.get();
+                for (int i = 0; i < names.length; i++) {
+                    assertSame(first[i], classes[i]);
+                }
+            }
+            assertSame(loader, first[0].getClassLoader());
+            assertSame(first[1], first[0].getSuperclass());
+            assertFalse(Probe.class == first[1]);
+            assertSame(String.class, first[3]);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.launcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class ClassDataSharingTests {
+
+    @Test
+    public void testJavaVersion() {
+        assertEquals(5, ClassDataSharing.getJavaVersion("1.5"));
+        assertEquals(8, ClassDataSharing.getJavaVersion("1.8"));
+        assertEquals(9, ClassDataSharing.getJavaVersion("9"));
+        assertEquals(13, ClassDataSharing.getJavaVersion("13"));
+        assertEquals(17, ClassDataSharing.getJavaVersion("17.0.9"));
+        assertEquals(21, ClassDataSharing.getJavaVersion("21-ea"));
+        assertEquals(0, ClassDataSharing.getJavaVersion(""));
+        assertEquals(0, ClassDataSharing.getJavaVersion("unknown"));
+        assertTrue(ClassDataSharing.getJavaVersion() > 0);
+    }
+
+    @Test
+    public void testArchiveName() {
+        String name = ClassDataSharing.getArchiveName("/ceylon/repo/a.jar:/ceylon/repo/b.jar", "17.0.9+9");
+        // what the scripts look for
+        assertTrue(name, name.startsWith("ceylon-bootstrap-17.0.9_9-"));
+        assertTrue(name, name.endsWith(".jsa"));
+        assertEquals(name, ClassDataSharing.getArchiveName("/ceylon/repo/a.jar:/ceylon/repo/b.jar", "17.0.9+9"));
+        // one for each class path and each JVM
+        assertFalse(name.equals(ClassDataSharing.getArchiveName("/other/repo/a.jar:/other/repo/b.jar", "17.0.9+9")));
+        assertFalse(name.equals(ClassDataSharing.getArchiveName("/ceylon/repo/a.jar:/ceylon/repo/b.jar", "17.0.10+7")));
+        assertEquals(-1, ClassDataSharing.getArchiveName("/a.jar", "25 (build) 1/2").indexOf(' '));
+        assertEquals(-1, ClassDataSharing.getArchiveName("/a.jar", "25 (build) 1/2").indexOf('/'));
+    }
+
+    private static Properties signature(String classPath, String vmVersion, String javaHome) {
+        Properties signature = new Properties();
+        if (classPath != null)
+            signature.setProperty("signature", classPath);
+        if (vmVersion != null)
+            signature.setProperty("java.vm.version", vmVersion);
+        if (javaHome != null)
+            signature.setProperty("java.home", javaHome);
+        return signature;
+    }
+
+    @Test
+    public void testDiscardable() {
+        String javaHome = System.getProperty("java.home");
+        String missingHome = new File(javaHome, "no-such-jvm").getPath();
+
+        // archives of other class paths and other JVMs are kept
+        assertFalse(ClassDataSharing.isDiscardable(signature("/ceylon/repo/a.jar", System.getProperty("java.vm.version"), javaHome)));
+        assertFalse(ClassDataSharing.isDiscardable(signature("/other/repo/a.jar", "1.0", javaHome)));
+        // unless that JVM is gone
+        assertTrue(ClassDataSharing.isDiscardable(signature("/ceylon/repo/a.jar", "1.0", missingHome)));
+        // or we don't know what they were made for
+        assertTrue(ClassDataSharing.isDiscardable(null));
+        assertTrue(ClassDataSharing.isDiscardable(signature(null, "1.0", javaHome)));
+        assertTrue(ClassDataSharing.isDiscardable(signature("/ceylon/repo/a.jar", null, javaHome)));
+        assertTrue(ClassDataSharing.isDiscardable(signature("/ceylon/repo/a.jar", "1.0", null)));
+    }
+}
@@ -23,6 +23,11 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -33,6 +38,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.redhat.ceylon.common.FileUtil;
+import com.redhat.ceylon.common.OSUtil;
 import com.redhat.ceylon.common.tool.OptionArgumentException;
 import com.redhat.ceylon.common.tool.OptionArgumentException.ToolInitializationException;
 import com.redhat.ceylon.common.tool.ToolFactory;
@@ -43,6 +49,7 @@ import com.redhat.ceylon.common.tools.CeylonToolLoader;
 import com.redhat.ceylon.compiler.CeylonCompileTool;
 import com.redhat.ceylon.compiler.CompilerErrorException;
 import com.redhat.ceylon.compiler.SystemErrorException;
+import com.redhat.ceylon.compiler.java.launcher.CompileServer;
 import com.redhat.ceylon.compiler.java.test.CompilerTests;
 
 public class CompilerToolTests extends AbstractToolTests {
@@ -114,7 +121,132 @@ public class CompilerToolTests extends AbstractToolTests {
 
         car.close();
     }
+
+    @Test
+    public void testCompileIncremental()  throws Exception {
+        File destDir = destFile("compileincrementaltest");
+        FileUtil.delete(destDir);
+        destDir.mkdirs();
+        FileUtil.copyAll(new File("test/src/com/redhat/ceylon/tools/test/cwdtest"), destDir);
+        
+        List<String> args = Arrays.asList(
+                "--cwd", destDir.getPath(),
+                "--src=src",
+                "--resource=res",
+                "--out=mod",
+                "--rep", "aether",
+                "--overrides", "overrides.xml",
+                "--incremental",
+                "--javac=-cp=" + getClassPathAsPath(),
+                "cwdtest");
+        ToolModel<CeylonCompileTool> model = pluginLoader.loadToolModel("compile");
+        Assert.assertNotNull(model);
+        CeylonCompileTool tool = pluginFactory.bindArguments(model, getMainTool(), args);
+        tool.run();
+        
+        File carFile = getModuleArchive("cwdtest", "1", (new File(destDir, "mod")).getPath());
+        assertTrue(carFile.exists());
+        JarFile car = new JarFile(carFile);
+        assertNotNull(car.getEntry("META-INF/units.txt"));
+        assertNotNull(car.getEntry("cwdtest/test.txt"));
+        car.close();
+        
+        // nothing changed: the car must be left alone
+        long lastModified = carFile.lastModified();
+        tool = pluginFactory.bindArguments(model, getMainTool(), args);
+        tool.run();
+        Assert.assertEquals(lastModified, carFile.lastModified());
+        
+        // a new unit gets compiled and spliced into the car
+        FileWriter writer = new FileWriter(new File(destDir, "src/cwdtest/other.ceylon"));
+        writer.write("shared void other() {}\n");
+        writer.close();
+        tool = pluginFactory.bindArguments(model, getMainTool(), args);
+        tool.run();
+        car = new JarFile(carFile);
+        assertNotNull(car.getEntry("META-INF/units.txt"));
+        assertNotNull(car.getEntry("cwdtest/test.txt"));
+        assertNotNull(car.getEntry("cwdtest/other_.class"));
+        assertNotNull(car.getEntry("cwdtest/run_.class"));
+        car.close();
+    }
     
+    @Test
+    public void testCompileWithServer()  throws Exception {
+        // not in the user's Ceylon directory
+        File secretFile = File.createTempFile("compile-server", ".secret");
+        final CompileServer server = new CompileServer(0, secretFile);
+        Thread serverThread = new Thread("compile server"){
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        serverThread.start();
+        try {
+            ToolModel<CeylonCompileTool> model = pluginLoader.loadToolModel("compile");
+            Assert.assertNotNull(model);
+            for (int i = 0; i < 2; i++) {
+                CeylonCompileTool tool = pluginFactory.bindArguments(model, getMainTool(),
+                        options("--server=" + server.getPort(), "--server-secret=" + secretFile.getPath(), 
+                                "--src=test/src", "com.redhat.ceylon.tools.test.ceylon"));
+                tool.run();
+            }
+            // the second compilation found the first one's modules loaded
+            Assert.assertEquals(1, server.getReusedContexts());
+            // but not once an archive of the class path changed
+            File car = destFile("com/redhat/ceylon/tools/test/ceylon/1.0/com.redhat.ceylon.tools.test.ceylon-1.0.car");
+            Assert.assertTrue(car.setLastModified(car.lastModified() - 60000));
+            CeylonCompileTool tool = pluginFactory.bindArguments(model, getMainTool(),
+                    options("--server=" + server.getPort(), "--server-secret=" + secretFile.getPath(), 
+                            "--src=test/src", "com.redhat.ceylon.tools.test.ceylon"));
+            tool.run();
+            Assert.assertEquals(1, server.getReusedContexts());
+            try {
+                tool = pluginFactory.bindArguments(model, getMainTool(),
+                        options("--server=" + server.getPort(), "--server-secret=" + secretFile.getPath(), 
+                                "--src=test/src", "com.redhat.ceylon.tools.test.bug1183"));
+                tool.run();
+                Assert.fail("Tool should have thrown an exception");
+            } catch (CompilerErrorException e) {
+                // errors are reported like for a local compilation
+            }
+            Assert.assertEquals(2, server.getReusedContexts());
+            // nor after a compilation which failed
+            tool = pluginFactory.bindArguments(model, getMainTool(),
+                    options("--server=" + server.getPort(), "--server-secret=" + secretFile.getPath(), 
+                            "--src=test/src", "com.redhat.ceylon.tools.test.ceylon"));
+            tool.run();
+            Assert.assertEquals(2, server.getReusedContexts());
+            // the secret file is private to its user
+            Assert.assertTrue(secretFile.canRead());
+            if (!OSUtil.isWindows()) {
+                Assert.assertEquals("rw-------", PosixFilePermissions.toString(
+                        Files.getPosixFilePermissions(secretFile.toPath())));
+            }
+            // and nothing runs without it
+            File wrongSecret = File.createTempFile("wrong", ".secret");
+            try {
+                Files.write(wrongSecret.toPath(), "wrong".getBytes("UTF-8"));
+                CompileServer.compile(server.getPort(), wrongSecret, 
+                        Arrays.asList("--src=test/src", "com.redhat.ceylon.tools.test.ceylon"), new StringWriter());
+                Assert.fail("The server should have dropped the connection");
+            } catch (IOException e) {
+                // expected
+            } finally {
+                wrongSecret.delete();
+            }
+        } finally {
+            server.close();
+            serverThread.join();
+        }
+        Assert.assertFalse(secretFile.exists());
+    }
+
     @Test
     public void testCompileVerbose()  throws Exception {
         ToolModel<CeylonCompileTool> model = pluginLoader.loadToolModel("compile");